@@ -0,0 +1,196 @@
+package ziotbroker.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import ziotbroker.BrokerLogger;
+import ziotbroker.ClusterNode;
+import ziotbroker.LogLevel;
+import ziotbroker.MQTTBroker;
+import ziotbroker.OverflowAction;
+import ziotbroker.OverflowPolicy;
+import ziotbroker.Subscribtion;
+import ziotbroker.TopicHandle;
+import ziotbroker.TransportMode;
+import ziotbroker.WriteCoalescing;
+import ziotbroker.packet.ConnectPacket;
+import ziotbroker.packet.SubscribePacket;
+
+/**
+ * Measures delivery across a cluster of brokers running in one JVM on loopback
+ * ports. The first node publishes batches of messages to topics subscribed
+ * on the other nodes (one subscriber per node, every node gets its own share
+ * of the topics) and to a topic nobody subscribes. The benchmark checks that
+ * every subscriber gets exactly its share and that the unsubscribed topic
+ * is not forwarded, then it reports throughput of the cross-node delivery.
+ *
+ * Usage: ClusterBenchmark [nodes] [messages] [payload size] [port]
+ *
+ * @author Jakub Svarc
+ */
+public class ClusterBenchmark {
+
+    /**
+     * Offset of the cluster ports from the client ports of the nodes.
+     */
+    private static final int CLUSTER_PORT_OFFSET = 100;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args number of nodes, number of messages, payload size and client
+     * port of the first node
+     * @throws Exception thrown if the benchmark fails
+     */
+    public static void main(String[] args) throws Exception {
+        int nodeCount = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int messageCount = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        int payloadSize = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : 18830;
+
+        if (nodeCount < 2) {
+            throw new IllegalArgumentException("Cluster needs at least 2 nodes");
+        }
+
+        BrokerLogger.setLevel(LogLevel.WARNING);
+
+        // Publisher waits for full queues instead of dropping messages, event loops must not wait, so brokers use virtual threads
+        OverflowPolicy overflowPolicy = new OverflowPolicy(100_000, OverflowAction.BOUNDED_WAIT, 1, TimeUnit.SECONDS.toNanos(10));
+        MQTTBroker[] brokers = new MQTTBroker[nodeCount];
+
+        for (int i = 0; i < nodeCount; i++) {
+            ArrayList<InetSocketAddress> peers = new ArrayList<>();
+
+            for (int j = 0; j < nodeCount; j++) {
+                if (j != i) {
+                    peers.add(new InetSocketAddress("127.0.0.1", port + CLUSTER_PORT_OFFSET + j));
+                }
+            }
+
+            ClusterNode cluster = new ClusterNode("node-" + i, (short) (port + CLUSTER_PORT_OFFSET + i), peers, WriteCoalescing.DEFAULT, overflowPolicy, ClusterNode.DEFAULT_GOSSIP_INTERVAL_NANOS, TimeUnit.MILLISECONDS.toNanos(200));
+
+            brokers[i] = new MQTTBroker((short) (port + i), new MQTTBroker.Config().setTransportMode(TransportMode.VIRTUAL_THREADS).setOverflowPolicy(overflowPolicy).setStatisticsIntervalNanos(0).setCluster(cluster));
+            brokers[i].setDaemon(true);
+            brokers[i].start();
+        }
+
+        long linkDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+
+        for (MQTTBroker broker : brokers) {
+            while (broker.getCluster().getLinkCount() < nodeCount - 1) {
+                if (System.nanoTime() > linkDeadline) {
+                    throw new IllegalStateException("Cluster did not link in time");
+                }
+
+                Thread.sleep(10);
+            }
+        }
+
+        System.out.printf("%d nodes linked\n", nodeCount);
+
+        int subscriberCount = nodeCount - 1;
+        int perSubscriber = messageCount / subscriberCount;
+        AtomicLong[] receivedCounts = new AtomicLong[subscriberCount];
+        CountDownLatch received = new CountDownLatch(subscriberCount);
+        ArrayList<Socket> subscribers = new ArrayList<>();
+
+        for (int i = 0; i < subscriberCount; i++) {
+            Socket subscriber = new Socket("127.0.0.1", port + 1 + i);
+            ArrayList<Subscribtion> subscribtions = new ArrayList<>();
+            AtomicLong receivedCount = new AtomicLong();
+
+            subscribtions.add(new Subscribtion("bench/node" + (i + 1) + "/+", (byte) 0));
+            subscriber.getOutputStream().write(new ConnectPacket("bench-subscriber-" + i, (short) 0, true).buildBinaryPacket());
+            subscriber.getOutputStream().write(new SubscribePacket(1, subscribtions).buildBinaryPacket());
+            subscribers.add(subscriber);
+            receivedCounts[i] = receivedCount;
+            Thread.ofPlatform().daemon().start(() -> count(subscriber, receivedCount, perSubscriber, received));
+        }
+
+        // Summaries of the new subscribtions reach the publishing node
+        Thread.sleep(TimeUnit.NANOSECONDS.toMillis(ClusterNode.DEFAULT_GOSSIP_INTERVAL_NANOS) * 5);
+
+        MQTTBroker publisher = brokers[0];
+        int batchSize = 1000;
+        TopicHandle[] handles = new TopicHandle[batchSize];
+        byte[][] payloads = new byte[batchSize][];
+        int[] deliveryCounts = new int[batchSize];
+
+        for (int i = 0; i < batchSize; i++) {
+            handles[i] = publisher.resolveTopic("bench/node" + (1 + i % subscriberCount) + "/topic" + (i % 10));
+            payloads[i] = new byte[payloadSize];
+        }
+
+        TopicHandle unsubscribed = publisher.resolveTopic("bench/nobody/topic");
+
+        for (int i = 0; i < 1000; i++) {
+            publisher.publish(new TopicHandle[] {unsubscribed}, new byte[][] {payloads[0]}, 1, (byte) 0, false, deliveryCounts);
+        }
+
+        long forwardedBefore = publisher.getCluster().getForwardedMessages();
+        long start = System.nanoTime();
+
+        for (int i = 0; i < perSubscriber * subscriberCount; i += batchSize) {
+            publisher.publish(handles, payloads, Math.min(batchSize, perSubscriber * subscriberCount - i), (byte) 0, false, deliveryCounts);
+        }
+
+        long publishNanos = System.nanoTime() - start;
+        boolean complete = received.await(60, TimeUnit.SECONDS);
+        long deliveryNanos = System.nanoTime() - start;
+        long totalReceived = 0;
+
+        for (AtomicLong receivedCount : receivedCounts) {
+            totalReceived += receivedCount.get();
+        }
+
+        System.out.printf("Unsubscribed topic forwarded: %d times\n", forwardedBefore);
+        System.out.printf("Forwarded %d messages, received %d of %d (%s)\n", publisher.getCluster().getForwardedMessages() - forwardedBefore, totalReceived, (long) perSubscriber * subscriberCount, complete ? "complete" : "INCOMPLETE");
+        System.out.printf("Publish %.0f msg/s, cross-node delivery %.0f msg/s\n", totalReceived / (publishNanos / 1e9), totalReceived / (deliveryNanos / 1e9));
+
+        for (Socket subscriber : subscribers) {
+            subscriber.close();
+        }
+
+        System.exit(complete && forwardedBefore == 0 ? 0 : 1);
+    }
+
+    /**
+     * Counts <b>PUBLISH</b> packets sent to the subscriber.
+     *
+     * @param subscriber connection of the subscriber
+     * @param receivedCount counter of received messages
+     * @param expectedCount number of messages the subscriber should receive
+     * @param received latch counted down when all messages are received
+     */
+    private static void count(Socket subscriber, AtomicLong receivedCount, int expectedCount, CountDownLatch received) {
+        try {
+            InputStream in = subscriber.getInputStream();
+            DataInputStream data = new DataInputStream(new BufferedInputStream(in, 65536));
+
+            while (true) {
+                int controlHeader = data.readUnsignedByte();
+                int remainingLength = 0, multiplier = 1, encodedByte;
+
+                do {
+                    encodedByte = data.readUnsignedByte();
+                    remainingLength += (encodedByte & 127) * multiplier;
+                    multiplier *= 128;
+                } while ((encodedByte & 128) != 0);
+
+                data.skipNBytes(remainingLength);
+
+                if ((controlHeader >> 4) == 3 && receivedCount.incrementAndGet() == expectedCount) {
+                    received.countDown();
+                }
+            }
+        } catch (IOException ex) {}
+    }
+
+}
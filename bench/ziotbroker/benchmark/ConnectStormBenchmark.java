@@ -0,0 +1,155 @@
+package ziotbroker.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import ziotbroker.BrokerLogger;
+import ziotbroker.LogLevel;
+import ziotbroker.MQTTBroker;
+import ziotbroker.TransportMode;
+import ziotbroker.packet.ConnectPacket;
+
+/**
+ * Measures how fast the broker accepts a reconnect storm with 1, 2, 4 and 8
+ * listener shards. For every shard count a fresh broker is started on its own
+ * port and connector threads open all connections at once - every connection
+ * sends <b>CONNECT</b> and waits for <b>CONNACK</b>. Connections stay open
+ * until the whole storm is accepted (like devices coming back after a network
+ * blip). Every broker has its own port, so client ports left in TIME_WAIT
+ * by the previous storm do not collide with the next one.
+ *
+ * Usage: ConnectStormBenchmark [connections] [connector threads] [port]
+ * [transport mode]
+ *
+ * @author Jakub Svarc
+ */
+public class ConnectStormBenchmark {
+
+    /**
+     * Shard counts of the measured brokers.
+     */
+    private static final int[] ACCEPTOR_COUNTS = {1, 2, 4, 8};
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args number of connections, number of connector threads, port
+     * of the first broker and transport mode
+     * @throws Exception thrown if the benchmark fails
+     */
+    public static void main(String[] args) throws Exception {
+        int connectionCount = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int connectorCount = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : 18830;
+        TransportMode transportMode = args.length > 3 ? TransportMode.valueOf(args[3]) : TransportMode.SELECTOR;
+
+        BrokerLogger.setLevel(LogLevel.WARNING);
+
+        byte[][] connectPackets = new byte[connectionCount][];
+
+        for (int i = 0; i < connectionCount; i++) {
+            connectPackets[i] = new ConnectPacket("storm-" + i, (short) 0, true).buildBinaryPacket();
+        }
+
+        System.out.printf("Transport mode: %s, %d connections, %d connector threads\n", transportMode, connectionCount, connectorCount);
+
+        for (int round = 0; round < ACCEPTOR_COUNTS.length; round++) {
+            int acceptorCount = ACCEPTOR_COUNTS[round];
+            short brokerPort = (short) (port + round);
+            int eventLoopCount = Math.max(acceptorCount, Runtime.getRuntime().availableProcessors());
+
+            MQTTBroker broker = new MQTTBroker(brokerPort, new MQTTBroker.Config().setTransportMode(transportMode).setEventLoopCount(eventLoopCount).setStatisticsIntervalNanos(0).setAcceptorCount(acceptorCount));
+            broker.setDaemon(true);
+            broker.start();
+            Thread.sleep(500);
+
+            Socket[] clients = new Socket[connectionCount];
+            ArrayList<LatencyHistogram> histograms = new ArrayList<>(connectorCount);
+            CountDownLatch ready = new CountDownLatch(connectorCount);
+            CountDownLatch go = new CountDownLatch(1);
+            CountDownLatch done = new CountDownLatch(connectorCount);
+
+            for (int i = 0; i < connectorCount; i++) {
+                LatencyHistogram histogram = new LatencyHistogram();
+                int first = i;
+
+                histograms.add(histogram);
+                Thread.ofPlatform().daemon().start(() -> {
+                    ready.countDown();
+
+                    try {
+                        go.await();
+
+                        for (int j = first; j < connectionCount; j += connectorCount) {
+                            long start = System.nanoTime();
+
+                            clients[j] = connect(brokerPort, connectPackets[j]);
+                            histogram.record(System.nanoTime() - start);
+                        }
+                    } catch (IOException | InterruptedException ex) {
+                        System.err.printf("Connector failed - %s\n", ex.getMessage());
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            }
+
+            ready.await();
+
+            long start = System.nanoTime();
+
+            go.countDown();
+            done.await();
+
+            long elapsed = System.nanoTime() - start;
+            LatencyHistogram latency = new LatencyHistogram();
+
+            for (LatencyHistogram histogram : histograms) {
+                latency.add(histogram);
+            }
+
+            System.out.printf("%d acceptors: %d connected in %.1f ms, %.0f connects/s, latency p50 %.1f us, p99 %.1f us, max %.1f us\n", acceptorCount, latency.getTotalCount(), elapsed / 1e6, latency.getTotalCount() / (elapsed / 1e9), latency.getValueAtPercentile(50) / 1e3, latency.getValueAtPercentile(99) / 1e3, latency.getMaxValue() / 1e3);
+
+            for (Socket client : clients) {
+                if (client != null) {
+                    client.close();
+                }
+            }
+
+            // Broker closes the connections before the next storm
+            Thread.sleep(TimeUnit.SECONDS.toMillis(1));
+        }
+
+        System.exit(0);
+    }
+
+    /**
+     * Opens connection to the broker, sends <b>CONNECT</b> and waits
+     * for <b>CONNACK</b>.
+     *
+     * @param port port of the broker
+     * @param connectPacket encoded <b>CONNECT</b> packet
+     * @return open connection of the client
+     * @throws IOException thrown if the connection fails or it is refused
+     */
+    private static Socket connect(short port, byte[] connectPacket) throws IOException {
+        Socket client = new Socket("127.0.0.1", port);
+        InputStream in = client.getInputStream();
+
+        client.setTcpNoDelay(true);
+        client.getOutputStream().write(connectPacket);
+
+        byte[] connack = in.readNBytes(4);
+
+        if (connack.length != 4 || connack[0] != 0x20 || connack[3] != 0) {
+            client.close();
+            throw new IOException("CONNACK not received");
+        }
+
+        return client;
+    }
+
+}
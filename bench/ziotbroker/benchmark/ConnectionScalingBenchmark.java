@@ -0,0 +1,184 @@
+package ziotbroker.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import ziotbroker.MQTTBroker;
+import ziotbroker.TransportMode;
+import ziotbroker.packet.ConnectPacket;
+
+/**
+ * Measures how many idle clients the broker holds and how much memory every
+ * connection costs in given transport mode. Every client connects, subscribes
+ * to its own topic and waits for SUBACK, so both of its services are running before
+ * the measurement. Client sockets live in the same JVM, so the numbers per
+ * connection include them - compare modes against each other, not against
+ * zero.
+ *
+ * Usage: ConnectionScalingBenchmark &lt;transport mode&gt; [connections] [port]
+ *
+ * @author Jakub Svarc
+ */
+public class ConnectionScalingBenchmark {
+
+    /**
+     * Charset used for encoding strings in packet (for MQTT 3.1.1 it is UTF-8).
+     */
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args transport mode, number of connections and port
+     * @throws Exception thrown if the benchmark fails
+     */
+    public static void main(String[] args) throws Exception {
+        TransportMode transportMode = TransportMode.valueOf(args[0]);
+        int connectionCount = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        short port = args.length > 2 ? Short.parseShort(args[2]) : 18830;
+
+        MQTTBroker broker = new MQTTBroker(port, transportMode);
+        broker.setDaemon(true);
+        broker.start();
+        Thread.sleep(500);
+
+        long heapBefore = usedHeap();
+        long residentBefore = residentMemory();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+        long start = System.nanoTime();
+
+        ArrayList<Socket> clients = new ArrayList<>(connectionCount);
+
+        try {
+            for (int i = 0; i < connectionCount; i++) {
+                Socket client = new Socket("127.0.0.1", port);
+
+                connect(client, "scaling-" + i);
+                subscribe(client, "benchmark/" + i);
+                clients.add(client);
+            }
+        } catch (IOException ex) {
+            System.err.printf("Connection %d failed - %s\n", clients.size(), ex.getMessage());
+        }
+
+        long elapsed = System.nanoTime() - start;
+        long heapAfter = usedHeap();
+        long residentAfter = residentMemory();
+        int threadsAfter = ManagementFactory.getThreadMXBean().getThreadCount();
+        int connected = clients.size();
+
+        System.out.printf("Transport mode:          %s\n", transportMode);
+        System.out.printf("Connected clients:       %d of %d\n", connected, connectionCount);
+        System.out.printf("Connect + SUBACK time:   %.1f ms\n", elapsed / 1e6);
+        System.out.printf("Platform threads:        %d -> %d\n", threadsBefore, threadsAfter);
+        System.out.printf("Heap per connection:     %.0f B\n", (double) (heapAfter - heapBefore) / Math.max(connected, 1));
+
+        if (residentBefore >= 0 && residentAfter >= 0) {
+            System.out.printf("Resident per connection: %.0f B\n", (double) (residentAfter - residentBefore) / Math.max(connected, 1));
+        }
+
+        for (Socket client : clients) {
+            client.close();
+        }
+
+        System.exit(0);
+    }
+
+    /**
+     * Sends CONNECT packet with given client identifier and waits for CONNACK.
+     *
+     * @param client connection to the broker
+     * @param clientID identifier of the client
+     * @throws IOException thrown if the connection fails or it is refused
+     */
+    private static void connect(Socket client, String clientID) throws IOException {
+        OutputStream out = client.getOutputStream();
+        InputStream in = client.getInputStream();
+
+        out.write(new ConnectPacket(clientID, (short) 0, true).buildBinaryPacket());
+        out.flush();
+
+        byte[] connack = in.readNBytes(4);
+
+        if (connack.length != 4 || connack[0] != 0x20 || connack[3] != 0) {
+            throw new IOException("CONNACK not received");
+        }
+    }
+
+    /**
+     * Sends SUBSCRIBE packet for given topic with QoS 0 and waits for SUBACK.
+     *
+     * @param client connection to the broker
+     * @param topic topic to subscribe
+     * @throws IOException thrown if the connection fails
+     */
+    private static void subscribe(Socket client, String topic) throws IOException {
+        byte[] binaryTopic = topic.getBytes(CHARSET);
+        byte[] subscribePacket = new byte[2 + 2 + 2 + binaryTopic.length + 1];
+
+        subscribePacket[0] = (byte) 0b10000010;
+        subscribePacket[1] = (byte) (subscribePacket.length - 2);
+        subscribePacket[2] = 0;
+        subscribePacket[3] = 1;
+        subscribePacket[4] = (byte) (binaryTopic.length >> 8);
+        subscribePacket[5] = (byte) binaryTopic.length;
+        System.arraycopy(binaryTopic, 0, subscribePacket, 6, binaryTopic.length);
+        subscribePacket[subscribePacket.length - 1] = 0;
+
+        OutputStream out = client.getOutputStream();
+        InputStream in = client.getInputStream();
+
+        out.write(subscribePacket);
+        out.flush();
+
+        if (in.readNBytes(5).length != 5) {
+            throw new IOException("SUBACK not received");
+        }
+    }
+
+    /**
+     * Returns heap used after garbage collection.
+     *
+     * @return used heap in bytes
+     * @throws InterruptedException thrown if waiting for collection is
+     * interrupted
+     */
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Returns resident memory of the process (heap, thread stacks and other
+     * native memory). It is available only on Linux.
+     *
+     * @return resident memory in bytes or -1 if it is not available
+     */
+    private static long residentMemory() {
+        Path status = Paths.get("/proc/self/status");
+
+        try {
+            for (String line : Files.readAllLines(status)) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException ex) {}
+
+        return -1;
+    }
+
+}
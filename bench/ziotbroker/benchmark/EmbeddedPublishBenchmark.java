@@ -0,0 +1,119 @@
+package ziotbroker.benchmark;
+
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import ziotbroker.BrokerLogger;
+import ziotbroker.LogLevel;
+import ziotbroker.MQTTBroker;
+import ziotbroker.OverflowAction;
+import ziotbroker.OverflowPolicy;
+import ziotbroker.Subscribtion;
+import ziotbroker.TopicHandle;
+import ziotbroker.TransportMode;
+import ziotbroker.packet.ConnectPacket;
+import ziotbroker.packet.SubscribePacket;
+
+/**
+ * Measures publishing from the embedding application - one message per call
+ * of publish(String, byte[], ...) against batches published to resolved topic
+ * handles. Subscribers are connected by TCP and read everything they get,
+ * messages which do not fit into their queues are dropped.
+ *
+ * Usage: EmbeddedPublishBenchmark [messages] [batch] [topics] [subscribers] [port]
+ *
+ * @author Jakub Svarc
+ */
+public class EmbeddedPublishBenchmark {
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args number of messages, batch size, number of distinct topics,
+     * number of subscribers and port of the broker
+     * @throws Exception thrown if the benchmark fails
+     */
+    public static void main(String[] args) throws Exception {
+        int messageCount = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int topicCount = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        int subscriberCount = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+        short port = args.length > 4 ? Short.parseShort(args[4]) : 18830;
+
+        // Dropped packets are expected, they must not flood the output
+        BrokerLogger.setLevel(LogLevel.ERROR);
+
+        MQTTBroker broker = new MQTTBroker(port, new MQTTBroker.Config().setTransportMode(TransportMode.SELECTOR).setEventLoopCount(1).setOverflowPolicy(new OverflowPolicy(10000, OverflowAction.DROP_NEWEST)).setStatisticsIntervalNanos(0));
+        broker.setDaemon(true);
+        broker.start();
+        Thread.sleep(500);
+
+        ArrayList<Socket> subscribers = new ArrayList<>(subscriberCount);
+
+        for (int i = 0; i < subscriberCount; i++) {
+            Socket subscriber = new Socket("127.0.0.1", port);
+            ArrayList<Subscribtion> subscribtions = new ArrayList<>();
+
+            subscribtions.add(new Subscribtion("gateway/+/reading", (byte) 0));
+            subscriber.getOutputStream().write(new ConnectPacket("embedded-subscriber-" + i, (short) 0, true).buildBinaryPacket());
+            subscriber.getOutputStream().write(new SubscribePacket(1, subscribtions).buildBinaryPacket());
+            subscribers.add(subscriber);
+            Thread.ofVirtual().start(() -> discard(subscriber));
+        }
+
+        Thread.sleep(500);
+
+        String[] topics = new String[batchSize];
+        TopicHandle[] handles = new TopicHandle[batchSize];
+        byte[][] payloads = new byte[batchSize][];
+        int[] deliveryCounts = new int[batchSize];
+
+        for (int i = 0; i < batchSize; i++) {
+            topics[i] = "gateway/" + (i % topicCount) + "/reading";
+            handles[i] = broker.resolveTopic(topics[i]);
+            payloads[i] = new byte[32];
+        }
+
+        for (int run = 0; run < 3; run++) {
+            long start = System.nanoTime();
+
+            for (int i = 0; i < messageCount; i++) {
+                broker.publish(topics[i % batchSize], payloads[i % batchSize], (byte) 0, false);
+            }
+
+            long singleNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+
+            for (int i = 0; i < messageCount; i += batchSize) {
+                broker.publish(handles, payloads, Math.min(batchSize, messageCount - i), (byte) 0, false, deliveryCounts);
+            }
+
+            long batchNanos = System.nanoTime() - start;
+
+            System.out.printf("Run %d: single %.0f msg/s, batch %.0f msg/s (%.2fx)\n", run, messageCount / (singleNanos / 1e9), messageCount / (batchNanos / 1e9), (double) singleNanos / batchNanos);
+        }
+
+        for (Socket subscriber : subscribers) {
+            subscriber.close();
+        }
+
+        System.exit(0);
+    }
+
+    /**
+     * Reads and discards everything sent to the subscriber.
+     *
+     * @param subscriber connection of the subscriber
+     */
+    private static void discard(Socket subscriber) {
+        byte[] buffer = new byte[65536];
+
+        try {
+            InputStream in = subscriber.getInputStream();
+
+            while (in.read(buffer) != -1) {}
+        } catch (Exception ex) {}
+    }
+
+}
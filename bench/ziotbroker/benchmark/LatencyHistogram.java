@@ -0,0 +1,203 @@
+package ziotbroker.benchmark;
+
+import java.io.PrintStream;
+
+/**
+ * Histogram of latencies in nanoseconds with log-linear buckets - every power
+ * of two is split into 32 buckets, so recorded values keep about 3 % precision
+ * over the whole range. Recording is cheap and allocation-free, but not
+ * thread-safe - every thread records to its own histogram and the histograms
+ * are merged afterwards.
+ *
+ * @author Jakub Svarc
+ */
+public class LatencyHistogram {
+
+    /**
+     * Number of bits which select bucket within one power of two.
+     */
+    private static final int SUB_BUCKET_BITS = 5;
+    /**
+     * Number of buckets within one power of two.
+     */
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    /**
+     * Number of buckets covering all non-negative long values.
+     */
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    /**
+     * Number of recorded values in every bucket.
+     */
+    private final long[] counts;
+    /**
+     * Number of all recorded values.
+     */
+    private long totalCount;
+    /**
+     * Largest recorded value.
+     */
+    private long maxValue;
+
+    /**
+     * Builds empty LatencyHistogram.
+     */
+    public LatencyHistogram() {
+        this.counts = new long[BUCKET_COUNT];
+        this.totalCount = 0;
+        this.maxValue = 0;
+    }
+
+    /**
+     * Records one value. Negative values are recorded as 0.
+     *
+     * @param value recorded latency in nanoseconds
+     */
+    public void record(long value) {
+        value = Math.max(value, 0);
+        counts[bucketIndex(value)]++;
+        totalCount++;
+        maxValue = Math.max(maxValue, value);
+    }
+
+    /**
+     * Adds all values recorded by other histogram.
+     *
+     * @param other histogram whose values are added
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] += other.counts[i];
+        }
+
+        totalCount += other.totalCount;
+        maxValue = Math.max(maxValue, other.maxValue);
+    }
+
+    /**
+     * Returns number of recorded values.
+     *
+     * @return number of recorded values
+     */
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    /**
+     * Returns largest recorded value.
+     *
+     * @return largest recorded value in nanoseconds
+     */
+    public long getMaxValue() {
+        return maxValue;
+    }
+
+    /**
+     * Returns value below which given percentage of recorded values lies.
+     * It is the upper bound of the bucket containing the percentile.
+     *
+     * @param percentile percentile (0 - 100)
+     * @return value at given percentile in nanoseconds (0 if nothing was
+     * recorded)
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * totalCount));
+        long cumulativeCount = 0;
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            cumulativeCount += counts[i];
+
+            if (cumulativeCount >= rank) {
+                return Math.min(bucketUpperBound(i), maxValue);
+            }
+        }
+
+        return maxValue;
+    }
+
+    /**
+     * Prints distribution of recorded values - number of values in every
+     * power of two microseconds.
+     *
+     * @param out stream to which the distribution is printed
+     */
+    public void printDistribution(PrintStream out) {
+        long[] powerCounts = new long[64];
+        int lowestPower = 64, highestPower = -1;
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            if (counts[i] > 0) {
+                int power = 63 - Long.numberOfLeadingZeros(Math.max(bucketLowerBound(i) / 1000, 1));
+
+                powerCounts[power] += counts[i];
+                lowestPower = Math.min(lowestPower, power);
+                highestPower = Math.max(highestPower, power);
+            }
+        }
+
+        long largestCount = 1;
+
+        for (long powerCount : powerCounts) {
+            largestCount = Math.max(largestCount, powerCount);
+        }
+
+        for (int power = lowestPower; power <= highestPower; power++) {
+            int barLength = (int) (powerCounts[power] * 50 / largestCount);
+
+            out.printf("  %10d - %10d us | %10d | %s\n", power == 0 ? 0 : 1L << power, (1L << (power + 1)) - 1, powerCounts[power], "#".repeat(barLength));
+        }
+    }
+
+    /**
+     * Returns index of the bucket containing given value.
+     *
+     * @param value non-negative value
+     * @return index of the bucket
+     */
+    private static int bucketIndex(long value) {
+        if (value < 2 * SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+
+        return shift * SUB_BUCKET_COUNT + (int) (value >>> shift);
+    }
+
+    /**
+     * Returns the smallest value of given bucket.
+     *
+     * @param index index of the bucket
+     * @return the smallest value of the bucket
+     */
+    private static long bucketLowerBound(int index) {
+        if (index < 2 * SUB_BUCKET_COUNT) {
+            return index;
+        }
+
+        int shift = index / SUB_BUCKET_COUNT - 1;
+
+        return (long) (index - shift * SUB_BUCKET_COUNT) << shift;
+    }
+
+    /**
+     * Returns the largest value of given bucket.
+     *
+     * @param index index of the bucket
+     * @return the largest value of the bucket
+     */
+    private static long bucketUpperBound(int index) {
+        if (index < 2 * SUB_BUCKET_COUNT) {
+            return index;
+        }
+
+        int shift = index / SUB_BUCKET_COUNT - 1;
+
+        return bucketLowerBound(index) + (1L << shift) - 1;
+    }
+
+}
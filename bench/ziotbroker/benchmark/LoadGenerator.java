@@ -0,0 +1,400 @@
+package ziotbroker.benchmark;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import ziotbroker.FrameDecoder;
+import ziotbroker.MQTTBroker;
+import ziotbroker.MQTTException;
+import ziotbroker.OverflowPolicy;
+import ziotbroker.Subscribtion;
+import ziotbroker.TransportMode;
+import ziotbroker.packet.ConnectPacket;
+import ziotbroker.packet.Packet;
+import ziotbroker.packet.PublishPacket;
+import ziotbroker.packet.SubscribePacket;
+
+/**
+ * Generates load on in-process broker over loopback and measures throughput
+ * and publish-to-delivery latency. Publishers send QoS 0 PUBLISH packets
+ * round-robin to topics <i>load/&lt;topic&gt;</i>, subscribers subscribe
+ * either to one topic each (<i>exact</i> filter, subscribers are spread
+ * among topics) or to <i>load/#</i> (<i>wildcard</i> filter, every subscriber
+ * receives every message). Every client runs on its own virtual thread.
+ *
+ * First 8 bytes of every payload carry the time of sending. With limited rate
+ * it is the time at which the message was scheduled, not the time at which it
+ * was actually written, so stalls of the broker are not hidden by publishers
+ * falling behind the schedule. Latencies are recorded only after the warmup.
+ *
+ * Usage: LoadGenerator [option=value]...
+ *
+ * Options (default values in brackets):
+ * <ul>
+ * <li>mode - transport mode [SELECTOR]</li>
+ * <li>publishers - number of publishing connections [4]</li>
+ * <li>subscribers - number of subscribing connections [16]</li>
+ * <li>topics - number of topics [4]</li>
+ * <li>filter - <i>exact</i> or <i>wildcard</i> [exact]</li>
+ * <li>payload - payload size in bytes (at least 8), comma separated sizes are
+ * used in turns [64]</li>
+ * <li>rate - messages per second of every publisher, 0 for unlimited
+ * [1000]</li>
+ * <li>duration - measured time in seconds [10]</li>
+ * <li>warmup - time in seconds before the measurement [2]</li>
+ * <li>queue - capacity of output queue of every client [1000]</li>
+ * <li>port - port of the broker [18830]</li>
+ * <li>regression - <i>true</i> runs regression of virtual thread mode
+ * [false]</li>
+ * </ul>
+ *
+ * Regression run forces virtual thread mode with at least four subscribers
+ * for every carrier thread, so most readers of the broker are idle on their
+ * connections. Reader pinning its carrier while blocked stalls the broker
+ * - setup of a subscriber then times out or messages stop coming, and the run
+ * exits with status 1 if fewer messages are delivered than expected.
+ *
+ * @author Jakub Svarc
+ */
+public class LoadGenerator {
+
+    /**
+     * Number of bytes of the payload carrying the time of sending.
+     */
+    private static final int TIMESTAMP_SIZE = 8;
+    /**
+     * Time in milliseconds for which subscriber waits for SUBACK.
+     */
+    private static final int SUBACK_TIMEOUT_MILLIS = 10_000;
+
+    /**
+     * Time (System.nanoTime) at which the measurement starts.
+     */
+    private static volatile long measurementStart;
+    /**
+     * Indicates whether publishers should keep publishing.
+     */
+    private static volatile boolean running = true;
+    /**
+     * Number of messages published during the measurement.
+     */
+    private static final LongAdder publishedCount = new LongAdder();
+    /**
+     * Number of messages delivered during the measurement.
+     */
+    private static final LongAdder deliveredCount = new LongAdder();
+
+    /**
+     * Runs the load.
+     *
+     * @param args options in form <i>option=value</i>
+     * @throws Exception thrown if the load fails
+     */
+    public static void main(String[] args) throws Exception {
+        HashMap<String, String> options = new HashMap<>();
+
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+
+            if (option.length != 2) {
+                throw new IllegalArgumentException("Option must be in form option=value: " + arg);
+            }
+
+            options.put(option[0], option[1]);
+        }
+
+        boolean regression = Boolean.parseBoolean(options.getOrDefault("regression", "false"));
+        TransportMode transportMode = regression ? TransportMode.VIRTUAL_THREADS : TransportMode.valueOf(options.getOrDefault("mode", "SELECTOR"));
+        int publisherCount = Integer.parseInt(options.getOrDefault("publishers", "4"));
+        int subscriberCount = Integer.parseInt(options.getOrDefault("subscribers", "16"));
+
+        if (regression) {
+            /**
+             * Number of carrier threads of virtual threads.
+             */
+            int carrierCount = Integer.getInteger("jdk.virtualThreadScheduler.parallelism", Runtime.getRuntime().availableProcessors());
+
+            subscriberCount = Math.max(subscriberCount, 4 * carrierCount);
+        }
+
+        int topicCount = Integer.parseInt(options.getOrDefault("topics", "4"));
+        boolean wildcard = options.getOrDefault("filter", "exact").equals("wildcard");
+        int[] payloadSizes = parsePayloadSizes(options.getOrDefault("payload", "64"));
+        int rate = Integer.parseInt(options.getOrDefault("rate", "1000"));
+        int duration = Integer.parseInt(options.getOrDefault("duration", "10"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "2"));
+        int queueCapacity = Integer.parseInt(options.getOrDefault("queue", "1000"));
+        short port = Short.parseShort(options.getOrDefault("port", "18830"));
+
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        MQTTBroker broker = new MQTTBroker(port, new MQTTBroker.Config().setTransportMode(transportMode).setOverflowPolicy(new OverflowPolicy(queueCapacity, OverflowPolicy.DEFAULT.getAction())));
+        broker.setDaemon(true);
+        broker.start();
+        Thread.sleep(500);
+
+        ArrayList<Socket> subscriberSockets = new ArrayList<>(subscriberCount);
+        ArrayList<Thread> subscriberThreads = new ArrayList<>(subscriberCount);
+        ArrayList<LatencyHistogram> histograms = new ArrayList<>(subscriberCount);
+
+        for (int i = 0; i < subscriberCount; i++) {
+            Socket socket = new Socket("127.0.0.1", port);
+            FrameDecoder frameDecoder = new FrameDecoder(FrameDecoder.DEFAULT_MAX_PACKET_SIZE);
+            LatencyHistogram histogram = new LatencyHistogram();
+
+            socket.setTcpNoDelay(true);
+            subscribe(socket, frameDecoder, "load-subscriber-" + i, wildcard ? "load/#" : "load/" + (i % topicCount));
+            subscriberSockets.add(socket);
+            histograms.add(histogram);
+            subscriberThreads.add(Thread.ofVirtual().start(() -> receive(socket, frameDecoder, histogram)));
+        }
+
+        measurementStart = System.nanoTime() + warmup * 1_000_000_000L;
+
+        ArrayList<Thread> publisherThreads = new ArrayList<>(publisherCount);
+
+        for (int i = 0; i < publisherCount; i++) {
+            Socket socket = new Socket("127.0.0.1", port);
+            int firstTopic = i % topicCount;
+
+            socket.setTcpNoDelay(true);
+            // CONNACK is never read, the publisher only writes
+            socket.getOutputStream().write(new ConnectPacket("load-publisher-" + i, (short) 0, true).buildBinaryPacket());
+            publisherThreads.add(Thread.ofVirtual().start(() -> publish(socket, topicCount, firstTopic, payloadSizes, rate)));
+        }
+
+        Thread.sleep(warmup * 1000L + duration * 1000L);
+        running = false;
+
+        for (Thread publisherThread : publisherThreads) {
+            publisherThread.join();
+        }
+
+        Thread.sleep(1000);
+
+        for (Socket subscriberSocket : subscriberSockets) {
+            subscriberSocket.close();
+        }
+
+        for (Thread subscriberThread : subscriberThreads) {
+            subscriberThread.join();
+        }
+
+        System.setOut(stdout);
+
+        LatencyHistogram latency = new LatencyHistogram();
+
+        for (LatencyHistogram histogram : histograms) {
+            latency.add(histogram);
+        }
+
+        long published = publishedCount.sum();
+        long delivered = deliveredCount.sum();
+        /**
+         * Every topic receives the same share of messages, so every exact
+         * subscriber receives 1 / topics of them.
+         */
+        long expected = wildcard ? published * subscriberCount : published * subscriberCount / topicCount;
+
+        System.out.printf("Transport mode:      %s\n", transportMode);
+        System.out.printf("Clients:             %d publishers, %d subscribers, %d topics, %s filter\n", publisherCount, subscriberCount, topicCount, wildcard ? "wildcard" : "exact");
+        System.out.printf("Payload sizes:       %s B\n", options.getOrDefault("payload", "64"));
+        System.out.printf("Rate per publisher:  %s\n", rate == 0 ? "unlimited" : rate + " msg/s");
+        System.out.printf("Published:           %d (%.0f msg/s)\n", published, (double) published / duration);
+        System.out.printf("Delivered:           %d of %d expected (%.0f msg/s)\n", delivered, expected, (double) delivered / duration);
+        System.out.printf("Latency p50:         %.1f us\n", latency.getValueAtPercentile(50) / 1e3);
+        System.out.printf("Latency p99:         %.1f us\n", latency.getValueAtPercentile(99) / 1e3);
+        System.out.printf("Latency p99.9:       %.1f us\n", latency.getValueAtPercentile(99.9) / 1e3);
+        System.out.printf("Latency max:         %.1f us\n", latency.getMaxValue() / 1e3);
+        System.out.printf("Latency distribution:\n");
+        latency.printDistribution(System.out);
+
+        if (regression && (published == 0 || delivered < expected)) {
+            System.out.printf("Regression failed:   %d of %d expected messages delivered\n", delivered, expected);
+            System.exit(1);
+        }
+
+        System.exit(0);
+    }
+
+    /**
+     * Publishes messages until the load ends.
+     *
+     * @param socket connection to the broker
+     * @param topicCount number of topics
+     * @param firstTopic topic of the first message
+     * @param payloadSizes payload sizes used in turns
+     * @param rate messages per second, 0 for unlimited
+     */
+    private static void publish(Socket socket, int topicCount, int firstTopic, int[] payloadSizes, int rate) {
+        long interval = rate > 0 ? 1_000_000_000L / rate : 0;
+        long scheduledTime = System.nanoTime();
+        int topic = firstTopic, sizeIndex = 0;
+
+        try (socket) {
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+
+            while (running) {
+                long sendTime;
+
+                if (interval > 0) {
+                    long now = System.nanoTime();
+
+                    if (now < scheduledTime) {
+                        LockSupport.parkNanos(scheduledTime - now);
+                    }
+
+                    sendTime = scheduledTime;
+                    scheduledTime += interval;
+                } else {
+                    sendTime = System.nanoTime();
+                }
+
+                byte[] payload = new byte[payloadSizes[sizeIndex]];
+
+                writeTimestamp(payload, sendTime);
+                out.write(new PublishPacket(false, "load/" + topic, payload).buildBinaryPacket());
+                out.flush();
+
+                if (sendTime >= measurementStart) {
+                    publishedCount.increment();
+                }
+
+                topic = (topic + 1) % topicCount;
+                sizeIndex = (sizeIndex + 1) % payloadSizes.length;
+            }
+        } catch (IOException ex) {
+            System.err.printf("Publisher failed - %s\n", ex.getMessage());
+        }
+    }
+
+    /**
+     * Receives messages and records their latency until the connection is
+     * closed.
+     *
+     * @param socket connection to the broker
+     * @param frameDecoder decoder of the connection
+     * @param histogram histogram to which latencies are recorded
+     */
+    private static void receive(Socket socket, FrameDecoder frameDecoder, LatencyHistogram histogram) {
+        try {
+            InputStream in = socket.getInputStream();
+
+            while (frameDecoder.read(in) != -1) {
+                Packet packet;
+
+                while ((packet = frameDecoder.nextPacket()) != null) {
+                    if (packet instanceof PublishPacket publishPacket) {
+                        long receiveTime = System.nanoTime();
+                        long sendTime = readTimestamp(publishPacket.getPayload());
+
+                        if (sendTime >= measurementStart) {
+                            histogram.record(receiveTime - sendTime);
+                            deliveredCount.increment();
+                        }
+                    }
+                }
+            }
+        } catch (IOException | MQTTException ex) {
+            if (!socket.isClosed()) {
+                System.err.printf("Subscriber failed - %s\n", ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Sends CONNECT packet and SUBSCRIBE packet for given topic filter with
+     * QoS 0 and waits for CONNACK and SUBACK.
+     *
+     * @param socket connection to the broker
+     * @param frameDecoder decoder of the connection
+     * @param clientID identifier of the subscriber
+     * @param topicFilter topic filter to subscribe
+     * @throws IOException thrown if the connection fails or SUBACK does not
+     * come in time
+     * @throws MQTTException thrown if the broker sends malformed packet
+     */
+    private static void subscribe(Socket socket, FrameDecoder frameDecoder, String clientID, String topicFilter) throws IOException, MQTTException {
+        ArrayList<Subscribtion> subscribtions = new ArrayList<>();
+
+        subscribtions.add(new Subscribtion(topicFilter, (byte) 0));
+        socket.setSoTimeout(SUBACK_TIMEOUT_MILLIS);
+        socket.getOutputStream().write(new ConnectPacket(clientID, (short) 0, true).buildBinaryPacket());
+        socket.getOutputStream().write(new SubscribePacket(1, subscribtions).buildBinaryPacket());
+
+        InputStream in = socket.getInputStream();
+        /**
+         * Number of acknowledgements which did not come yet (CONNACK
+         * and SUBACK).
+         */
+        int pendingCount = 2;
+
+        while (pendingCount > 0) {
+            if (frameDecoder.nextPacket() != null) {
+                pendingCount--;
+            } else if (frameDecoder.read(in) == -1) {
+                throw new IOException("SUBACK not received");
+            }
+        }
+
+        socket.setSoTimeout(0);
+    }
+
+    /**
+     * Parses comma separated payload sizes.
+     *
+     * @param value comma separated payload sizes
+     * @return payload sizes
+     */
+    private static int[] parsePayloadSizes(String value) {
+        String[] sizes = value.split(",");
+        int[] payloadSizes = new int[sizes.length];
+
+        for (int i = 0; i < sizes.length; i++) {
+            payloadSizes[i] = Integer.parseInt(sizes[i].trim());
+
+            if (payloadSizes[i] < TIMESTAMP_SIZE) {
+                throw new IllegalArgumentException("Payload must have at least " + TIMESTAMP_SIZE + " bytes");
+            }
+        }
+
+        return payloadSizes;
+    }
+
+    /**
+     * Writes time of sending to the beginning of the payload.
+     *
+     * @param payload payload of the message
+     * @param time time of sending (System.nanoTime)
+     */
+    private static void writeTimestamp(byte[] payload, long time) {
+        for (int i = 0; i < TIMESTAMP_SIZE; i++) {
+            payload[i] = (byte) (time >>> (56 - 8 * i));
+        }
+    }
+
+    /**
+     * Reads time of sending from the beginning of the payload.
+     *
+     * @param payload payload of the message
+     * @return time of sending (System.nanoTime)
+     */
+    private static long readTimestamp(byte[] payload) {
+        long time = 0;
+
+        for (int i = 0; i < TIMESTAMP_SIZE; i++) {
+            time = (time << 8) | (payload[i] & 0xFF);
+        }
+
+        return time;
+    }
+
+}
@@ -0,0 +1,262 @@
+package ziotbroker.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import ziotbroker.FrameDecoder;
+import ziotbroker.MQTTBroker;
+import ziotbroker.MQTTException;
+import ziotbroker.OverflowAction;
+import ziotbroker.OverflowPolicy;
+import ziotbroker.PacketBuilder;
+import ziotbroker.QoS;
+import ziotbroker.Subscribtion;
+import ziotbroker.TransportMode;
+import ziotbroker.packet.ConnectPacket;
+import ziotbroker.packet.IdentifierPacket;
+import ziotbroker.packet.Packet;
+import ziotbroker.packet.PublishPacket;
+import ziotbroker.packet.SubscribePacket;
+
+/**
+ * Measures throughput of one publisher and one subscriber connection for
+ * every QoS. Both clients complete the whole acknowledgement flow of their
+ * side (PUBACK, or PUBREC / PUBREL / PUBCOMP), the publisher keeps at most
+ * <i>window</i> messages unacknowledged. The measurement of one QoS ends when
+ * the subscriber received all messages and the publisher got all
+ * acknowledgements.
+ *
+ * Usage: QoSThroughputBenchmark &lt;transport mode&gt; [messages] [window]
+ * [payload size] [port]
+ *
+ * @author Jakub Svarc
+ */
+public class QoSThroughputBenchmark {
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args transport mode, number of messages, publisher window,
+     * payload size and port
+     * @throws Exception thrown if the benchmark fails
+     */
+    public static void main(String[] args) throws Exception {
+        TransportMode transportMode = TransportMode.valueOf(args[0]);
+        int messageCount = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        int window = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        int payloadSize = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+        short port = args.length > 4 ? Short.parseShort(args[4]) : 18830;
+
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        // Event loop must not wait for full queue, so its queue holds all messages of a measurement
+        OverflowPolicy overflowPolicy = transportMode == TransportMode.SELECTOR ? new OverflowPolicy(Math.max(messageCount, 10000), OverflowAction.DROP_NEWEST) : new OverflowPolicy(10000, OverflowAction.BOUNDED_WAIT, 1, TimeUnit.SECONDS.toNanos(1));
+        MQTTBroker broker = new MQTTBroker(port, new MQTTBroker.Config().setTransportMode(transportMode).setEventLoopCount(1).setOverflowPolicy(overflowPolicy));
+        broker.setDaemon(true);
+        broker.start();
+        Thread.sleep(500);
+
+        double[] throughputs = new double[3];
+
+        for (int qos = 0; qos <= 2; qos++) {
+            // Warmup run of the same QoS, its result is discarded
+            measure(port, qos, Math.max(messageCount / 10, 1), window, payloadSize);
+            throughputs[qos] = measure(port, qos, messageCount, window, payloadSize);
+        }
+
+        System.setOut(stdout);
+        System.out.printf("Transport mode:  %s\n", transportMode);
+        System.out.printf("Messages:        %d (window %d, payload %d B)\n", messageCount, window, payloadSize);
+
+        for (int qos = 0; qos <= 2; qos++) {
+            System.out.printf("QoS %d:           %.0f msg/s (%.2f of QoS 0)\n", qos, throughputs[qos], throughputs[qos] / throughputs[0]);
+        }
+
+        System.exit(0);
+    }
+
+    /**
+     * Sends given number of messages with given QoS from new publisher
+     * to new subscriber.
+     *
+     * @param port port of the broker
+     * @param qos QoS of the messages and of the subscribtion
+     * @param messageCount number of messages
+     * @param window maximal number of unacknowledged messages
+     * @param payloadSize payload size in bytes
+     * @return throughput in messages per second
+     * @throws Exception thrown if the measurement fails
+     */
+    private static double measure(short port, int qos, int messageCount, int window, int payloadSize) throws Exception {
+        String topic = "qos/" + qos;
+        Socket subscriber = new Socket("127.0.0.1", port);
+        Socket publisher = new Socket("127.0.0.1", port);
+        FrameDecoder subscriberDecoder = new FrameDecoder(FrameDecoder.DEFAULT_MAX_PACKET_SIZE);
+        FrameDecoder publisherDecoder = new FrameDecoder(FrameDecoder.DEFAULT_MAX_PACKET_SIZE);
+        Semaphore windowPermits = new Semaphore(window);
+
+        subscriber.setTcpNoDelay(true);
+        publisher.setTcpNoDelay(true);
+        subscribe(subscriber, subscriberDecoder, "qos-subscriber-" + qos, topic, qos);
+        // CONNACK of the publisher is skipped by its acknowledgement thread
+        publisher.getOutputStream().write(new ConnectPacket("qos-publisher-" + qos, (short) 0, true).buildBinaryPacket());
+
+        long start = System.nanoTime();
+        Thread subscriberThread = Thread.ofVirtual().start(() -> receive(subscriber, subscriberDecoder, messageCount));
+        Thread acknowledgementThread = Thread.ofVirtual().start(() -> receive(publisher, publisherDecoder, 0, windowPermits));
+        OutputStream out = publisher.getOutputStream();
+        byte[] payload = new byte[payloadSize];
+        QoS qualityOfService = QoS.values()[qos];
+
+        for (int i = 0; i < messageCount; i++) {
+            if (qos > 0) {
+                windowPermits.acquire();
+            }
+
+            byte[] publishPacket = new PublishPacket(false, qualityOfService, false, topic, i % 65535 + 1, payload).buildBinaryPacket();
+
+            synchronized (out) {
+                out.write(publishPacket);
+            }
+        }
+
+        subscriberThread.join(TimeUnit.MINUTES.toMillis(1));
+
+        if (qos > 0) {
+            windowPermits.acquire(window);
+        }
+
+        long elapsed = System.nanoTime() - start;
+
+        subscriber.close();
+        publisher.close();
+        acknowledgementThread.join();
+
+        return messageCount * 1e9 / elapsed;
+    }
+
+    /**
+     * Receives messages of the subscriber and acknowledges them until given
+     * number of messages is received.
+     *
+     * @param socket connection of the subscriber
+     * @param frameDecoder decoder of the connection
+     * @param messageCount number of expected messages
+     */
+    private static void receive(Socket socket, FrameDecoder frameDecoder, int messageCount) {
+        receive(socket, frameDecoder, messageCount, null);
+    }
+
+    /**
+     * Receives packets and answers them according to the QoS flows. Window
+     * permit of the publisher is released when its message is acknowledged.
+     *
+     * @param socket connection to the broker
+     * @param frameDecoder decoder of the connection
+     * @param messageCount number of PUBLISH packets after whose complete
+     * flows the method returns (0 for receiving until the connection
+     * is closed)
+     * @param windowPermits window of the publisher, <i>null</i> for subscriber
+     */
+    private static void receive(Socket socket, FrameDecoder frameDecoder, int messageCount, Semaphore windowPermits) {
+        int receivedCount = 0, pendingReleaseCount = 0;
+
+        try {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+
+            while (frameDecoder.read(in) != -1) {
+                Packet packet;
+
+                while ((packet = frameDecoder.nextPacket()) != null) {
+                    Packet response = null;
+
+                    switch (packet.getType()) {
+                        case PUBLISH: {
+                            PublishPacket publishPacket = (PublishPacket) packet;
+
+                            if (publishPacket.getQualityOfService() == QoS.AT_LEAST_ONCE) {
+                                response = PacketBuilder.buildPubackPacket(publishPacket.getPacketIdentifier());
+                            } else if (publishPacket.getQualityOfService() == QoS.EXACTLY_ONCE) {
+                                response = PacketBuilder.buildPubrecPacket(publishPacket.getPacketIdentifier());
+                                pendingReleaseCount++;
+                            }
+
+                            receivedCount++;
+                            break;
+                        } case PUBREC: {
+                            response = PacketBuilder.buildPubrelPacket(((IdentifierPacket) packet).getPacketIdentifier());
+                            break;
+                        } case PUBREL: {
+                            response = PacketBuilder.buildPubcompPacket(((IdentifierPacket) packet).getPacketIdentifier());
+                            pendingReleaseCount--;
+                            break;
+                        } case PUBACK:
+                          case PUBCOMP: {
+                            windowPermits.release();
+                            break;
+                        } default: {
+                            break;
+                        }
+                    }
+
+                    if (response != null) {
+                        synchronized (out) {
+                            out.write(response.buildBinaryPacket());
+                        }
+                    }
+
+                    if (messageCount > 0 && receivedCount == messageCount && pendingReleaseCount == 0) {
+                        return;
+                    }
+                }
+            }
+        } catch (IOException | MQTTException ex) {
+            if (!socket.isClosed()) {
+                System.err.printf("Client failed - %s\n", ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Sends CONNECT packet and SUBSCRIBE packet for given topic filter
+     * and waits for CONNACK and SUBACK.
+     *
+     * @param socket connection to the broker
+     * @param frameDecoder decoder of the connection
+     * @param clientID identifier of the subscriber
+     * @param topicFilter topic filter to subscribe
+     * @param qos requested QoS
+     * @throws IOException thrown if the connection fails
+     * @throws MQTTException thrown if the broker sends malformed packet
+     */
+    private static void subscribe(Socket socket, FrameDecoder frameDecoder, String clientID, String topicFilter, int qos) throws IOException, MQTTException {
+        ArrayList<Subscribtion> subscribtions = new ArrayList<>();
+
+        subscribtions.add(new Subscribtion(topicFilter, (byte) qos));
+        socket.getOutputStream().write(new ConnectPacket(clientID, (short) 0, true).buildBinaryPacket());
+        socket.getOutputStream().write(new SubscribePacket(1, subscribtions).buildBinaryPacket());
+
+        InputStream in = socket.getInputStream();
+        /**
+         * Number of acknowledgements which did not come yet (CONNACK
+         * and SUBACK).
+         */
+        int pendingCount = 2;
+
+        while (pendingCount > 0) {
+            if (frameDecoder.nextPacket() != null) {
+                pendingCount--;
+            } else if (frameDecoder.read(in) == -1) {
+                throw new IOException("SUBACK not received");
+            }
+        }
+    }
+
+}
@@ -0,0 +1,160 @@
+package ziotbroker.benchmark;
+
+import java.net.Socket;
+import java.util.Random;
+import ziotbroker.MQTTException;
+import ziotbroker.OutputClientService;
+import ziotbroker.SocketClientService;
+import ziotbroker.SubscribtionTree;
+import ziotbroker.Subscribtion;
+
+/**
+ * Measures matching of topics against large number of topic filters stored
+ * in SubscribtionTree and compares it with scanning all the filters. Most
+ * of the filters are exact, rest of them contains single-level
+ * or multi-level wildcards.
+ *
+ * Usage: SubscribtionTreeBenchmark [filters] [lookups]
+ *
+ * @author Jakub Svarc
+ */
+public class SubscribtionTreeBenchmark {
+
+    /**
+     * Number of distinct sites used in topics.
+     */
+    private static final int SITES = 1000;
+    /**
+     * Number of distinct sensors used in topics.
+     */
+    private static final int SENSORS = 8;
+    /**
+     * Number of distinct clients owning the subscribtions.
+     */
+    private static final int CLIENTS = 1000;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args number of filters and number of lookups
+     * @throws MQTTException thrown if generated filter is malformed
+     */
+    public static void main(String[] args) throws MQTTException {
+        int filterCount = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int lookupCount = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        int devices = Math.max(filterCount / SITES, 1);
+
+        OutputClientService[] clients = new OutputClientService[CLIENTS];
+
+        for (int i = 0; i < CLIENTS; i++) {
+            clients[i] = new SocketClientService(new Socket());
+        }
+
+        String[] filters = new String[filterCount];
+
+        for (int i = 0; i < filterCount; i++) {
+            int site = i % SITES, device = i / SITES;
+
+            if (i % 100 == 0) {
+                filters[i] = "site/" + site + "/#";
+            } else if (i % 10 == 0) {
+                filters[i] = "site/" + site + "/+/" + device + "/sensor/+";
+            } else {
+                filters[i] = "site/" + site + "/device/" + device + "/sensor/" + (i % SENSORS);
+            }
+        }
+
+        long heapBefore = usedHeap();
+        long start = System.nanoTime();
+        SubscribtionTree tree = new SubscribtionTree();
+
+        for (int i = 0; i < filterCount; i++) {
+            tree.subscribe(new Subscribtion(filters[i], (byte) (i % 3)), clients[i % CLIENTS]);
+        }
+
+        long buildTime = System.nanoTime() - start;
+        long heapAfter = usedHeap();
+
+        Random random = new Random(42);
+        String[] topics = new String[4096];
+
+        for (int i = 0; i < topics.length; i++) {
+            topics[i] = "site/" + random.nextInt(SITES) + "/device/" + random.nextInt(devices) + "/sensor/" + random.nextInt(SENSORS);
+        }
+
+        long matches = 0;
+
+        for (int i = 0; i < lookupCount; i++) {
+            matches += tree.match(topics[i % topics.length]).size();
+        }
+
+        matches = 0;
+        start = System.nanoTime();
+
+        for (int i = 0; i < lookupCount; i++) {
+            matches += tree.match(topics[i % topics.length]).size();
+        }
+
+        long matchTime = System.nanoTime() - start;
+        long scanMatches = 0;
+        int scanCount = 20;
+        start = System.nanoTime();
+
+        for (int i = 0; i < scanCount; i++) {
+            for (String filter : filters) {
+                if (matches(filter, topics[i])) {
+                    scanMatches++;
+                }
+            }
+        }
+
+        long scanTime = System.nanoTime() - start;
+
+        System.out.printf("Filters:                 %d\n", tree.size());
+        System.out.printf("Build time:              %.1f ms\n", buildTime / 1e6);
+        System.out.printf("Heap per filter:         %.0f B\n", (double) (heapAfter - heapBefore) / filterCount);
+        System.out.printf("Tree match:              %.0f ns/op\n", (double) matchTime / lookupCount);
+        System.out.printf("Matches per topic:       %.2f\n", (double) matches / lookupCount);
+        System.out.printf("Linear scan match:       %.0f ns/op (%.2f matches per topic)\n", (double) scanTime / scanCount, (double) scanMatches / scanCount);
+    }
+
+    /**
+     * Checks if topic filter matches the topic by comparing all their levels.
+     *
+     * @param filter topic filter
+     * @param topic topic without wildcards
+     * @return <i>true</i> if the filter matches the topic, else <i>false</i>
+     */
+    private static boolean matches(String filter, String topic) {
+        String[] filterLevels = filter.split("/", -1);
+        String[] topicLevels = topic.split("/", -1);
+
+        for (int i = 0; i < filterLevels.length; i++) {
+            if (filterLevels[i].equals("#")) {
+                return true;
+            }
+
+            if (i >= topicLevels.length || (!filterLevels[i].equals("+") && !filterLevels[i].equals(topicLevels[i]))) {
+                return false;
+            }
+        }
+
+        return filterLevels.length == topicLevels.length;
+    }
+
+    /**
+     * Returns heap used after garbage collection.
+     *
+     * @return used heap in bytes
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+}
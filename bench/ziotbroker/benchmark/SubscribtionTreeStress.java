@@ -0,0 +1,182 @@
+package ziotbroker.benchmark;
+
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import ziotbroker.MQTTException;
+import ziotbroker.OutputClientService;
+import ziotbroker.SocketClientService;
+import ziotbroker.SubscribtionTree;
+import ziotbroker.Subscribtion;
+
+/**
+ * Stress check of concurrent SubscribtionTree. Writer threads subscribe
+ * their own clients to one shared set of filters (so they keep changing
+ * the same levels) while reader threads match topics. Some filters are
+ * subscribed and unsubscribed right away, so their levels are pruned while
+ * other writers build them again. Afterwards every subscribtion must be
+ * found exactly once and the tree must shrink back to its original levels
+ * when everything is unsubscribed - a lost subscribtion or a leaked level
+ * fails the run with non-zero exit code.
+ *
+ * Usage: SubscribtionTreeStress [writers] [clients per writer] [readers]
+ *
+ * @author Jakub Svarc
+ */
+public class SubscribtionTreeStress {
+
+    /**
+     * Runs the stress check.
+     *
+     * @param args number of writers, clients per writer and readers
+     * @throws Exception thrown if the check cannot be run
+     */
+    public static void main(String[] args) throws Exception {
+        int writerCount = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int clientsPerWriter = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int readerCount = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+        ArrayList<String> filters = new ArrayList<>();
+
+        for (int i = 0; i < 20; i++) {
+            filters.add("stress/" + i + "/value");
+            filters.add("stress/" + i + "/+");
+            filters.add("stress/+/value/" + i);
+            filters.add("stress/" + i + "/#");
+        }
+
+        filters.add("#");
+        filters.add("stress/#");
+
+        SubscribtionTree tree = new SubscribtionTree();
+        int baselineNodeCount = tree.getNodeCount();
+        OutputClientService[][] clients = new OutputClientService[writerCount][clientsPerWriter];
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicBoolean writing = new AtomicBoolean(true);
+        AtomicLong failures = new AtomicLong(0);
+        AtomicLong lookups = new AtomicLong(0);
+        ArrayList<Thread> writers = new ArrayList<>();
+        ArrayList<Thread> readers = new ArrayList<>();
+
+        for (int w = 0; w < writerCount; w++) {
+            OutputClientService[] writerClients = clients[w];
+            long seed = w;
+
+            for (int c = 0; c < clientsPerWriter; c++) {
+                writerClients[c] = new SocketClientService(new Socket());
+            }
+
+            writers.add(new Thread(() -> {
+                ArrayList<String> order = new ArrayList<>(filters);
+                Collections.shuffle(order, new Random(seed));
+
+                try {
+                    start.await();
+
+                    for (int c = 0; c < writerClients.length; c++) {
+                        OutputClientService client = writerClients[c];
+
+                        for (String filter : order) {
+                            tree.subscribe(new Subscribtion(filter, (byte) 0), client);
+                            // Churn: drop and restore some subscribtions
+                            if (filter.hashCode() % 3 == 0) {
+                                tree.unsubscribe(filter, client);
+                                tree.subscribe(new Subscribtion(filter, (byte) 1), client);
+                            }
+                        }
+
+                        // Levels and groups emptied by one writer are pruned while others subscribe to them
+                        for (String churnFilter : new String[] {"churn/" + c % 4 + "/level", "$share/churn/churn/" + c % 4 + "/+"}) {
+                            tree.subscribe(new Subscribtion(churnFilter, (byte) 0), client);
+
+                            if (!tree.unsubscribe(churnFilter, client)) {
+                                System.out.println("Lost churn subscribtion " + churnFilter);
+                                failures.incrementAndGet();
+                            }
+                        }
+                    }
+                } catch (InterruptedException | MQTTException | RuntimeException ex) {
+                    ex.printStackTrace();
+                    failures.incrementAndGet();
+                }
+            }));
+        }
+
+        for (int r = 0; r < readerCount; r++) {
+            long seed = 1000 + r;
+
+            readers.add(new Thread(() -> {
+                Random random = new Random(seed);
+
+                try {
+                    start.await();
+
+                    while (writing.get()) {
+                        tree.match("stress/" + random.nextInt(20) + "/value/" + random.nextInt(20));
+                        lookups.incrementAndGet();
+                    }
+                } catch (InterruptedException | RuntimeException ex) {
+                    ex.printStackTrace();
+                    failures.incrementAndGet();
+                }
+            }));
+        }
+
+        writers.forEach(Thread::start);
+        readers.forEach(Thread::start);
+        long startTime = System.nanoTime();
+        start.countDown();
+
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        long elapsed = System.nanoTime() - startTime;
+        writing.set(false);
+
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        long expected = (long) writerCount * clientsPerWriter * filters.size();
+        long missing = 0;
+
+        // Every client matches each filter on a topic covered by all of them
+        // only if all its subscribtions were kept
+        int matched = tree.match("stress/7/value/7").size();
+        int expectedMatches = 0;
+
+        for (String filter : filters) {
+            if (filter.equals("#") || filter.equals("stress/#") || filter.equals("stress/7/#") || filter.equals("stress/+/value/7")) {
+                expectedMatches += writerCount * clientsPerWriter;
+            }
+        }
+
+        for (OutputClientService[] writerClients : clients) {
+            for (OutputClientService client : writerClients) {
+                for (String filter : filters) {
+                    if (!tree.unsubscribe(filter, client)) {
+                        missing++;
+                    }
+                }
+            }
+        }
+
+        System.out.printf("Subscribtions:   %d expected, %d stored, %d missing\n", expected, expected - missing, missing);
+        System.out.printf("Matches:         %d expected, %d found\n", expectedMatches, matched);
+        System.out.printf("Remaining:       %d subscribtions, %d levels (%d at start)\n", tree.size(), tree.getNodeCount(), baselineNodeCount);
+        System.out.printf("Concurrent time: %.1f ms, %d lookups\n", elapsed / 1e6, lookups.get());
+
+        if (missing != 0 || matched != expectedMatches || tree.size() != 0 || tree.getNodeCount() != baselineNodeCount || failures.get() != 0) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+
+        System.out.println("PASSED");
+    }
+
+}
@@ -0,0 +1,114 @@
+package ziotbroker.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ziotbroker.MQTTException;
+import ziotbroker.PacketParser;
+import ziotbroker.packet.Packet;
+
+/**
+ * Measures decoding of CONNECT packets - with client ID only and with all
+ * optional fields (will, user name and password).
+ *
+ * Usage: ant run-jmh -Djmh.args="ConnectDecodeBenchmark -prof gc"
+ *
+ * @author Jakub Svarc
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConnectDecodeBenchmark {
+
+    /**
+     * Charset used for encoding strings in packet (for MQTT 3.1.1 it is UTF-8).
+     */
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    /**
+     * Control header byte of CONNECT packet.
+     */
+    private static final byte CONTROL_HEADER = 0b00010000;
+
+    /**
+     * Length of the client ID in bytes.
+     */
+    @Param({"8", "23", "128"})
+    public int clientIDLength;
+    /**
+     * Indicates that the packet contains will, user name and password.
+     */
+    @Param({"false", "true"})
+    public boolean optionalFields;
+
+    /**
+     * Variable headers and payload of the encoded packet.
+     */
+    private ByteBuffer remainingData;
+
+    /**
+     * Encodes CONNECT packet (the packet class does not support encoding).
+     */
+    @Setup
+    public void setup() {
+        ByteArrayOutputStream binaryPacket = new ByteArrayOutputStream();
+
+        writeString(binaryPacket, "MQTT");
+        binaryPacket.write(4);
+        binaryPacket.write(optionalFields ? 0b11101110 : 0b00000010);
+        binaryPacket.write(0);
+        binaryPacket.write(60);
+        writeString(binaryPacket, "c".repeat(clientIDLength));
+
+        if (optionalFields) {
+            writeString(binaryPacket, "clients/" + "c".repeat(clientIDLength) + "/status");
+            writeString(binaryPacket, "offline");
+            writeString(binaryPacket, "sensor-user");
+            writeString(binaryPacket, "sensor-password");
+        }
+
+        remainingData = ByteBuffer.wrap(binaryPacket.toByteArray());
+    }
+
+    /**
+     * Writes length prefixed UTF-8 string.
+     *
+     * @param out stream to which the string is written
+     * @param value string to be written
+     */
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] binaryValue = value.getBytes(CHARSET);
+
+        out.write(binaryValue.length >> 8);
+        out.write(binaryValue.length & 255);
+        out.write(binaryValue, 0, binaryValue.length);
+    }
+
+    /**
+     * Decodes CONNECT packet object from its variable headers and payload.
+     *
+     * @return decoded packet
+     * @throws MQTTException thrown if the packet is malformed
+     */
+    @Benchmark
+    public Packet decodeConnectPacket() throws MQTTException {
+        remainingData.rewind();
+
+        return PacketParser.parse(CONTROL_HEADER, remainingData);
+    }
+
+}
@@ -0,0 +1,217 @@
+package ziotbroker.benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ziotbroker.FrameDecoder;
+import ziotbroker.MQTTException;
+import ziotbroker.PacketBuilder;
+import ziotbroker.PacketParser;
+import ziotbroker.packet.Packet;
+import ziotbroker.packet.PublishPacket;
+
+/**
+ * Measures encoding and decoding of PUBLISH packets for a matrix of topic
+ * lengths and payload sizes. Run with the GC profiler to see bytes allocated
+ * per operation next to the time.
+ *
+ * Usage: ant run-jmh -Djmh.args="PublishCodecBenchmark -prof gc"
+ *
+ * @author Jakub Svarc
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PublishCodecBenchmark {
+
+    /**
+     * Charset used for encoding strings in packet (for MQTT 3.1.1 it is UTF-8).
+     */
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    /**
+     * Length of the topic in bytes.
+     */
+    @Param({"8", "64", "256"})
+    public int topicLength;
+    /**
+     * Size of the payload in bytes.
+     */
+    @Param({"0", "64", "1024", "65536"})
+    public int payloadSize;
+
+    /**
+     * Flags of published packets (QoS 0, no retain).
+     */
+    private boolean[] flags;
+    /**
+     * Topic of published packets.
+     */
+    private String topic;
+    /**
+     * Payload of published packets.
+     */
+    private byte[] payload;
+    /**
+     * Packet object to be encoded.
+     */
+    private PublishPacket packet;
+    /**
+     * Control header byte of the encoded packet.
+     */
+    private byte controlHeader;
+    /**
+     * Variable headers and payload of the encoded packet.
+     */
+    private ByteBuffer remainingData;
+    /**
+     * Source repeatedly supplying the encoded packet to the frame decoder.
+     */
+    private RepeatingChannel frameSource;
+    /**
+     * Decoder splitting supplied bytes into packets.
+     */
+    private FrameDecoder frameDecoder;
+
+    /**
+     * Builds the topic, the payload and their encoded packet.
+     */
+    @Setup
+    public void setup() {
+        char[] topicCharacters = new char[topicLength];
+
+        Arrays.fill(topicCharacters, 'a');
+
+        for (int i = 8; i < topicLength; i += 8) {
+            topicCharacters[i] = '/';
+        }
+
+        flags = new boolean[] {false, false, false, false};
+        topic = new String(topicCharacters);
+        payload = new byte[payloadSize];
+        packet = new PublishPacket(false, topic, payload);
+
+        byte[] binaryPacket = PacketParser.parse(packet);
+        int remainingLength = 2 + topic.getBytes(CHARSET).length + payloadSize;
+
+        controlHeader = binaryPacket[0];
+        remainingData = ByteBuffer.wrap(binaryPacket, binaryPacket.length - remainingLength, remainingLength).slice();
+        frameSource = new RepeatingChannel(binaryPacket);
+        frameDecoder = new FrameDecoder(binaryPacket.length);
+    }
+
+    /**
+     * Builds PUBLISH packet object.
+     *
+     * @return built packet
+     */
+    @Benchmark
+    public Packet buildPublishPacket() {
+        return PacketBuilder.buildPublishPacket(flags, topic, payload);
+    }
+
+    /**
+     * Encodes PUBLISH packet object to bytes.
+     *
+     * @return encoded packet
+     */
+    @Benchmark
+    public byte[] encodePublishPacket() {
+        return PacketParser.parse(packet);
+    }
+
+    /**
+     * Decodes PUBLISH packet object from its variable headers and payload.
+     *
+     * @return decoded packet
+     * @throws MQTTException thrown if the packet is malformed
+     */
+    @Benchmark
+    public Packet decodePublishPacket() throws MQTTException {
+        remainingData.rewind();
+
+        return PacketParser.parse(controlHeader, remainingData);
+    }
+
+    /**
+     * Reads one PUBLISH frame to the decoder, decodes its fixed header and
+     * the packet itself.
+     *
+     * @return decoded packet
+     * @throws IOException never thrown, the frames are supplied from memory
+     * @throws MQTTException thrown if the packet is malformed
+     */
+    @Benchmark
+    public Packet decodePublishFrame() throws IOException, MQTTException {
+        Packet decodedPacket;
+
+        while ((decodedPacket = frameDecoder.nextPacket()) == null) {
+            frameDecoder.read(frameSource);
+        }
+
+        return decodedPacket;
+    }
+
+    /**
+     * Channel supplying the same frame over and over again, as much of it 
+     * as fits into the buffer of the reader.
+     */
+    private static class RepeatingChannel implements ReadableByteChannel {
+
+        /**
+         * Supplied frame.
+         */
+        private final byte[] frame;
+        /**
+         * Position of the next supplied byte of the frame.
+         */
+        private int position;
+
+        /**
+         * Builds RepeatingChannel.
+         *
+         * @param frame supplied frame
+         */
+        public RepeatingChannel(byte[] frame) {
+            this.frame = frame;
+            this.position = 0;
+        }
+
+        @Override
+        public int read(ByteBuffer destination) {
+            int length = Math.min(destination.remaining(), frame.length - position);
+
+            destination.put(frame, position, length);
+            position = (position + length) % frame.length;
+
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {}
+
+    }
+
+}
@@ -0,0 +1,114 @@
+package ziotbroker.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ziotbroker.MQTTException;
+import ziotbroker.PacketBuilder;
+import ziotbroker.PacketParser;
+import ziotbroker.packet.Packet;
+import ziotbroker.packet.SubackPacket;
+
+/**
+ * Measures building, encoding and decoding of SUBACK packets for different
+ * numbers of acknowledged subscribtions.
+ *
+ * Usage: ant run-jmh -Djmh.args="SubackCodecBenchmark -prof gc"
+ *
+ * @author Jakub Svarc
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SubackCodecBenchmark {
+
+    /**
+     * Number of acknowledged subscribtions.
+     */
+    @Param({"1", "16", "128"})
+    public int returnCodeCount;
+
+    /**
+     * Return codes of acknowledged subscribtions.
+     */
+    private byte[] returnCodes;
+    /**
+     * Packet object to be encoded.
+     */
+    private SubackPacket packet;
+    /**
+     * Control header byte of the encoded packet.
+     */
+    private byte controlHeader;
+    /**
+     * Variable headers and payload of the encoded packet.
+     */
+    private ByteBuffer remainingData;
+
+    /**
+     * Builds the return codes and their encoded packet.
+     */
+    @Setup
+    public void setup() {
+        returnCodes = new byte[returnCodeCount];
+
+        for (int i = 0; i < returnCodeCount; i++) {
+            returnCodes[i] = (byte) (i % 4 == 3 ? 128 : i % 3);
+        }
+
+        packet = new SubackPacket(1, returnCodes);
+
+        byte[] binaryPacket = PacketParser.parse(packet);
+        int remainingLength = 2 + returnCodeCount;
+
+        controlHeader = binaryPacket[0];
+        remainingData = ByteBuffer.wrap(binaryPacket, binaryPacket.length - remainingLength, remainingLength).slice();
+    }
+
+    /**
+     * Builds SUBACK packet object.
+     *
+     * @return built packet
+     */
+    @Benchmark
+    public Packet buildSubackPacket() {
+        return PacketBuilder.buildSubackPacket(1, returnCodes);
+    }
+
+    /**
+     * Encodes SUBACK packet object to bytes.
+     *
+     * @return encoded packet
+     */
+    @Benchmark
+    public byte[] encodeSubackPacket() {
+        return PacketParser.parse(packet);
+    }
+
+    /**
+     * Decodes SUBACK packet object from its variable headers and payload.
+     *
+     * @return decoded packet
+     * @throws MQTTException thrown if the packet is malformed
+     */
+    @Benchmark
+    public Packet decodeSubackPacket() throws MQTTException {
+        remainingData.rewind();
+
+        return PacketParser.parse(controlHeader, remainingData);
+    }
+
+}
@@ -0,0 +1,304 @@
+package ziotbroker;
+
+import ziotbroker.packet.PacketType;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous log of the broker. Level of the event is checked before
+ * anything is formatted or allocated, so disabled events (packet events
+ * are DEBUG, default level is INFO) cost one volatile read. Enabled events
+ * are put into preallocated lock-free ring buffer - producers claim slots
+ * by compare-and-set and never block, event which does not fit into full
+ * buffer is dropped and counted. Background writer thread drains the buffer,
+ * formats the messages and passes the events to the sink.
+ *
+ * Level is given by system property <i>ziotbroker.logLevel</i> (INFO
+ * by default) and it can be changed at runtime.
+ *
+ * @author Jakub Svarc
+ */
+public class BrokerLogger {
+
+    /**
+     * Number of slots of the ring buffer (power of two).
+     */
+    private static final int CAPACITY = 8192;
+    /**
+     * Mask of slot index.
+     */
+    private static final int MASK = CAPACITY - 1;
+    /**
+     * Time for which the idle writer sleeps.
+     */
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    /**
+     * Sink printing events to standard output (warnings and errors
+     * to standard error output) as "class - message [client ID, packet type]".
+     * Streams are looked up for every event, so they can be replaced.
+     */
+    public static final LogSink CONSOLE_SINK = event -> {
+        PrintStream out = event.getLevel().compareTo(LogLevel.WARNING) >= 0 ? System.err : System.out;
+        StringBuilder line = new StringBuilder(128);
+
+        line.append(event.getSource().getName()).append(" - ").append(event.getMessage());
+
+        if (event.getClientID() != null || event.getPacketType() != null) {
+            line.append(" [client ").append(event.getClientID() != null ? event.getClientID() : "-");
+
+            if (event.getPacketType() != null) {
+                line.append(", ").append(event.getPacketType());
+            }
+
+            line.append(']');
+        }
+
+        out.println(line);
+    };
+
+    /**
+     * Slots of the ring buffer.
+     */
+    private static final LogEvent[] slots = new LogEvent[CAPACITY];
+    /**
+     * The next sequence number to be claimed by a producer.
+     */
+    private static final AtomicLong claimedSequence = new AtomicLong(0);
+    /**
+     * The next sequence number to be written by the writer.
+     */
+    private static volatile long consumedSequence = 0;
+    /**
+     * Number of events dropped because the buffer was full.
+     */
+    private static final LongAdder droppedEventCount = new LongAdder();
+    /**
+     * Lock of the draining (the writer thread and the shutdown hook).
+     */
+    private static final Object drainLock = new Object();
+    /**
+     * Ordinal of the lowest logged level.
+     */
+    private static volatile int threshold;
+    /**
+     * Destination of the events.
+     */
+    private static volatile LogSink sink = CONSOLE_SINK;
+    /**
+     * Thread draining the buffer.
+     */
+    private static final Thread writer;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            slots[i] = new LogEvent(i - CAPACITY);
+        }
+
+        threshold = LogLevel.valueOf(System.getProperty("ziotbroker.logLevel", LogLevel.INFO.name())).ordinal();
+        writer = new Thread(BrokerLogger::runWriter, "BrokerLogger");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(BrokerLogger::drain, "BrokerLogger-shutdown"));
+    }
+
+    /**
+     * Static class, it is never instantiated.
+     */
+    private BrokerLogger() {}
+
+    /**
+     * Indicates that events of given level are logged. Callers on the hot path
+     * check it before they compute arguments of the event.
+     *
+     * @param level level of the event
+     * @return <i>true</i> if the events are logged
+     */
+    public static boolean isEnabled(LogLevel level) {
+        return level.ordinal() >= threshold;
+    }
+
+    /**
+     * Sets the lowest logged level.
+     *
+     * @param level the lowest logged level (OFF turns the log off)
+     */
+    public static void setLevel(LogLevel level) {
+        threshold = level.ordinal();
+    }
+
+    /**
+     * Returns the lowest logged level.
+     *
+     * @return the lowest logged level
+     */
+    public static LogLevel getLevel() {
+        return LogLevel.values()[threshold];
+    }
+
+    /**
+     * Replaces destination of the events.
+     *
+     * @param newSink destination of the events
+     */
+    public static void setSink(LogSink newSink) {
+        sink = newSink;
+    }
+
+    /**
+     * Logs event with fixed message.
+     *
+     * @param level level of the event
+     * @param source class which logs the event
+     * @param message the message
+     */
+    public static void log(LogLevel level, Class<?> source, String message) {
+        if (isEnabled(level)) {
+            publish(level, source, null, null, message, null);
+        }
+    }
+
+    /**
+     * Logs event with formatted message. The message is formatted by the writer
+     * thread.
+     *
+     * @param level level of the event
+     * @param source class which logs the event
+     * @param format format of the message
+     * @param arguments arguments of the format
+     */
+    public static void log(LogLevel level, Class<?> source, String format, Object... arguments) {
+        if (isEnabled(level)) {
+            publish(level, source, null, null, format, arguments);
+        }
+    }
+
+    /**
+     * Logs event of client with fixed message.
+     *
+     * @param level level of the event
+     * @param source class which logs the event
+     * @param clientID identifier of the client (<i>null</i> if it is not known)
+     * @param packetType type of the packet (<i>null</i> if the event has
+     * no packet)
+     * @param message the message
+     */
+    public static void logClient(LogLevel level, Class<?> source, String clientID, PacketType packetType, String message) {
+        if (isEnabled(level)) {
+            publish(level, source, clientID, packetType, message, null);
+        }
+    }
+
+    /**
+     * Logs event of client with formatted message. The message is formatted
+     * by the writer thread.
+     *
+     * @param level level of the event
+     * @param source class which logs the event
+     * @param clientID identifier of the client (<i>null</i> if it is not known)
+     * @param packetType type of the packet (<i>null</i> if the event has
+     * no packet)
+     * @param format format of the message
+     * @param arguments arguments of the format
+     */
+    public static void logClient(LogLevel level, Class<?> source, String clientID, PacketType packetType, String format, Object... arguments) {
+        if (isEnabled(level)) {
+            publish(level, source, clientID, packetType, format, arguments);
+        }
+    }
+
+    /**
+     * Returns number of events dropped because the buffer was full.
+     *
+     * @return number of dropped events
+     */
+    public static long getDroppedEventCount() {
+        return droppedEventCount.sum();
+    }
+
+    /**
+     * Puts event into the ring buffer. Slot is claimed by compare-and-set,
+     * filled and published by write of its sequence number.
+     *
+     * @param level level of the event
+     * @param source class which logs the event
+     * @param clientID identifier of the client
+     * @param packetType type of the packet
+     * @param format message or format of the message
+     * @param arguments arguments of the format, <i>null</i> for fixed message
+     */
+    private static void publish(LogLevel level, Class<?> source, String clientID, PacketType packetType, String format, Object[] arguments) {
+        long sequence;
+
+        do {
+            sequence = claimedSequence.get();
+
+            if (sequence - consumedSequence >= CAPACITY) {
+                droppedEventCount.increment();
+                return;
+            }
+        } while (!claimedSequence.compareAndSet(sequence, sequence + 1));
+
+        LogEvent event = slots[(int) sequence & MASK];
+
+        event.timestamp = System.currentTimeMillis();
+        event.level = level;
+        event.source = source;
+        event.clientID = clientID;
+        event.packetType = packetType;
+        event.format = format;
+        event.arguments = arguments;
+        event.publishedSequence = sequence;
+
+        // Problems are written without waiting for the idle writer
+        if (level.compareTo(LogLevel.WARNING) >= 0) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Continuously drains the buffer, it sleeps while the buffer is empty.
+     */
+    private static void runWriter() {
+        while (true) {
+            if (!drain()) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Writes all published events to the sink.
+     *
+     * @return <i>true</i> if some event was written
+     */
+    private static boolean drain() {
+        synchronized (drainLock) {
+            long next = consumedSequence;
+            long first = next;
+            LogSink currentSink = sink;
+
+            while (true) {
+                LogEvent event = slots[(int) next & MASK];
+
+                if (event.publishedSequence != next) {
+                    break;
+                }
+
+                try {
+                    currentSink.write(event);
+                } catch (RuntimeException ex) {
+                    System.err.printf("%s - Log event not written - %s\n", BrokerLogger.class.getName(), ex.getMessage());
+                }
+
+                event.clear();
+                consumedSequence = ++next;
+            }
+
+            return next != first;
+        }
+    }
+
+}
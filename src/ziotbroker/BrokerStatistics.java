@@ -0,0 +1,276 @@
+package ziotbroker;
+
+import ziotbroker.packet.PacketType;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the broker load published by the broker as <b>$SYS</b> topics.
+ * All counters are striped (LongAdder), so threads of different connections
+ * increment their own cells and do not contend - the cells are summed only
+ * when the statistics are published.
+ *
+ * @author Jakub Svarc
+ */
+public class BrokerStatistics {
+
+    /**
+     * Default interval of publishing of the statistics.
+     */
+    public static final long DEFAULT_PUBLISH_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+    /**
+     * Prefix of topics of the statistics.
+     */
+    public static final String TOPIC_PREFIX = "$SYS/broker/";
+    /**
+     * All packet types (cached, values() copies the array).
+     */
+    private static final PacketType[] PACKET_TYPES = PacketType.values();
+
+    /**
+     * Time (System.nanoTime) when the statistics started.
+     */
+    private final long startTime;
+    /**
+     * Number of accepted connections.
+     */
+    private final LongAdder totalConnections;
+    /**
+     * Number of open connections.
+     */
+    private final LongAdder openConnections;
+    /**
+     * Numbers of received packets indexed by ordinal of their type.
+     */
+    private final LongAdder[] receivedPackets;
+    /**
+     * Numbers of sent packets indexed by ordinal of their type.
+     */
+    private final LongAdder[] sentPackets;
+    /**
+     * Number of bytes received from the clients.
+     */
+    private final LongAdder receivedBytes;
+    /**
+     * Number of bytes sent to the clients.
+     */
+    private final LongAdder sentBytes;
+    /**
+     * Number of messages routed to subscribers.
+     */
+    private final LongAdder routedMessages;
+    /**
+     * Number of packets dropped because packet queues of subscribers were
+     * full.
+     */
+    private final LongAdder droppedPackets;
+
+    /**
+     * Builds BrokerStatistics with all counters zero.
+     */
+    public BrokerStatistics() {
+        this.startTime = System.nanoTime();
+        this.totalConnections = new LongAdder();
+        this.openConnections = new LongAdder();
+        this.receivedPackets = new LongAdder[PACKET_TYPES.length];
+        this.sentPackets = new LongAdder[PACKET_TYPES.length];
+        this.receivedBytes = new LongAdder();
+        this.sentBytes = new LongAdder();
+        this.routedMessages = new LongAdder();
+        this.droppedPackets = new LongAdder();
+
+        for (int i = 0; i < PACKET_TYPES.length; i++) {
+            receivedPackets[i] = new LongAdder();
+            sentPackets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records accepted connection.
+     */
+    public void connectionOpened() {
+        totalConnections.increment();
+        openConnections.increment();
+    }
+
+    /**
+     * Records closed connection.
+     */
+    public void connectionClosed() {
+        openConnections.decrement();
+    }
+
+    /**
+     * Records received packet.
+     *
+     * @param type type of the packet
+     */
+    public void packetReceived(PacketType type) {
+        receivedPackets[type.ordinal()].increment();
+    }
+
+    /**
+     * Records sent packet.
+     *
+     * @param type type of the packet
+     */
+    public void packetSent(PacketType type) {
+        sentPackets[type.ordinal()].increment();
+    }
+
+    /**
+     * Records bytes received from the client.
+     *
+     * @param count number of received bytes
+     */
+    public void bytesReceived(long count) {
+        receivedBytes.add(count);
+    }
+
+    /**
+     * Records bytes sent to the client.
+     *
+     * @param count number of sent bytes
+     */
+    public void bytesSent(long count) {
+        sentBytes.add(count);
+    }
+
+    /**
+     * Records message routed to subscribers.
+     */
+    public void messageRouted() {
+        routedMessages.increment();
+    }
+
+    /**
+     * Records batch of messages routed to subscribers.
+     *
+     * @param count number of routed messages
+     */
+    public void messagesRouted(long count) {
+        routedMessages.add(count);
+    }
+
+    /**
+     * Records packet dropped because packet queue of the client was full.
+     */
+    public void packetDropped() {
+        droppedPackets.increment();
+    }
+
+    /**
+     * Returns number of accepted connections.
+     *
+     * @return number of accepted connections
+     */
+    public long getTotalConnections() {
+        return totalConnections.sum();
+    }
+
+    /**
+     * Returns number of open connections.
+     *
+     * @return number of open connections
+     */
+    public long getOpenConnections() {
+        return openConnections.sum();
+    }
+
+    /**
+     * Returns number of received packets of given type.
+     *
+     * @param type type of the packets
+     * @return number of received packets
+     */
+    public long getReceivedPackets(PacketType type) {
+        return receivedPackets[type.ordinal()].sum();
+    }
+
+    /**
+     * Returns number of sent packets of given type.
+     *
+     * @param type type of the packets
+     * @return number of sent packets
+     */
+    public long getSentPackets(PacketType type) {
+        return sentPackets[type.ordinal()].sum();
+    }
+
+    /**
+     * Returns number of bytes received from the clients.
+     *
+     * @return number of received bytes
+     */
+    public long getReceivedBytes() {
+        return receivedBytes.sum();
+    }
+
+    /**
+     * Returns number of bytes sent to the clients.
+     *
+     * @return number of sent bytes
+     */
+    public long getSentBytes() {
+        return sentBytes.sum();
+    }
+
+    /**
+     * Returns number of messages routed to subscribers.
+     *
+     * @return number of routed messages
+     */
+    public long getRoutedMessages() {
+        return routedMessages.sum();
+    }
+
+    /**
+     * Returns number of packets dropped because packet queues of the clients
+     * were full.
+     *
+     * @return number of dropped packets
+     */
+    public long getDroppedPackets() {
+        return droppedPackets.sum();
+    }
+
+    /**
+     * Sums all counters and returns them with their <b>$SYS</b> topics.
+     * Packets are counted in total and for every type
+     * (e.g. <i>$SYS/broker/packets/received/publish</i>).
+     *
+     * @return values of the counters by their topics (in stable order)
+     */
+    public LinkedHashMap<String, Long> snapshot() {
+        LinkedHashMap<String, Long> values = new LinkedHashMap<>();
+        long totalReceived = 0, totalSent = 0;
+
+        values.put(TOPIC_PREFIX + "uptime", TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startTime));
+        values.put(TOPIC_PREFIX + "clients/connected", getOpenConnections());
+        values.put(TOPIC_PREFIX + "clients/total", getTotalConnections());
+        values.put(TOPIC_PREFIX + "messages/routed", getRoutedMessages());
+        values.put(TOPIC_PREFIX + "messages/dropped", getDroppedPackets());
+        values.put(TOPIC_PREFIX + "bytes/received", getReceivedBytes());
+        values.put(TOPIC_PREFIX + "bytes/sent", getSentBytes());
+
+        for (PacketType type : PACKET_TYPES) {
+            totalReceived += getReceivedPackets(type);
+            totalSent += getSentPackets(type);
+        }
+
+        values.put(TOPIC_PREFIX + "packets/received", totalReceived);
+        values.put(TOPIC_PREFIX + "packets/sent", totalSent);
+
+        for (PacketType type : PACKET_TYPES) {
+            String name = type.name().toLowerCase(Locale.ROOT);
+
+            values.put(TOPIC_PREFIX + "packets/received/" + name, getReceivedPackets(type));
+            values.put(TOPIC_PREFIX + "packets/sent/" + name, getSentPackets(type));
+        }
+
+        return values;
+    }
+
+}
@@ -0,0 +1,383 @@
+package ziotbroker;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Broker-wide pool of direct buffers used for read buffers of the connections
+ * and for PUBLISH packets shared by subscribers. Buffers are divided into size
+ * classes (powers of two from {@link #MIN_BUFFER_SIZE} to the maximal buffer
+ * size) and every class carves its buffers from large direct slabs, so
+ * the memory is allocated rarely and released buffers are reused. Larger
+ * buffers are allocated directly and they are not pooled.
+ *
+ * With leak detection on (system property
+ * <i>ziotbroker.bufferLeakDetection=true</i> or constructor argument) every
+ * buffer records the site which acquired it and buffer collected without its
+ * release is reported with that site.
+ *
+ * @author Jakub Svarc
+ */
+public class BufferPool {
+
+    /**
+     * Size of the smallest size class in bytes.
+     */
+    public static final int MIN_BUFFER_SIZE = 128;
+    /**
+     * Default size of the largest size class in bytes.
+     */
+    public static final int DEFAULT_MAX_BUFFER_SIZE = 64 * 1024;
+    /**
+     * Default maximal number of bytes kept free in one size class.
+     */
+    public static final long DEFAULT_MAX_POOLED_BYTES = 8 * 1024 * 1024;
+    /**
+     * Pool shared by components built without their own pool.
+     */
+    public static final BufferPool DEFAULT = new BufferPool();
+    /**
+     * Size of one slab from which buffers are carved.
+     */
+    private static final int SLAB_SIZE = 256 * 1024;
+    /**
+     * Indicates that leak detection is on by default.
+     */
+    private static final boolean DEFAULT_LEAK_DETECTION = Boolean.getBoolean("ziotbroker.bufferLeakDetection");
+
+    /**
+     * Cleaner checking collected buffers (its thread is started only when
+     * leak detection is used).
+     */
+    private static class LeakDetector {
+
+        /**
+         * The cleaner.
+         */
+        private static final Cleaner CLEANER = Cleaner.create();
+
+    }
+
+    /**
+     * Site which acquired the buffer. It is run by the cleaner when the buffer
+     * is released or collected - only the collected buffer is reported.
+     */
+    static class LeakRecord implements Runnable {
+
+        /**
+         * Pool to which the buffer belongs.
+         */
+        private final BufferPool pool;
+        /**
+         * Size of the buffer in bytes.
+         */
+        private final int bufferSize;
+        /**
+         * Stack trace of the acquiring site.
+         */
+        private final Throwable site;
+        /**
+         * Indicates that the buffer was released.
+         */
+        volatile boolean released;
+
+        /**
+         * Builds LeakRecord of the current site.
+         *
+         * @param pool pool to which the buffer belongs
+         * @param bufferSize size of the buffer in bytes
+         */
+        private LeakRecord(BufferPool pool, int bufferSize) {
+            this.pool = pool;
+            this.bufferSize = bufferSize;
+            this.site = new Throwable("Buffer acquired");
+        }
+
+        /**
+         * Reports the leak if the buffer was not released.
+         */
+        @Override
+        public void run() {
+            if (!released) {
+                pool.leakDetected(bufferSize, site);
+            }
+        }
+
+    }
+
+    /**
+     * Buffers of one size.
+     */
+    private static class SizeClass {
+
+        /**
+         * Size of the buffers in bytes.
+         */
+        private final int bufferSize;
+        /**
+         * Released buffers waiting for reuse.
+         */
+        private final ArrayBlockingQueue<ByteBuffer> freeBuffers;
+        /**
+         * Slab from which new buffers are carved (from its position).
+         */
+        private ByteBuffer slab;
+
+        /**
+         * Builds SizeClass.
+         *
+         * @param bufferSize size of the buffers in bytes
+         * @param maxPooledBytes maximal number of bytes kept free
+         */
+        private SizeClass(int bufferSize, long maxPooledBytes) {
+            this.bufferSize = bufferSize;
+            this.freeBuffers = new ArrayBlockingQueue<>((int) Math.max(1, maxPooledBytes / bufferSize));
+        }
+
+        /**
+         * Carves new buffer from the slab. New slab is allocated if the current
+         * one is exhausted.
+         *
+         * @param capacity counter of bytes allocated by the pool
+         * @return new buffer
+         */
+        private synchronized ByteBuffer carve(AtomicLong capacity) {
+            if (slab == null || slab.remaining() < bufferSize) {
+                slab = ByteBuffer.allocateDirect(Math.max(SLAB_SIZE, bufferSize));
+                capacity.addAndGet(slab.capacity());
+            }
+
+            ByteBuffer buffer = slab.slice(slab.position(), bufferSize);
+
+            slab.position(slab.position() + bufferSize);
+
+            return buffer;
+        }
+
+    }
+
+    /**
+     * Size of the largest size class in bytes.
+     */
+    private final int maxBufferSize;
+    /**
+     * Indicates that buffers record their acquiring sites.
+     */
+    private final boolean leakDetection;
+    /**
+     * Size classes indexed from the smallest one.
+     */
+    private final SizeClass[] sizeClasses;
+    /**
+     * Number of bytes of all slabs.
+     */
+    private final AtomicLong capacity;
+    /**
+     * Number of buffers which were acquired and not released.
+     */
+    private final LongAdder outstandingBuffers;
+    /**
+     * Number of bytes of buffers which were acquired and not released.
+     */
+    private final LongAdder outstandingBytes;
+    /**
+     * Number of buffers which were too large for the pool.
+     */
+    private final LongAdder unpooledAllocations;
+    /**
+     * Number of buffers collected without their release.
+     */
+    private final LongAdder leakedBuffers;
+
+    /**
+     * Builds BufferPool with default size classes and limits. Leak detection
+     * is on if the system property <i>ziotbroker.bufferLeakDetection</i>
+     * is <i>true</i>.
+     */
+    public BufferPool() {
+        this(DEFAULT_MAX_BUFFER_SIZE, DEFAULT_MAX_POOLED_BYTES, DEFAULT_LEAK_DETECTION);
+    }
+
+    /**
+     * Builds BufferPool.
+     *
+     * @param maxBufferSize size of the largest size class in bytes (power
+     * of two, at least {@link #MIN_BUFFER_SIZE}), larger buffers are not pooled
+     * @param maxPooledBytes maximal number of bytes kept free in one size class
+     * (buffers released above it are left to the garbage collector)
+     * @param leakDetection indicates that buffers record their acquiring
+     * sites and buffers collected without release are reported
+     */
+    public BufferPool(int maxBufferSize, long maxPooledBytes, boolean leakDetection) {
+        if (maxBufferSize < MIN_BUFFER_SIZE || Integer.bitCount(maxBufferSize) != 1) {
+            throw new IllegalArgumentException("Maximal buffer size must be power of two not smaller than " + MIN_BUFFER_SIZE);
+        }
+
+        if (maxPooledBytes < 0) {
+            throw new IllegalArgumentException("Maximal number of pooled bytes must not be negative");
+        }
+
+        this.maxBufferSize = maxBufferSize;
+        this.leakDetection = leakDetection;
+        this.sizeClasses = new SizeClass[Integer.numberOfTrailingZeros(maxBufferSize) - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE) + 1];
+        this.capacity = new AtomicLong();
+        this.outstandingBuffers = new LongAdder();
+        this.outstandingBytes = new LongAdder();
+        this.unpooledAllocations = new LongAdder();
+        this.leakedBuffers = new LongAdder();
+
+        for (int i = 0; i < sizeClasses.length; i++) {
+            sizeClasses[i] = new SizeClass(MIN_BUFFER_SIZE << i, maxPooledBytes);
+        }
+    }
+
+    /**
+     * Acquires buffer with one reference. Its position is 0 and its limit
+     * is the requested size, its capacity is the size of its class.
+     *
+     * @param size required size in bytes
+     * @return acquired buffer
+     */
+    public PooledBuffer acquire(int size) {
+        ByteBuffer buffer;
+        int sizeClassIndex = -1;
+
+        if (size > maxBufferSize) {
+            buffer = ByteBuffer.allocateDirect(size);
+            unpooledAllocations.increment();
+        } else {
+            sizeClassIndex = size <= MIN_BUFFER_SIZE ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+
+            SizeClass sizeClass = sizeClasses[sizeClassIndex];
+
+            buffer = sizeClass.freeBuffers.poll();
+
+            if (buffer == null) {
+                buffer = sizeClass.carve(capacity);
+            }
+
+            buffer.clear();
+        }
+
+        buffer.limit(size);
+        outstandingBuffers.increment();
+        outstandingBytes.add(buffer.capacity());
+
+        if (!leakDetection) {
+            return new PooledBuffer(buffer, this, sizeClassIndex, null, null);
+        }
+
+        return new PooledBuffer(buffer, this, sizeClassIndex, new LeakRecord(this, buffer.capacity()), LeakDetector.CLEANER);
+    }
+
+    /**
+     * Returns released buffer to its size class. Buffer which is not pooled
+     * or which does not fit into its full class is left to the garbage
+     * collector.
+     *
+     * @param pooledBuffer buffer whose last reference was released
+     */
+    void recycle(PooledBuffer pooledBuffer) {
+        ByteBuffer buffer = pooledBuffer.getBuffer();
+
+        outstandingBuffers.decrement();
+        outstandingBytes.add(-buffer.capacity());
+
+        if (pooledBuffer.getSizeClass() >= 0) {
+            sizeClasses[pooledBuffer.getSizeClass()].freeBuffers.offer(buffer);
+        }
+    }
+
+    /**
+     * Reports buffer collected without its release.
+     *
+     * @param bufferSize size of the buffer in bytes
+     * @param site stack trace of the acquiring site
+     */
+    private void leakDetected(int bufferSize, Throwable site) {
+        StringBuilder trace = new StringBuilder();
+
+        for (StackTraceElement element : site.getStackTrace()) {
+            trace.append("\n\tat ").append(element);
+        }
+
+        leakedBuffers.increment();
+        outstandingBuffers.decrement();
+        outstandingBytes.add(-bufferSize);
+        BrokerLogger.log(LogLevel.WARNING, this.getClass(), "Buffer of %d bytes was collected without release, it was acquired%s", bufferSize, trace);
+    }
+
+    /**
+     * Indicates that buffers record their acquiring sites.
+     *
+     * @return <i>true</i> if leak detection is on
+     */
+    public boolean isLeakDetection() {
+        return leakDetection;
+    }
+
+    /**
+     * Returns number of bytes of all slabs allocated by the pool.
+     *
+     * @return allocated bytes
+     */
+    public long getCapacity() {
+        return capacity.get();
+    }
+
+    /**
+     * Returns number of bytes of buffers waiting for reuse.
+     *
+     * @return free pooled bytes
+     */
+    public long getPooledBytes() {
+        long pooledBytes = 0;
+
+        for (SizeClass sizeClass : sizeClasses) {
+            pooledBytes += (long) sizeClass.freeBuffers.size() * sizeClass.bufferSize;
+        }
+
+        return pooledBytes;
+    }
+
+    /**
+     * Returns number of buffers which were acquired and not released.
+     *
+     * @return number of buffers in use
+     */
+    public long getOutstandingBuffers() {
+        return outstandingBuffers.sum();
+    }
+
+    /**
+     * Returns number of bytes of buffers which were acquired and not released.
+     *
+     * @return bytes in use
+     */
+    public long getOutstandingBytes() {
+        return outstandingBytes.sum();
+    }
+
+    /**
+     * Returns number of buffers which were too large for the pool.
+     *
+     * @return number of unpooled allocations
+     */
+    public long getUnpooledAllocations() {
+        return unpooledAllocations.sum();
+    }
+
+    /**
+     * Returns number of buffers collected without their release (counted only
+     * with leak detection).
+     *
+     * @return number of leaked buffers
+     */
+    public long getLeakedBuffers() {
+        return leakedBuffers.sum();
+    }
+
+}
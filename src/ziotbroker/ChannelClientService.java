@@ -0,0 +1,263 @@
+package ziotbroker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Service serving one client connected through non-blocking channel. Unlike
+ * the blocking services it owns no thread - it is driven by the event loop
+ * to which the channel is registered, which calls it whenever the channel
+ * is ready for reading or writing.
+ *
+ * @author Jakub Svarc
+ */
+public class ChannelClientService extends OutputClientService {
+
+    /**
+     * Maximal number of packets sent by one gathering write.
+     */
+    private static final int MAX_PACKETS_PER_WRITE = 256;
+
+    /**
+     * Non-blocking connection to the client.
+     */
+    private final SocketChannel clientChannel;
+    /**
+     * Registration of the connection in the selector of the event loop.
+     */
+    private final SelectionKey selectionKey;
+    /**
+     * Event loop which drives this service.
+     */
+    private final EventLoop eventLoop;
+    /**
+     * Service which processes given packets.
+     */
+    private final PacketProcessor packetProcessor;
+    /**
+     * Indicates that the event loop was already asked to write queued
+     * packets.
+     */
+    private final AtomicBoolean writeScheduled;
+    /**
+     * Decoder splitting received bytes into packets.
+     */
+    private final FrameDecoder frameDecoder;
+    /**
+     * Reusable view of decoded packets (valid until the next read).
+     */
+    private final PacketView packetView;
+    /**
+     * Views of encoded packets of the current gathering write.
+     */
+    private final ByteBuffer[] writeBatch;
+    /**
+     * Packets of the current gathering write (released when they are written
+     * completely).
+     */
+    private final EncodedPacket[] writeBatchPackets;
+    /**
+     * Index of the first packet of the current write which was not written
+     * to the channel completely yet.
+     */
+    private int writeBatchStart;
+    /**
+     * Number of packets in the current write.
+     */
+    private int writeBatchEnd;
+
+    /**
+     * Builds ChannelClientService.
+     *
+     * @param clientChannel non-blocking connection to the client
+     * @param selectionKey registration of the connection in the selector
+     * of the event loop
+     * @param eventLoop event loop which drives this service
+     * @param packetProcessor service which processes given packets
+     * @param maxPacketSize maximal size of incoming packet in bytes
+     * @param writeCoalescing settings of coalescing of queued packets 
+     * into writes
+     * @param overflowPolicy capacity of the packet queue and action taken 
+     * when it is full
+     */
+    public ChannelClientService(SocketChannel clientChannel, SelectionKey selectionKey, EventLoop eventLoop, PacketProcessor packetProcessor, int maxPacketSize, WriteCoalescing writeCoalescing, OverflowPolicy overflowPolicy) {
+        super(writeCoalescing, overflowPolicy, packetProcessor.getStatistics());
+        this.clientChannel = clientChannel;
+        this.selectionKey = selectionKey;
+        this.eventLoop = eventLoop;
+        this.packetProcessor = packetProcessor;
+        this.writeScheduled = new AtomicBoolean(false);
+        this.frameDecoder = new FrameDecoder(maxPacketSize, packetProcessor.getBufferPool());
+        this.packetView = new PacketView();
+        this.writeBatch = new ByteBuffer[MAX_PACKETS_PER_WRITE];
+        this.writeBatchPackets = new EncodedPacket[MAX_PACKETS_PER_WRITE];
+        this.writeBatchStart = 0;
+        this.writeBatchEnd = 0;
+    }
+
+    /**
+     * Asks the event loop to send queued packets (unless it was already
+     * asked).
+     */
+    @Override
+    protected void packetQueued() {
+        if (writeScheduled.compareAndSet(false, true)) {
+            eventLoop.requestWrite(this);
+        }
+    }
+
+    /**
+     * Asks the event loop to close the connection. The connection must be
+     * closed by the loop, because its selector must not be used 
+     * concurrently.
+     */
+    @Override
+    protected void disconnect() {
+        disconnected = true;
+        eventLoop.requestClose(this);
+    }
+
+    /**
+     * Reads available bytes from the connection and gives all complete
+     * packets to further processing.
+     *
+     * @return <i>false</i> if the client closed the connection, else
+     * <i>true</i>
+     * @throws IOException thrown if reading from the connection fails
+     * @throws MQTTException thrown if received packet is malformed
+     */
+    public boolean read() throws IOException, MQTTException {
+        /**
+         * Number of bytes read from the connection.
+         */
+        int readBytes = frameDecoder.read(clientChannel);
+        
+        if (readBytes == -1) {
+            return false;
+        }
+
+        statistics.bytesReceived(readBytes);
+
+        recordActivity();
+
+        while (frameDecoder.nextPacket(packetView)) {
+            if (BrokerLogger.isEnabled(LogLevel.DEBUG)) {
+                BrokerLogger.logClient(LogLevel.DEBUG, this.getClass(), getClientID(), packetView.getType(), "Accepted packet");
+            }
+
+            packetProcessor.process(packetView, this);
+        }
+
+        return true;
+    }
+
+    /**
+     * Writes queued packets to the connection by one gathering write. The
+     * write contains all queued packets which fit into the byte budget, so
+     * the rest is left for the next call and other connections of the event
+     * loop are not delayed.
+     *
+     * @return <i>true</i> if all queued packets were sent, else <i>false</i>
+     * @throws IOException thrown if writing to the connection fails
+     */
+    public boolean flush() throws IOException {
+        writeScheduled.set(false);
+
+        if (writeBatchStart == writeBatchEnd && !fillWriteBatch()) {
+            return true;
+        }
+
+        statistics.bytesSent(clientChannel.write(writeBatch, writeBatchStart, writeBatchEnd - writeBatchStart));
+
+        while (writeBatchStart < writeBatchEnd && !writeBatch[writeBatchStart].hasRemaining()) {
+            if (BrokerLogger.isEnabled(LogLevel.DEBUG)) {
+                BrokerLogger.logClient(LogLevel.DEBUG, this.getClass(), getClientID(), writeBatchPackets[writeBatchStart].getType(), "Sent packet");
+            }
+
+            statistics.packetSent(writeBatchPackets[writeBatchStart].getType());
+            writeBatchPackets[writeBatchStart].release();
+            writeBatch[writeBatchStart] = null;
+            writeBatchPackets[writeBatchStart] = null;
+            writeBatchStart++;
+        }
+
+        if (writeBatchStart < writeBatchEnd) {
+            return false;
+        }
+
+        recordWrite(writeBatchEnd);
+
+        return packetQueue.isEmpty();
+    }
+
+    /**
+     * Moves queued packets to the write batch until the batch is full or its
+     * byte budget is exhausted.
+     *
+     * @return <i>true</i> if the batch contains some packets, <i>false</i>
+     * if the queue is empty
+     */
+    private boolean fillWriteBatch() {
+        /**
+         * Number of bytes in the batch.
+         */
+        int batchBytes = 0;
+        EncodedPacket packet;
+
+        writeBatchStart = 0;
+        writeBatchEnd = 0;
+
+        while (writeBatchEnd < writeBatch.length && batchBytes < writeCoalescing.getMaxBytesPerWrite() && (packet = packetQueue.poll()) != null) {
+            writeBatch[writeBatchEnd] = packet.getBuffer();
+            writeBatchPackets[writeBatchEnd] = packet;
+            batchBytes += packet.getLength();
+            writeBatchEnd++;
+        }
+
+        return writeBatchEnd > 0;
+    }
+
+    /**
+     * Returns registration of the connection in the selector of the event
+     * loop.
+     *
+     * @return registration of the connection
+     */
+    public SelectionKey getSelectionKey() {
+        return selectionKey;
+    }
+
+    /**
+     * Closes the connection to the client. Packets which were not written
+     * and the read buffer return to the buffer pool.
+     */
+    public void close() {
+        disconnected = true;
+        selectionKey.cancel();
+
+        try {
+            clientChannel.close();
+        } catch (IOException ex) {
+            BrokerLogger.log(LogLevel.ERROR, this.getClass(), ex.getMessage());
+        }
+
+        for (; writeBatchStart < writeBatchEnd; writeBatchStart++) {
+            writeBatchPackets[writeBatchStart].release();
+            writeBatch[writeBatchStart] = null;
+            writeBatchPackets[writeBatchStart] = null;
+        }
+
+        releaseQueuedPackets();
+        frameDecoder.release();
+
+        if (BrokerLogger.isEnabled(LogLevel.DEBUG)) {
+            BrokerLogger.logClient(LogLevel.DEBUG, this.getClass(), getClientID(), null, "Client disconnected (%d packets sent by %d writes, %.1f packets per write, %d packets dropped)", getWrittenPacketCount(), getWriteCount(), getAveragePacketsPerWrite(), getDroppedPacketCount());
+        }
+
+        packetProcessor.processConnectionLost(this);
+    }
+
+}
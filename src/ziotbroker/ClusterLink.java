@@ -0,0 +1,222 @@
+package ziotbroker;
+
+import ziotbroker.packet.ConnectPacket;
+import ziotbroker.packet.SubscribePacket;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+
+/**
+ * Connection between two nodes of a cluster. Both directions of one TCP
+ * connection are used, so every pair of nodes needs just one link. The link
+ * speaks MQTT packets - the node introduces itself by <b>CONNECT</b> (its
+ * identifier is the client identifier), summary of its local subscribtions
+ * is sent as <b>SUBSCRIBE</b> packets and forwarded messages are plain
+ * <b>PUBLISH</b> packets with QoS 0. Nothing is acknowledged on the link,
+ * messages in flight are lost when it breaks.
+ *
+ * Outgoing packets are queued and coalesced into writes like packets of any
+ * client, so traffic of all forwarded messages is batched on the link.
+ *
+ * @author Jakub Svarc
+ */
+public class ClusterLink extends SocketClientService {
+
+    /**
+     * Connection to the peer.
+     */
+    private final Socket socket;
+    /**
+     * Node to which the link belongs.
+     */
+    private final ClusterNode node;
+    /**
+     * Indicates that the connection was opened by this node.
+     */
+    private final boolean dialed;
+    /**
+     * Maximal size of incoming packet in bytes.
+     */
+    private final int maxPacketSize;
+    /**
+     * Identifier of the peer, <i>null</i> until its <b>CONNECT</b> packet
+     * comes.
+     */
+    private volatile String peerID;
+    /**
+     * Summary of subscribtions of the peer.
+     */
+    private volatile TopicFilterSet peerFilters;
+    /**
+     * Filters of the summary which is being received (it is complete
+     * with the packet whose identifier is 0).
+     */
+    private ArrayList<String> pendingFilters;
+
+    /**
+     * Builds ClusterLink.
+     *
+     * @param socket connection to the peer
+     * @param node node to which the link belongs
+     * @param dialed indicates that the connection was opened by this node
+     * @param writeCoalescing settings of coalescing of packets into writes
+     * @param overflowPolicy capacity of the packet queue of the link and action
+     * taken when it is full
+     * @param maxPacketSize maximal size of incoming packet in bytes
+     * @param statistics counters of the broker load
+     */
+    ClusterLink(Socket socket, ClusterNode node, boolean dialed, WriteCoalescing writeCoalescing, OverflowPolicy overflowPolicy, int maxPacketSize, BrokerStatistics statistics) {
+        super(socket, writeCoalescing, overflowPolicy, statistics);
+        this.socket = socket;
+        this.node = node;
+        this.dialed = dialed;
+        this.maxPacketSize = maxPacketSize;
+        this.peerFilters = TopicFilterSet.EMPTY;
+        this.pendingFilters = new ArrayList<>();
+    }
+
+    /**
+     * Introduces the node to the peer and starts threads writing and reading
+     * the connection.
+     */
+    void start() {
+        send(new EncodedPacket(new ConnectPacket(node.getNodeID(), (short) 0, true)));
+
+        Thread writer = new Thread(this, "ClusterLink-" + socket.getRemoteSocketAddress() + "-out");
+        Thread reader = new Thread(this::receive, "ClusterLink-" + socket.getRemoteSocketAddress() + "-in");
+
+        writer.setDaemon(true);
+        reader.setDaemon(true);
+        writer.start();
+        reader.start();
+    }
+
+    /**
+     * Continuously reads packets of the peer and processes them. When
+     * the connection ends, the link is closed.
+     */
+    private void receive() {
+        FrameDecoder frameDecoder = new FrameDecoder(maxPacketSize, node.getPacketProcessor().getBufferPool());
+        PacketView packetView = new PacketView();
+
+        try (
+            InputStream in = socket.getInputStream();
+        ) {
+            /**
+             * Number of bytes read from the connection.
+             */
+            int readBytes;
+
+            while ((readBytes = frameDecoder.read(in)) != -1) {
+                statistics.bytesReceived(readBytes);
+
+                while (frameDecoder.nextPacket(packetView)) {
+                    process(packetView);
+                }
+            }
+        } catch (IOException | MQTTException ex) {
+            // Failure of closed link is expected
+            if (!isDisconnected()) {
+                BrokerLogger.log(LogLevel.WARNING, this.getClass(), "Cluster link to %s failed: %s", socket.getRemoteSocketAddress(), ex.getMessage());
+            }
+        } finally {
+            close();
+            frameDecoder.release();
+        }
+    }
+
+    /**
+     * Processes one packet of the peer.
+     *
+     * @param packet view of the packet
+     * @throws MQTTException thrown if the packet is malformed or unexpected
+     */
+    private void process(PacketView packet) throws MQTTException {
+        switch (packet.getType()) {
+            case CONNECT: {
+                if (peerID != null) {
+                    throw new MQTTException(MQTTExceptionLevel.ERROR, "Cluster peer introduced itself twice");
+                }
+
+                peerID = ((ConnectPacket) packet.toPacket()).getClientID();
+                setClientID(peerID);
+
+                if (!node.register(this)) {
+                    close();
+                }
+
+                break;
+            } case SUBSCRIBE: {
+                SubscribePacket summary = (SubscribePacket) packet.toPacket();
+
+                for (Subscribtion subscribtion : summary.getSubscribtions()) {
+                    pendingFilters.add(subscribtion.getTopic());
+                }
+
+                if (summary.getPacketIdentifier() == 0) {
+                    peerFilters = new TopicFilterSet(pendingFilters);
+                    pendingFilters = new ArrayList<>();
+                }
+
+                break;
+            } case PUBLISH: {
+                if (peerID == null) {
+                    throw new MQTTException(MQTTExceptionLevel.ERROR, "Cluster peer did not introduce itself");
+                }
+
+                node.receive(packet);
+                break;
+            } default: {
+                throw new MQTTException(MQTTExceptionLevel.ERROR, "Unexpected packet on cluster link - " + packet.getType());
+            }
+        }
+    }
+
+    /**
+     * Closes the link. Both threads of the link finish and the link is removed
+     * from its node.
+     */
+    public void close() {
+        disconnect();
+    }
+
+    /**
+     * Closes the connection, stops the writing thread and removes the link
+     * from its node.
+     */
+    @Override
+    protected void disconnect() {
+        super.disconnect();
+        node.unregister(this);
+    }
+
+    /**
+     * Returns identifier of the peer.
+     *
+     * @return identifier of the peer, <i>null</i> if it did not introduce
+     * itself yet
+     */
+    public String getPeerID() {
+        return peerID;
+    }
+
+    /**
+     * Indicates that the connection was opened by this node.
+     *
+     * @return <i>true</i> if this node dialed the peer
+     */
+    public boolean isDialed() {
+        return dialed;
+    }
+
+    /**
+     * Returns summary of subscribtions of the peer.
+     *
+     * @return the last complete summary
+     */
+    public TopicFilterSet getPeerFilters() {
+        return peerFilters;
+    }
+
+}
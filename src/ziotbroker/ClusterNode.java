@@ -0,0 +1,681 @@
+package ziotbroker;
+
+import ziotbroker.packet.SubscribePacket;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Membership of the broker in a cluster of brokers connected by plain TCP.
+ * The node accepts links of its peers on its cluster port and dials
+ * the configured peers (again after the link breaks). Every pair of nodes
+ * keeps one {@link ClusterLink} - if both nodes dial each other, the link
+ * dialed by the node with lower identifier is kept.
+ *
+ * Nodes gossip summaries of their local subscribtions (distinct topic
+ * filters) to their peers whenever the subscribtions change. Message
+ * published to the node is forwarded to every peer whose summary matches its
+ * topic (retained messages are forwarded to all peers, so every node keeps
+ * them for its future subscribers) and the peer delivers it to its local
+ * subscribers only. Forwarded messages are never forwarded again, so every
+ * node must link to every other node. Messages of <b>$SYS</b> topics
+ * and messages for listeners of the broker stay on their node, groups
+ * of shared subscribtions are shared only within one node.
+ *
+ * Links acknowledge nothing, so messages are forwarded with QoS 0 whatever
+ * QoS they were published with - subscribers of other nodes receive them
+ * with QoS 0 and peers retain them with QoS 0. QoS 1 and 2 are guaranteed
+ * only to subscribers of the node to which the message was published.
+ *
+ * @author Jakub Svarc
+ */
+public class ClusterNode {
+
+    /**
+     * Default interval of checking of changes of the local subscribtions
+     * in nanoseconds.
+     */
+    public static final long DEFAULT_GOSSIP_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    /**
+     * Default interval of dialing of unlinked peers in nanoseconds.
+     */
+    public static final long DEFAULT_RECONNECT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    /**
+     * Default capacity of packet queues of the links and action taken when
+     * they are full.
+     */
+    public static final OverflowPolicy DEFAULT_LINK_OVERFLOW_POLICY = new OverflowPolicy(100_000, OverflowAction.DROP_NEWEST);
+    /**
+     * Maximal time of opening of the connection to a peer in milliseconds.
+     */
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    /**
+     * Maximal number of bytes of filters in one <b>SUBSCRIBE</b> packet
+     * of the summary.
+     */
+    private static final int SUMMARY_PACKET_SIZE = 16 * 1024;
+    /**
+     * Charset used for encoding filters (for MQTT 3.1.1 it is UTF-8).
+     */
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    /**
+     * Links array of the node without peers.
+     */
+    private static final ClusterLink[] NO_LINKS = new ClusterLink[0];
+
+    /**
+     * Identifier of the node, unique in the cluster.
+     */
+    private final String nodeID;
+    /**
+     * Port on which the node accepts links of its peers.
+     */
+    private final short PORT;
+    /**
+     * Addresses of the cluster ports of the peers dialed by the node.
+     */
+    private final List<InetSocketAddress> peers;
+    /**
+     * Settings of coalescing of packets sent over the links into writes.
+     */
+    private final WriteCoalescing writeCoalescing;
+    /**
+     * Capacity of packet queues of the links and action taken when they
+     * are full.
+     */
+    private final OverflowPolicy linkOverflowPolicy;
+    /**
+     * Interval of checking of changes of the local subscribtions
+     * in nanoseconds.
+     */
+    private final long gossipIntervalNanos;
+    /**
+     * Interval of dialing of unlinked peers in nanoseconds.
+     */
+    private final long reconnectIntervalNanos;
+    /**
+     * Last links dialed to the peers by their addresses.
+     */
+    private final ConcurrentHashMap<InetSocketAddress, ClusterLink> dialedLinks;
+    /**
+     * Number of messages forwarded to at least one peer.
+     */
+    private final LongAdder forwardedMessages;
+    /**
+     * Number of messages received from the peers.
+     */
+    private final LongAdder receivedMessages;
+    /**
+     * Introduced links, one for every peer. The array is never modified,
+     * every change replaces it by a modified copy.
+     */
+    private volatile ClusterLink[] links;
+    /**
+     * Index storing subscribtions of the broker.
+     */
+    private SubscribtionTree subscribtions;
+    /**
+     * Service processing packets of the broker.
+     */
+    private PacketProcessor packetProcessor;
+    /**
+     * Counters of the broker load.
+     */
+    private BrokerStatistics statistics;
+    /**
+     * Maximal size of incoming packet in bytes.
+     */
+    private int maxPacketSize;
+    /**
+     * Version of the subscribtions summarized by the last summary.
+     */
+    private long summaryVersion;
+    /**
+     * Filters of the last summary (sorted).
+     */
+    private List<String> summaryFilters;
+    /**
+     * Encoded packets of the last summary.
+     */
+    private EncodedPacket[] summaryPackets;
+    /**
+     * Executor gossiping and dialing the peers, <i>null</i> until the node 
+     * starts.
+     */
+    private volatile ScheduledExecutorService scheduler;
+    /**
+     * Socket accepting links of the peers, <i>null</i> while it is not open.
+     */
+    private ServerSocket peerSocket;
+    /**
+     * Indicates that the node was closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Builds ClusterNode with default link settings and intervals.
+     *
+     * @param nodeID identifier of the node, unique in the cluster
+     * @param port port on which the node accepts links of its peers
+     * @param peers addresses of the cluster ports of the other nodes
+     */
+    public ClusterNode(String nodeID, short port, List<InetSocketAddress> peers) {
+        this(nodeID, port, peers, WriteCoalescing.DEFAULT, DEFAULT_LINK_OVERFLOW_POLICY, DEFAULT_GOSSIP_INTERVAL_NANOS, DEFAULT_RECONNECT_INTERVAL_NANOS);
+    }
+
+    /**
+     * Builds ClusterNode.
+     *
+     * @param nodeID identifier of the node, unique in the cluster
+     * @param port port on which the node accepts links of its peers
+     * @param peers addresses of the cluster ports of the other nodes (its own
+     * address is ignored)
+     * @param writeCoalescing settings of coalescing of packets sent over
+     * the links into writes
+     * @param linkOverflowPolicy capacity of packet queues of the links
+     * and action taken when they are full (DISCONNECT breaks the link, it is
+     * dialed again, BOUNDED_WAIT can not be used by broker in selector mode)
+     * @param gossipIntervalNanos interval of checking of changes of the local
+     * subscribtions in nanoseconds - subscribtions are forwarded
+     * to by the peers after the next check
+     * @param reconnectIntervalNanos interval of dialing of unlinked peers
+     * in nanoseconds
+     */
+    public ClusterNode(String nodeID, short port, List<InetSocketAddress> peers, WriteCoalescing writeCoalescing, OverflowPolicy linkOverflowPolicy, long gossipIntervalNanos, long reconnectIntervalNanos) {
+        if (nodeID == null || nodeID.isEmpty()) {
+            throw new IllegalArgumentException("Node identifier must not be empty");
+        }
+
+        if (gossipIntervalNanos <= 0 || reconnectIntervalNanos <= 0) {
+            throw new IllegalArgumentException("Intervals of the cluster must be positive");
+        }
+
+        this.nodeID = nodeID;
+        this.PORT = port;
+        this.peers = Collections.unmodifiableList(new ArrayList<>(peers));
+        this.writeCoalescing = writeCoalescing;
+        this.linkOverflowPolicy = linkOverflowPolicy;
+        this.gossipIntervalNanos = gossipIntervalNanos;
+        this.reconnectIntervalNanos = reconnectIntervalNanos;
+        this.dialedLinks = new ConcurrentHashMap<>();
+        this.forwardedMessages = new LongAdder();
+        this.receivedMessages = new LongAdder();
+        this.links = NO_LINKS;
+        this.summaryVersion = -1;
+        this.summaryFilters = Collections.emptyList();
+        this.summaryPackets = encodeSummary(summaryFilters);
+    }
+
+    /**
+     * Attaches the node to its broker. It is called once, when the broker
+     * is built.
+     *
+     * @param subscribtions index storing subscribtions of the broker
+     * @param packetProcessor service processing packets of the broker
+     * @param statistics counters of the broker load
+     * @param maxPacketSize maximal size of incoming packet in bytes
+     */
+    synchronized void attach(SubscribtionTree subscribtions, PacketProcessor packetProcessor, BrokerStatistics statistics, int maxPacketSize) {
+        if (this.packetProcessor != null) {
+            throw new IllegalStateException("Cluster node already belongs to a broker");
+        }
+
+        this.subscribtions = subscribtions;
+        this.packetProcessor = packetProcessor;
+        this.statistics = statistics;
+        this.maxPacketSize = maxPacketSize;
+    }
+
+    /**
+     * Starts accepting of the peers, dialing of the peers and gossiping
+     * of the summaries. It is called when the broker starts.
+     */
+    void start() {
+        Thread acceptor = new Thread(this::acceptPeers, "ClusterAcceptor");
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "ClusterNode");
+            thread.setDaemon(true);
+            return thread;
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        scheduler.scheduleWithFixedDelay(this::gossip, gossipIntervalNanos, gossipIntervalNanos, TimeUnit.NANOSECONDS);
+        scheduler.scheduleWithFixedDelay(this::dialPeers, 0, reconnectIntervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Continuously awaits peers to connect and starts links to them.
+     */
+    private void acceptPeers() {
+        try (
+            ServerSocket peerSocket = new ServerSocket(PORT);
+        ) {
+            Socket socket;
+
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+
+                this.peerSocket = peerSocket;
+            }
+
+            while ((socket = peerSocket.accept()) != null) {
+                startLink(socket, false);
+            }
+        } catch (IOException ex) {
+            // Failure of closed socket is expected
+            BrokerLogger.log(closed ? LogLevel.DEBUG : LogLevel.ERROR, this.getClass(), ex.getMessage());
+        }
+    }
+
+    /**
+     * Dials every peer which is not linked. Peer whose identifier is known
+     * from its earlier link is not dialed while it is linked through its own
+     * connection.
+     */
+    private void dialPeers() {
+        for (InetSocketAddress peer : peers) {
+            ClusterLink dialedLink = dialedLinks.get(peer);
+
+            if (dialedLink != null) {
+                String peerID = dialedLink.getPeerID();
+
+                if (!dialedLink.isDisconnected() || (peerID != null && (peerID.equals(nodeID) || isLinked(peerID)))) {
+                    continue;
+                }
+            }
+
+            Socket socket = new Socket();
+
+            try {
+                socket.connect(peer, CONNECT_TIMEOUT_MILLIS);
+                dialedLinks.put(peer, startLink(socket, true));
+                BrokerLogger.log(LogLevel.DEBUG, this.getClass(), "Dialed cluster peer %s", peer);
+            } catch (IOException ex) {
+                BrokerLogger.log(LogLevel.DEBUG, this.getClass(), "Cluster peer %s is not reachable: %s", peer, ex.getMessage());
+
+                try {
+                    socket.close();
+                } catch (IOException closeEx) {}
+            }
+        }
+    }
+
+    /**
+     * Builds and starts link on given connection.
+     *
+     * @param socket connection to the peer
+     * @param dialed indicates that the connection was opened by this node
+     * @return the link
+     * @throws IOException thrown if the connection is broken
+     */
+    private ClusterLink startLink(Socket socket, boolean dialed) throws IOException {
+        // Writes are coalesced by the link, they need not wait for more data
+        socket.setTcpNoDelay(true);
+
+        ClusterLink link = new ClusterLink(socket, this, dialed, writeCoalescing, linkOverflowPolicy, maxPacketSize, statistics);
+
+        link.start();
+
+        return link;
+    }
+
+    /**
+     * Adds link whose peer introduced itself and sends it the current
+     * summary. If the peer is already linked, the link dialed by the node
+     * with lower identifier is kept (both nodes decide the same way).
+     *
+     * @param link introduced link
+     * @return <i>true</i> if the link was added, <i>false</i> if it should
+     * be closed
+     */
+    synchronized boolean register(ClusterLink link) {
+        if (closed || link.getPeerID().equals(nodeID) || link.isDisconnected()) {
+            return false;
+        }
+
+        ClusterLink[] currentLinks = links;
+
+        for (int i = 0; i < currentLinks.length; i++) {
+            if (!currentLinks[i].getPeerID().equals(link.getPeerID())) {
+                continue;
+            }
+
+            // Link dialed by lower identifier wins, newer link of the same dialer replaces the older one
+            if (getDialerID(link).compareTo(getDialerID(currentLinks[i])) > 0) {
+                return false;
+            }
+
+            ClusterLink[] newLinks = currentLinks.clone();
+            ClusterLink replacedLink = currentLinks[i];
+
+            newLinks[i] = link;
+            links = newLinks;
+            replacedLink.close();
+            sendSummary(link);
+
+            return true;
+        }
+
+        ClusterLink[] newLinks = Arrays.copyOf(currentLinks, currentLinks.length + 1);
+
+        newLinks[currentLinks.length] = link;
+        links = newLinks;
+        sendSummary(link);
+        BrokerLogger.log(LogLevel.INFO, this.getClass(), "Cluster peer %s linked", link.getPeerID());
+
+        return true;
+    }
+
+    /**
+     * Removes closed link.
+     *
+     * @param link closed link
+     */
+    synchronized void unregister(ClusterLink link) {
+        ClusterLink[] currentLinks = links;
+
+        for (int i = 0; i < currentLinks.length; i++) {
+            if (currentLinks[i] == link) {
+                ClusterLink[] newLinks = new ClusterLink[currentLinks.length - 1];
+
+                System.arraycopy(currentLinks, 0, newLinks, 0, i);
+                System.arraycopy(currentLinks, i + 1, newLinks, i, newLinks.length - i);
+                links = newLinks;
+                BrokerLogger.log(LogLevel.INFO, this.getClass(), "Cluster peer %s unlinked", link.getPeerID());
+
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns identifier of the node which dialed given link.
+     *
+     * @param link introduced link
+     * @return identifier of the dialing node
+     */
+    private String getDialerID(ClusterLink link) {
+        return link.isDialed() ? nodeID : link.getPeerID();
+    }
+
+    /**
+     * Indicates that given peer is linked.
+     *
+     * @param peerID identifier of the peer
+     * @return <i>true</i> if the peer has a link
+     */
+    private boolean isLinked(String peerID) {
+        for (ClusterLink link : links) {
+            if (link.getPeerID().equals(peerID)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Sends new summary to all peers if the distinct filters of the local
+     * subscribtions changed since the last summary.
+     */
+    private synchronized void gossip() {
+        try {
+            long version = subscribtions.getVersion();
+
+            if (version == summaryVersion) {
+                return;
+            }
+
+            ArrayList<String> filters = subscribtions.filters();
+
+            Collections.sort(filters);
+            summaryVersion = version;
+
+            if (filters.equals(summaryFilters)) {
+                return;
+            }
+
+            summaryFilters = filters;
+            summaryPackets = encodeSummary(filters);
+
+            for (ClusterLink link : links) {
+                sendSummary(link);
+            }
+        } catch (RuntimeException ex) {
+            BrokerLogger.log(LogLevel.ERROR, this.getClass(), ex.getMessage());
+        }
+    }
+
+    /**
+     * Sends the last summary to given link.
+     *
+     * @param link introduced link
+     */
+    private void sendSummary(ClusterLink link) {
+        for (EncodedPacket summaryPacket : summaryPackets) {
+            link.send(summaryPacket);
+        }
+    }
+
+    /**
+     * Encodes summary into <b>SUBSCRIBE</b> packets. Packet identifier
+     * of every packet is number of packets following it, so the peer
+     * recognizes the last one. Empty summary is sent as one packet with empty
+     * (invalid, so ignored) filter.
+     *
+     * @param filters filters of the summary
+     * @return encoded packets
+     */
+    private static EncodedPacket[] encodeSummary(List<String> filters) {
+        ArrayList<ArrayList<Subscribtion>> packetFilters = new ArrayList<>();
+        ArrayList<Subscribtion> currentFilters = new ArrayList<>();
+        /**
+         * Number of bytes of filters in the current packet.
+         */
+        int currentSize = 0;
+
+        for (String filter : filters) {
+            int filterSize = filter.getBytes(CHARSET).length + 3;
+
+            if (!currentFilters.isEmpty() && currentSize + filterSize > SUMMARY_PACKET_SIZE) {
+                packetFilters.add(currentFilters);
+                currentFilters = new ArrayList<>();
+                currentSize = 0;
+            }
+
+            currentFilters.add(new Subscribtion(filter, (byte) 0));
+            currentSize += filterSize;
+        }
+
+        if (currentFilters.isEmpty()) {
+            currentFilters.add(new Subscribtion("", (byte) 0));
+        }
+
+        packetFilters.add(currentFilters);
+
+        EncodedPacket[] packets = new EncodedPacket[packetFilters.size()];
+
+        for (int i = 0; i < packets.length; i++) {
+            packets[i] = new EncodedPacket(new SubscribePacket(packets.length - 1 - i, packetFilters.get(i)));
+        }
+
+        return packets;
+    }
+
+    /**
+     * Forwards message published to the node to all peers whose summaries
+     * match its topic (retained message to all peers). The <b>PUBLISH</b>
+     * packet is encoded once into pooled buffer and shared by all links,
+     * it has QoS 0 (nothing is acknowledged on the links).
+     *
+     * @param topic topic of the message
+     * @param binaryTopic topic encoded as UTF-8
+     * @param payloadBuffer buffer containing the content of the message
+     * @param payloadOffset position of the payload in the buffer
+     * @param payloadLength length of the payload in bytes
+     * @param retain value of the retain flag
+     */
+    void forward(String topic, byte[] binaryTopic, ByteBuffer payloadBuffer, int payloadOffset, int payloadLength, boolean retain) {
+        /**
+         * Current links (read once).
+         */
+        ClusterLink[] currentLinks = links;
+
+        if (currentLinks.length == 0 || topic.startsWith(BrokerStatistics.TOPIC_PREFIX)) {
+            return;
+        }
+
+        EncodedPacket publishPacket = null;
+
+        for (ClusterLink link : currentLinks) {
+            if (!retain && !link.getPeerFilters().matches(topic)) {
+                continue;
+            }
+
+            if (publishPacket == null) {
+                publishPacket = EncodedPacket.encodePublish(binaryTopic, payloadBuffer, payloadOffset, payloadLength, (byte) 0, retain, packetProcessor.getBufferPool());
+            }
+
+            link.send(publishPacket);
+        }
+
+        // Links hold their own references of the pooled packet
+        if (publishPacket != null) {
+            publishPacket.release();
+            forwardedMessages.increment();
+        }
+    }
+
+    /**
+     * Delivers message forwarded by a peer to the local subscribers.
+     *
+     * @param packet view of the forwarded <b>PUBLISH</b> packet
+     * @throws MQTTException thrown if the topic is malformed
+     */
+    void receive(PacketView packet) throws MQTTException {
+        receivedMessages.increment();
+        packetProcessor.deliverForwarded(packet);
+    }
+
+    /**
+     * Stops accepting, dialing and gossiping and closes all links. It is 
+     * called when the broker is closed.
+     */
+    void close() {
+        ServerSocket currentPeerSocket;
+
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            currentPeerSocket = peerSocket;
+        }
+
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+
+        if (currentPeerSocket != null) {
+            try {
+                currentPeerSocket.close();
+            } catch (IOException ex) {}
+        }
+
+        // Closed link removes itself from the node
+        for (ClusterLink link : links) {
+            link.close();
+        }
+
+        for (ClusterLink link : dialedLinks.values()) {
+            link.close();
+        }
+    }
+
+    /**
+     * Returns identifier of the node.
+     *
+     * @return identifier of the node
+     */
+    public String getNodeID() {
+        return nodeID;
+    }
+
+    /**
+     * Returns capacity of packet queues of the links and action taken when
+     * they are full.
+     *
+     * @return overflow policy of the links
+     */
+    OverflowPolicy getLinkOverflowPolicy() {
+        return linkOverflowPolicy;
+    }
+
+    /**
+     * Returns service processing packets of the broker.
+     *
+     * @return packet processor of the broker
+     */
+    PacketProcessor getPacketProcessor() {
+        return packetProcessor;
+    }
+
+    /**
+     * Returns identifiers of the linked peers.
+     *
+     * @return identifiers of the peers
+     */
+    public List<String> getPeerIDs() {
+        ArrayList<String> peerIDs = new ArrayList<>();
+
+        for (ClusterLink link : links) {
+            peerIDs.add(link.getPeerID());
+        }
+
+        return peerIDs;
+    }
+
+    /**
+     * Returns number of the linked peers.
+     *
+     * @return number of links
+     */
+    public int getLinkCount() {
+        return links.length;
+    }
+
+    /**
+     * Returns number of messages forwarded to at least one peer.
+     *
+     * @return number of forwarded messages
+     */
+    public long getForwardedMessages() {
+        return forwardedMessages.sum();
+    }
+
+    /**
+     * Returns number of messages received from the peers.
+     *
+     * @return number of received messages
+     */
+    public long getReceivedMessages() {
+        return receivedMessages.sum();
+    }
+
+}
@@ -0,0 +1,35 @@
+package ziotbroker;
+
+/**
+ * Placeholder connection of persistent session recovered from the store.
+ * It represents the client in the index of subscribtions until the client
+ * connects - messages routed to it are kept by the session, nothing is ever
+ * sent by it.
+ *
+ * @author Jakub Svarc
+ */
+public final class DetachedClientService extends OutputClientService {
+
+    /**
+     * Policy of the placeholder, its queue is never used.
+     */
+    private static final OverflowPolicy PLACEHOLDER_POLICY = new OverflowPolicy(1, OverflowAction.DROP_NEWEST);
+
+    /**
+     * Builds placeholder connection of given session.
+     *
+     * @param session recovered persistent session
+     */
+    public DetachedClientService(Session session) {
+        super(WriteCoalescing.DEFAULT, PLACEHOLDER_POLICY);
+        this.disconnected = true;
+        setSession(session);
+    }
+
+    /**
+     * Placeholder has no connection to be closed.
+     */
+    @Override
+    protected void disconnect() {}
+
+}
@@ -0,0 +1,384 @@
+package ziotbroker;
+
+import ziotbroker.packet.Packet;
+import ziotbroker.packet.PacketType;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Binary representation of the packet ready to be written to the clients.
+ * It is immutable, so one instance can be queued for any number of clients
+ * (e.g. PUBLISH packet fanned out to all subscribers is encoded only once).
+ * Packet encoded into buffer of BufferPool is reference-counted - every
+ * client retains it when the packet is queued and releases it when the packet
+ * is written or dropped, so the buffer returns to the pool after the last
+ * subscriber. Retaining and releasing of other packets does nothing.
+ *
+ * @author Jakub Svarc
+ */
+public class EncodedPacket {
+
+    /**
+     * Type of the packet.
+     */
+    private final PacketType type;
+    /**
+     * Encoded packet (from 0 to its limit). It is never modified after
+     * the packet is built.
+     */
+    private final ByteBuffer content;
+    /**
+     * Pooled buffer containing the packet, <i>null</i> if the packet is not
+     * pooled.
+     */
+    private final PooledBuffer pooledBuffer;
+
+    /**
+     * Builds EncodedPacket from given bytes. The array must not be modified
+     * afterwards.
+     *
+     * @param type type of the packet
+     * @param binaryPacket encoded packet
+     */
+    public EncodedPacket(PacketType type, byte[] binaryPacket) {
+        this.type = type;
+        this.content = ByteBuffer.wrap(binaryPacket);
+        this.pooledBuffer = null;
+    }
+
+    /**
+     * Builds EncodedPacket by encoding given packet.
+     *
+     * @param packet packet to be encoded
+     */
+    public EncodedPacket(Packet packet) {
+        this(packet.getType(), PacketParser.parse(packet));
+    }
+
+    /**
+     * Builds EncodedPacket from pooled buffer. The packet takes over
+     * the reference of the buffer.
+     *
+     * @param type type of the packet
+     * @param pooledBuffer buffer containing the encoded packet (from 0 to its
+     * limit)
+     */
+    private EncodedPacket(PacketType type, PooledBuffer pooledBuffer) {
+        this.type = type;
+        this.content = pooledBuffer.getBuffer();
+        this.pooledBuffer = pooledBuffer;
+    }
+
+    /**
+     * Encodes <b>PUBLISH</b> packet directly from already encoded topic, without
+     * building its object representation. Packet with QoS 1 or 2 has packet
+     * identifier 0, it is replaced by {@link #withPacketIdentifier}.
+     *
+     * @param binaryTopic topic encoded as UTF-8
+     * @param payload the content of the message
+     * @param qualityOfService QoS of the packet (0, 1 or 2)
+     * @param retain value of the retain flag
+     * @return encoded <b>PUBLISH</b> packet
+     */
+    public static EncodedPacket encodePublish(byte[] binaryTopic, byte[] payload, byte qualityOfService, boolean retain) {
+        return encodePublish(binaryTopic, ByteBuffer.wrap(payload), 0, payload.length, qualityOfService, retain);
+    }
+
+    /**
+     * Encodes <b>PUBLISH</b> packet as {@link #encodePublish(byte[], byte[], byte, boolean)}
+     * does, but the payload is copied directly from given buffer (e.g. from
+     * the read buffer of the connection which received it).
+     *
+     * @param binaryTopic topic encoded as UTF-8
+     * @param payloadBuffer buffer containing the content of the message
+     * @param payloadOffset position of the payload in the buffer
+     * @param payloadLength length of the payload in bytes
+     * @param qualityOfService QoS of the packet (0, 1 or 2)
+     * @param retain value of the retain flag
+     * @return encoded <b>PUBLISH</b> packet
+     */
+    public static EncodedPacket encodePublish(byte[] binaryTopic, ByteBuffer payloadBuffer, int payloadOffset, int payloadLength, byte qualityOfService, boolean retain) {
+        int remainingLength = getPublishRemainingLength(binaryTopic.length, payloadLength, qualityOfService);
+        byte[] binaryPacket = new byte[1 + getRemainingLengthSize(remainingLength) + remainingLength];
+
+        encodePublish(ByteBuffer.wrap(binaryPacket), remainingLength, binaryTopic, payloadBuffer, payloadOffset, payloadLength, qualityOfService, retain);
+
+        return new EncodedPacket(PacketType.PUBLISH, binaryPacket);
+    }
+
+    /**
+     * Encodes <b>PUBLISH</b> packet as {@link #encodePublish(byte[], ByteBuffer, int, int, byte, boolean)}
+     * does, but into buffer acquired from given pool. The packet holds one
+     * reference of the buffer, it must be released by the caller when
+     * the packet is queued to all its clients.
+     *
+     * @param binaryTopic topic encoded as UTF-8
+     * @param payloadBuffer buffer containing the content of the message
+     * @param payloadOffset position of the payload in the buffer
+     * @param payloadLength length of the payload in bytes
+     * @param qualityOfService QoS of the packet (0, 1 or 2)
+     * @param retain value of the retain flag
+     * @param pool pool providing the buffer
+     * @return encoded <b>PUBLISH</b> packet
+     */
+    public static EncodedPacket encodePublish(byte[] binaryTopic, ByteBuffer payloadBuffer, int payloadOffset, int payloadLength, byte qualityOfService, boolean retain, BufferPool pool) {
+        int remainingLength = getPublishRemainingLength(binaryTopic.length, payloadLength, qualityOfService);
+        PooledBuffer pooledBuffer = pool.acquire(1 + getRemainingLengthSize(remainingLength) + remainingLength);
+
+        encodePublish(pooledBuffer.getBuffer(), remainingLength, binaryTopic, payloadBuffer, payloadOffset, payloadLength, qualityOfService, retain);
+
+        return new EncodedPacket(PacketType.PUBLISH, pooledBuffer);
+    }
+
+    /**
+     * Returns remaining length of encoded <b>PUBLISH</b> packet.
+     *
+     * @param topicLength length of the encoded topic in bytes
+     * @param payloadLength length of the payload in bytes
+     * @param qualityOfService QoS of the packet (0, 1 or 2)
+     * @return length of the packet after its fixed header in bytes
+     */
+    private static int getPublishRemainingLength(int topicLength, int payloadLength, byte qualityOfService) {
+        return 2 + topicLength + (qualityOfService > 0 ? 2 : 0) + payloadLength;
+    }
+
+    /**
+     * Returns number of bytes of encoded remaining length.
+     *
+     * @param remainingLength remaining length of the packet
+     * @return number of bytes of the remaining length field
+     */
+    private static int getRemainingLengthSize(int remainingLength) {
+        return remainingLength < 128 ? 1 : remainingLength < 16384 ? 2 : remainingLength < 2097152 ? 3 : 4;
+    }
+
+    /**
+     * Encodes <b>PUBLISH</b> packet to given buffer (from index 0).
+     *
+     * @param target buffer receiving the packet
+     * @param remainingLength remaining length of the packet
+     * @param binaryTopic topic encoded as UTF-8
+     * @param payloadBuffer buffer containing the content of the message
+     * @param payloadOffset position of the payload in the buffer
+     * @param payloadLength length of the payload in bytes
+     * @param qualityOfService QoS of the packet (0, 1 or 2)
+     * @param retain value of the retain flag
+     */
+    private static void encodePublish(ByteBuffer target, int remainingLength, byte[] binaryTopic, ByteBuffer payloadBuffer, int payloadOffset, int payloadLength, byte qualityOfService, boolean retain) {
+        /**
+         * Number of bytes of the remaining length field.
+         */
+        int remainingLengthSize = getRemainingLengthSize(remainingLength);
+        int cursor = 1 + remainingLengthSize;
+
+        target.put(0, (byte) (0b00110000 | (qualityOfService << 1) | (retain ? 0b00000001 : 0)));
+
+        for (int i = 1, lengthToEncode = remainingLength; i <= remainingLengthSize; i++, lengthToEncode >>>= 7) {
+            target.put(i, (byte) ((lengthToEncode & 127) | (i < remainingLengthSize ? 128 : 0)));
+        }
+
+        target.put(cursor++, (byte) (binaryTopic.length >> 8));
+        target.put(cursor++, (byte) binaryTopic.length);
+        target.put(cursor, binaryTopic);
+        cursor += binaryTopic.length;
+
+        if (qualityOfService > 0) {
+            target.put(cursor++, (byte) 0);
+            target.put(cursor++, (byte) 0);
+        }
+
+        target.put(cursor, payloadBuffer, payloadOffset, payloadLength);
+    }
+
+    /**
+     * Returns type of the packet.
+     *
+     * @return type of the packet
+     */
+    public PacketType getType() {
+        return type;
+    }
+
+    /**
+     * Returns length of the encoded packet.
+     *
+     * @return length of the encoded packet in bytes
+     */
+    public int getLength() {
+        return content.limit();
+    }
+
+    /**
+     * Returns QoS of PUBLISH packet.
+     *
+     * @return QoS of the packet (0 - 2), 0 for other packet types
+     */
+    public byte getQualityOfService() {
+        return type == PacketType.PUBLISH ? (byte) ((content.get(0) & 0b00000110) >> 1) : 0;
+    }
+
+    /**
+     * Indicates that the DUP flag of the packet is set (only PUBLISH packets
+     * can have it set).
+     *
+     * @return <i>true</i> if the packet is PUBLISH packet with DUP flag
+     */
+    public boolean isDuplicate() {
+        return type == PacketType.PUBLISH && (content.get(0) & 0b00001000) != 0;
+    }
+
+    /**
+     * Indicates that the packet is encoded in buffer of BufferPool.
+     *
+     * @return <i>true</i> if the packet is reference-counted
+     */
+    public boolean isPooled() {
+        return pooledBuffer != null;
+    }
+
+    /**
+     * Adds one owner of the pooled packet (it does nothing for other
+     * packets).
+     *
+     * @return the packet
+     */
+    public EncodedPacket retain() {
+        if (pooledBuffer != null) {
+            pooledBuffer.retain();
+        }
+
+        return this;
+    }
+
+    /**
+     * Removes one owner of the pooled packet, its buffer returns to the pool
+     * when the last owner releases it (it does nothing for other packets).
+     */
+    public void release() {
+        if (pooledBuffer != null) {
+            pooledBuffer.release();
+        }
+    }
+
+    /**
+     * Builds copy of the PUBLISH packet with the DUP flag set. It is used
+     * when the packet is redelivered.
+     *
+     * @return copy of the packet with the DUP flag set (never pooled)
+     */
+    public EncodedPacket asDuplicate() {
+        if (type != PacketType.PUBLISH) {
+            throw new IllegalStateException("Only PUBLISH packet can be duplicate");
+        }
+
+        byte[] duplicatePacket = toByteArray();
+
+        duplicatePacket[0] |= 0b00001000;
+
+        return new EncodedPacket(type, duplicatePacket);
+    }
+
+    /**
+     * Builds copy of the PUBLISH packet (with QoS 1 or 2) with given packet
+     * identifier. Only the identifier bytes are rewritten, so one encoded
+     * packet serves as template for all subscribers, each of which needs its
+     * own identifier.
+     *
+     * @param packetIdentifier packet identifier of the copy
+     * @return copy of the packet with given packet identifier (never pooled)
+     */
+    public EncodedPacket withPacketIdentifier(int packetIdentifier) {
+        if (type != PacketType.PUBLISH || (content.get(0) & 0b00000110) == 0) {
+            throw new IllegalStateException("Only PUBLISH packet with QoS 1 or 2 has packet identifier");
+        }
+
+        byte[] identifiedPacket = toByteArray();
+        /**
+         * Position of the topic length (after the control header byte and
+         * all bytes of the remaining length).
+         */
+        int topicLengthPosition = 1;
+
+        while ((identifiedPacket[topicLengthPosition++] & 128) != 0) {}
+
+        /**
+         * Position of the packet identifier (after the topic).
+         */
+        int packetIdentifierPosition = topicLengthPosition + 2 + (((identifiedPacket[topicLengthPosition] & 255) << 8) | (identifiedPacket[topicLengthPosition + 1] & 255));
+
+        identifiedPacket[packetIdentifierPosition] = (byte) (packetIdentifier >> 8);
+        identifiedPacket[packetIdentifierPosition + 1] = (byte) packetIdentifier;
+
+        return new EncodedPacket(type, identifiedPacket);
+    }
+
+    /**
+     * Copies the encoded packet to new array.
+     *
+     * @return copy of the encoded packet
+     */
+    private byte[] toByteArray() {
+        byte[] binaryPacket = new byte[content.limit()];
+
+        content.get(0, binaryPacket);
+
+        return binaryPacket;
+    }
+
+    /**
+     * Returns new read-only view of the encoded packet. Every caller gets its
+     * own position, so the views can be written independently.
+     *
+     * @return read-only view of the encoded packet
+     */
+    public ByteBuffer getBuffer() {
+        return content.asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes the encoded packet to given stream.
+     *
+     * @param out stream to which the packet is written
+     * @throws IOException thrown if writing fails
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        if (content.hasArray()) {
+            out.write(content.array(), content.arrayOffset(), content.limit());
+        } else {
+            writeTo(out, new byte[Math.min(content.limit(), 8192)]);
+        }
+    }
+
+    /**
+     * Writes the encoded packet to given stream. Pooled packet (in direct
+     * buffer) is copied to the stream through given array.
+     *
+     * @param out stream to which the packet is written
+     * @param transferBuffer array reused for copying of pooled packets
+     * @throws IOException thrown if writing fails
+     */
+    public void writeTo(OutputStream out, byte[] transferBuffer) throws IOException {
+        if (content.hasArray()) {
+            out.write(content.array(), content.arrayOffset(), content.limit());
+            return;
+        }
+
+        for (int position = 0, length; position < content.limit(); position += length) {
+            length = Math.min(transferBuffer.length, content.limit() - position);
+            content.get(position, transferBuffer, 0, length);
+            out.write(transferBuffer, 0, length);
+        }
+    }
+
+    /**
+     * Writes the encoded packet to given buffer.
+     *
+     * @param buffer buffer to which the packet is written (from its position)
+     */
+    public void writeTo(ByteBuffer buffer) {
+        buffer.put(buffer.position(), content, 0, content.limit());
+        buffer.position(buffer.position() + content.limit());
+    }
+
+}
@@ -0,0 +1,314 @@
+package ziotbroker;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Loop driving many non-blocking client connections by one thread. It waits
+ * on its selector until some of the connections are ready and then lets
+ * corresponding client services read or write.
+ *
+ * @author Jakub Svarc
+ */
+public class EventLoop implements Runnable {
+
+    /**
+     * Selector watching the connections of the loop.
+     */
+    private final Selector selector;
+    /**
+     * Service which processes incoming packets.
+     */
+    private final PacketProcessor packetProcessor;
+    /**
+     * Maximal size of incoming packet in bytes.
+     */
+    private final int maxPacketSize;
+    /**
+     * Settings of coalescing of queued packets into writes.
+     */
+    private final WriteCoalescing writeCoalescing;
+    /**
+     * Capacity of packet queues of the clients and action taken when they
+     * are full.
+     */
+    private final OverflowPolicy overflowPolicy;
+    /**
+     * Accepted connections waiting for registration to the selector.
+     */
+    private final ConcurrentLinkedQueue<SocketChannel> pendingChannels;
+    /**
+     * Client services which have queued packets waiting for sending.
+     */
+    private final ConcurrentLinkedQueue<ChannelClientService> pendingWrites;
+    /**
+     * Client services whose connections are to be closed.
+     */
+    private final ConcurrentLinkedQueue<ChannelClientService> pendingCloses;
+    /**
+     * Indicates that the loop was asked to finish.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Builds EventLoop.
+     *
+     * @param packetProcessor service which processes incoming packets
+     * @param maxPacketSize maximal size of incoming packet in bytes
+     * @param writeCoalescing settings of coalescing of queued packets 
+     * into writes
+     * @param overflowPolicy capacity of packet queues of the clients 
+     * and action taken when they are full
+     * @throws IOException thrown if selector cannot be opened
+     */
+    public EventLoop(PacketProcessor packetProcessor, int maxPacketSize, WriteCoalescing writeCoalescing, OverflowPolicy overflowPolicy) throws IOException {
+        this.selector = Selector.open();
+        this.packetProcessor = packetProcessor;
+        this.maxPacketSize = maxPacketSize;
+        this.writeCoalescing = writeCoalescing;
+        this.overflowPolicy = overflowPolicy;
+        this.pendingChannels = new ConcurrentLinkedQueue<>();
+        this.pendingWrites = new ConcurrentLinkedQueue<>();
+        this.pendingCloses = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Continuously waits for ready connections and serves them. When the loop
+     * is closed, all its connections are closed.
+     */
+    @Override
+    public void run() {
+        try {
+            while (!closed && !Thread.currentThread().isInterrupted()) {
+                selector.select();
+                registerPendingChannels();
+                writePendingPackets();
+                closePendingClients();
+
+                Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+
+                while (selectedKeys.hasNext()) {
+                    SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+
+                    // Client could be closed by pending writes or closes above
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    ChannelClientService client = (ChannelClientService) key.attachment();
+
+                    // Failure of one client must not stop the loop
+                    try {
+                        serve(client);
+                    } catch (RuntimeException ex) {
+                        BrokerLogger.log(LogLevel.ERROR, this.getClass(), "Serving of client failed: %s", ex.toString());
+
+                        if (key.isValid()) {
+                            client.close();
+                        }
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            BrokerLogger.log(LogLevel.ERROR, this.getClass(), ex.getMessage());
+        } finally {
+            closeAllClients();
+        }
+    }
+
+    /**
+     * Asks the loop to close all its connections and finish. It can be called 
+     * from any thread.
+     */
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    /**
+     * Hands accepted connection over to the loop. It can be called from any
+     * thread.
+     *
+     * @param clientChannel accepted connection to the client
+     */
+    public void register(SocketChannel clientChannel) {
+        pendingChannels.add(clientChannel);
+        selector.wakeup();
+    }
+
+    /**
+     * Asks the loop to send packets queued in given client service. It can
+     * be called from any thread.
+     *
+     * @param client client service with queued packets
+     */
+    public void requestWrite(ChannelClientService client) {
+        pendingWrites.add(client);
+        selector.wakeup();
+    }
+
+    /**
+     * Asks the loop to close connection of given client service. It can 
+     * be called from any thread.
+     *
+     * @param client client service to be closed
+     */
+    public void requestClose(ChannelClientService client) {
+        pendingCloses.add(client);
+        selector.wakeup();
+    }
+
+    /**
+     * Registers accepted connections to the selector and builds client
+     * services for them. Every client must send <b>CONNECT</b> within connect
+     * timeout of the packet processor.
+     */
+    private void registerPendingChannels() {
+        SocketChannel clientChannel;
+
+        while ((clientChannel = pendingChannels.poll()) != null) {
+            try {
+                clientChannel.configureBlocking(false);
+
+                SelectionKey key = clientChannel.register(selector, SelectionKey.OP_READ);
+                ChannelClientService client = new ChannelClientService(clientChannel, key, this, packetProcessor, maxPacketSize, writeCoalescing, overflowPolicy);
+
+                key.attach(client);
+                packetProcessor.processConnectionOpened(client);
+            } catch (ClosedChannelException ex) {
+                BrokerLogger.log(LogLevel.ERROR, this.getClass(), ex.getMessage());
+            } catch (IOException ex) {
+                BrokerLogger.log(LogLevel.ERROR, this.getClass(), ex.getMessage());
+
+                try {
+                    clientChannel.close();
+                } catch (IOException closeEx) {}
+            }
+        }
+    }
+
+    /**
+     * Sends packets of client services which asked for it.
+     */
+    private void writePendingPackets() {
+        ChannelClientService client;
+
+        while ((client = pendingWrites.poll()) != null) {
+            if (client.getSelectionKey().isValid()) {
+                write(client);
+            }
+        }
+    }
+
+    /**
+     * Closes connections of client services which asked for it.
+     */
+    private void closePendingClients() {
+        ChannelClientService client;
+
+        while ((client = pendingCloses.poll()) != null) {
+            if (client.getSelectionKey().isValid()) {
+                client.close();
+            }
+        }
+    }
+
+    /**
+     * Closes connections of all client services of the loop, connections 
+     * waiting for registration and the selector.
+     */
+    private void closeAllClients() {
+        SocketChannel clientChannel;
+
+        for (SelectionKey key : selector.keys()) {
+            if (key.isValid()) {
+                ((ChannelClientService) key.attachment()).close();
+            }
+        }
+
+        while ((clientChannel = pendingChannels.poll()) != null) {
+            try {
+                clientChannel.close();
+            } catch (IOException ex) {}
+        }
+
+        try {
+            selector.close();
+        } catch (IOException ex) {
+            BrokerLogger.log(LogLevel.ERROR, this.getClass(), ex.getMessage());
+        }
+    }
+
+    /**
+     * Lets given client service read or write according to readiness of its
+     * connection.
+     *
+     * @param client client service with ready connection
+     */
+    private void serve(ChannelClientService client) {
+        SelectionKey key = client.getSelectionKey();
+
+        try {
+            if (key.isReadable() && !client.read()) {
+                client.close();
+                return;
+            }
+        } catch (IOException ex) {
+            BrokerLogger.log(LogLevel.ERROR, this.getClass(), ex.getMessage());
+            client.close();
+            return;
+        } catch (MQTTException ex) {
+            handleException(client, ex);
+            return;
+        }
+
+        if (key.isValid() && key.isWritable()) {
+            write(client);
+        }
+    }
+
+    /**
+     * Sends queued packets of given client service. If the connection cannot
+     * accept all of them, the loop waits until it is writable again.
+     *
+     * @param client client service with queued packets
+     */
+    private void write(ChannelClientService client) {
+        SelectionKey key = client.getSelectionKey();
+
+        try {
+            if (client.flush()) {
+                key.interestOps(SelectionKey.OP_READ);
+            } else {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        } catch (IOException ex) {
+            BrokerLogger.log(LogLevel.ERROR, this.getClass(), ex.getMessage());
+            client.close();
+        }
+    }
+
+    /**
+     * Resolves protocol violation of given client service. The connection
+     * is closed and the broker is shut down if the violation is critical.
+     *
+     * @param client client service which violated the protocol
+     * @param ex exception describing the violation
+     */
+    private void handleException(ChannelClientService client, MQTTException ex) {
+        BrokerLogger.log(LogLevel.ERROR, this.getClass(), ex.getMessage());
+
+        if (ex.getLevel() == MQTTExceptionLevel.CRITICAL) {
+            System.exit(1);
+        }
+
+        client.close();
+    }
+
+}
@@ -0,0 +1,336 @@
+package ziotbroker;
+
+import ziotbroker.packet.Packet;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Incremental decoder splitting stream of bytes received from one client into
+ * packets. Received bytes are kept in one read buffer reused for the whole
+ * life of the connection - one read can contain any number of packets and
+ * one packet can be split among any number of reads. Complete packet is
+ * decoded into PacketView pointing into the buffer, so nothing is copied
+ * until the packet (or some of its fields) is materialized. The read buffer
+ * is borrowed from BufferPool and it must be returned by {@link #release}
+ * when the connection is closed.
+ *
+ * The decoder is not thread-safe, it must be used by one thread at a time.
+ *
+ * @author Jakub Svarc
+ */
+public class FrameDecoder {
+
+    /**
+     * Default maximal size of one packet (including fixed header) in bytes.
+     */
+    public static final int DEFAULT_MAX_PACKET_SIZE = 1024 * 1024;
+    /**
+     * Largest remaining length which can be encoded by MQTT 3.1.1.
+     */
+    private static final int MAX_REMAINING_LENGTH = 268435455;
+    /**
+     * Maximal size of fixed header (control header byte + 4 bytes
+     * of remaining length).
+     */
+    private static final int MAX_FIXED_HEADER_SIZE = 5;
+    /**
+     * Initial capacity of the read buffer, it is also capacity to which
+     * the buffer shrinks after large packet is processed.
+     */
+    private static final int INITIAL_BUFFER_CAPACITY = 8192;
+
+    /**
+     * Maximal size of one packet (including fixed header) in bytes.
+     */
+    private final int maxPacketSize;
+    /**
+     * Pool providing read buffers.
+     */
+    private final BufferPool bufferPool;
+    /**
+     * Pooled buffer containing received bytes, <i>null</i> after release.
+     */
+    private PooledBuffer pooledReadBuffer;
+    /**
+     * Buffer containing received bytes. Bytes from <i>frameStart</i>
+     * to position of the buffer were not decoded yet.
+     */
+    private ByteBuffer readBuffer;
+    /**
+     * Heap buffer into which the stream is read in blocking mode before
+     * the bytes are copied to the read buffer (built on the first read from
+     * a stream).
+     */
+    private byte[] streamBuffer;
+    /**
+     * Position of the first byte of the packet which was not decoded yet.
+     */
+    private int frameStart;
+    /**
+     * Size of the packet which was not received completely yet (0 if its
+     * size is not known).
+     */
+    private int pendingPacketSize;
+    /**
+     * View used by {@link #nextPacket()} (built lazily).
+     */
+    private PacketView packetView;
+
+    /**
+     * Builds FrameDecoder with read buffer from the shared buffer pool.
+     *
+     * @param maxPacketSize maximal size of one packet (including fixed header)
+     * in bytes, larger packets are rejected
+     */
+    public FrameDecoder(int maxPacketSize) {
+        this(maxPacketSize, BufferPool.DEFAULT);
+    }
+
+    /**
+     * Builds FrameDecoder.
+     *
+     * @param maxPacketSize maximal size of one packet (including fixed header)
+     * in bytes, larger packets are rejected
+     * @param bufferPool pool providing read buffers
+     */
+    public FrameDecoder(int maxPacketSize, BufferPool bufferPool) {
+        if (maxPacketSize < 2) {
+            throw new IllegalArgumentException("Maximal packet size must be at least 2 bytes");
+        }
+
+        this.maxPacketSize = maxPacketSize;
+        this.bufferPool = bufferPool;
+        this.pooledReadBuffer = acquireBuffer(getInitialCapacity());
+        this.readBuffer = pooledReadBuffer.getBuffer();
+        this.frameStart = 0;
+        this.pendingPacketSize = 0;
+    }
+
+    /**
+     * Reads available bytes from given channel to the read buffer.
+     *
+     * @param channel connection to the client
+     * @return number of read bytes, -1 if the client closed the connection
+     * @throws IOException thrown if reading from the connection fails
+     */
+    public int read(ReadableByteChannel channel) throws IOException {
+        prepareReadBuffer();
+
+        return channel.read(readBuffer);
+    }
+
+    /**
+     * Reads available bytes from given stream to the read buffer. It blocks
+     * until at least one byte is available. The stream is read into heap
+     * buffer reused for all reads and the bytes are copied to the read buffer
+     * (channel wrapping the stream would hold a monitor while blocked, which
+     * pins the carrier of virtual thread).
+     *
+     * @param in input stream of the connection to the client
+     * @return number of read bytes, -1 if the client closed the connection
+     * @throws IOException thrown if reading from the connection fails
+     */
+    public int read(InputStream in) throws IOException {
+        prepareReadBuffer();
+
+        if (streamBuffer == null) {
+            streamBuffer = new byte[getInitialCapacity()];
+        }
+
+        int readBytes = in.read(streamBuffer, 0, Math.min(streamBuffer.length, readBuffer.remaining()));
+
+        if (readBytes > 0) {
+            readBuffer.put(streamBuffer, 0, readBytes);
+        }
+
+        return readBytes;
+    }
+
+    /**
+     * Decodes next complete packet from the read buffer.
+     *
+     * @return decoded packet, <i>null</i> if the buffer does not contain
+     * complete packet
+     * @throws MQTTException thrown if received packet is malformed or larger
+     * than maximal packet size
+     */
+    public Packet nextPacket() throws MQTTException {
+        if (packetView == null) {
+            packetView = new PacketView();
+        }
+
+        if (!nextPacket(packetView)) {
+            return null;
+        }
+
+        return packetView.toPacket();
+    }
+
+    /**
+     * Decodes next complete packet from the read buffer into given view.
+     * Nothing is copied nor allocated, the view points into the read buffer
+     * and it is valid only until the next read.
+     *
+     * @param view view to which the packet is decoded
+     * @return <i>true</i> if the packet was decoded, <i>false</i> if the buffer
+     * does not contain complete packet
+     * @throws MQTTException thrown if received packet is malformed or larger
+     * than maximal packet size
+     */
+    public boolean nextPacket(PacketView view) throws MQTTException {
+        /**
+         * Position of currently decoded byte.
+         */
+        int cursor = frameStart + 1;
+        /**
+         * Decoded length of the rest of the packet.
+         */
+        int remainingLength = 0;
+        /**
+         * Supporting variables for decoding of remaining length.
+         */
+        int multiplier = 1, encodedByte;
+
+        do {
+            if (cursor >= readBuffer.position()) {
+                return false;
+            }
+
+            if (cursor - frameStart >= MAX_FIXED_HEADER_SIZE) {
+                throw new MQTTException(MQTTExceptionLevel.ERROR, "Malformed remaining length field");
+            }
+
+            encodedByte = readBuffer.get(cursor++);
+            remainingLength += (encodedByte & 127) * multiplier;
+            multiplier *= 128;
+        } while ((encodedByte & 128) != 0);
+
+        /**
+         * Size of the whole packet including fixed header.
+         */
+        int packetSize = cursor - frameStart + remainingLength;
+
+        if (remainingLength > MAX_REMAINING_LENGTH || packetSize > maxPacketSize) {
+            throw new MQTTException(MQTTExceptionLevel.ERROR, "Packet size " + packetSize + " exceeds maximal packet size " + maxPacketSize);
+        }
+
+        if (readBuffer.position() - cursor < remainingLength) {
+            pendingPacketSize = packetSize;
+            return false;
+        }
+
+        /**
+         * Control header byte (first in the packet).
+         */
+        byte controlHeader = readBuffer.get(frameStart);
+
+        frameStart = cursor + remainingLength;
+        pendingPacketSize = 0;
+
+        view.wrap(readBuffer, controlHeader, cursor, remainingLength);
+
+        return true;
+    }
+
+    /**
+     * Makes room for next read. Decoded bytes are discarded, undecoded bytes
+     * are moved to the beginning of the buffer and the buffer grows only
+     * if the pending packet does not fit into it.
+     */
+    private void prepareReadBuffer() {
+        /**
+         * Number of received bytes which were not decoded yet.
+         */
+        int undecodedBytes = readBuffer.position() - frameStart;
+
+        if (undecodedBytes == 0) {
+            if (readBuffer.capacity() > INITIAL_BUFFER_CAPACITY) {
+                pooledReadBuffer.release();
+                pooledReadBuffer = acquireBuffer(getInitialCapacity());
+                readBuffer = pooledReadBuffer.getBuffer();
+            } else {
+                readBuffer.clear();
+            }
+
+            frameStart = 0;
+            return;
+        }
+
+        /**
+         * Capacity needed for the pending packet (or at least for its fixed
+         * header if its size is not known yet).
+         */
+        int requiredCapacity = Math.max(Math.max(pendingPacketSize, MAX_FIXED_HEADER_SIZE), undecodedBytes + 1);
+
+        if (readBuffer.hasRemaining() && frameStart + requiredCapacity <= readBuffer.capacity()) {
+            return;
+        }
+
+        readBuffer.limit(readBuffer.position());
+        readBuffer.position(frameStart);
+
+        if (requiredCapacity > readBuffer.capacity()) {
+            replaceReadBuffer(requiredCapacity);
+        } else {
+            readBuffer.compact();
+        }
+
+        frameStart = 0;
+    }
+
+    /**
+     * Replaces the read buffer by buffer of given capacity. Undecoded bytes
+     * (from position to limit of the current buffer) are moved to the new
+     * buffer and the current buffer returns to the pool.
+     *
+     * @param capacity required capacity of the new buffer
+     */
+    private void replaceReadBuffer(int capacity) {
+        PooledBuffer newBuffer = acquireBuffer(capacity);
+
+        newBuffer.getBuffer().put(readBuffer);
+        pooledReadBuffer.release();
+        pooledReadBuffer = newBuffer;
+        readBuffer = newBuffer.getBuffer();
+    }
+
+    /**
+     * Acquires buffer from the pool and makes its whole capacity available
+     * for reading.
+     *
+     * @param capacity required capacity of the buffer
+     * @return empty buffer
+     */
+    private PooledBuffer acquireBuffer(int capacity) {
+        PooledBuffer buffer = bufferPool.acquire(capacity);
+
+        buffer.getBuffer().clear();
+
+        return buffer;
+    }
+
+    /**
+     * Returns initial capacity of the read buffer. It is never smaller than
+     * fixed header and never larger than needed for maximal packet.
+     *
+     * @return initial capacity in bytes
+     */
+    private int getInitialCapacity() {
+        return Math.max(MAX_FIXED_HEADER_SIZE, Math.min(INITIAL_BUFFER_CAPACITY, maxPacketSize));
+    }
+
+    /**
+     * Returns the read buffer to the pool. It is called when the connection
+     * is closed, the decoder must not be used afterwards.
+     */
+    public void release() {
+        if (pooledReadBuffer != null) {
+            pooledReadBuffer.release();
+            pooledReadBuffer = null;
+            readBuffer = null;
+        }
+    }
+
+}
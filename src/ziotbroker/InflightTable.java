@@ -0,0 +1,377 @@
+package ziotbroker;
+
+import java.util.ArrayList;
+
+/**
+ * Messages sent to one client which were not acknowledged yet, indexed
+ * by packet identifier, together with phase of their acknowledgement flow.
+ * It is open addressing hash table with primitive keys - packet identifiers
+ * are stored in <i>char</i> array (unsigned 16 bits like the identifiers,
+ * 0 marks empty slot) and phases in <i>byte</i> array, so no key or entry
+ * object is allocated per message and a phase change only rewrites the slot.
+ * Identifiers are allocated sequentially, so they fall into consecutive
+ * slots.
+ *
+ * The table is not thread-safe, its owner must synchronize access to it.
+ *
+ * @author Jakub Svarc
+ */
+public class InflightTable {
+
+    /**
+     * Consumer of entries of the table.
+     */
+    public interface EntryConsumer {
+
+        /**
+         * Accepts one entry of the table.
+         *
+         * @param packetIdentifier packet identifier of the entry
+         * @param packet encoded packet of the entry
+         * @param phase phase of the entry
+         */
+        void accept(int packetIdentifier, EncodedPacket packet, byte phase);
+
+    }
+
+    /**
+     * Largest packet identifier (identifiers are 1 - 65535).
+     */
+    public static final int MAX_PACKET_IDENTIFIER = 65535;
+    /**
+     * Phase of identifier which is not in the table.
+     */
+    public static final byte NO_PHASE = 0;
+    /**
+     * Phase of QoS 1 message - PUBLISH was sent, PUBACK is expected.
+     */
+    public static final byte AWAITING_PUBACK = 1;
+    /**
+     * Phase of QoS 2 message - PUBLISH was sent, PUBREC is expected.
+     */
+    public static final byte AWAITING_PUBREC = 2;
+    /**
+     * Phase of QoS 2 message - PUBREL was sent, PUBCOMP is expected.
+     */
+    public static final byte AWAITING_PUBCOMP = 3;
+    /**
+     * Send time of entry which was not sent yet (it was added while its
+     * client was not connected).
+     */
+    public static final long NOT_SENT = Long.MIN_VALUE;
+    /**
+     * Initial number of slots of the table (must be power of two).
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Packet identifiers of the entries (0 for empty slot).
+     */
+    private char[] packetIdentifiers;
+    /**
+     * Encoded packets of the entries.
+     */
+    private EncodedPacket[] packets;
+    /**
+     * Times (System.nanoTime) of the last sending of the entries.
+     */
+    private long[] sendTimes;
+    /**
+     * Phases of the entries.
+     */
+    private byte[] phases;
+    /**
+     * Number of entries in the table.
+     */
+    private int size;
+    /**
+     * Packet identifier which is tried first by the next allocation.
+     */
+    private int nextPacketIdentifier;
+
+    /**
+     * Builds empty InflightTable.
+     */
+    public InflightTable() {
+        this.packetIdentifiers = new char[INITIAL_CAPACITY];
+        this.packets = new EncodedPacket[INITIAL_CAPACITY];
+        this.sendTimes = new long[INITIAL_CAPACITY];
+        this.phases = new byte[INITIAL_CAPACITY];
+        this.size = 0;
+        this.nextPacketIdentifier = 1;
+    }
+
+    /**
+     * Returns packet identifier which is not used by any entry. Identifiers
+     * are allocated in turns, so released identifier is not reused until all
+     * others were used.
+     *
+     * @return free packet identifier, 0 if all identifiers are used
+     */
+    public int allocatePacketIdentifier() {
+        if (size == MAX_PACKET_IDENTIFIER) {
+            return 0;
+        }
+
+        /**
+         * Candidate packet identifier.
+         */
+        int packetIdentifier = nextPacketIdentifier;
+
+        while (indexOf(packetIdentifier) >= 0) {
+            packetIdentifier = packetIdentifier % MAX_PACKET_IDENTIFIER + 1;
+        }
+
+        nextPacketIdentifier = packetIdentifier % MAX_PACKET_IDENTIFIER + 1;
+
+        return packetIdentifier;
+    }
+
+    /**
+     * Adds entry to the table or replaces entry with the same identifier.
+     *
+     * @param packetIdentifier packet identifier of the entry (1 - 65535)
+     * @param packet encoded packet of the entry
+     * @param sendTime time (System.nanoTime) of sending of the packet,
+     * NOT_SENT if it was not sent yet
+     * @param phase phase of the entry
+     */
+    public void put(int packetIdentifier, EncodedPacket packet, long sendTime, byte phase) {
+        /**
+         * Index of the entry or of the empty slot where it belongs.
+         */
+        int index = slotOf(packetIdentifier);
+
+        if (packetIdentifiers[index] == 0) {
+            if (2 * (size + 1) > packetIdentifiers.length) {
+                grow();
+                index = slotOf(packetIdentifier);
+            }
+
+            packetIdentifiers[index] = (char) packetIdentifier;
+            size++;
+        }
+
+        packets[index] = packet;
+        sendTimes[index] = sendTime;
+        phases[index] = phase;
+    }
+
+    /**
+     * Returns packet of the entry with given identifier.
+     *
+     * @param packetIdentifier packet identifier of the entry
+     * @return encoded packet of the entry, <i>null</i> if there is no such
+     * entry
+     */
+    public EncodedPacket get(int packetIdentifier) {
+        /**
+         * Index of the entry.
+         */
+        int index = indexOf(packetIdentifier);
+
+        return index < 0 ? null : packets[index];
+    }
+
+    /**
+     * Returns phase of the entry with given identifier.
+     *
+     * @param packetIdentifier packet identifier of the entry
+     * @return phase of the entry, NO_PHASE if there is no such entry
+     */
+    public byte getPhase(int packetIdentifier) {
+        /**
+         * Index of the entry.
+         */
+        int index = indexOf(packetIdentifier);
+
+        return index < 0 ? NO_PHASE : phases[index];
+    }
+
+    /**
+     * Removes entry with given identifier. Following entries of the probe
+     * sequence are shifted back, so no deleted markers are left behind.
+     *
+     * @param packetIdentifier packet identifier of the entry
+     * @return encoded packet of removed entry, <i>null</i> if there is no such
+     * entry
+     */
+    public EncodedPacket remove(int packetIdentifier) {
+        /**
+         * Index of the removed entry.
+         */
+        int index = indexOf(packetIdentifier);
+
+        if (index < 0) {
+            return null;
+        }
+
+        EncodedPacket removedPacket = packets[index];
+        int mask = packetIdentifiers.length - 1;
+        int emptyIndex = index;
+
+        for (int i = (index + 1) & mask; packetIdentifiers[i] != 0; i = (i + 1) & mask) {
+            /**
+             * Slot where the entry would be without collisions.
+             */
+            int homeIndex = packetIdentifiers[i] & mask;
+
+            if (((i - homeIndex) & mask) >= ((i - emptyIndex) & mask)) {
+                packetIdentifiers[emptyIndex] = packetIdentifiers[i];
+                packets[emptyIndex] = packets[i];
+                sendTimes[emptyIndex] = sendTimes[i];
+                phases[emptyIndex] = phases[i];
+                emptyIndex = i;
+            }
+        }
+
+        packetIdentifiers[emptyIndex] = 0;
+        packets[emptyIndex] = null;
+        phases[emptyIndex] = NO_PHASE;
+        size--;
+
+        return removedPacket;
+    }
+
+    /**
+     * Marks all entries sent before given time (and entries which were not
+     * sent yet) as resent - PUBLISH packets which were sent already are
+     * replaced by duplicates (DUP flag set) and all packets are added to given
+     * list.
+     *
+     * @param sentBefore entries sent before this time are resent
+     * @param now time (System.nanoTime) of the resending
+     * @param resentPackets list to which packets to be resent are added
+     */
+    public void resendExpired(long sentBefore, long now, ArrayList<EncodedPacket> resentPackets) {
+        for (int i = 0; i < packetIdentifiers.length; i++) {
+            if (packetIdentifiers[i] != 0 && (sendTimes[i] == NOT_SENT || sendTimes[i] - sentBefore < 0)) {
+                resend(i, now, resentPackets);
+            }
+        }
+    }
+
+    /**
+     * Marks all entries as resent, it is used when the client reconnects.
+     *
+     * @param now time (System.nanoTime) of the resending
+     * @param resentPackets list to which packets to be resent are added
+     */
+    public void resendAll(long now, ArrayList<EncodedPacket> resentPackets) {
+        for (int i = 0; i < packetIdentifiers.length; i++) {
+            if (packetIdentifiers[i] != 0) {
+                resend(i, now, resentPackets);
+            }
+        }
+    }
+
+    /**
+     * Passes all entries to given consumer.
+     *
+     * @param consumer consumer of the entries
+     */
+    public void forEach(EntryConsumer consumer) {
+        for (int i = 0; i < packetIdentifiers.length; i++) {
+            if (packetIdentifiers[i] != 0) {
+                consumer.accept(packetIdentifiers[i], packets[i], phases[i]);
+            }
+        }
+    }
+
+    /**
+     * Marks entry at given index as resent.
+     *
+     * @param index index of the entry
+     * @param now time (System.nanoTime) of the resending
+     * @param resentPackets list to which the packet is added
+     */
+    private void resend(int index, long now, ArrayList<EncodedPacket> resentPackets) {
+        if (sendTimes[index] != NOT_SENT && phases[index] != AWAITING_PUBCOMP && !packets[index].isDuplicate()) {
+            packets[index] = packets[index].asDuplicate();
+        }
+
+        sendTimes[index] = now;
+        resentPackets.add(packets[index]);
+    }
+
+    /**
+     * Returns number of entries in the table.
+     *
+     * @return number of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Indicates that the table has no entries.
+     *
+     * @return <i>true</i> if the table is empty
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns index of the entry with given identifier.
+     *
+     * @param packetIdentifier packet identifier of the entry
+     * @return index of the entry, -1 if there is no such entry
+     */
+    private int indexOf(int packetIdentifier) {
+        /**
+         * Index of the entry or of the empty slot where it belongs.
+         */
+        int index = slotOf(packetIdentifier);
+
+        return packetIdentifiers[index] == 0 ? -1 : index;
+    }
+
+    /**
+     * Returns index of the entry with given identifier or of the empty slot
+     * where such entry belongs.
+     *
+     * @param packetIdentifier packet identifier of the entry
+     * @return index of the slot
+     */
+    private int slotOf(int packetIdentifier) {
+        int mask = packetIdentifiers.length - 1;
+        int index = packetIdentifier & mask;
+
+        while (packetIdentifiers[index] != 0 && packetIdentifiers[index] != packetIdentifier) {
+            index = (index + 1) & mask;
+        }
+
+        return index;
+    }
+
+    /**
+     * Doubles the number of slots and moves all entries to new arrays.
+     */
+    private void grow() {
+        char[] oldPacketIdentifiers = packetIdentifiers;
+        EncodedPacket[] oldPackets = packets;
+        long[] oldSendTimes = sendTimes;
+        byte[] oldPhases = phases;
+
+        packetIdentifiers = new char[oldPacketIdentifiers.length * 2];
+        packets = new EncodedPacket[oldPacketIdentifiers.length * 2];
+        sendTimes = new long[oldPacketIdentifiers.length * 2];
+        phases = new byte[oldPacketIdentifiers.length * 2];
+
+        for (int i = 0; i < oldPacketIdentifiers.length; i++) {
+            if (oldPacketIdentifiers[i] != 0) {
+                /**
+                 * Index of the entry in new arrays.
+                 */
+                int index = slotOf(oldPacketIdentifiers[i]);
+
+                packetIdentifiers[index] = oldPacketIdentifiers[i];
+                packets[index] = oldPackets[i];
+                sendTimes[index] = oldSendTimes[i];
+                phases[index] = oldPhases[i];
+            }
+        }
+    }
+
+}
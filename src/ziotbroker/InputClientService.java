@@ -1,10 +1,8 @@
 package ziotbroker;
 
-import ziotbroker.packet.Packet;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.Socket;
-import java.util.ArrayList;
         
 /**
  * Service accepting packets from corespondig client and pushing them 
@@ -26,23 +24,37 @@ public class InputClientService implements Runnable {
      * Output service of corresponding client.
      */
     private final OutputClientService outputClient;
+    /**
+     * Decoder splitting received bytes into packets.
+     */
+    private final FrameDecoder frameDecoder;
+    /**
+     * Reusable view of decoded packets (valid until the next read).
+     */
+    private final PacketView packetView;
     
     /**
-     * Builds InputClientService.
+     * Builds InputClientService. The client must send <b>CONNECT</b> within 
+     * connect timeout of the packet processor.
      * 
      * @param clientSocket connection to the client
      * @param packetProcessor service which processes given packets
      * @param outputClient output service of corresponding client
+     * @param maxPacketSize maximal size of incoming packet in bytes
      */
-    public InputClientService(Socket clientSocket, PacketProcessor packetProcessor, OutputClientService outputClient) {
+    public InputClientService(Socket clientSocket, PacketProcessor packetProcessor, OutputClientService outputClient, int maxPacketSize) {
         this.clientSocket = clientSocket;
         this.packetProcessor = packetProcessor;
         this.outputClient = outputClient;
+        this.frameDecoder = new FrameDecoder(maxPacketSize, packetProcessor.getBufferPool());
+        this.packetView = new PacketView();
+        packetProcessor.processConnectionOpened(outputClient);
     }
 
     /**
      * Continuously listens on the connection, awaits incoming packets and gives
-     * them to further processing.
+     * them to further processing. When the connection ends, the output service 
+     * is stopped as well.
      */
     @Override
     public void run() {
@@ -50,85 +62,35 @@ public class InputClientService implements Runnable {
             InputStream in = clientSocket.getInputStream();
         ) {
             /**
-             * Control header byte (first in the packet).
-             */
-            byte controlHeader;
-            /**
-             * Bytes containing encoded value of the length of the rest 
-             * of the packet.
-             */
-            ArrayList<Integer> packetLengthHeader;
-            /**
-             * Decoded length of the rest of the packet.
+             * Number of bytes read from the connection.
              */
-            int remainingLength;
-            /**
-             * Bytes containing encoded packet type specific headers 
-             * and payload.
-             */
-            byte[] variableHeader;
-            /**
-             * Object representation of the packet, built from received data.
-             */
-            Packet packet;
+            int readBytes;
             
-            while ((controlHeader = (byte) in.read()) != -1) {
-                packetLengthHeader = new ArrayList<>();
+            while ((readBytes = frameDecoder.read(in)) != -1) {
+                packetProcessor.getStatistics().bytesReceived(readBytes);
+                outputClient.recordActivity();
                 
-                do {
-                    packetLengthHeader.add(in.read());
-                } while (packetLengthHeader.get(packetLengthHeader.size() - 1) > 127);
-                
-                remainingLength = PacketParser.getPacketRemainingLength(packetLengthHeader);
-                variableHeader = new byte[remainingLength];
-                in.read(variableHeader);
-                
-                packet = PacketParser.parse(controlHeader, remainingLength, variableHeader);
-                System.out.printf("%s - Accepted %s packet\n", this.getClass().getName(), packet.getType());
-                
-                switch(packet.getType()) {
-                    case CONNECT: {
-                        packetProcessor.processConnect(packet);
-                        break;
-                    } case PUBLISH: {
-                        packetProcessor.processPublish(packet);
-                        break;
-                    } case PUBACK: {
-                        packetProcessor.processPuback(packet);
-                        break;
-                    } case PUBREC: {
-                        packetProcessor.processPubrec(packet);
-                        break;
-                    } case PUBREL: {
-                        packetProcessor.processPubrel(packet);
-                        break;
-                    } case PUBCOMP: {
-                        packetProcessor.processPubcomp(packet);
-                        break;
-                    } case SUBSCRIBE: {
-                        packetProcessor.processSubscribe(packet, outputClient);
-                        break;
-                    } case UNSUBSCRIBE: {
-                        packetProcessor.processUnsubscribe(packet);
-                        break;
-                    } case PINGREQ: {
-                        packetProcessor.processPingreq(packet);
-                        break;
-                    } case DISCONNECT: {
-                        packetProcessor.processDisconnect(packet);
-                        break;
-                    } default:
-                        throw new MQTTException(MQTTExceptionLevel.ERROR, "Unexpected packet type!");
+                while (frameDecoder.nextPacket(packetView)) {
+                    if (BrokerLogger.isEnabled(LogLevel.DEBUG)) {
+                        BrokerLogger.logClient(LogLevel.DEBUG, this.getClass(), outputClient.getClientID(), packetView.getType(), "Accepted packet");
+                    }
+
+                    packetProcessor.process(packetView, outputClient);
                 }
             }
         } catch (IOException ex) {
-            System.err.printf("%s - %s\n", this.getClass().getName(), ex.getMessage());
+            // Failure of disconnected client is expected
+            BrokerLogger.log(outputClient.isDisconnected() ? LogLevel.DEBUG : LogLevel.ERROR, this.getClass(), ex.getMessage());
         } catch (MQTTException ex) {
-            System.err.printf("%s - %s\n", this.getClass().getName(), ex.getMessage());
+            BrokerLogger.log(LogLevel.ERROR, this.getClass(), ex.getMessage());
             
             if (ex.getLevel() == MQTTExceptionLevel.CRITICAL) {
                 System.exit(1);
             }
+        } finally {
+            outputClient.disconnect();
+            frameDecoder.release();
+            packetProcessor.processConnectionLost(outputClient);
         }
     }
 
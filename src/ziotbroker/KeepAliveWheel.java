@@ -0,0 +1,356 @@
+package ziotbroker;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timing wheel disconnecting clients which did not send anything within
+ * one and a half of their keep-alive interval. All connections share one wheel
+ * driven by one periodic task - connection has no timer of its own, it only
+ * sits in the bucket of its deadline. Receiving data from the client is one
+ * write of the current tick to its timeout, the timeout is moved to the bucket
+ * of its new deadline only when its old bucket comes. A tick therefore visits
+ * only connections whose deadlines fall into it.
+ *
+ * The same wheel watches new connections which did not send <b>CONNECT</b>
+ * yet - their deadline is fixed, data received from them do not move it.
+ *
+ * Buckets are touched only by the wheel thread, new timeouts are passed
+ * to it through a lock-free queue. Timeout which is replaced (or cancelled)
+ * is only marked, the wheel drops it when its bucket comes.
+ *
+ * @author Jakub Svarc
+ */
+public class KeepAliveWheel {
+
+    /**
+     * Default duration of one tick.
+     */
+    public static final long DEFAULT_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    /**
+     * Default number of buckets of the wheel.
+     */
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+    /**
+     * Default time within which new connection must send <b>CONNECT</b>.
+     */
+    public static final long DEFAULT_CONNECT_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(3);
+
+    /**
+     * Keep-alive timeout of one connection.
+     */
+    public static class Timeout {
+
+        /**
+         * Output service of the watched client.
+         */
+        private final OutputClientService client;
+        /**
+         * Number of ticks without activity after which the client
+         * is disconnected.
+         */
+        private final long timeoutTicks;
+        /**
+         * Indicates that activity of the client moves the deadline (it is
+         * fixed for connect deadline).
+         */
+        private final boolean extendable;
+        /**
+         * Wheel to which the timeout belongs.
+         */
+        private final KeepAliveWheel wheel;
+        /**
+         * Tick of the last activity of the client.
+         */
+        private volatile long lastActivityTick;
+        /**
+         * Indicates that the timeout was cancelled, so the wheel drops it.
+         */
+        private volatile boolean cancelled;
+        /**
+         * Tick of the bucket in which the timeout is placed (used only by the
+         * wheel thread).
+         */
+        private long scheduledTick;
+        /**
+         * Next timeout of the same bucket (used only by the wheel thread).
+         */
+        private Timeout next;
+
+        /**
+         * Builds Timeout.
+         *
+         * @param client output service of the watched client
+         * @param timeoutTicks number of ticks without activity after which
+         * the client is disconnected
+         * @param extendable indicates that activity of the client moves
+         * the deadline
+         * @param wheel wheel to which the timeout belongs
+         */
+        private Timeout(OutputClientService client, long timeoutTicks, boolean extendable, KeepAliveWheel wheel) {
+            this.client = client;
+            this.timeoutTicks = timeoutTicks;
+            this.extendable = extendable;
+            this.wheel = wheel;
+            this.lastActivityTick = wheel.currentTick;
+            this.cancelled = false;
+        }
+
+        /**
+         * Records activity of the client - its deadline moves to one timeout
+         * from the current tick (fixed deadline does not move).
+         */
+        public void touch() {
+            if (extendable) {
+                lastActivityTick = wheel.currentTick;
+            }
+        }
+
+        /**
+         * Stops watching of the client, it is used when the timeout
+         * is replaced.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * Returns tick after which the client is disconnected.
+         *
+         * @return deadline tick
+         */
+        private long getDeadlineTick() {
+            return lastActivityTick + timeoutTicks;
+        }
+
+    }
+
+    /**
+     * Duration of one tick in nanoseconds.
+     */
+    private final long tickNanos;
+    /**
+     * Mask of bucket index (number of buckets is power of two).
+     */
+    private final int mask;
+    /**
+     * First timeouts of linked lists of the buckets.
+     */
+    private final Timeout[] buckets;
+    /**
+     * Timeouts registered since the last tick.
+     */
+    private final ConcurrentLinkedQueue<Timeout> pendingTimeouts;
+    /**
+     * Time (System.nanoTime) of tick 0.
+     */
+    private final long startTime;
+    /**
+     * Executor running the ticks.
+     */
+    private final ScheduledExecutorService executor;
+    /**
+     * The last processed tick.
+     */
+    private volatile long currentTick;
+    /**
+     * Number of watched connections (changed only by the wheel thread).
+     */
+    private volatile int size;
+
+    /**
+     * Builds KeepAliveWheel with default tick and number of buckets.
+     */
+    public KeepAliveWheel() {
+        this(DEFAULT_TICK_NANOS, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * Builds KeepAliveWheel and starts its periodic task.
+     *
+     * @param tickNanos duration of one tick (precision of the timeouts)
+     * @param wheelSize number of buckets (rounded up to power of two), timeout
+     * longer than one turn of the wheel waits for more turns
+     */
+    public KeepAliveWheel(long tickNanos, int wheelSize) {
+        if (tickNanos <= 0 || wheelSize < 1) {
+            throw new IllegalArgumentException("Tick and wheel size must be positive");
+        }
+
+        /**
+         * Number of buckets rounded up to power of two.
+         */
+        int bucketCount = Integer.highestOneBit(wheelSize) == wheelSize ? wheelSize : Integer.highestOneBit(wheelSize) << 1;
+
+        this.tickNanos = tickNanos;
+        this.mask = bucketCount - 1;
+        this.buckets = new Timeout[bucketCount];
+        this.pendingTimeouts = new ConcurrentLinkedQueue<>();
+        this.startTime = System.nanoTime();
+        this.currentTick = 0;
+        this.size = 0;
+        this.executor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "KeepAliveWheel");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.scheduleAtFixedRate(this::advance, tickNanos, tickNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Starts watching given client. The client is disconnected if it sends
+     * nothing for one and a half of its keep-alive interval. Watching ends
+     * when the client is disconnected.
+     *
+     * @param client output service of the client
+     * @param keepAliveSeconds keep-alive interval of the client in seconds
+     * (0 turns keep-alive off)
+     * @return timeout of the client, <i>null</i> if keep-alive is off
+     */
+    public Timeout register(OutputClientService client, int keepAliveSeconds) {
+        if (keepAliveSeconds <= 0) {
+            return null;
+        }
+
+        /**
+         * Timeout rounded up to whole ticks, with one more tick because
+         * activity is stamped by the last processed tick (up to one tick
+         * in the past), so the client is never disconnected early.
+         */
+        long timeoutTicks = (TimeUnit.SECONDS.toNanos(keepAliveSeconds) * 3 / 2 + tickNanos - 1) / tickNanos + 1;
+        Timeout timeout = new Timeout(client, timeoutTicks, true, this);
+
+        pendingTimeouts.offer(timeout);
+
+        return timeout;
+    }
+
+    /**
+     * Starts watching new connection which did not send <b>CONNECT</b> yet.
+     * The client is disconnected when given time passes, no matter what
+     * it sends - the deadline is replaced by keep-alive timeout when
+     * the client connects.
+     *
+     * @param client output service of the client
+     * @param connectTimeoutNanos time within which the client must connect
+     * @return connect deadline of the client
+     */
+    public Timeout registerConnectDeadline(OutputClientService client, long connectTimeoutNanos) {
+        /**
+         * Deadline rounded up to whole ticks, with one more tick like
+         * keep-alive timeout.
+         */
+        long timeoutTicks = (connectTimeoutNanos + tickNanos - 1) / tickNanos + 1;
+        Timeout timeout = new Timeout(client, timeoutTicks, false, this);
+
+        pendingTimeouts.offer(timeout);
+
+        return timeout;
+    }
+
+    /**
+     * Processes all ticks up to the current time. Every tick visits one
+     * bucket - timeouts of touched clients move to buckets of their new
+     * deadlines, clients whose deadlines passed are disconnected.
+     */
+    private void advance() {
+        try {
+            /**
+             * The last tick which already began.
+             */
+            long targetTick = (System.nanoTime() - startTime) / tickNanos;
+            Timeout timeout;
+
+            while ((timeout = pendingTimeouts.poll()) != null) {
+                schedule(timeout, Math.max(timeout.getDeadlineTick(), currentTick + 1));
+                size++;
+            }
+
+            for (long tick = currentTick + 1; tick <= targetTick; tick++) {
+                currentTick = tick;
+                expire(tick);
+            }
+        } catch (RuntimeException ex) {
+            BrokerLogger.log(LogLevel.ERROR, this.getClass(), ex.getMessage());
+        }
+    }
+
+    /**
+     * Visits bucket of given tick.
+     *
+     * @param tick processed tick
+     */
+    private void expire(long tick) {
+        int index = (int) (tick & mask);
+        /**
+         * Detached list of the bucket, every timeout is placed again
+         * or dropped.
+         */
+        Timeout timeout = buckets[index];
+
+        buckets[index] = null;
+
+        while (timeout != null) {
+            Timeout next = timeout.next;
+
+            timeout.next = null;
+
+            if (timeout.scheduledTick > tick) {
+                // Timeout of later turn of the wheel stays in the bucket
+                schedule(timeout, timeout.scheduledTick);
+            } else if (timeout.cancelled || timeout.client.isDisconnected()) {
+                size--;
+            } else if (timeout.getDeadlineTick() > tick) {
+                schedule(timeout, timeout.getDeadlineTick());
+            } else {
+                size--;
+                BrokerLogger.logClient(LogLevel.WARNING, this.getClass(), timeout.client.getClientID(), null, timeout.extendable ? "Keep-alive expired, disconnecting client" : "CONNECT not received in time, disconnecting client");
+                timeout.client.disconnect();
+            }
+
+            timeout = next;
+        }
+    }
+
+    /**
+     * Places timeout to the bucket of given tick.
+     *
+     * @param timeout timeout to be placed
+     * @param tick tick at which the timeout is checked
+     */
+    private void schedule(Timeout timeout, long tick) {
+        int index = (int) (tick & mask);
+
+        timeout.scheduledTick = tick;
+        timeout.next = buckets[index];
+        buckets[index] = timeout;
+    }
+
+    /**
+     * Returns number of watched connections.
+     *
+     * @return number of watched connections
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns duration of one tick.
+     *
+     * @return duration of one tick in nanoseconds
+     */
+    public long getTickNanos() {
+        return tickNanos;
+    }
+
+    /**
+     * Stops the ticks, no client is disconnected afterwards.
+     */
+    public void close() {
+        executor.shutdownNow();
+    }
+
+}
@@ -0,0 +1,125 @@
+package ziotbroker;
+
+import ziotbroker.packet.PacketType;
+
+/**
+ * Structured event of the broker log. Events are slots of the ring buffer
+ * of the log which are reused, so the sink must not keep reference to the
+ * event after it returns.
+ *
+ * @author Jakub Svarc
+ */
+public class LogEvent {
+
+    /**
+     * Sequence number for which the slot was published (written last
+     * by the producer, it releases all other fields).
+     */
+    volatile long publishedSequence;
+    /**
+     * Time (System.currentTimeMillis) of the event.
+     */
+    long timestamp;
+    /**
+     * Level of the event.
+     */
+    LogLevel level;
+    /**
+     * Class which logged the event.
+     */
+    Class<?> source;
+    /**
+     * Identifier of the client, <i>null</i> if the event has no client
+     * or the client is not known yet.
+     */
+    String clientID;
+    /**
+     * Type of the packet, <i>null</i> if the event has no packet.
+     */
+    PacketType packetType;
+    /**
+     * Message or format of the message.
+     */
+    String format;
+    /**
+     * Arguments of the format, <i>null</i> if the message is not formatted.
+     */
+    Object[] arguments;
+
+    /**
+     * Builds empty slot of the ring buffer.
+     *
+     * @param sequence sequence number preceding the first one which uses
+     * the slot
+     */
+    LogEvent(long sequence) {
+        this.publishedSequence = sequence;
+    }
+
+    /**
+     * Returns time of the event.
+     *
+     * @return time of the event (System.currentTimeMillis)
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Returns level of the event.
+     *
+     * @return level of the event
+     */
+    public LogLevel getLevel() {
+        return level;
+    }
+
+    /**
+     * Returns class which logged the event.
+     *
+     * @return source class of the event
+     */
+    public Class<?> getSource() {
+        return source;
+    }
+
+    /**
+     * Returns identifier of the client.
+     *
+     * @return identifier of the client, <i>null</i> if the event has no client
+     */
+    public String getClientID() {
+        return clientID;
+    }
+
+    /**
+     * Returns type of the packet.
+     *
+     * @return type of the packet, <i>null</i> if the event has no packet
+     */
+    public PacketType getPacketType() {
+        return packetType;
+    }
+
+    /**
+     * Returns the message of the event. It is formatted by this call, so it
+     * should be called only by the writer thread.
+     *
+     * @return the message
+     */
+    public String getMessage() {
+        return arguments == null ? format : String.format(format, arguments);
+    }
+
+    /**
+     * Forgets references of the event, so the slot does not keep them alive.
+     */
+    void clear() {
+        source = null;
+        clientID = null;
+        packetType = null;
+        format = null;
+        arguments = null;
+    }
+
+}
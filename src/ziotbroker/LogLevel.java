@@ -0,0 +1,30 @@
+package ziotbroker;
+
+/**
+ * Level of broker log event. Events below the level of the log are discarded
+ * before anything is formatted.
+ *
+ * @author Jakub Svarc
+ */
+public enum LogLevel {
+    /**
+     * Events of every packet and connection (hot path).
+     */
+    DEBUG,
+    /**
+     * Notable events of the broker.
+     */
+    INFO,
+    /**
+     * Problems which the broker resolved (e.g. dropped packet).
+     */
+    WARNING,
+    /**
+     * Failures of connections or broker services.
+     */
+    ERROR,
+    /**
+     * Nothing is logged.
+     */
+    OFF
+}
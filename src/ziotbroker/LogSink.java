@@ -0,0 +1,18 @@
+package ziotbroker;
+
+/**
+ * Destination of broker log events. It is called only by the writer thread
+ * of the log.
+ *
+ * @author Jakub Svarc
+ */
+public interface LogSink {
+
+    /**
+     * Writes one event. The event is reused after the call returns.
+     *
+     * @param event event to be written
+     */
+    void write(LogEvent event);
+
+}
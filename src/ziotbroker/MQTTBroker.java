@@ -1,13 +1,23 @@
 package ziotbroker;
 
-import ziotbroker.packet.Packet;
+import java.io.Closeable;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.net.StandardSocketOptions;
+import java.nio.charset.Charset;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Interface of MQTT broker module. It controls the operation of the module and 
@@ -17,14 +27,422 @@ import java.util.concurrent.Executors;
  */
 public class MQTTBroker extends Thread {
 
+    /**
+     * Charset used for encoding text payloads (for MQTT 3.1.1 it is UTF-8).
+     */
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    /**
+     * Maximal number of connections waiting for acceptance in one listening
+     * socket (reconnecting devices come in bursts).
+     */
+    private static final int ACCEPT_BACKLOG = 4096;
+    /**
+     * Maximal time for which closing of the broker waits until services 
+     * of the clients finish.
+     */
+    private static final long CLOSE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+    
+    /**
+     * Options of the broker. Every option has default value, so only options 
+     * which differ from the defaults are set (setters return the options, 
+     * so they can be chained). The broker reads the options when it is built, 
+     * later changes do not affect it. Stores, pool and cluster node are used 
+     * by the broker as they are, so options with them must not be used for 
+     * more brokers - broker whose store or pool is not set builds its own.
+     */
+    public static class Config {
+        
+        /**
+         * Way in which the broker handles connections of the clients.
+         */
+        private TransportMode transportMode = TransportMode.BLOCKING;
+        /**
+         * Number of event loops serving the clients in selector mode.
+         */
+        private int eventLoopCount = Runtime.getRuntime().availableProcessors();
+        /**
+         * Number of listener shards accepting the clients.
+         */
+        private int acceptorCount = 1;
+        /**
+         * Maximal size of incoming packet in bytes.
+         */
+        private int maxPacketSize = FrameDecoder.DEFAULT_MAX_PACKET_SIZE;
+        /**
+         * Settings of coalescing of packets sent to the clients into writes.
+         */
+        private WriteCoalescing writeCoalescing = WriteCoalescing.DEFAULT;
+        /**
+         * Capacity of packet queues of the clients and action taken when they
+         * are full.
+         */
+        private OverflowPolicy overflowPolicy = OverflowPolicy.DEFAULT;
+        /**
+         * Interval of resending of unacknowledged messages in nanoseconds.
+         */
+        private long retryIntervalNanos = RetransmitScheduler.DEFAULT_RETRY_INTERVAL_NANOS;
+        /**
+         * Time within which new connection must send <b>CONNECT</b> 
+         * in nanoseconds.
+         */
+        private long connectTimeoutNanos = KeepAliveWheel.DEFAULT_CONNECT_TIMEOUT_NANOS;
+        /**
+         * Interval of publishing of the statistics in nanoseconds.
+         */
+        private long statisticsIntervalNanos = BrokerStatistics.DEFAULT_PUBLISH_INTERVAL_NANOS;
+        /**
+         * Store of persistent sessions, <i>null</i> for own store kept only 
+         * in memory.
+         */
+        private SessionStore sessionStore;
+        /**
+         * Store of retained messages, <i>null</i> for own store kept only 
+         * in memory.
+         */
+        private RetainedMessageStore retainedMessages;
+        /**
+         * Pool of buffers, <i>null</i> for own pool with default settings.
+         */
+        private BufferPool bufferPool;
+        /**
+         * Node of the broker in a cluster, <i>null</i> for standalone broker.
+         */
+        private ClusterNode cluster;
+        
+        /**
+         * Sets way in which the broker handles connections of the clients 
+         * (blocking by default).
+         * 
+         * @param transportMode the transport mode
+         * @return these options
+         */
+        public Config setTransportMode(TransportMode transportMode) {
+            this.transportMode = transportMode;
+            return this;
+        }
+        
+        /**
+         * Sets number of event loops serving the clients in selector mode 
+         * (one for every available processor by default, ignored in other 
+         * modes).
+         * 
+         * @param eventLoopCount number of event loops
+         * @return these options
+         */
+        public Config setEventLoopCount(int eventLoopCount) {
+            if (eventLoopCount < 1) {
+                throw new IllegalArgumentException("Number of event loops must be positive");
+            }
+            
+            this.eventLoopCount = eventLoopCount;
+            return this;
+        }
+        
+        /**
+         * Sets number of listener shards (1 by default). Every shard binds its 
+         * own socket to the port (with SO_REUSEPORT, so the system spreads 
+         * incoming connections among them) and accepts the clients by its own 
+         * thread. In selector mode the event loops are divided among 
+         * the shards and every shard hands its connections over only to its 
+         * own loops, so there can not be more shards than loops. Where 
+         * SO_REUSEPORT is not supported, the shards share one socket.
+         * 
+         * @param acceptorCount number of listener shards
+         * @return these options
+         */
+        public Config setAcceptorCount(int acceptorCount) {
+            if (acceptorCount < 1) {
+                throw new IllegalArgumentException("Number of acceptors must be positive");
+            }
+            
+            this.acceptorCount = acceptorCount;
+            return this;
+        }
+        
+        /**
+         * Sets maximal size of incoming packet, client which sends larger 
+         * packet is disconnected.
+         * 
+         * @param maxPacketSize maximal packet size in bytes
+         * @return these options
+         */
+        public Config setMaxPacketSize(int maxPacketSize) {
+            if (maxPacketSize < 2) {
+                throw new IllegalArgumentException("Maximal packet size must be at least 2 bytes");
+            }
+            
+            this.maxPacketSize = maxPacketSize;
+            return this;
+        }
+        
+        /**
+         * Sets coalescing of packets sent to the clients into writes.
+         * 
+         * @param writeCoalescing settings of write coalescing
+         * @return these options
+         */
+        public Config setWriteCoalescing(WriteCoalescing writeCoalescing) {
+            this.writeCoalescing = writeCoalescing;
+            return this;
+        }
+        
+        /**
+         * Sets capacity of packet queues of the clients and action taken when 
+         * they are full. BOUNDED_WAIT can not be used in selector mode 
+         * (waiting event loop would stall all its connections).
+         * 
+         * @param overflowPolicy overflow policy of the clients
+         * @return these options
+         */
+        public Config setOverflowPolicy(OverflowPolicy overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+            return this;
+        }
+        
+        /**
+         * Sets interval after which messages not acknowledged by subscribers 
+         * are resent.
+         * 
+         * @param retryIntervalNanos retry interval in nanoseconds
+         * @return these options
+         */
+        public Config setRetryIntervalNanos(long retryIntervalNanos) {
+            if (retryIntervalNanos <= 0) {
+                throw new IllegalArgumentException("Retry interval must be positive");
+            }
+            
+            this.retryIntervalNanos = retryIntervalNanos;
+            return this;
+        }
+        
+        /**
+         * Sets time within which new connection must send <b>CONNECT</b>, 
+         * connection which does not connect in time is closed.
+         * 
+         * @param connectTimeoutNanos connect timeout in nanoseconds
+         * @return these options
+         */
+        public Config setConnectTimeoutNanos(long connectTimeoutNanos) {
+            if (connectTimeoutNanos <= 0) {
+                throw new IllegalArgumentException("Connect timeout must be positive");
+            }
+            
+            this.connectTimeoutNanos = connectTimeoutNanos;
+            return this;
+        }
+        
+        /**
+         * Sets interval of publishing of the statistics to <b>$SYS</b> topics.
+         * 
+         * @param statisticsIntervalNanos interval in nanoseconds (0 turns 
+         * publishing off)
+         * @return these options
+         */
+        public Config setStatisticsIntervalNanos(long statisticsIntervalNanos) {
+            if (statisticsIntervalNanos < 0) {
+                throw new IllegalArgumentException("Interval of statistics must not be negative");
+            }
+            
+            this.statisticsIntervalNanos = statisticsIntervalNanos;
+            return this;
+        }
+        
+        /**
+         * Sets store of persistent sessions of the clients (connected with 
+         * clean session flag unset).
+         * 
+         * @param sessionStore the store, <i>null</i> for own store kept only 
+         * in memory
+         * @return these options
+         */
+        public Config setSessionStore(SessionStore sessionStore) {
+            this.sessionStore = sessionStore;
+            return this;
+        }
+        
+        /**
+         * Sets store of retained messages.
+         * 
+         * @param retainedMessages the store, <i>null</i> for own store kept 
+         * only in memory
+         * @return these options
+         */
+        public Config setRetainedMessages(RetainedMessageStore retainedMessages) {
+            this.retainedMessages = retainedMessages;
+            return this;
+        }
+        
+        /**
+         * Sets pool of read buffers of the connections and of PUBLISH packets 
+         * shared by subscribers.
+         * 
+         * @param bufferPool the pool, <i>null</i> for own pool with default 
+         * settings
+         * @return these options
+         */
+        public Config setBufferPool(BufferPool bufferPool) {
+            this.bufferPool = bufferPool;
+            return this;
+        }
+        
+        /**
+         * Sets node of the broker in a cluster. Messages published to the broker 
+         * are forwarded to the peers of the node which have matching 
+         * subscribers and messages forwarded by the peers are delivered 
+         * to the clients of the broker.
+         * 
+         * @param cluster the node, <i>null</i> for standalone broker
+         * @return these options
+         */
+        public Config setCluster(ClusterNode cluster) {
+            this.cluster = cluster;
+            return this;
+        }
+        
+        /**
+         * Returns way in which the broker handles connections of the clients.
+         * 
+         * @return the transport mode
+         */
+        public TransportMode getTransportMode() {
+            return transportMode;
+        }
+        
+        /**
+         * Returns number of event loops serving the clients in selector mode.
+         * 
+         * @return number of event loops
+         */
+        public int getEventLoopCount() {
+            return eventLoopCount;
+        }
+        
+        /**
+         * Returns number of listener shards.
+         * 
+         * @return number of acceptors
+         */
+        public int getAcceptorCount() {
+            return acceptorCount;
+        }
+        
+        /**
+         * Returns maximal size of incoming packet.
+         * 
+         * @return maximal packet size in bytes
+         */
+        public int getMaxPacketSize() {
+            return maxPacketSize;
+        }
+        
+        /**
+         * Returns coalescing of packets sent to the clients into writes.
+         * 
+         * @return settings of write coalescing
+         */
+        public WriteCoalescing getWriteCoalescing() {
+            return writeCoalescing;
+        }
+        
+        /**
+         * Returns overflow policy of the clients.
+         * 
+         * @return overflow policy
+         */
+        public OverflowPolicy getOverflowPolicy() {
+            return overflowPolicy;
+        }
+        
+        /**
+         * Returns interval of resending of unacknowledged messages.
+         * 
+         * @return retry interval in nanoseconds
+         */
+        public long getRetryIntervalNanos() {
+            return retryIntervalNanos;
+        }
+        
+        /**
+         * Returns time within which new connection must send <b>CONNECT</b>.
+         * 
+         * @return connect timeout in nanoseconds
+         */
+        public long getConnectTimeoutNanos() {
+            return connectTimeoutNanos;
+        }
+        
+        /**
+         * Returns interval of publishing of the statistics.
+         * 
+         * @return interval in nanoseconds, 0 if publishing is off
+         */
+        public long getStatisticsIntervalNanos() {
+            return statisticsIntervalNanos;
+        }
+        
+        /**
+         * Returns store of persistent sessions.
+         * 
+         * @return the store, <i>null</i> if the broker builds its own
+         */
+        public SessionStore getSessionStore() {
+            return sessionStore;
+        }
+        
+        /**
+         * Returns store of retained messages.
+         * 
+         * @return the store, <i>null</i> if the broker builds its own
+         */
+        public RetainedMessageStore getRetainedMessages() {
+            return retainedMessages;
+        }
+        
+        /**
+         * Returns pool of buffers.
+         * 
+         * @return the pool, <i>null</i> if the broker builds its own
+         */
+        public BufferPool getBufferPool() {
+            return bufferPool;
+        }
+        
+        /**
+         * Returns node of the broker in a cluster.
+         * 
+         * @return the node, <i>null</i> for standalone broker
+         */
+        public ClusterNode getCluster() {
+            return cluster;
+        }
+        
+    }
+    
     /**
      * Port on which the broker runs.
      */
     private final short PORT;
     /**
-     * Map storing subscribtions of the clients.
+     * Way in which the broker handles connections of the clients.
+     */
+    private final TransportMode transportMode;
+    /**
+     * Maximal size of incoming packet in bytes, larger packets are rejected.
+     */
+    private final int maxPacketSize;
+    /**
+     * Settings of coalescing of packets sent to the clients into writes.
+     */
+    private final WriteCoalescing writeCoalescing;
+    /**
+     * Capacity of packet queues of the clients and action taken when they
+     * are full.
      */
-    private final HashMap<Subscribtion, ArrayList<OutputClientService>> subscribtions;
+    private final OverflowPolicy overflowPolicy;
+    /**
+     * Index storing subscribtions of the clients.
+     */
+    private final SubscribtionTree subscribtions;
     /**
      * Service which processes incoming packets.
      */
@@ -38,95 +456,758 @@ public class MQTTBroker extends Thread {
      */
     private final ExecutorService outputClients;
     /**
-     * Connection to which can clients connect.
+     * Event loops serving client connections in selector mode.
      */
-    private ServerSocket serverSocket;
+    private final EventLoop[] eventLoops;
+    /**
+     * Counters of the broker load.
+     */
+    private final BrokerStatistics statistics;
+    /**
+     * Interval of publishing of the statistics to <b>$SYS</b> topics 
+     * in nanoseconds (0 if they are not published).
+     */
+    private final long statisticsIntervalNanos;
+    /**
+     * Node of the broker in a cluster, <i>null</i> for standalone broker.
+     */
+    private final ClusterNode cluster;
+    /**
+     * Number of listener shards, every shard accepts the clients on its own 
+     * socket by its own thread.
+     */
+    private final int acceptorCount;
+    /**
+     * Output services of the connected clients in blocking and virtual 
+     * thread mode, <i>null</i> in selector mode.
+     */
+    private final Set<SocketClientService> socketClients;
+    /**
+     * Threads of the event loops in selector mode.
+     */
+    private final Thread[] eventLoopThreads;
+    /**
+     * Lock guarding start and closing of the broker.
+     */
+    private final Object lifecycleLock;
+    /**
+     * Executor publishing the statistics, <i>null</i> if they are not 
+     * published.
+     */
+    private ScheduledExecutorService statisticsPublisher;
+    /**
+     * Listening sockets of the shards, <i>null</i> until they are open.
+     */
+    private Closeable[] listeningSockets;
+    /**
+     * Indicates that the broker was closed.
+     */
+    private volatile boolean closed;
     
     /**
-     * Builds and initializes MQTTBroker.
+     * Builds and initializes MQTTBroker, which serves every client by its own
+     * input and output thread.
      * 
      * @param port port on which the broker runs
      */
     public MQTTBroker(short port) {
+        this(port, TransportMode.BLOCKING);
+    }
+    
+    /**
+     * Builds and initializes MQTTBroker with given transport mode. In selector
+     * mode there is one event loop for every available processor.
+     * 
+     * @param port port on which the broker runs
+     * @param transportMode way in which the broker handles connections
+     * of the clients
+     */
+    public MQTTBroker(short port, TransportMode transportMode) {
+        this(port, new Config().setTransportMode(transportMode));
+    }
+    
+    /**
+     * Builds and initializes MQTTBroker with given options.
+     * 
+     * @param port port on which the broker runs
+     * @param config options of the broker
+     */
+    public MQTTBroker(short port, Config config) {
+        if (config.getTransportMode() == TransportMode.SELECTOR && config.getAcceptorCount() > config.getEventLoopCount()) {
+            throw new IllegalArgumentException("Number of acceptors must not exceed number of event loops");
+        }
+        
+        // Publishing thread of selector mode is event loop, it must never wait for a subscriber
+        if (config.getTransportMode() == TransportMode.SELECTOR && (config.getOverflowPolicy().getAction() == OverflowAction.BOUNDED_WAIT || (config.getCluster() != null && config.getCluster().getLinkOverflowPolicy().getAction() == OverflowAction.BOUNDED_WAIT))) {
+            throw new IllegalArgumentException("BOUNDED_WAIT overflow action can not be used in selector mode");
+        }
+        
         this.PORT = port;
-        this.subscribtions = new HashMap<>();
-        this.inputClients = Executors.newCachedThreadPool();
-        this.outputClients = Executors.newCachedThreadPool();
-        this.packetProcessor = new PacketProcessor(subscribtions);
+        this.transportMode = config.getTransportMode();
+        this.maxPacketSize = config.getMaxPacketSize();
+        this.writeCoalescing = config.getWriteCoalescing();
+        this.overflowPolicy = config.getOverflowPolicy();
+        this.subscribtions = new SubscribtionTree();
+        this.statistics = new BrokerStatistics();
+        this.statisticsIntervalNanos = config.getStatisticsIntervalNanos();
+        this.packetProcessor = new PacketProcessor(subscribtions, config, statistics);
+        this.cluster = config.getCluster();
+        this.acceptorCount = config.getAcceptorCount();
+        this.lifecycleLock = new Object();
+        
+        if (cluster != null) {
+            cluster.attach(subscribtions, packetProcessor, statistics, maxPacketSize);
+            packetProcessor.setCluster(cluster);
+        }
+        
+        packetProcessor.getSessionStore().restoreSubscribtions(subscribtions);
+        
+        if (transportMode == TransportMode.SELECTOR) {
+            this.inputClients = null;
+            this.outputClients = null;
+            this.eventLoops = new EventLoop[config.getEventLoopCount()];
+            this.eventLoopThreads = new Thread[eventLoops.length];
+            this.socketClients = null;
+        } else if (transportMode == TransportMode.VIRTUAL_THREADS) {
+            this.inputClients = Executors.newVirtualThreadPerTaskExecutor();
+            this.outputClients = Executors.newVirtualThreadPerTaskExecutor();
+            this.eventLoops = null;
+            this.eventLoopThreads = null;
+            this.socketClients = ConcurrentHashMap.newKeySet();
+        } else {
+            this.inputClients = Executors.newCachedThreadPool();
+            this.outputClients = Executors.newCachedThreadPool();
+            this.eventLoops = null;
+            this.eventLoopThreads = null;
+            this.socketClients = ConcurrentHashMap.newKeySet();
+        }
     }
     
     /**
-     * Continuously awaits clients to connect and builds input and output 
-     * services for it.
+     * Continuously awaits clients to connect and hands them over to services
+     * corresponding to the transport mode. Publishing of the statistics 
+     * and linking of the cluster peers start with it. Closed broker does 
+     * not start.
      */
     @Override
     public void run() {
-        try {
-            serverSocket = new ServerSocket(PORT);
+        synchronized (lifecycleLock) {
+            if (closed) {
+                return;
+            }
+            
+            if (cluster != null) {
+                cluster.start();
+            }
 
+            if (statisticsIntervalNanos > 0) {
+                statisticsPublisher = Executors.newSingleThreadScheduledExecutor(task -> {
+                    Thread thread = new Thread(task, "BrokerStatistics");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+
+                statisticsPublisher.scheduleAtFixedRate(this::publishStatistics, statisticsIntervalNanos, statisticsIntervalNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+        
+        if (transportMode == TransportMode.SELECTOR) {
+            runEventLoops();
+        } else {
+            runClientServices();
+        }
+    }
+    
+    /**
+     * Opens listening sockets of the shards and continuously awaits clients 
+     * to connect. Every client gets its own input and output service.
+     */
+    private void runClientServices() {
+        ServerSocket[] serverSockets = new ServerSocket[acceptorCount];
+        
+        try {
+            ServerSocket serverSocket = null;
+            boolean reusePort = false;
+            
+            for (int i = 0; i < acceptorCount; i++) {
+                if (serverSocket == null || reusePort) {
+                    serverSocket = new ServerSocket();
+                    
+                    if (i == 0) {
+                        reusePort = isReusePortUsed(serverSocket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT));
+                    }
+                    
+                    if (reusePort) {
+                        serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                    }
+                    
+                    serverSocket.bind(new InetSocketAddress(PORT), ACCEPT_BACKLOG);
+                }
+                
+                serverSockets[i] = serverSocket;
+            }
+        } catch(IOException ex) {
+            BrokerLogger.log(LogLevel.ERROR, this.getClass(), ex.getMessage());
+            close(serverSockets);
+            return;
+        }
+        
+        if (!setListeningSockets(serverSockets)) {
+            return;
+        }
+        
+        Runnable[] acceptors = new Runnable[acceptorCount];
+        
+        for (int i = 0; i < acceptorCount; i++) {
+            ServerSocket serverSocket = serverSockets[i];
+            
+            acceptors[i] = () -> acceptClientServices(serverSocket);
+        }
+        
+        runAcceptors(acceptors);
+    }
+    
+    /**
+     * Continuously awaits clients to connect to given socket and builds input 
+     * and output services for them.
+     * 
+     * @param serverSocket listening socket of the shard
+     */
+    private void acceptClientServices(ServerSocket serverSocket) {
+        try {
             Socket clientSocket;
-            InputClientService inputClient;
-            OutputClientService outputClient;
 
             while ((clientSocket = serverSocket.accept()) != null) {
-                outputClient = new OutputClientService(clientSocket);
-                inputClient = new InputClientService(clientSocket, packetProcessor, outputClient);
+                SocketClientService outputClient = new SocketClientService(clientSocket, writeCoalescing, overflowPolicy, statistics);
+                InputClientService inputClient = new InputClientService(clientSocket, packetProcessor, outputClient, maxPacketSize);
+                
+                socketClients.add(outputClient);
                 
-                inputClients.submit(inputClient);
+                // Closing of the broker could miss the client added after it
+                if (closed) {
+                    outputClient.disconnect();
+                    break;
+                }
+                
+                inputClients.submit(() -> {
+                    try {
+                        inputClient.run();
+                    } finally {
+                        socketClients.remove(outputClient);
+                    }
+                });
                 outputClients.submit(outputClient);
-                System.out.printf("%s - Client connected\n", this.getClass().getName());
+                statistics.connectionOpened();
+                BrokerLogger.log(LogLevel.DEBUG, this.getClass(), "Client connected");
+            }
+        } catch(IOException | RejectedExecutionException ex) {
+            // Failure of closed broker is expected
+            BrokerLogger.log(closed ? LogLevel.DEBUG : LogLevel.ERROR, this.getClass(), ex.getMessage());
+        }
+    }
+    
+    /**
+     * Starts event loops, opens listening sockets of the shards and divides 
+     * the loops among the shards. Every shard continuously awaits clients 
+     * to connect and hands their connections over to its loops in turn.
+     */
+    private void runEventLoops() {
+        ServerSocketChannel[] serverChannels = new ServerSocketChannel[acceptorCount];
+        
+        try {
+            for (int i = 0; i < eventLoops.length; i++) {
+                eventLoops[i] = new EventLoop(packetProcessor, maxPacketSize, writeCoalescing, overflowPolicy);
+                
+                Thread eventLoopThread = new Thread(eventLoops[i], "EventLoop-" + i);
+                eventLoopThread.setDaemon(true);
+                eventLoopThread.start();
+                eventLoopThreads[i] = eventLoopThread;
+            }
+            
+            ServerSocketChannel serverChannel = null;
+            boolean reusePort = false;
+            
+            for (int i = 0; i < acceptorCount; i++) {
+                if (serverChannel == null || reusePort) {
+                    serverChannel = ServerSocketChannel.open();
+                    
+                    if (i == 0) {
+                        reusePort = isReusePortUsed(serverChannel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT));
+                    }
+                    
+                    if (reusePort) {
+                        serverChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                    }
+                    
+                    serverChannel.bind(new InetSocketAddress(PORT), ACCEPT_BACKLOG);
+                }
+                
+                serverChannels[i] = serverChannel;
             }
         } catch(IOException ex) {
-            System.err.printf("%s - %s\n", this.getClass().getName(), ex.getMessage());
+            BrokerLogger.log(LogLevel.ERROR, this.getClass(), ex.getMessage());
+            close(serverChannels);
+            return;
         }
+        
+        // Loops started before the broker was closed are closed here
+        if (!setListeningSockets(serverChannels)) {
+            closeEventLoops();
+            return;
+        }
+        
+        Runnable[] acceptors = new Runnable[acceptorCount];
+        
+        for (int i = 0; i < acceptorCount; i++) {
+            ServerSocketChannel serverChannel = serverChannels[i];
+            /**
+             * Index of the first event loop of the shard.
+             */
+            int firstEventLoop = i * eventLoops.length / acceptorCount;
+            /**
+             * Index following the last event loop of the shard.
+             */
+            int endEventLoop = (i + 1) * eventLoops.length / acceptorCount;
+            
+            acceptors[i] = () -> acceptEventLoops(serverChannel, firstEventLoop, endEventLoop);
+        }
+        
+        runAcceptors(acceptors);
+    }
+    
+    /**
+     * Continuously awaits clients to connect to given socket and hands their 
+     * connections over to the event loops of the shard in turn.
+     * 
+     * @param serverChannel listening socket of the shard
+     * @param firstEventLoop index of the first event loop of the shard
+     * @param endEventLoop index following the last event loop of the shard
+     */
+    private void acceptEventLoops(ServerSocketChannel serverChannel, int firstEventLoop, int endEventLoop) {
+        try {
+            SocketChannel clientChannel;
+            int nextEventLoop = firstEventLoop;
+            
+            while ((clientChannel = serverChannel.accept()) != null) {
+                eventLoops[nextEventLoop].register(clientChannel);
+                nextEventLoop = nextEventLoop + 1 < endEventLoop ? nextEventLoop + 1 : firstEventLoop;
+                statistics.connectionOpened();
+                BrokerLogger.log(LogLevel.DEBUG, this.getClass(), "Client connected");
+            }
+        } catch(IOException ex) {
+            // Failure of closed broker is expected
+            BrokerLogger.log(closed ? LogLevel.DEBUG : LogLevel.ERROR, this.getClass(), ex.getMessage());
+        }
+    }
+    
+    /**
+     * Decides if the shards bind their own sockets with SO_REUSEPORT. Single 
+     * shard never uses it, so port used by another process is still reported.
+     * 
+     * @param supported indicates that the socket supports SO_REUSEPORT
+     * @return <i>true</i> if every shard binds its own socket
+     */
+    private boolean isReusePortUsed(boolean supported) {
+        if (acceptorCount > 1 && !supported) {
+            BrokerLogger.log(LogLevel.WARNING, this.getClass(), "SO_REUSEPORT is not supported, %d acceptors share one socket", acceptorCount);
+        }
+        
+        return acceptorCount > 1 && supported;
+    }
+    
+    /**
+     * Runs acceptors of the shards, the first one by the broker thread 
+     * and the others by their own daemon threads.
+     * 
+     * @param acceptors acceptors of the shards
+     */
+    private void runAcceptors(Runnable[] acceptors) {
+        for (int i = 1; i < acceptors.length; i++) {
+            Thread acceptorThread = new Thread(acceptors[i], "Acceptor-" + i);
+            acceptorThread.setDaemon(true);
+            acceptorThread.start();
+        }
+        
+        acceptors[0].run();
+    }
+    
+    /**
+     * Closes listening sockets.
+     * 
+     * @param sockets the sockets (<i>null</i> items are skipped)
+     */
+    private static void close(Closeable[] sockets) {
+        for (Closeable socket : sockets) {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ex) {}
+            }
+        }
+    }
+    
+    /**
+     * Stores open listening sockets of the shards, so closing of the broker 
+     * closes them. If the broker was closed meanwhile, they are closed 
+     * right away.
+     * 
+     * @param sockets listening sockets of the shards
+     * @return <i>false</i> if the broker was closed
+     */
+    private boolean setListeningSockets(Closeable[] sockets) {
+        synchronized (lifecycleLock) {
+            if (!closed) {
+                listeningSockets = sockets;
+                return true;
+            }
+        }
+        
+        close(sockets);
+        return false;
+    }
+    
+    /**
+     * Asks all started event loops to close their connections and finish.
+     */
+    private void closeEventLoops() {
+        for (EventLoop eventLoop : eventLoops) {
+            if (eventLoop != null) {
+                eventLoop.close();
+            }
+        }
+    }
+    
+    /**
+     * Stops the broker. Listening sockets are closed, all clients and cluster 
+     * peers are disconnected and periodic tasks of the broker are stopped. 
+     * When the services of the clients finish (or the close timeout passes), 
+     * stores of sessions and retained messages are closed - including stores 
+     * given by the options. Closing of closed broker does nothing.
+     */
+    public void close() {
+        Closeable[] currentListeningSockets;
+        
+        synchronized (lifecycleLock) {
+            if (closed) {
+                return;
+            }
+            
+            closed = true;
+            currentListeningSockets = listeningSockets;
+        }
+        
+        if (currentListeningSockets != null) {
+            close(currentListeningSockets);
+        }
+        
+        if (cluster != null) {
+            cluster.close();
+        }
+        
+        if (statisticsPublisher != null) {
+            statisticsPublisher.shutdownNow();
+        }
+        
+        /**
+         * Time until which the services of the clients can finish.
+         */
+        long deadline = System.nanoTime() + CLOSE_TIMEOUT_NANOS;
+        boolean finished = true;
+        
+        try {
+            if (transportMode == TransportMode.SELECTOR) {
+                closeEventLoops();
+                
+                for (Thread eventLoopThread : eventLoopThreads) {
+                    if (eventLoopThread != null) {
+                        TimeUnit.NANOSECONDS.timedJoin(eventLoopThread, deadline - System.nanoTime());
+                        finished &= !eventLoopThread.isAlive();
+                    }
+                }
+            } else {
+                for (SocketClientService client : socketClients) {
+                    client.disconnect();
+                }
+                
+                inputClients.shutdownNow();
+                outputClients.shutdownNow();
+                finished = inputClients.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS) && outputClients.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            }
+        } catch (InterruptedException ex) {
+            finished = false;
+            Thread.currentThread().interrupt();
+        }
+        
+        if (!finished) {
+            BrokerLogger.log(LogLevel.WARNING, this.getClass(), "Client services did not finish, closing anyway");
+        }
+        
+        packetProcessor.close();
+        BrokerLogger.log(LogLevel.INFO, this.getClass(), "Broker closed");
     }
     
     /**
      * Publishes message with corresponding topic.
      * 
      * @param topic topic, to which the message is sent
+     * @param payload the content of the message (sent unchanged)
+     * @param qos quality of service of the message (0, 1 or 2)
+     * @param retain indicates that the message should be retained for its 
+     * topic and sent to future subscribers (empty payload removes retained 
+     * message of the topic)
+     * @throws MQTTException thrown if given parameters are invalid (topic 
+     * is empty or contains wildcards, QoS is out of range)
+     */
+    public void publish(String topic, byte[] payload, byte qos, boolean retain) throws MQTTException {
+        if (!SubscribtionTree.isValidTopic(topic)) {
+            throw new MQTTException(MQTTExceptionLevel.WARNING, "Malformed topic");
+        }
+        
+        if (qos < 0 || qos > 2) {
+            throw new MQTTException(MQTTExceptionLevel.WARNING, "Malformed QoS value");
+        }
+        
+        packetProcessor.route(topic, payload, qos, retain);
+    }
+    
+    /**
+     * Publishes text message with corresponding topic. The text is encoded 
+     * as UTF-8.
+     * 
+     * @param topic topic, to which the message is sent
      * @param payload the content of the message
-     * @param qos quality of service of the message (0, 1 or 2) - <b>ONLY LEVEL
-     * 0 IMPLEMENTED NOW</b>
-     * @param retain indicates that the message should be saved on the broker 
-     * - <b>NOT IMPLEMENTED YET!!! MUST BE SET TO FALSE</b>
+     * @param qos quality of service of the message (0, 1 or 2)
+     * @param retain indicates that the message should be retained for its 
+     * topic and sent to future subscribers (empty payload removes retained 
+     * message of the topic)
      * @throws MQTTException thrown if given parameters are invalid
      */
     public void publish(String topic, String payload, byte qos, boolean retain) throws MQTTException {
-        boolean[] flags = {false, false, false, retain};
+        publish(topic, payload.getBytes(CHARSET), qos, retain);
+    }
+    
+    /**
+     * Resolves topic for repeated publishing. Handle keeps the encoded topic 
+     * and its matching subscribers (refreshed only when subscribtions change), 
+     * so publishing to it encodes and matches nothing.
+     * 
+     * @param topic topic of published messages (without wildcards)
+     * @return handle of the topic, usable only with this broker
+     * @throws MQTTException thrown if the topic is malformed
+     */
+    public TopicHandle resolveTopic(String topic) throws MQTTException {
+        return new TopicHandle(topic, subscribtions);
+    }
+    
+    /**
+     * Publishes batch of messages to resolved topics.
+     * 
+     * @param topics resolved topics of the messages
+     * @param payloads contents of the messages (sent unchanged)
+     * @param qos quality of service of all messages (0, 1 or 2)
+     * @param retain indicates that the messages should be retained for their 
+     * topics
+     * @return number of subscribers to which every message was sent
+     * @throws MQTTException thrown if given parameters are invalid
+     */
+    public int[] publish(TopicHandle[] topics, byte[][] payloads, byte qos, boolean retain) throws MQTTException {
+        int[] deliveryCounts = new int[topics.length];
         
-        switch (qos) {
-            case 0: {
-                break;
-            }
-            case 1: {
-                flags[2] = true;
-                break;
+        publish(topics, payloads, topics.length, qos, retain, deliveryCounts);
+        
+        return deliveryCounts;
+    }
+    
+    /**
+     * Publishes batch of messages to resolved topics without allocating 
+     * anything but the encoded packets. Consecutive messages with the same 
+     * handle share its matched subscribers.
+     * 
+     * @param topics resolved topics of the messages
+     * @param payloads contents of the messages (sent unchanged)
+     * @param count number of messages (from the beginning of the arrays)
+     * @param qos quality of service of all messages (0, 1 or 2)
+     * @param retain indicates that the messages should be retained for their 
+     * topics
+     * @param deliveryCounts array receiving number of subscribers to which 
+     * every message was sent
+     * @throws MQTTException thrown if given parameters are invalid
+     */
+    public void publish(TopicHandle[] topics, byte[][] payloads, int count, byte qos, boolean retain, int[] deliveryCounts) throws MQTTException {
+        if (qos < 0 || qos > 2) {
+            throw new MQTTException(MQTTExceptionLevel.WARNING, "Malformed QoS value");
+        }
+        
+        if (count < 0 || count > topics.length || count > payloads.length || count > deliveryCounts.length) {
+            throw new IllegalArgumentException("Batch is larger than its arrays");
+        }
+        
+        packetProcessor.route(topics, payloads, count, qos, retain, deliveryCounts);
+    }
+    
+    /**
+     * Publishes batch of messages given by (topic, payload) pairs. Topics are 
+     * resolved for the batch - consecutive messages with the same topic share 
+     * one resolution.
+     * 
+     * @param topics topics of the messages
+     * @param payloads contents of the messages (sent unchanged)
+     * @param qos quality of service of all messages (0, 1 or 2)
+     * @param retain indicates that the messages should be retained for their 
+     * topics
+     * @return number of subscribers to which every message was sent
+     * @throws MQTTException thrown if given parameters are invalid
+     */
+    public int[] publish(String[] topics, byte[][] payloads, byte qos, boolean retain) throws MQTTException {
+        TopicHandle[] handles = new TopicHandle[topics.length];
+        
+        for (int i = 0; i < topics.length; i++) {
+            handles[i] = i > 0 && topics[i].equals(topics[i - 1]) ? handles[i - 1] : resolveTopic(topics[i]);
+        }
+        
+        return publish(handles, payloads, qos, retain);
+    }
+    
+    /**
+     * Publishes current values of the statistics as retained messages of their
+     * <b>$SYS</b> topics (through the same path as other published messages).
+     */
+    private void publishStatistics() {
+        try {
+            /**
+             * Summed counters by their topics.
+             */
+            Map<String, Long> values = statistics.snapshot();
+            
+            values.put(BrokerStatistics.TOPIC_PREFIX + "subscriptions/count", (long) subscribtions.size());
+            values.put(BrokerStatistics.TOPIC_PREFIX + "buffers/capacity", packetProcessor.getBufferPool().getCapacity());
+            values.put(BrokerStatistics.TOPIC_PREFIX + "buffers/used", packetProcessor.getBufferPool().getOutstandingBytes());
+            values.put(BrokerStatistics.TOPIC_PREFIX + "buffers/pooled", packetProcessor.getBufferPool().getPooledBytes());
+            values.put(BrokerStatistics.TOPIC_PREFIX + "buffers/leaked", packetProcessor.getBufferPool().getLeakedBuffers());
+            
+            if (cluster != null) {
+                values.put(BrokerStatistics.TOPIC_PREFIX + "cluster/peers", (long) cluster.getLinkCount());
+                values.put(BrokerStatistics.TOPIC_PREFIX + "cluster/messages/forwarded", cluster.getForwardedMessages());
+                values.put(BrokerStatistics.TOPIC_PREFIX + "cluster/messages/received", cluster.getReceivedMessages());
             }
-            case 2: {
-                flags[1] = true;
-                break;
+            
+            for (Map.Entry<String, Long> value : values.entrySet()) {
+                publish(value.getKey(), value.getValue().toString(), (byte) 0, true);
             }
-            default:
-                throw new MQTTException(MQTTExceptionLevel.WARNING, "Malformed QoS value");
+        } catch (MQTTException | RuntimeException ex) {
+            BrokerLogger.log(LogLevel.ERROR, this.getClass(), ex.getMessage());
         }
-        
-        Packet packet = PacketBuilder.buildPublishPacket(flags, topic, payload);
-        ArrayList<OutputClientService> matchingSubscriptions = subscribtions.get(new Subscribtion(topic, (byte) 0));
-
-        if (matchingSubscriptions != null) {
-            matchingSubscriptions.stream().map(matchingSubscription -> matchingSubscription).forEach(matchingOutputClient -> {
-                matchingOutputClient.send(packet);
-            });
+    }
+    
+    /**
+     * Returns counters of the broker load.
+     * 
+     * @return statistics of the broker
+     */
+    public BrokerStatistics getStatistics() {
+        return statistics;
+    }
+    
+    /**
+     * Returns pool of read buffers of the connections and of PUBLISH packets 
+     * shared by subscribers.
+     * 
+     * @return pool of buffers
+     */
+    public BufferPool getBufferPool() {
+        return packetProcessor.getBufferPool();
+    }
+    
+    /**
+     * Returns node of the broker in a cluster.
+     * 
+     * @return the cluster node, <i>null</i> for standalone broker
+     */
+    public ClusterNode getCluster() {
+        return cluster;
+    }
+    
+    /**
+     * Returns number of listener shards accepting the clients.
+     * 
+     * @return number of acceptors
+     */
+    public int getAcceptorCount() {
+        return acceptorCount;
+    }
+    
+    /**
+     * Sets strategy selecting the member of shared subscribtion 
+     * (<i>$share/&lt;group&gt;/&lt;filter&gt;</i>) which receives a message, 
+     * it is used by groups without their own strategy.
+     * 
+     * @param strategy the strategy (round-robin by default)
+     */
+    public void setSharedSubscribtionStrategy(SharedSubscribtionStrategy strategy) {
+        subscribtions.setSharedSubscribtionStrategy(strategy);
+    }
+    
+    /**
+     * Sets strategy selecting the member of given group of shared 
+     * subscribtions which receives a message.
+     * 
+     * @param group name of the group
+     * @param strategy the strategy, <i>null</i> for the default one
+     */
+    public void setSharedSubscribtionStrategy(String group, SharedSubscribtionStrategy strategy) {
+        subscribtions.setSharedSubscribtionStrategy(group, strategy);
+    }
+    
+    /**
+     * Registers handler of messages published by the clients to topics matching
+     * given filter. Handler is run by shared pool of daemon threads and gets 
+     * messages in batches from its own bounded buffer (newest messages are 
+     * dropped when it is full). Messages are not buffered at all while no 
+     * handler is registered.
+     * 
+     * @param topicFilter topic filter of the messages
+     * @param handler callback receiving the messages
+     * @return registered listener (closing it removes the handler)
+     * @throws MQTTException thrown if topic filter is malformed
+     */
+    public MessageListener addMessageListener(String topicFilter, MessageHandler handler) throws MQTTException {
+        return packetProcessor.getMessageDispatcher().addListener(topicFilter, handler);
+    }
+    
+    /**
+     * Registers handler of messages published by the clients to topics matching
+     * given filter, with its own executor, buffer and batch size.
+     * 
+     * @param topicFilter topic filter of the messages
+     * @param handler callback receiving the messages
+     * @param executor executor running the handler (it is never run 
+     * concurrently with itself)
+     * @param overflowPolicy capacity of the buffer of the handler and action 
+     * taken when it is full (DISCONNECT removes the handler, BOUNDED_WAIT 
+     * can not be used in selector mode)
+     * @param maxBatchSize maximal number of messages passed to the handler 
+     * at once
+     * @return registered listener (closing it removes the handler)
+     * @throws MQTTException thrown if topic filter is malformed
+     */
+    public MessageListener addMessageListener(String topicFilter, MessageHandler handler, Executor executor, OverflowPolicy overflowPolicy, int maxBatchSize) throws MQTTException {
+        // Publishing thread of selector mode is event loop, it must never wait for a listener
+        if (transportMode == TransportMode.SELECTOR && overflowPolicy.getAction() == OverflowAction.BOUNDED_WAIT) {
+            throw new IllegalArgumentException("BOUNDED_WAIT overflow action can not be used in selector mode");
         }
+        
+        return packetProcessor.getMessageDispatcher().addListener(topicFilter, handler, executor, overflowPolicy, maxBatchSize);
     }
     
     /**
      * Returns incoming messages from clients. It blocks until message
-     * is available.
+     * is available. Messages are buffered since the first call.
      * 
      * @return incoming message
+     * @deprecated messages are passed to handlers registered 
+     * by {@link #addMessageListener}
      */
+    @Deprecated
     public PublishMessage getMessage() {
         return packetProcessor.getPublishedMessage();
     }
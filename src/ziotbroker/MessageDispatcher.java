@@ -0,0 +1,171 @@
+package ziotbroker;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Dispatcher of messages published by the clients to listeners of the
+ * embedding application. Listeners are kept in copy-on-write array, so
+ * dispatching reads one volatile field and takes no lock. Without listeners
+ * nothing is built nor buffered, and message is built only when some listener
+ * matches its topic.
+ *
+ * @author Jakub Svarc
+ */
+public class MessageDispatcher {
+
+    /**
+     * Registered listeners (replaced on every change).
+     */
+    private volatile MessageListener[] listeners;
+    /**
+     * Executor of listeners registered without their own (created lazily).
+     */
+    private ExecutorService defaultExecutor;
+
+    /**
+     * Builds MessageDispatcher without listeners.
+     */
+    public MessageDispatcher() {
+        this.listeners = new MessageListener[0];
+    }
+
+    /**
+     * Registers handler of messages whose topics match given filter. It is run
+     * by shared pool of daemon threads, with default buffer and batch size.
+     *
+     * @param topicFilter topic filter of the messages
+     * @param handler callback receiving the messages
+     * @return registered listener (closing it removes the handler)
+     * @throws MQTTException thrown if topic filter is malformed
+     */
+    public MessageListener addListener(String topicFilter, MessageHandler handler) throws MQTTException {
+        return addListener(topicFilter, handler, getDefaultExecutor(), OverflowPolicy.DEFAULT, MessageListener.DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    /**
+     * Registers handler of messages whose topics match given filter.
+     *
+     * @param topicFilter topic filter of the messages
+     * @param handler callback receiving the messages
+     * @param executor executor running the handler
+     * @param overflowPolicy capacity of the buffer of the listener and action
+     * taken when it is full (DISCONNECT removes the listener)
+     * @param maxBatchSize maximal number of messages passed to the handler
+     * at once
+     * @return registered listener (closing it removes the handler)
+     * @throws MQTTException thrown if topic filter is malformed
+     */
+    public MessageListener addListener(String topicFilter, MessageHandler handler, Executor executor, OverflowPolicy overflowPolicy, int maxBatchSize) throws MQTTException {
+        if (!SubscribtionTree.isValidFilter(topicFilter)) {
+            throw new MQTTException(MQTTExceptionLevel.WARNING, "Malformed topic filter");
+        }
+
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+
+        MessageListener listener = new MessageListener(topicFilter, handler, executor, overflowPolicy, maxBatchSize, this);
+
+        synchronized (this) {
+            MessageListener[] newListeners = Arrays.copyOf(listeners, listeners.length + 1);
+
+            newListeners[newListeners.length - 1] = listener;
+            listeners = newListeners;
+        }
+
+        return listener;
+    }
+
+    /**
+     * Unregisters given listener.
+     *
+     * @param listener listener to be removed
+     */
+    synchronized void removeListener(MessageListener listener) {
+        MessageListener[] currentListeners = listeners;
+
+        for (int i = 0; i < currentListeners.length; i++) {
+            if (currentListeners[i] == listener) {
+                MessageListener[] newListeners = new MessageListener[currentListeners.length - 1];
+
+                System.arraycopy(currentListeners, 0, newListeners, 0, i);
+                System.arraycopy(currentListeners, i + 1, newListeners, i, newListeners.length - i);
+                listeners = newListeners;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Passes message to all listeners whose filters match its topic.
+     *
+     * @param topic topic to which the message was published
+     * @param payload the content of the message
+     */
+    public void dispatch(String topic, byte[] payload) {
+        /**
+         * Current listeners (read once).
+         */
+        MessageListener[] currentListeners = listeners;
+        /**
+         * Message shared by all matching listeners (built lazily).
+         */
+        PublishMessage message = null;
+
+        for (MessageListener listener : currentListeners) {
+            if (SubscribtionTree.matches(listener.getTopicFilter(), topic)) {
+                if (message == null) {
+                    message = new PublishMessage(topic, payload);
+                }
+
+                listener.offer(message);
+            }
+        }
+    }
+
+    /**
+     * Indicates that some listener is registered.
+     *
+     * @return <i>true</i> if some listener is registered
+     */
+    public boolean hasListeners() {
+        return listeners.length > 0;
+    }
+
+    /**
+     * Returns executor of listeners registered without their own.
+     *
+     * @return shared pool of daemon threads
+     */
+    private synchronized ExecutorService getDefaultExecutor() {
+        if (defaultExecutor == null) {
+            defaultExecutor = Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task, "MessageListener");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        return defaultExecutor;
+    }
+
+    /**
+     * Removes all listeners (messages waiting in their buffers are discarded)
+     * and stops the shared pool when its running handlers finish.
+     */
+    public void close() {
+        for (MessageListener listener : listeners) {
+            listener.close();
+        }
+
+        synchronized (this) {
+            if (defaultExecutor != null) {
+                defaultExecutor.shutdown();
+            }
+        }
+    }
+
+}
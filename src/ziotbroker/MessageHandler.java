@@ -0,0 +1,23 @@
+package ziotbroker;
+
+import java.util.List;
+
+/**
+ * Callback of the embedding application receiving messages published
+ * by the clients. It is run by the executor of its listener, never
+ * concurrently with itself.
+ *
+ * @author Jakub Svarc
+ */
+public interface MessageHandler {
+
+    /**
+     * Handles batch of messages drained from the buffer of the listener
+     * (in the order of their arrival). The list is reused after the call
+     * returns, so it must not be kept.
+     *
+     * @param messages batch of messages
+     */
+    void handle(List<PublishMessage> messages);
+
+}
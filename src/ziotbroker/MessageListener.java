@@ -0,0 +1,254 @@
+package ziotbroker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registered message handler with its topic filter. Messages matching
+ * the filter are put into bounded buffer of the listener by the publishing
+ * thread and drained in batches by one task of the executor of the listener,
+ * so the handler never runs in the publishing thread (unless the executor
+ * does so) and never runs concurrently with itself. Full buffer is resolved
+ * by the overflow policy of the listener - action DISCONNECT removes
+ * the listener.
+ *
+ * @author Jakub Svarc
+ */
+public class MessageListener {
+
+    /**
+     * Default maximal number of messages passed to the handler at once.
+     */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+
+    /**
+     * Topic filter of the listener.
+     */
+    private final String topicFilter;
+    /**
+     * Callback receiving the messages.
+     */
+    private final MessageHandler handler;
+    /**
+     * Executor running the drain task.
+     */
+    private final Executor executor;
+    /**
+     * Capacity of the buffer and action taken when it is full.
+     */
+    private final OverflowPolicy overflowPolicy;
+    /**
+     * Maximal number of messages passed to the handler at once.
+     */
+    private final int maxBatchSize;
+    /**
+     * Messages waiting for the handler.
+     */
+    private final ArrayBlockingQueue<PublishMessage> buffer;
+    /**
+     * Indicates that the drain task was submitted and did not finish yet.
+     */
+    private final AtomicBoolean drainScheduled;
+    /**
+     * Number of messages dropped because the buffer was full.
+     */
+    private final LongAdder droppedMessageCount;
+    /**
+     * Number of messages dropped in a row.
+     */
+    private final AtomicInteger consecutiveDropCount;
+    /**
+     * Dispatcher in which the listener is registered.
+     */
+    private final MessageDispatcher dispatcher;
+    /**
+     * Indicates that the listener was removed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Builds MessageListener.
+     *
+     * @param topicFilter topic filter of the listener
+     * @param handler callback receiving the messages
+     * @param executor executor running the handler
+     * @param overflowPolicy capacity of the buffer and action taken when
+     * it is full
+     * @param maxBatchSize maximal number of messages passed to the handler
+     * at once
+     * @param dispatcher dispatcher in which the listener is registered
+     */
+    MessageListener(String topicFilter, MessageHandler handler, Executor executor, OverflowPolicy overflowPolicy, int maxBatchSize, MessageDispatcher dispatcher) {
+        this.topicFilter = topicFilter;
+        this.handler = handler;
+        this.executor = executor;
+        this.overflowPolicy = overflowPolicy;
+        this.maxBatchSize = maxBatchSize;
+        this.buffer = new ArrayBlockingQueue<>(overflowPolicy.getQueueCapacity());
+        this.drainScheduled = new AtomicBoolean(false);
+        this.droppedMessageCount = new LongAdder();
+        this.consecutiveDropCount = new AtomicInteger();
+        this.dispatcher = dispatcher;
+        this.closed = false;
+    }
+
+    /**
+     * Puts message into the buffer and asks the executor to drain it
+     * (unless it was already asked). Full buffer is resolved by the overflow
+     * policy, the publishing thread is never blocked for longer than
+     * the policy allows (broker in selector mode does not accept policy
+     * which blocks at all).
+     *
+     * @param message message matching the filter
+     */
+    void offer(PublishMessage message) {
+        if (closed) {
+            return;
+        }
+
+        /**
+         * Indicates that the message was buffered.
+         */
+        boolean queued = buffer.offer(message);
+
+        if (!queued) {
+            switch (overflowPolicy.getAction()) {
+                case DROP_OLDEST: {
+                    while (!queued) {
+                        if (buffer.poll() != null) {
+                            droppedMessageCount.increment();
+                        }
+
+                        queued = buffer.offer(message);
+                    }
+
+                    break;
+                } case BOUNDED_WAIT: {
+                    try {
+                        queued = buffer.offer(message, overflowPolicy.getMaxWaitNanos(), TimeUnit.NANOSECONDS);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+
+                    break;
+                } default: {
+                    break;
+                }
+            }
+        }
+
+        if (queued) {
+            consecutiveDropCount.set(0);
+            scheduleDrain();
+            return;
+        }
+
+        droppedMessageCount.increment();
+
+        if (overflowPolicy.getAction() == OverflowAction.DISCONNECT && consecutiveDropCount.incrementAndGet() >= overflowPolicy.getDisconnectThreshold()) {
+            BrokerLogger.log(LogLevel.WARNING, this.getClass(), "Listener of %s does not receive its messages, removing", topicFilter);
+            close();
+        }
+    }
+
+    /**
+     * Submits the drain task unless it is already submitted.
+     */
+    private void scheduleDrain() {
+        if (!drainScheduled.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            executor.execute(this::drain);
+        } catch (RejectedExecutionException ex) {
+            drainScheduled.set(false);
+            BrokerLogger.log(LogLevel.ERROR, this.getClass(), "Drain of %s rejected - %s", topicFilter, ex.getMessage());
+        }
+    }
+
+    /**
+     * Passes buffered messages to the handler in batches until the buffer
+     * is empty. Message buffered after the last batch is drained by the next
+     * task.
+     */
+    private void drain() {
+        /**
+         * Batch reused by all calls of the handler.
+         */
+        ArrayList<PublishMessage> batch = new ArrayList<>(Math.min(maxBatchSize, buffer.remainingCapacity() + buffer.size()));
+        List<PublishMessage> batchView = Collections.unmodifiableList(batch);
+
+        try {
+            while (!closed && buffer.drainTo(batch, maxBatchSize) > 0) {
+                try {
+                    handler.handle(batchView);
+                } catch (RuntimeException ex) {
+                    BrokerLogger.log(LogLevel.ERROR, this.getClass(), "Handler of %s failed - %s", topicFilter, ex.getMessage());
+                }
+
+                batch.clear();
+            }
+        } finally {
+            drainScheduled.set(false);
+        }
+
+        if (!closed && !buffer.isEmpty()) {
+            scheduleDrain();
+        }
+    }
+
+    /**
+     * Removes the listener, messages waiting in its buffer are discarded.
+     */
+    public void close() {
+        closed = true;
+        dispatcher.removeListener(this);
+        buffer.clear();
+    }
+
+    /**
+     * Indicates that the listener was removed.
+     *
+     * @return <i>true</i> if the listener was removed
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Returns topic filter of the listener.
+     *
+     * @return topic filter of the listener
+     */
+    public String getTopicFilter() {
+        return topicFilter;
+    }
+
+    /**
+     * Returns number of messages waiting for the handler.
+     *
+     * @return current depth of the buffer
+     */
+    public int getBufferDepth() {
+        return buffer.size();
+    }
+
+    /**
+     * Returns number of messages dropped because the buffer was full.
+     *
+     * @return number of dropped messages
+     */
+    public long getDroppedMessageCount() {
+        return droppedMessageCount.sum();
+    }
+
+}
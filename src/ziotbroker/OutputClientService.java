@@ -1,74 +1,434 @@
 package ziotbroker;
 
 import ziotbroker.packet.Packet;
-import java.io.IOException;
-import java.io.OutputStream;
-import java.net.Socket;
+import ziotbroker.packet.PacketType;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
         
 /**
- * Service which sends packets from broker to the client.
+ * Service which queues packets sent from broker to the client and keeps state 
+ * of the client (its session, identifier, keep-alive timeout and counters). 
+ * It does not depend on the transport - packets waiting in the queue are 
+ * written by subclasses, which coalesce them into writes (within the byte 
+ * budget of write coalescing settings). Packets are queued without blocking 
+ * the sending thread, overflow of the queue is resolved by the overflow 
+ * policy of the client.
  * 
  * @author Jakub Svarc
  */
-public class OutputClientService implements Runnable {
+public abstract class OutputClientService {
+
+    /**
+     * Updater of the session reference.
+     */
+    private static final AtomicReferenceFieldUpdater<OutputClientService, Session> SESSION = AtomicReferenceFieldUpdater.newUpdater(OutputClientService.class, Session.class, "session");
     
     /**
-     * Connection to the client.
+     * Queue containing encoded packets to be sent to the client.
+     */
+    protected final ArrayBlockingQueue<EncodedPacket> packetQueue;
+    /**
+     * Settings of coalescing of queued packets into writes.
+     */
+    protected final WriteCoalescing writeCoalescing;
+    /**
+     * Action taken when the packet queue is full.
+     */
+    private final OverflowPolicy overflowPolicy;
+    /**
+     * Number of packets dropped because the queue was full.
+     */
+    private final LongAdder droppedPacketCount;
+    /**
+     * Number of packets dropped in a row (since the last successfully queued
+     * packet).
+     */
+    private final AtomicInteger consecutiveDropCount;
+    /**
+     * Counters of the broker load.
+     */
+    protected final BrokerStatistics statistics;
+    /**
+     * Session of the client - its own transient session (built when it is 
+     * first needed) until the client takes over persistent one.
      */
-    private final Socket clientSocket;
+    private volatile Session session;
     /**
-     * Queue containing packets to be sent to the client.
+     * Keep-alive timeout of the client (its connect deadline until it 
+     * connects), <i>null</i> if keep-alive is off.
      */
-    private final ArrayBlockingQueue<Packet> packetQueue;
+    private volatile KeepAliveWheel.Timeout keepAliveTimeout;
+    /**
+     * Identifier of the client, <i>null</i> until its CONNECT packet 
+     * is processed.
+     */
+    private volatile String clientID;
+    /**
+     * Indicates that the client was disconnected, so no more packets are
+     * queued.
+     */
+    protected volatile boolean disconnected;
+    /**
+     * Indicates that <b>CONNECT</b> of the client was accepted.
+     */
+    private volatile boolean connected;
+    /**
+     * Number of writes to the connection.
+     */
+    private volatile long writeCount;
+    /**
+     * Number of packets sent by all writes to the connection.
+     */
+    private volatile long writtenPacketCount;
+    
+    /**
+     * Builds OutputClientService which records sent and dropped packets 
+     * to its own statistics.
+     * 
+     * @param writeCoalescing settings of coalescing of queued packets 
+     * into writes
+     * @param overflowPolicy capacity of the packet queue and action taken 
+     * when it is full
+     */
+    protected OutputClientService(WriteCoalescing writeCoalescing, OverflowPolicy overflowPolicy) {
+        this(writeCoalescing, overflowPolicy, new BrokerStatistics());
+    }
     
     /**
-     * Builds OutputClientService.
+     * Builds OutputClientService which records sent and dropped packets 
+     * to given statistics.
      * 
-     * @param clientSocket connection to the client
+     * @param writeCoalescing settings of coalescing of queued packets 
+     * into writes
+     * @param overflowPolicy capacity of the packet queue and action taken 
+     * when it is full
+     * @param statistics counters of the broker load
      */
-    public OutputClientService(Socket clientSocket) {
-        this.clientSocket = clientSocket;
-        this.packetQueue = new ArrayBlockingQueue<>(1000);
+    protected OutputClientService(WriteCoalescing writeCoalescing, OverflowPolicy overflowPolicy, BrokerStatistics statistics) {
+        this.packetQueue = new ArrayBlockingQueue<>(overflowPolicy.getQueueCapacity());
+        this.writeCoalescing = writeCoalescing;
+        this.overflowPolicy = overflowPolicy;
+        this.droppedPacketCount = new LongAdder();
+        this.consecutiveDropCount = new AtomicInteger();
+        this.statistics = statistics;
+        this.disconnected = false;
+        this.connected = false;
     }
 
     /**
-     * Continuously pulls packets from PacketQueue, encodes them and sends them
-     * to the client.
-     */
-    @Override
-    public void run() {
-        Packet packet;
-        
-        try (
-            OutputStream out = clientSocket.getOutputStream();
-        ) {            
-            while ((packet = packetQueue.take()) != null) {
-                byte[] binaryPacket = PacketParser.parse(packet);
-                
-                out.write(binaryPacket);
-                System.out.printf("%s - Sent %s packet\n", this.getClass().getName(), packet.getType());
+     * Encodes given packet and sends it to the client.
+     * 
+     * @param packet packet to be sent to the client
+     */
+    public void send(Packet packet) {
+        send(new EncodedPacket(packet));
+    }
+
+    /**
+     * Sends given encoded packet to the client. The packet is not copied, so
+     * the same instance can be sent to any number of clients. If the queue 
+     * is full, the overflow policy of the client is applied to <b>PUBLISH</b> 
+     * packets - the calling thread is never blocked for longer than 
+     * the policy allows. Control packets are never dropped (the flows 
+     * of the client would break), client whose queue has no room for them 
+     * is disconnected. Queued pooled packet is retained until it is written 
+     * or dropped, the caller keeps its own reference.
+     * 
+     * @param packet encoded packet to be sent to the client
+     */
+    public void send(EncodedPacket packet) {
+        if (disconnected) {
+            return;
+        }
+        
+        packet.retain();
+        
+        /**
+         * Indicates that the packet was queued.
+         */
+        boolean queued = packetQueue.offer(packet);
+        
+        if (!queued && packet.getType() != PacketType.PUBLISH) {
+            BrokerLogger.logClient(LogLevel.WARNING, this.getClass(), clientID, packet.getType(), "Packet queue is full, control packet cannot be queued, disconnecting");
+            packet.release();
+            disconnect();
+            return;
+        }
+        
+        if (!queued) {
+            switch (overflowPolicy.getAction()) {
+                case DROP_OLDEST: {
+                    EncodedPacket oldestPacket;
+                    
+                    while (!queued) {
+                        // Queue holding only control packets keeps them, the sent packet is dropped
+                        if ((oldestPacket = pollOldestPublish()) == null) {
+                            queued = packetQueue.offer(packet);
+                            break;
+                        }
+                        
+                        dropPacket(oldestPacket);
+                        oldestPacket.release();
+                        queued = packetQueue.offer(packet);
+                    }
+                    
+                    break;
+                } case BOUNDED_WAIT: {
+                    try {
+                        queued = packetQueue.offer(packet, overflowPolicy.getMaxWaitNanos(), TimeUnit.NANOSECONDS);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                    
+                    break;
+                } default: {
+                    break;
+                }
+            }
+        }
+        
+        if (queued) {
+            consecutiveDropCount.set(0);
+            
+            // The client could be disconnected after the check above
+            if (disconnected) {
+                releaseQueuedPackets();
             }
-        } catch (IOException | InterruptedException ex) {
-            System.err.printf("%s - %s\n", this.getClass().getName(), ex.getMessage());
-        } catch (MQTTException ex) {
-            System.err.printf("%s - %s\n", this.getClass().getName(), ex.getMessage());
             
-            if (ex.getLevel() == MQTTExceptionLevel.CRITICAL) {
-                System.exit(1);
+            packetQueued();
+            return;
+        }
+        
+        dropPacket(packet);
+        packet.release();
+        
+        if (overflowPolicy.getAction() == OverflowAction.DISCONNECT && consecutiveDropCount.incrementAndGet() >= overflowPolicy.getDisconnectThreshold()) {
+            BrokerLogger.logClient(LogLevel.WARNING, this.getClass(), clientID, null, "Client does not receive its packets, disconnecting");
+            disconnect();
+        }
+    }
+    
+    /**
+     * Removes the oldest <b>PUBLISH</b> packet from the queue, control 
+     * packets stay queued.
+     * 
+     * @return removed packet, <i>null</i> if the queue contains no 
+     * <b>PUBLISH</b> packet
+     */
+    private EncodedPacket pollOldestPublish() {
+        for (EncodedPacket queuedPacket : packetQueue) {
+            // The packet could be taken by the writer meanwhile
+            if (queuedPacket.getType() == PacketType.PUBLISH && packetQueue.remove(queuedPacket)) {
+                return queuedPacket;
             }
         }
+        
+        return null;
+    }
+    
+    /**
+     * Returns session of the client.
+     * 
+     * @return session of the client
+     */
+    public Session getSession() {
+        Session currentSession = session;
+        
+        // Own session refers to the service, so it is not built by the constructor
+        if (currentSession == null) {
+            SESSION.compareAndSet(this, null, new Session(this));
+            currentSession = session;
+        }
+        
+        return currentSession;
+    }
+    
+    /**
+     * Replaces session of the client, it is used when the client takes over
+     * persistent session.
+     * 
+     * @param session new session of the client
+     */
+    public void setSession(Session session) {
+        this.session = session;
+    }
+    
+    /**
+     * Returns identifier of the client.
+     * 
+     * @return identifier of the client, <i>null</i> if it did not connect yet
+     */
+    public String getClientID() {
+        return clientID;
+    }
+    
+    /**
+     * Sets identifier of the client, it is used when the client connects.
+     * 
+     * @param clientID identifier of the client
+     */
+    public void setClientID(String clientID) {
+        this.clientID = clientID;
+    }
+    
+    /**
+     * Sets keep-alive timeout of the client, it is used when the connection 
+     * is opened (connect deadline) and when the client connects. Previous 
+     * timeout of the client is cancelled.
+     * 
+     * @param keepAliveTimeout keep-alive timeout, <i>null</i> if keep-alive 
+     * is off
+     */
+    public void setKeepAliveTimeout(KeepAliveWheel.Timeout keepAliveTimeout) {
+        /**
+         * Replaced timeout.
+         */
+        KeepAliveWheel.Timeout previousTimeout = this.keepAliveTimeout;
+        
+        this.keepAliveTimeout = keepAliveTimeout;
+        
+        if (previousTimeout != null) {
+            previousTimeout.cancel();
+        }
+    }
+    
+    /**
+     * Records that <b>CONNECT</b> of the client was accepted.
+     */
+    public void setConnected() {
+        this.connected = true;
+    }
+    
+    /**
+     * Indicates that <b>CONNECT</b> of the client was accepted.
+     * 
+     * @return <i>true</i> if the client is connected
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+    
+    /**
+     * Records that data were received from the client, so its keep-alive 
+     * deadline moves. It is called after every read from the connection.
+     */
+    public void recordActivity() {
+        /**
+         * Current timeout (read once, it can be set concurrently).
+         */
+        KeepAliveWheel.Timeout timeout = keepAliveTimeout;
+        
+        if (timeout != null) {
+            timeout.touch();
+        }
+    }
+    
+    /**
+     * Indicates that the client was disconnected.
+     * 
+     * @return <i>true</i> if the client was disconnected
+     */
+    public boolean isDisconnected() {
+        return disconnected;
+    }
+    
+    /**
+     * Called when the packet was queued. Services which do not own a thread 
+     * use it to ask for sending of the queued packets.
+     */
+    protected void packetQueued() {}
+    
+    /**
+     * Records packet dropped because of full queue.
+     * 
+     * @param packet dropped packet
+     */
+    private void dropPacket(EncodedPacket packet) {
+        droppedPacketCount.increment();
+        statistics.packetDropped();
+        BrokerLogger.logClient(LogLevel.WARNING, this.getClass(), clientID, packet.getType(), "Packet queue is full, packet dropped");
+    }
+    
+    /**
+     * Disconnects the client. Its connection is closed, so no more packets 
+     * are received from it or sent to it.
+     */
+    protected abstract void disconnect();
+    
+    /**
+     * Removes all packets from the queue of disconnected client and releases 
+     * them, so pooled packets return to the pool.
+     */
+    protected void releaseQueuedPackets() {
+        EncodedPacket packet;
+        
+        while ((packet = packetQueue.poll()) != null) {
+            packet.release();
+        }
     }
 
     /**
-     * Sends given packet to the client.
+     * Records one write to the connection. It must be called only by the 
+     * thread which writes to the connection.
      * 
-     * @param packet packet to be sent to the client
+     * @param packetCount number of packets sent by the write
      */
-    public void send(Packet packet) {
-        try {
-            packetQueue.put(packet);
-        } catch (InterruptedException ex) {}
+    protected void recordWrite(int packetCount) {
+        writeCount++;
+        writtenPacketCount += packetCount;
+    }
+
+    /**
+     * Returns number of packets waiting for sending to the client.
+     * 
+     * @return current depth of the packet queue
+     */
+    public int getQueueDepth() {
+        return packetQueue.size();
+    }
+
+    /**
+     * Returns number of packets dropped because the queue was full.
+     * 
+     * @return number of dropped packets
+     */
+    public long getDroppedPacketCount() {
+        return droppedPacketCount.sum();
+    }
+
+    /**
+     * Returns number of writes to the connection.
+     * 
+     * @return number of writes to the connection
+     */
+    public long getWriteCount() {
+        return writeCount;
+    }
+
+    /**
+     * Returns number of packets sent by all writes to the connection.
+     * 
+     * @return number of sent packets
+     */
+    public long getWrittenPacketCount() {
+        return writtenPacketCount;
+    }
+
+    /**
+     * Returns average number of packets sent by one write.
+     * 
+     * @return average number of packets per write (0 if nothing was written)
+     */
+    public double getAveragePacketsPerWrite() {
+        /**
+         * Number of writes (read once, so it is consistent for the division).
+         */
+        long writes = writeCount;
+        
+        return writes == 0 ? 0 : (double) writtenPacketCount / writes;
     }
 
 }
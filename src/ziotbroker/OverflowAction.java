@@ -0,0 +1,30 @@
+package ziotbroker;
+
+/**
+ * Action taken when packet is sent to the client whose packet queue is full
+ * (the client does not read its packets fast enough).
+ *
+ * @author Jakub Svarc
+ */
+public enum OverflowAction {
+    /**
+     * The sent packet is dropped, queued packets are kept.
+     */
+    DROP_NEWEST,
+    /**
+     * The oldest queued packet is dropped to make room for the sent one.
+     */
+    DROP_OLDEST,
+    /**
+     * The sent packet is dropped and the client is disconnected when too many
+     * packets are dropped in a row.
+     */
+    DISCONNECT,
+    /**
+     * The sending thread waits for a room in the queue for a limited time,
+     * then the sent packet is dropped. It can not be used by broker
+     * in selector mode, where the sending thread is event loop serving many
+     * other connections.
+     */
+    BOUNDED_WAIT
+}
@@ -0,0 +1,125 @@
+package ziotbroker;
+
+/**
+ * Settings of the packet queue of one client and of the action taken when 
+ * the queue is full. The thread sending the packet (usually the input service 
+ * of the publishing client) never blocks on the full queue for longer than 
+ * the policy allows, so one slow client cannot stall the others. The policy 
+ * applies only to <b>PUBLISH</b> packets - control packets are never 
+ * dropped, client without room for them is disconnected.
+ *
+ * @author Jakub Svarc
+ */
+public class OverflowPolicy {
+
+    /**
+     * Default capacity of the packet queue.
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+    /**
+     * Default policy - 1000 packets in the queue, newest packets are dropped.
+     */
+    public static final OverflowPolicy DEFAULT = new OverflowPolicy(DEFAULT_QUEUE_CAPACITY, OverflowAction.DROP_NEWEST);
+
+    /**
+     * Maximal number of packets waiting for sending to the client.
+     */
+    private final int queueCapacity;
+    /**
+     * Action taken when the queue is full.
+     */
+    private final OverflowAction action;
+    /**
+     * Number of packets dropped in a row after which the client is
+     * disconnected (used only by {@link OverflowAction#DISCONNECT}).
+     */
+    private final int disconnectThreshold;
+    /**
+     * Maximal time in nanoseconds for which the sending thread waits for 
+     * a room in the queue (used only by {@link OverflowAction#BOUNDED_WAIT}).
+     */
+    private final long maxWaitNanos;
+
+    /**
+     * Builds OverflowPolicy.
+     *
+     * @param queueCapacity maximal number of packets waiting for sending
+     * to the client
+     * @param action action taken when the queue is full
+     * @param disconnectThreshold number of packets dropped in a row after
+     * which the client is disconnected (used only by 
+     * {@link OverflowAction#DISCONNECT})
+     * @param maxWaitNanos maximal time in nanoseconds for which the sending
+     * thread waits for a room in the queue (used only by 
+     * {@link OverflowAction#BOUNDED_WAIT})
+     */
+    public OverflowPolicy(int queueCapacity, OverflowAction action, int disconnectThreshold, long maxWaitNanos) {
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("Queue capacity must be positive");
+        }
+
+        if (action == OverflowAction.DISCONNECT && disconnectThreshold < 1) {
+            throw new IllegalArgumentException("Disconnect threshold must be positive");
+        }
+
+        if (action == OverflowAction.BOUNDED_WAIT && maxWaitNanos < 0) {
+            throw new IllegalArgumentException("Wait time must not be negative");
+        }
+
+        this.queueCapacity = queueCapacity;
+        this.action = action;
+        this.disconnectThreshold = disconnectThreshold;
+        this.maxWaitNanos = maxWaitNanos;
+    }
+
+    /**
+     * Builds OverflowPolicy with action which needs no other parameters
+     * ({@link OverflowAction#DROP_NEWEST} or {@link OverflowAction#DROP_OLDEST}).
+     *
+     * @param queueCapacity maximal number of packets waiting for sending
+     * to the client
+     * @param action action taken when the queue is full
+     */
+    public OverflowPolicy(int queueCapacity, OverflowAction action) {
+        this(queueCapacity, action, 1, 0);
+    }
+
+    /**
+     * Returns maximal number of packets waiting for sending to the client.
+     *
+     * @return capacity of the packet queue
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Returns action taken when the queue is full.
+     *
+     * @return action taken when the queue is full
+     */
+    public OverflowAction getAction() {
+        return action;
+    }
+
+    /**
+     * Returns number of packets dropped in a row after which the client 
+     * is disconnected.
+     *
+     * @return disconnect threshold
+     */
+    public int getDisconnectThreshold() {
+        return disconnectThreshold;
+    }
+
+    /**
+     * Returns maximal time for which the sending thread waits for a room 
+     * in the queue.
+     *
+     * @return maximal wait in nanoseconds
+     */
+    public long getMaxWaitNanos() {
+        return maxWaitNanos;
+    }
+
+}
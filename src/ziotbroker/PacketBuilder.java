@@ -1,8 +1,12 @@
 package ziotbroker;
 
+import ziotbroker.packet.ConnackPacket;
+import ziotbroker.packet.EmptyPacket;
+import ziotbroker.packet.IdentifierPacket;
 import ziotbroker.packet.Packet;
 import ziotbroker.packet.PacketType;
-import java.nio.charset.Charset;
+import ziotbroker.packet.PublishPacket;
+import ziotbroker.packet.SubackPacket;
 
 /**
  * Supporting class which serves to build packets.
@@ -12,13 +16,16 @@ import java.nio.charset.Charset;
 public class PacketBuilder {
     
     /**
-     * Builds <b>CONNACK</b> packet. - <b>NOT IMPLEMENTED YET!!!</b>
+     * Builds <b>CONNACK</b> packet as response for CONNECT packet.
      * 
+     * @param sessionPresent indicates that the broker already had session 
+     * of the client
+     * @param connectReturnCode result of the connection attempt (0 for 
+     * accepted connection)
      * @return MQTT <b>CONNACK</b> packet
      */
-    public static Packet buildConnackPacket() {
-        // TODO Will be implemented in the future
-        return null;
+    public static ConnackPacket buildConnackPacket(boolean sessionPresent, byte connectReturnCode) {
+        return new ConnackPacket(sessionPresent, connectReturnCode);
     }
     
     /**
@@ -30,90 +37,71 @@ public class PacketBuilder {
      * @param payload the massage itself
      * @return MQTT <b>PUBLISH</b> packet
      */
-    public static Packet buildPublishPacket(boolean[] flags, String topic, String payload) {
-        /**
-         * Topic encoded as byte array.
-         */
-        byte[] binaryTopic = topic.getBytes(Charset.forName("UTF-8"));
-        /**
-         * Length of encoded topic.
-         */
-        short binaryTopicLength = (short) binaryTopic.length;
-        /**
-         * Length of encoded topic represented by byte array.
-         */
-        byte[] encodedBinaryTopicLength = new byte[2];
-        /**
-         * Variable headers packet field (payload not included).
-         */
-        byte[] variableHeaders = new byte[binaryTopicLength + 2];
-        /**
-         * Length of variable headers and payload.
-         */
-        int remainingLength = 2 + binaryTopicLength + payload.length();
-
-        encodedBinaryTopicLength[0] = (byte)((binaryTopicLength >> 8) & 255);
-        encodedBinaryTopicLength[1] = (byte)(binaryTopicLength & 255);
-
-        System.arraycopy(encodedBinaryTopicLength, 0, variableHeaders, 0, encodedBinaryTopicLength.length);
-        System.arraycopy(binaryTopic, 0, variableHeaders, encodedBinaryTopicLength.length, binaryTopic.length);
-
-        return new Packet(PacketType.PUBLISH, flags, remainingLength, variableHeaders, payload);
+    public static PublishPacket buildPublishPacket(boolean[] flags, String topic, byte[] payload) {
+        return new PublishPacket(flags[3], topic, payload);
     }
     
     /**
-     * Builds <b>PUBLISH</b> packet for QoS 1 and 2 (Includes packet ID). -
-     * <b>NOT IMPLEMENTED YET!!!</b>
+     * Builds <b>PUBLISH</b> packet for QoS 1 and 2 (Includes packet ID).
      * 
-     * @param flags flags part of control header
+     * @param flags flags part of control header (DUP, QoS high bit, QoS low
+     * bit, RETAIN)
      * @param topic topic of the message
      * @param packetID ID of the packet
      * @param payload the massage itself
      * @return MQTT <b>PUBLISH</b> packet
      */
-    public static Packet buildPublishPacket(boolean[] flags, String topic, short packetID, String payload) {
-        // TODO Will be implemented along with QoS 1 and 2
-        return null;
+    public static PublishPacket buildPublishPacket(boolean[] flags, String topic, short packetID, byte[] payload) {
+        if (flags[1] && flags[2]) {
+            throw new IllegalArgumentException("QoS 3 does not exist");
+        }
+
+        /**
+         * QoS given by its two flag bits.
+         */
+        QoS qualityOfService = QoS.values()[(flags[1] ? 2 : 0) | (flags[2] ? 1 : 0)];
+
+        return new PublishPacket(flags[0], qualityOfService, flags[3], topic, packetID & 65535, payload);
     }
     
     /**
-     * Builds <b>PUBACK</b> packet. - <b>NOT IMPLEMENTED YET!!!</b>
+     * Builds <b>PUBACK</b> packet as response for PUBLISH packet with QoS 1.
      * 
+     * @param packetIdentifier ID of acknowledged PUBLISH packet
      * @return MQTT <b>PUBACK</b> packet
      */
-    public static Packet buildPubackPacket() {
-        // TODO Will be implemented along with QoS 1 and 2
-        return null;
+    public static IdentifierPacket buildPubackPacket(int packetIdentifier) {
+        return new IdentifierPacket(PacketType.PUBACK, packetIdentifier);
     }
     
     /**
-     * Builds <b>PUBREC</b> packet. - <b>NOT IMPLEMENTED YET!!!</b>
+     * Builds <b>PUBREC</b> packet as response for PUBLISH packet with QoS 2.
      * 
+     * @param packetIdentifier ID of the QoS 2 message
      * @return MQTT <b>PUBREC</b> packet
      */
-    public static Packet buildPubrecPacket() {
-        // TODO Will be implemented along with QoS 1 and 2
-        return null;
+    public static IdentifierPacket buildPubrecPacket(int packetIdentifier) {
+        return new IdentifierPacket(PacketType.PUBREC, packetIdentifier);
     }
     
     /**
-     * Builds <b>PUBREL</b> packet. - <b>NOT IMPLEMENTED YET!!!</b>
+     * Builds <b>PUBREL</b> packet as response for PUBREC packet.
      * 
+     * @param packetIdentifier ID of the QoS 2 message
      * @return MQTT <b>PUBREL</b> packet
      */
-    public static Packet buildPubrelPacket() {
-        // TODO Will be implemented along with QoS 1 and 2
-        return null;
+    public static IdentifierPacket buildPubrelPacket(int packetIdentifier) {
+        return new IdentifierPacket(PacketType.PUBREL, packetIdentifier);
     }
     
     /**
-     * Builds <b>PUBCOMP</b> packet. - <b>NOT IMPLEMENTED YET!!!</b>
+     * Builds <b>PUBCOMP</b> packet as response for PUBREL packet.
      * 
+     * @param packetIdentifier ID of the QoS 2 message
      * @return MQTT <b>PUBCOMP</b> packet
      */
-    public static Packet buildPubcompPacket() {
-        // TODO Will be implemented along with QoS 1 and 2
-        return null;
+    public static IdentifierPacket buildPubcompPacket(int packetIdentifier) {
+        return new IdentifierPacket(PacketType.PUBCOMP, packetIdentifier);
     }
         
     /**
@@ -126,11 +114,8 @@ public class PacketBuilder {
      * value 128)
      * @return MQTT <b>SUBACK</b> packet
      */
-    public static Packet buildSubackPacket(byte[] packetIdentifier, byte[] subscribtionReturnCodes) {
-        boolean[] flags = {false, false, false, false};
-        int remainingLength = packetIdentifier.length + subscribtionReturnCodes.length;
-        
-        return new Packet(PacketType.SUBACK, flags, remainingLength, packetIdentifier, new String(subscribtionReturnCodes, Charset.forName("UTF-8")));
+    public static SubackPacket buildSubackPacket(int packetIdentifier, byte[] subscribtionReturnCodes) {
+        return new SubackPacket(packetIdentifier, subscribtionReturnCodes);
     }
     
     /**
@@ -144,13 +129,12 @@ public class PacketBuilder {
     }
     
     /**
-     * Builds <b>PINGRESP</b> packet. - <b>NOT IMPLEMENTED YET!!!</b>
+     * Builds <b>PINGRESP</b> packet as response for PINGREQ packet.
      * 
      * @return MQTT <b>PINGRESP</b> packet
      */
-    public static Packet buildPingrespPacket() {
-        // TODO Will be implemented in the future
-        return null;
+    public static EmptyPacket buildPingrespPacket() {
+        return new EmptyPacket(PacketType.PINGRESP);
     }
     
 }
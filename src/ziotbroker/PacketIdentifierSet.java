@@ -0,0 +1,73 @@
+package ziotbroker;
+
+/**
+ * Set of packet identifiers stored as bitmap - one bit for every possible
+ * identifier, so the set has constant size (8 KiB) and adding or removing
+ * an identifier allocates nothing.
+ *
+ * The set is not thread-safe, its owner must synchronize access to it.
+ *
+ * @author Jakub Svarc
+ */
+public class PacketIdentifierSet {
+
+    /**
+     * Bits of all packet identifiers (bit <i>i</i> of word <i>i / 64</i>
+     * belongs to identifier <i>i</i>).
+     */
+    private final long[] words;
+
+    /**
+     * Builds empty PacketIdentifierSet.
+     */
+    public PacketIdentifierSet() {
+        this.words = new long[(InflightTable.MAX_PACKET_IDENTIFIER + 1) / 64];
+    }
+
+    /**
+     * Adds packet identifier to the set.
+     *
+     * @param packetIdentifier packet identifier (1 - 65535)
+     * @return <i>false</i> if the identifier already was in the set
+     */
+    public boolean add(int packetIdentifier) {
+        /**
+         * Bit of the identifier within its word.
+         */
+        long bit = 1L << packetIdentifier;
+        boolean absent = (words[packetIdentifier >>> 6] & bit) == 0;
+
+        words[packetIdentifier >>> 6] |= bit;
+
+        return absent;
+    }
+
+    /**
+     * Removes packet identifier from the set.
+     *
+     * @param packetIdentifier packet identifier (1 - 65535)
+     * @return <i>false</i> if the identifier was not in the set
+     */
+    public boolean remove(int packetIdentifier) {
+        /**
+         * Bit of the identifier within its word.
+         */
+        long bit = 1L << packetIdentifier;
+        boolean present = (words[packetIdentifier >>> 6] & bit) != 0;
+
+        words[packetIdentifier >>> 6] &= ~bit;
+
+        return present;
+    }
+
+    /**
+     * Indicates that packet identifier is in the set.
+     *
+     * @param packetIdentifier packet identifier (1 - 65535)
+     * @return <i>true</i> if the identifier is in the set
+     */
+    public boolean contains(int packetIdentifier) {
+        return (words[packetIdentifier >>> 6] & (1L << packetIdentifier)) != 0;
+    }
+
+}
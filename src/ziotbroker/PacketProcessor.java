@@ -1,9 +1,18 @@
 package ziotbroker;
 
+import ziotbroker.packet.ConnectPacket;
+import ziotbroker.packet.IdentifierPacket;
 import ziotbroker.packet.Packet;
+import ziotbroker.packet.PacketType;
+import ziotbroker.packet.PublishPacket;
+import ziotbroker.packet.SubscribePacket;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
 
 /**
@@ -14,182 +23,787 @@ import java.util.concurrent.ArrayBlockingQueue;
 public class PacketProcessor {
     
     /**
-     * Map storing subscribtions of the clients.
+     * Charset used for encoding topics (for MQTT 3.1.1 it is UTF-8).
      */
-    private final HashMap<Subscribtion, ArrayList<OutputClientService>> subscribtions;
+    private static final Charset CHARSET = Charset.forName("UTF-8");
     /**
-     * Queue containing messages extracted from PUBLISH packets.
+     * SUBACK return code of the subscribtion which was not accepted.
      */
-    private final ArrayBlockingQueue<PublishMessage> incomingMessageQueue;
+    private static final byte SUBSCRIBTION_FAILURE = (byte) 128;
+    /**
+     * The highest QoS which can be granted to subscribtion.
+     */
+    private static final byte MAX_GRANTED_QOS = 2;
+    /**
+     * CONNACK return code of accepted connection.
+     */
+    private static final byte CONNECTION_ACCEPTED = 0;
+    /**
+     * CONNACK return code of connection whose client identifier is not
+     * allowed (empty identifier with clean session flag unset).
+     */
+    private static final byte IDENTIFIER_REJECTED = 2;
+    /**
+     * Encoded <b>PINGRESP</b> packet shared by all responses.
+     */
+    private static final EncodedPacket PINGRESP_PACKET = new EncodedPacket(PacketBuilder.buildPingrespPacket());
     
     /**
-     * Builds packet processor.
+     * Index storing subscribtions of the clients.
+     */
+    private final SubscribtionTree subscribtions;
+    /**
+     * Dispatcher of published messages to listeners of the embedding 
+     * application.
+     */
+    private final MessageDispatcher messageDispatcher;
+    /**
+     * Queue of messages for deprecated {@link #getPublishedMessage} (built 
+     * on its first call).
+     */
+    private ArrayBlockingQueue<PublishMessage> legacyMessageQueue;
+    /**
+     * Scheduler resending messages which were not acknowledged by subscribers.
+     */
+    private final RetransmitScheduler retransmitScheduler;
+    /**
+     * Store of persistent sessions of the clients.
+     */
+    private final SessionStore sessionStore;
+    /**
+     * Store of retained messages.
+     */
+    private final RetainedMessageStore retainedMessages;
+    /**
+     * Timing wheel disconnecting clients whose keep-alive expired.
+     */
+    private final KeepAliveWheel keepAliveWheel;
+    /**
+     * Time within which new connection must send <b>CONNECT</b> 
+     * in nanoseconds.
+     */
+    private final long connectTimeoutNanos;
+    /**
+     * Counters of the broker load.
+     */
+    private final BrokerStatistics statistics;
+    /**
+     * Pool of buffers of read buffers and PUBLISH packets with QoS 0.
+     */
+    private final BufferPool bufferPool;
+    /**
+     * Cluster to whose peers published messages are forwarded, <i>null</i> 
+     * for standalone broker.
+     */
+    private volatile ClusterNode cluster;
+    /**
+     * Empty array of every thread reading incoming packets, it receives 
+     * encoded PUBLISH packets of one incoming message, so routing 
+     * of the message does not allocate it (it is cleared after the message 
+     * is sent).
+     */
+    private final ThreadLocal<EncodedPacket[]> encodedPackets;
+    
+    /**
+     * Builds packet processor with default options.
+     * 
+     * @param subscribtions index storing subscribtions of the clients
+     */
+    public PacketProcessor(SubscribtionTree subscribtions) {
+        this(subscribtions, new MQTTBroker.Config(), new BrokerStatistics());
+    }
+    
+    /**
+     * Builds packet processor with stores, pool of buffers, retry interval 
+     * of unacknowledged messages and connect timeout given by options 
+     * of the broker (stores and pool which are not set are built).
      * 
-     * @param subscribtions map storing subscribtions of the clients
+     * @param subscribtions index storing subscribtions of the clients
+     * @param config options of the broker
+     * @param statistics counters of the broker load
      */
-    public PacketProcessor(HashMap<Subscribtion, ArrayList<OutputClientService>> subscribtions) {
+    public PacketProcessor(SubscribtionTree subscribtions, MQTTBroker.Config config, BrokerStatistics statistics) {
         this.subscribtions = subscribtions;
-        this.incomingMessageQueue = new ArrayBlockingQueue<>(10000);
+        this.messageDispatcher = new MessageDispatcher();
+        this.retransmitScheduler = new RetransmitScheduler(config.getRetryIntervalNanos());
+        this.sessionStore = config.getSessionStore() != null ? config.getSessionStore() : new SessionStore();
+        this.retainedMessages = config.getRetainedMessages() != null ? config.getRetainedMessages() : new RetainedMessageStore();
+        this.keepAliveWheel = new KeepAliveWheel();
+        this.connectTimeoutNanos = config.getConnectTimeoutNanos();
+        this.encodedPackets = ThreadLocal.withInitial(() -> new EncodedPacket[3]);
+        this.statistics = statistics;
+        this.bufferPool = config.getBufferPool() != null ? config.getBufferPool() : new BufferPool();
+    }
+    
+    /**
+     * Passes incoming packet decoded into flyweight view to the method 
+     * processing its type. <b>PUBLISH</b> packet is processed directly from 
+     * the view, other packets are materialized and processed 
+     * as by {@link #process(Packet, OutputClientService)}.
+     * 
+     * @param packet view of incoming packet to be processed (valid only 
+     * during the call)
+     * @param outputClient output service of the client which sent the packet
+     * @throws MQTTException thrown if packet type is unexpected or packet data
+     * are corrupted
+     */
+    public void process(PacketView packet, OutputClientService outputClient) throws MQTTException {
+        if (packet.getType() != PacketType.PUBLISH) {
+            process(packet.toPacket(), outputClient);
+            return;
+        }
+        
+        if (!outputClient.isConnected()) {
+            throw new MQTTException(MQTTExceptionLevel.ERROR, "Client sent PUBLISH before CONNECT");
+        }
+        
+        statistics.packetReceived(PacketType.PUBLISH);
+        processPublish(packet, outputClient);
     }
     
     /**
-     * Processes incoming <b>CONNECT</b> packet. - <b>NOT IMPLEMENTED YET!!!</b>
+     * Passes incoming packet to the method processing its type. The first 
+     * packet of the client must be <b>CONNECT</b>, the client is refused 
+     * if it sends anything else before it is accepted.
+     * 
+     * @param packet incoming packet to be processed
+     * @param outputClient output service of the client which sent the packet
+     * @throws MQTTException thrown if packet type is unexpected or packet data
+     * are corrupted
+     */
+    public void process(Packet packet, OutputClientService outputClient) throws MQTTException {
+        if (!outputClient.isConnected() && packet.getType() != PacketType.CONNECT) {
+            throw new MQTTException(MQTTExceptionLevel.ERROR, "Client sent " + packet.getType() + " before CONNECT");
+        }
+        
+        statistics.packetReceived(packet.getType());
+        
+        switch(packet.getType()) {
+            case CONNECT: {
+                processConnect((ConnectPacket) packet, outputClient);
+                break;
+            } case PUBLISH: {
+                processPublish((PublishPacket) packet, outputClient);
+                break;
+            } case PUBACK: {
+                processPuback((IdentifierPacket) packet, outputClient);
+                break;
+            } case PUBREC: {
+                processPubrec((IdentifierPacket) packet, outputClient);
+                break;
+            } case PUBREL: {
+                processPubrel((IdentifierPacket) packet, outputClient);
+                break;
+            } case PUBCOMP: {
+                processPubcomp((IdentifierPacket) packet, outputClient);
+                break;
+            } case SUBSCRIBE: {
+                processSubscribe((SubscribePacket) packet, outputClient);
+                break;
+            } case UNSUBSCRIBE: {
+                processUnsubscribe(packet);
+                break;
+            } case PINGREQ: {
+                processPingreq(packet, outputClient);
+                break;
+            } case DISCONNECT: {
+                processDisconnect(packet);
+                break;
+            } default:
+                throw new MQTTException(MQTTExceptionLevel.ERROR, "Unexpected packet type!");
+        }
+    }
+    
+    /**
+     * Processes incoming <b>CONNECT</b> packet and answers it by <b>CONNACK</b>.
+     * Client with clean session flag set keeps its transient session and its 
+     * stored persistent session is discarded. Client with the flag unset 
+     * takes over its persistent session (new one is created if it has none) 
+     * - its previous connection is closed, its subscribtions are moved 
+     * to the new connection and all its messages in flight are resent.
+     * Accepted client is watched by keep-alive timing wheel if its keep-alive 
+     * interval is not zero (the keep-alive timeout replaces its connect 
+     * deadline). Client which is already connected must not send 
+     * <b>CONNECT</b> again, it is a protocol violation.
      * 
      * @param packet incoming <b>CONNECT</b> packet to be processed
+     * @param outputClient output service of the client which sent the packet
+     * @throws MQTTException thrown if the client is already connected
      */
-    public void processConnect(Packet packet) {
-        // TODO Will be implemented in the future
+    public void processConnect(ConnectPacket packet, OutputClientService outputClient) throws MQTTException {
+        if (outputClient.isConnected()) {
+            throw new MQTTException(MQTTExceptionLevel.ERROR, "Client sent CONNECT twice");
+        }
+        
+        String clientID = packet.getClientID();
+        
+        outputClient.setClientID(clientID.isEmpty() ? null : clientID);
+        
+        if (packet.getCleanSession()) {
+            /**
+             * Discarded persistent session of the client.
+             */
+            Session storedSession = clientID.isEmpty() ? null : sessionStore.remove(clientID);
+            
+            /**
+             * Connection of the discarded session.
+             */
+            OutputClientService storedClient = storedSession != null ? storedSession.getClient() : null;
+            
+            if (storedClient != null) {
+                storedClient.disconnect();
+                
+                for (String topicFilter : storedSession.getSubscribtions().keySet()) {
+                    subscribtions.unsubscribe(topicFilter, storedClient);
+                }
+            }
+            
+            outputClient.setKeepAliveTimeout(keepAliveWheel.register(outputClient, packet.getKeepAlive() & 65535));
+            outputClient.setConnected();
+            outputClient.send(PacketBuilder.buildConnackPacket(false, CONNECTION_ACCEPTED));
+            return;
+        }
+        
+        if (clientID.isEmpty()) {
+            outputClient.send(PacketBuilder.buildConnackPacket(false, IDENTIFIER_REJECTED));
+            return;
+        }
+        
+        Session session = sessionStore.get(clientID);
+        boolean sessionPresent = session != null;
+        
+        if (session == null) {
+            session = sessionStore.create(clientID);
+        }
+        
+        outputClient.setSession(session);
+        outputClient.setKeepAliveTimeout(keepAliveWheel.register(outputClient, packet.getKeepAlive() & 65535));
+        outputClient.setConnected();
+        outputClient.send(PacketBuilder.buildConnackPacket(sessionPresent, CONNECTION_ACCEPTED));
+        
+        /**
+         * Connection which had the session until now.
+         */
+        OutputClientService previousClient = session.attach(outputClient);
+        
+        if (previousClient != null && previousClient != outputClient) {
+            previousClient.disconnect();
+            
+            for (Map.Entry<String, Byte> subscribtion : session.getSubscribtions().entrySet()) {
+                try {
+                    subscribtions.subscribe(new Subscribtion(subscribtion.getKey(), subscribtion.getValue()), outputClient);
+                } catch (MQTTException ex) {
+                    BrokerLogger.log(LogLevel.ERROR, this.getClass(), ex.getMessage());
+                }
+                
+                subscribtions.unsubscribe(subscribtion.getKey(), previousClient);
+            }
+        }
+        
+        if (session.hasInflightPackets()) {
+            retransmitScheduler.track(session);
+        }
+    }
+    
+    /**
+     * Processes new connection of the client. The client is disconnected 
+     * if it does not send <b>CONNECT</b> within connect timeout, so 
+     * connections which never connect do not hold their resources forever.
+     * 
+     * @param outputClient output service of the new client
+     */
+    public void processConnectionOpened(OutputClientService outputClient) {
+        outputClient.setKeepAliveTimeout(keepAliveWheel.registerConnectDeadline(outputClient, connectTimeoutNanos));
+    }
+    
+    /**
+     * Processes loss of the connection to the client. Subscribtions 
+     * of transient session end with it, persistent session keeps them, 
+     * so messages for the client are kept until it connects again.
+     * 
+     * @param outputClient output service of the disconnected client
+     */
+    public void processConnectionLost(OutputClientService outputClient) {
+        statistics.connectionClosed();
+        
+        Session session = outputClient.getSession();
+        
+        if (session.isPersistent()) {
+            return;
+        }
+        
+        for (String topicFilter : session.getSubscribtions().keySet()) {
+            subscribtions.unsubscribe(topicFilter, outputClient);
+        }
     }
     
     /**
      * Processes incoming <b>PUBLISH</b> packet and sends it to all clients with
-     * subscription to its topic.
-     * Only QoS 0 is supported now. Other will be implemented in the future.
+     * subscription to its topic. Message with QoS 1 is acknowledged 
+     * by <b>PUBACK</b> after it is routed. Message with QoS 2 is routed only 
+     * at its first arrival (its identifier is kept until <b>PUBREL</b> comes) 
+     * and every arrival is answered by <b>PUBREC</b>.
      * 
      * @param packet incoming packet to be processed
+     * @param outputClient output service of the client which sent the packet
      * @throws MQTTException if packet data are corrupted (e.g. QoS is set to 4)
      */
-    public void processPublish(Packet packet) throws MQTTException {
-        boolean[] flags = packet.getFlags();
-        //TODO Retain flag resolving will be implemented in the future
-
-        if (!flags[1] && !flags[2]) {
-            try {
-                if (flags[0]) {
-                    throw new MQTTException(MQTTExceptionLevel.ERROR, "Malformed flags field");
+    public void processPublish(PublishPacket packet, OutputClientService outputClient) throws MQTTException {
+        switch (packet.getQualityOfService()) {
+            case AT_MOST_ONCE: {
+                deliver(packet);
+                break;
+            } case AT_LEAST_ONCE: {
+                deliver(packet);
+                outputClient.send(PacketBuilder.buildPubackPacket(packet.getPacketIdentifier()));
+                break;
+            } case EXACTLY_ONCE: {
+                if (outputClient.getSession().receiveExactlyOnce(packet.getPacketIdentifier())) {
+                    deliver(packet);
                 }
-
-                byte[] variableHeaders = packet.getVariableHeaders();
-                String topic = new String(variableHeaders, 2, variableHeaders.length - 2, Charset.forName("UTF-8"));
-
-                incomingMessageQueue.put(new PublishMessage(topic, packet.getPayload()));
                 
-                Packet responsePacket = PacketBuilder.buildPublishPacket(flags, topic, packet.getPayload());
-                ArrayList<OutputClientService> matchingSubscriptions = subscribtions.get(new Subscribtion(topic, (byte) 0));
-
-                if (matchingSubscriptions != null) {
-                    matchingSubscriptions.stream().map(matchingSubscription -> matchingSubscription).forEach(matchingOutputClient -> {
-                        matchingOutputClient.send(responsePacket);
-                    });
+                outputClient.send(PacketBuilder.buildPubrecPacket(packet.getPacketIdentifier()));
+                break;
+            }
+        }
+    }
+    
+    /**
+     * Processes incoming <b>PUBLISH</b> packet as 
+     * {@link #processPublish(PublishPacket, OutputClientService)} does, but 
+     * directly from its view - nothing is copied out of the read buffer 
+     * unless the message outlives the read (it is retained, passed 
+     * to listeners or sent to subscribers).
+     * 
+     * @param packet view of incoming packet to be processed
+     * @param outputClient output service of the client which sent the packet
+     * @throws MQTTException if the topic of the packet is malformed
+     */
+    public void processPublish(PacketView packet, OutputClientService outputClient) throws MQTTException {
+        switch (packet.getQualityOfService()) {
+            case 0: {
+                deliver(packet);
+                break;
+            } case 1: {
+                deliver(packet);
+                outputClient.send(PacketBuilder.buildPubackPacket(packet.getPacketIdentifier()));
+                break;
+            } case 2: {
+                if (outputClient.getSession().receiveExactlyOnce(packet.getPacketIdentifier())) {
+                    deliver(packet);
                 }
-            } catch (InterruptedException ex) {}
-        } else if (!flags[1] && flags[2]) {
-            // TODO Will be implemented along with QoS 1 and 2
-        } else if (flags[1] && !flags[2]) {
-            // TODO Will be implemented along with QoS 1 and 2
+                
+                outputClient.send(PacketBuilder.buildPubrecPacket(packet.getPacketIdentifier()));
+                break;
+            }
         }
     }
     
     /**
-     * Processes incoming <b>PUBACK</b> packet. - <b>NOT IMPLEMENTED YET!!!</b>
+     * Passes message of incoming <b>PUBLISH</b> packet to listeners 
+     * of the broker and routes it to subscribers as 
+     * {@link #route(String, byte[], byte, boolean)} does. The topic is resolved 
+     * through the topic cache of the connection and PUBLISH packets are 
+     * encoded directly from the read buffer, so message without listeners, 
+     * retain flag and subscribers allocates nothing. In cluster the message 
+     * is forwarded to peers with matching subscribers.
      * 
-     * @param packet incoming <b>PUBACK</b> packet to be processed
+     * @param packet view of incoming packet to be delivered
+     * @throws MQTTException if the topic of the packet is malformed
      */
-    public void processPuback(Packet packet) {
-        // TODO Will be implemented along with QoS 1 and 2
+    private void deliver(PacketView packet) throws MQTTException {
+        TopicHandle topic = packet.resolveTopic(subscribtions);
+        byte[] payload = null;
+        
+        if (messageDispatcher.hasListeners() || packet.getRetain()) {
+            payload = packet.copyPayload();
+            messageDispatcher.dispatch(topic.getTopic(), payload);
+        }
+        
+        ClusterNode currentCluster = cluster;
+        
+        if (currentCluster != null) {
+            currentCluster.forward(topic.getTopic(), topic.getBinaryTopic(), packet.getBuffer(), packet.getPayloadOffset(), packet.getPayloadLength(), packet.getRetain());
+        }
+        
+        routeLocally(topic, packet, payload);
     }
     
     /**
-     * Processes incoming <b>PUBREC</b> packet. - <b>NOT IMPLEMENTED YET!!!</b>
+     * Routes message forwarded by a cluster peer to the local subscribers 
+     * only - it is neither passed to listeners nor forwarded again.
      * 
-     * @param packet incoming <b>PUBREC</b> packet to be processed
+     * @param packet view of the forwarded packet
+     * @throws MQTTException if the topic of the packet is malformed
      */
-    public void processPubrec(Packet packet) {
-        // TODO Will be implemented along with QoS 1 and 2
+    void deliverForwarded(PacketView packet) throws MQTTException {
+        TopicHandle topic = packet.resolveTopic(subscribtions);
+        
+        routeLocally(topic, packet, packet.getRetain() ? packet.copyPayload() : null);
     }
     
     /**
-     * Processes incoming <b>PUBREL</b> packet. - <b>NOT IMPLEMENTED YET!!!</b>
+     * Retains message of incoming <b>PUBLISH</b> packet (if it has the retain 
+     * flag) and sends it to the local subscribers.
      * 
-     * @param packet incoming <b>PUBREL</b> packet to be processed
+     * @param topic resolved topic of the packet
+     * @param packet view of the packet
+     * @param payload copy of the payload, <i>null</i> if it was not copied 
+     * (it is needed only for retained message)
      */
-    public void processPubrel(Packet packet) {
-        // TODO Will be implemented along with QoS 1 and 2
+    private void routeLocally(TopicHandle topic, PacketView packet, byte[] payload) {
+        byte qualityOfService = packet.getQualityOfService();
+        
+        if (packet.getRetain()) {
+            retainedMessages.retain(topic.getTopic(), payload, qualityOfService);
+        }
+        
+        // Statistics do not count their own updates
+        if (!topic.getTopic().startsWith(BrokerStatistics.TOPIC_PREFIX)) {
+            statistics.messageRouted();
+        }
+        
+        List<Subscriber> matchingSubscribers = topic.getSubscribers();
+        List<SubscribtionTree.SharedSubscribtion> matchingGroups = topic.getSharedSubscribtions();
+        
+        if (!matchingSubscribers.isEmpty() || !matchingGroups.isEmpty()) {
+            /**
+             * Scratch array of the thread (only this method uses it, so 
+             * message routed while this one is sent does not overwrite it).
+             */
+            EncodedPacket[] threadEncodedPackets = encodedPackets.get();
+            
+            try {
+                fanOut(matchingSubscribers, matchingGroups, topic.getTopic().hashCode(), topic.getBinaryTopic(), packet.getBuffer(), packet.getPayloadOffset(), packet.getPayloadLength(), qualityOfService, threadEncodedPackets);
+            } finally {
+                Arrays.fill(threadEncodedPackets, null);
+            }
+        }
     }
     
     /**
-     * Processes incoming <b>PUBCOMP</b> packet. - <b>NOT IMPLEMENTED YET!!!</b>
+     * Passes message of incoming <b>PUBLISH</b> packet to listeners 
+     * of the broker and routes it to subscribers.
      * 
-     * @param packet incoming <b>PUBCOMP</b> packet to be processed
+     * @param packet incoming packet to be delivered
      */
-    public void processPubcomp(Packet packet) {
-        // TODO Will be implemented along with QoS 1 and 2
+    private void deliver(PublishPacket packet) {
+        messageDispatcher.dispatch(packet.getTopic(), packet.getPayload());
+
+        route(packet.getTopic(), packet.getPayload(), (byte) packet.getQualityOfService().ordinal(), packet.getRetain());
     }
     
     /**
-     * Processes incoming <b>SUBSCRIBE</b> packet and makes corresponding subscribtions.
+     * Sends message to all clients subscribed to its topic. PUBLISH packet 
+     * is encoded only once for every distinct outgoing QoS and the encoded 
+     * packet is shared by all corresponding subscribers. Subscribers receiving 
+     * QoS 1 or 2 get copy of it with their own packet identifier and the 
+     * message stays in flight until they acknowledge it (messages for clients 
+     * of persistent sessions wait in their sessions while they are not 
+     * connected). Message with retain flag replaces retained message of its 
+     * topic (empty one removes it), but it is sent to existing subscribers 
+     * with the flag cleared. Every matching group of shared subscribtions 
+     * gets the message once, by the member selected by its strategy. 
+     * In cluster the message is forwarded to peers with matching subscribers.
      * 
-     * @param packet
-     * @param outputClient
-     * @throws MQTTException 
+     * @param topic topic to which the message was published
+     * @param payload the content of the message
+     * @param qualityOfService QoS with which the message was published
+     * @param retain value of the retain flag
      */
-    public void processSubscribe(Packet packet, OutputClientService outputClient) throws MQTTException {
+    public void route(String topic, byte[] payload, byte qualityOfService, boolean retain) {
+        // Statistics do not count their own updates
+        if (!topic.startsWith(BrokerStatistics.TOPIC_PREFIX)) {
+            statistics.messageRouted();
+        }
+        
+        if (retain) {
+            retainedMessages.retain(topic, payload, qualityOfService);
+        }
+        
+        byte[] binaryTopic = topic.getBytes(CHARSET);
+        ClusterNode currentCluster = cluster;
+        
+        if (currentCluster != null) {
+            currentCluster.forward(topic, binaryTopic, ByteBuffer.wrap(payload), 0, payload.length, retain);
+        }
+        
         /**
-         * Binary representation of payload (which contains list of 
-         * QoS + topic pairs).
+         * Matching groups of shared subscribtions (searched only if there are 
+         * some).
          */
-        byte[] binaryPayload = packet.getPayload().getBytes(Charset.forName("UTF-8"));
+        ArrayList<SubscribtionTree.SharedSubscribtion> matchingGroups = subscribtions.hasSharedSubscribtions() ? new ArrayList<>() : null;
+        ArrayList<Subscriber> matchingSubscribers = subscribtions.match(topic, matchingGroups);
+        
+        if (!matchingSubscribers.isEmpty() || (matchingGroups != null && !matchingGroups.isEmpty())) {
+            fanOut(matchingSubscribers, matchingGroups != null ? matchingGroups : List.of(), topic.hashCode(), binaryTopic, ByteBuffer.wrap(payload), 0, payload.length, qualityOfService, new EncodedPacket[3]);
+        }
+    }
+    
+    /**
+     * Sends batch of messages published to resolved topics. Subscribers 
+     * of every handle are matched only once for the batch (and only if the 
+     * subscribtions changed since the last match), topics are not encoded 
+     * again and PUBLISH packets are encoded directly, without building their 
+     * object representation. Otherwise every message is routed as by 
+     * {@link #route(String, byte[], byte, boolean)}.
+     * 
+     * @param topics resolved topics of the messages
+     * @param payloads contents of the messages
+     * @param count number of messages (from the beginning of the arrays)
+     * @param qualityOfService QoS with which the messages were published
+     * @param retain value of the retain flag of all messages
+     * @param deliveryCounts array receiving number of subscribers to which 
+     * every message was sent
+     */
+    public void route(TopicHandle[] topics, byte[][] payloads, int count, byte qualityOfService, boolean retain, int[] deliveryCounts) {
         /**
-         * Array containing return codes for results of given subscribtions.
+         * Handle whose subscribers are in use.
          */
-        ArrayList<Byte> subscribtionReturnCodes = new ArrayList<>();
+        TopicHandle currentTopic = null;
+        List<Subscriber> matchingSubscribers = null;
+        List<SubscribtionTree.SharedSubscribtion> matchingGroups = null;
         /**
-         * Array containing return codes for results of given subscribtions 
-         * (transformed "subscribtionReturnCodes").
+         * Encoded PUBLISH packets of the current message, reused by all 
+         * messages of the batch.
          */
-        byte[] subscribtionReturnCodesArray;
+        EncodedPacket[] encodedPackets = new EncodedPacket[3];
+        ClusterNode currentCluster = cluster;
+        
+        for (int i = 0; i < count; i++) {
+            if (topics[i] != currentTopic) {
+                currentTopic = topics[i];
+                
+                if (!currentTopic.isResolvedBy(subscribtions)) {
+                    throw new IllegalArgumentException("Topic was resolved by another broker");
+                }
+                
+                matchingSubscribers = currentTopic.getSubscribers();
+                matchingGroups = currentTopic.getSharedSubscribtions();
+            }
+            
+            if (retain) {
+                retainedMessages.retain(currentTopic.getTopic(), payloads[i], qualityOfService);
+            }
+            
+            if (currentCluster != null) {
+                currentCluster.forward(currentTopic.getTopic(), currentTopic.getBinaryTopic(), ByteBuffer.wrap(payloads[i]), 0, payloads[i].length, retain);
+            }
+            
+            if (matchingSubscribers.isEmpty() && matchingGroups.isEmpty()) {
+                deliveryCounts[i] = 0;
+                continue;
+            }
+            
+            Arrays.fill(encodedPackets, null);
+            deliveryCounts[i] = fanOut(matchingSubscribers, matchingGroups, currentTopic.getTopic().hashCode(), currentTopic.getBinaryTopic(), ByteBuffer.wrap(payloads[i]), 0, payloads[i].length, qualityOfService, encodedPackets);
+        }
+        
+        statistics.messagesRouted(count);
+    }
+    
+    /**
+     * Sends message to given subscribers and to one member of every given 
+     * group. PUBLISH packet is encoded only once for every distinct outgoing 
+     * QoS and the encoded packet is shared by all corresponding subscribers. Packet with QoS 0 is encoded into pooled 
+     * buffer, which returns to the pool after the last subscriber writes 
+     * it (packets with QoS 1 and 2 are copied for every subscriber and kept 
+     * until acknowledged, so they are not pooled).
+     * 
+     * @param matchingSubscribers subscribers of the topic
+     * @param matchingGroups groups of shared subscribtions of the topic
+     * @param topicHash hash of the topic (it selects members of sticky groups)
+     * @param binaryTopic topic encoded as UTF-8
+     * @param payloadBuffer buffer containing the content of the message
+     * @param payloadOffset position of the payload in the buffer
+     * @param payloadLength length of the payload in bytes
+     * @param qualityOfService QoS with which the message was published
+     * @param encodedPackets empty array receiving encoded PUBLISH packets 
+     * indexed by outgoing QoS (built lazily)
+     * @return number of subscribers to which the message was sent
+     */
+    private int fanOut(List<Subscriber> matchingSubscribers, List<SubscribtionTree.SharedSubscribtion> matchingGroups, int topicHash, byte[] binaryTopic, ByteBuffer payloadBuffer, int payloadOffset, int payloadLength, byte qualityOfService, EncodedPacket[] encodedPackets) {
         /**
-         * Support variable which indicates number of bytes of payload read.
+         * Number of subscribers to which the message was sent.
          */
-        int bytesRead = 0;
+        int deliveryCount = matchingSubscribers.size();
+        
+        for (int i = 0; i < matchingSubscribers.size(); i++) {
+            send(matchingSubscribers.get(i), binaryTopic, payloadBuffer, payloadOffset, payloadLength, qualityOfService, encodedPackets);
+        }
+        
+        for (int i = 0; i < matchingGroups.size(); i++) {
+            Subscriber selectedMember = subscribtions.select(matchingGroups.get(i), topicHash);
+            
+            // Group whose members all unsubscribed
+            if (selectedMember != null) {
+                send(selectedMember, binaryTopic, payloadBuffer, payloadOffset, payloadLength, qualityOfService, encodedPackets);
+                deliveryCount++;
+            }
+        }
+        
+        // Subscribers hold their own references of the pooled packet
+        if (encodedPackets[0] != null) {
+            encodedPackets[0].release();
+        }
+        
+        return deliveryCount;
+    }
+    
+    /**
+     * Sends message to given subscriber, PUBLISH packet with its outgoing QoS 
+     * is encoded if it was not encoded yet.
+     * 
+     * @param subscriber receiving subscriber
+     * @param binaryTopic topic encoded as UTF-8
+     * @param payloadBuffer buffer containing the content of the message
+     * @param payloadOffset position of the payload in the buffer
+     * @param payloadLength length of the payload in bytes
+     * @param qualityOfService QoS with which the message was published
+     * @param encodedPackets array of encoded PUBLISH packets indexed 
+     * by outgoing QoS
+     */
+    private void send(Subscriber subscriber, byte[] binaryTopic, ByteBuffer payloadBuffer, int payloadOffset, int payloadLength, byte qualityOfService, EncodedPacket[] encodedPackets) {
         /**
-         * Support variable - length of currently processed topic.
+         * QoS of the message sent to the subscriber (it is never higher 
+         * than QoS granted to the subscribtion).
          */
-        int topicLength;
+        byte outgoingQoS = (byte) Math.min(qualityOfService, subscriber.getQualityOfService());
+        
+        if (encodedPackets[outgoingQoS] == null) {
+            if (outgoingQoS == 0) {
+                encodedPackets[outgoingQoS] = EncodedPacket.encodePublish(binaryTopic, payloadBuffer, payloadOffset, payloadLength, outgoingQoS, false, bufferPool);
+            } else {
+                encodedPackets[outgoingQoS] = EncodedPacket.encodePublish(binaryTopic, payloadBuffer, payloadOffset, payloadLength, outgoingQoS, false);
+            }
+        }
+        
+        send(subscriber.getClient().getSession(), encodedPackets[outgoingQoS]);
+    }
+    
+    /**
+     * Sends encoded PUBLISH packet to the client of given session. Packet 
+     * with QoS 1 or 2 is sent in flight.
+     * 
+     * @param session session of the client
+     * @param publishPacket encoded PUBLISH packet
+     */
+    private void send(Session session, EncodedPacket publishPacket) {
+        if (publishPacket.getQualityOfService() == 0) {
+            session.send(publishPacket);
+        } else if (session.sendInflight(publishPacket)) {
+            retransmitScheduler.track(session);
+        }
+    }
+    
+    /**
+     * Processes incoming <b>PUBACK</b> packet - releases acknowledged message 
+     * from messages in flight of the client.
+     * 
+     * @param packet incoming <b>PUBACK</b> packet to be processed
+     * @param outputClient output service of the client which sent the packet
+     */
+    public void processPuback(IdentifierPacket packet, OutputClientService outputClient) {
+        if (!outputClient.getSession().acknowledge(packet.getPacketIdentifier())) {
+            BrokerLogger.logClient(LogLevel.WARNING, this.getClass(), outputClient.getClientID(), packet.getType(), "Unknown packet identifier %d", packet.getPacketIdentifier());
+        }
+    }
+    
+    /**
+     * Processes incoming <b>PUBREC</b> packet - QoS 2 message in flight moves
+     * to its second phase and <b>PUBREL</b> is sent to the client.
+     * 
+     * @param packet incoming <b>PUBREC</b> packet to be processed
+     * @param outputClient output service of the client which sent the packet
+     */
+    public void processPubrec(IdentifierPacket packet, OutputClientService outputClient) {
         /**
-         * Support variable - currently processed topic.
+         * Response to the PUBREC, it is also resent until PUBCOMP comes.
          */
-        String topic;
+        EncodedPacket pubrelPacket = new EncodedPacket(PacketBuilder.buildPubrelPacket(packet.getPacketIdentifier()));
+        
+        if (outputClient.getSession().markReceived(packet.getPacketIdentifier(), pubrelPacket)) {
+            outputClient.send(pubrelPacket);
+        } else {
+            BrokerLogger.logClient(LogLevel.WARNING, this.getClass(), outputClient.getClientID(), packet.getType(), "Unknown packet identifier %d", packet.getPacketIdentifier());
+        }
+    }
+    
+    /**
+     * Processes incoming <b>PUBREL</b> packet - identifier of QoS 2 message
+     * received from the client is released and <b>PUBCOMP</b> is sent
+     * to the client (also for unknown identifier, because PUBREL is resent
+     * until PUBCOMP comes).
+     * 
+     * @param packet incoming <b>PUBREL</b> packet to be processed
+     * @param outputClient output service of the client which sent the packet
+     */
+    public void processPubrel(IdentifierPacket packet, OutputClientService outputClient) {
+        outputClient.getSession().releaseExactlyOnce(packet.getPacketIdentifier());
+        outputClient.send(PacketBuilder.buildPubcompPacket(packet.getPacketIdentifier()));
+    }
+    
+    /**
+     * Processes incoming <b>PUBCOMP</b> packet - releases completed QoS 2
+     * message from messages in flight of the client.
+     * 
+     * @param packet incoming <b>PUBCOMP</b> packet to be processed
+     * @param outputClient output service of the client which sent the packet
+     */
+    public void processPubcomp(IdentifierPacket packet, OutputClientService outputClient) {
+        if (!outputClient.getSession().complete(packet.getPacketIdentifier())) {
+            BrokerLogger.logClient(LogLevel.WARNING, this.getClass(), outputClient.getClientID(), packet.getType(), "Unknown packet identifier %d", packet.getPacketIdentifier());
+        }
+    }
+    
+    /**
+     * Processes incoming <b>SUBSCRIBE</b> packet and makes corresponding subscribtions.
+     * After <b>SUBACK</b>, retained messages matching the new subscribtions 
+     * are sent to the client (with QoS not higher than granted one). Shared 
+     * subscribtions do not get retained messages.
+     * 
+     * @param packet incoming <b>SUBSCRIBE</b> packet to be processed
+     * @param outputClient output service of the client which sent the packet
+     */
+    public void processSubscribe(SubscribePacket packet, OutputClientService outputClient) {
         /**
-         * Support variable - QoS for currently processed topic.
+         * Requested subscribtions (topic filter + QoS pairs).
          */
-        byte qualityOfService;
+        ArrayList<Subscribtion> requestedSubscribtions = packet.getSubscribtions();
         /**
-         * Support variable - new subscribtion to be stored.
+         * Array containing return codes for results of given subscribtions.
          */
-        Subscribtion newSubscribtion;
+        byte[] subscribtionReturnCodes = new byte[requestedSubscribtions.size()];
 
-        do {
-            topicLength = binaryPayload[bytesRead] * 256 + binaryPayload[bytesRead + 1];
-            topic = new String(binaryPayload, bytesRead + 2, topicLength, Charset.forName("UTF-8"));
-            qualityOfService = binaryPayload[bytesRead + 2 + topicLength];
-
-            if (qualityOfService < 0 || qualityOfService > 2) {
-                throw new MQTTException(MQTTExceptionLevel.ERROR, "Malformed QoS field");
+        for (int i = 0; i < subscribtionReturnCodes.length; i++) {
+            Subscribtion requestedSubscribtion = requestedSubscribtions.get(i);
+            /**
+             * Subscribtion with the highest QoS the broker can grant.
+             */
+            Subscribtion newSubscribtion = new Subscribtion(requestedSubscribtion.getTopic(), (byte) Math.min(requestedSubscribtion.getQualityOfService(), MAX_GRANTED_QOS));
+            
+            try {
+                subscribtions.subscribe(newSubscribtion, outputClient);
+                outputClient.getSession().addSubscribtion(newSubscribtion.getTopic(), newSubscribtion.getQualityOfService());
+                subscribtionReturnCodes[i] = newSubscribtion.getQualityOfService();
+            } catch (MQTTException ex) {
+                subscribtionReturnCodes[i] = SUBSCRIBTION_FAILURE;
             }
+        }
 
-            newSubscribtion = new Subscribtion(topic, qualityOfService);
-
-            if (subscribtions.containsKey(newSubscribtion)) {
-                subscribtions.get(newSubscribtion).add(outputClient);
-            } else {
-                ArrayList<OutputClientService> newSubscribers = new ArrayList<>();
-                newSubscribers.add(outputClient);
-                subscribtions.put(newSubscribtion, newSubscribers);
+        outputClient.send(PacketBuilder.buildSubackPacket(packet.getPacketIdentifier(), subscribtionReturnCodes));
+        
+        for (int i = 0; i < subscribtionReturnCodes.length; i++) {
+            if (subscribtionReturnCodes[i] == SUBSCRIBTION_FAILURE || SubscribtionTree.isSharedFilter(requestedSubscribtions.get(i).getTopic())) {
+                continue;
+            }
+            
+            for (RetainedMessageStore.RetainedMessage retainedMessage : retainedMessages.match(requestedSubscribtions.get(i).getTopic())) {
+                byte outgoingQoS = (byte) Math.min(retainedMessage.getQualityOfService(), subscribtionReturnCodes[i]);
+                
+                send(outputClient.getSession(), retainedMessage.getEncodedPacket(outgoingQoS));
             }
-
-            subscribtionReturnCodes.add(qualityOfService);
-
-            bytesRead += 2 + topicLength + 1;
-        } while (bytesRead < binaryPayload.length);
-
-        subscribtionReturnCodesArray = new byte[subscribtionReturnCodes.size()];
-
-        for (int i = 0; i < subscribtionReturnCodes.size(); i++) {
-            subscribtionReturnCodesArray[i] = subscribtionReturnCodes.get(i);
         }
-
-        outputClient.send(PacketBuilder.buildSubackPacket(packet.getVariableHeaders(), subscribtionReturnCodesArray));
     }
     
     /**
@@ -202,12 +816,15 @@ public class PacketProcessor {
     }
     
     /**
-     * Processes incoming <b>PINGREQ</b> packet. - <b>NOT IMPLEMENTED YET!!!</b>
+     * Processes incoming <b>PINGREQ</b> packet and answers it 
+     * by <b>PINGRESP</b>. Keep-alive deadline of the client already moved 
+     * when the packet was read.
      * 
      * @param packet incoming <b>PINGREQ</b> packet to be processed
+     * @param outputClient output service of the client which sent the packet
      */
-    public void processPingreq(Packet packet) {
-        // TODO Will be implemented in the future
+    public void processPingreq(Packet packet, OutputClientService outputClient) {
+        outputClient.send(PINGRESP_PACKET);
     }
     
     /**
@@ -220,17 +837,116 @@ public class PacketProcessor {
     }
     
     /**
-     * Returns incoming messages from clients. It blocks until message
-     * is available.
+     * Returns dispatcher of published messages to listeners of the embedding
+     * application.
+     * 
+     * @return dispatcher of published messages
+     */
+    public MessageDispatcher getMessageDispatcher() {
+        return messageDispatcher;
+    }
+    
+    /**
+     * Returns message published by some client. It blocks until message 
+     * is available. The first call registers listener of all topics which 
+     * buffers up to 10000 messages (later messages are dropped), messages 
+     * published before it are not returned.
      * 
-     * @return incoming message
+     * @return published message, <i>null</i> if the thread was interrupted
+     * @deprecated messages are passed to handlers registered 
+     * by {@link MessageDispatcher#addListener}
      */
+    @Deprecated
     public PublishMessage getPublishedMessage() {
         try {
-            return incomingMessageQueue.take();
+            return getLegacyMessageQueue().take();
         } catch (InterruptedException ex) {
             return null;
         }
     }
     
+    /**
+     * Returns queue of messages for {@link #getPublishedMessage}, it is built 
+     * and filled by listener of all topics on the first call.
+     * 
+     * @return queue of published messages
+     */
+    private synchronized ArrayBlockingQueue<PublishMessage> getLegacyMessageQueue() {
+        if (legacyMessageQueue == null) {
+            ArrayBlockingQueue<PublishMessage> queue = new ArrayBlockingQueue<>(10000);
+            
+            try {
+                messageDispatcher.addListener("#", messages -> {
+                    for (PublishMessage message : messages) {
+                        if (!queue.offer(message)) {
+                            BrokerLogger.log(LogLevel.WARNING, this.getClass(), "Incoming message queue is full, message dropped");
+                        }
+                    }
+                }, Runnable::run, OverflowPolicy.DEFAULT, MessageListener.DEFAULT_MAX_BATCH_SIZE);
+            } catch (MQTTException ex) {
+                BrokerLogger.log(LogLevel.ERROR, this.getClass(), ex.getMessage());
+            }
+            
+            legacyMessageQueue = queue;
+        }
+        
+        return legacyMessageQueue;
+    }
+    
+    /**
+     * Returns counters of the broker load.
+     * 
+     * @return statistics of the broker
+     */
+    public BrokerStatistics getStatistics() {
+        return statistics;
+    }
+    
+    /**
+     * Returns store of persistent sessions of the clients.
+     * 
+     * @return the store
+     */
+    SessionStore getSessionStore() {
+        return sessionStore;
+    }
+    
+    /**
+     * Stops periodic tasks of the processor (keep-alive and retransmission), 
+     * removes listeners and closes the stores of sessions and retained 
+     * messages. It is called when the broker is closed.
+     */
+    void close() {
+        keepAliveWheel.close();
+        retransmitScheduler.close();
+        messageDispatcher.close();
+        sessionStore.close();
+        
+        try {
+            retainedMessages.close();
+        } catch (IOException ex) {
+            BrokerLogger.log(LogLevel.ERROR, this.getClass(), "Snapshot of retained messages not written - %s", ex.getMessage());
+        }
+    }
+    
+    /**
+     * Returns pool of read buffers of the connections and of PUBLISH packets 
+     * shared by subscribers.
+     * 
+     * @return pool of buffers
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+    
+    /**
+     * Sets cluster to whose peers published messages are forwarded.
+     * 
+     * @param cluster node of the broker in the cluster, <i>null</i> 
+     * for standalone broker
+     */
+    void setCluster(ClusterNode cluster) {
+        this.cluster = cluster;
+    }
+    
 }
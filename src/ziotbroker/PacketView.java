@@ -0,0 +1,338 @@
+package ziotbroker;
+
+import ziotbroker.packet.Packet;
+import ziotbroker.packet.PacketType;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Flyweight view of one packet decoded by FrameDecoder. It does not copy
+ * anything out of the read buffer - type and flags are kept from the control
+ * header and packet identifier, topic and payload of <b>PUBLISH</b> packet
+ * are kept as offsets into the buffer. One view is reused for all packets
+ * of the connection, so it is valid only until the next read. Everything
+ * which has to outlive the read must be materialized (copied) by its methods.
+ *
+ * Topics of <b>PUBLISH</b> packets are resolved through small per-connection
+ * cache of topic handles, so the client publishing repeatedly to the same
+ * topics needs no String nor encoded topic per message.
+ *
+ * The view is not thread-safe, it belongs to the thread reading
+ * the connection.
+ *
+ * @author Jakub Svarc
+ */
+public class PacketView {
+
+    /**
+     * Charset used for decoding topics (for MQTT 3.1.1 it is UTF-8).
+     */
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    /**
+     * Number of slots of the topic cache (power of two).
+     */
+    private static final int TOPIC_CACHE_SIZE = 64;
+
+    /**
+     * Buffer containing the packet.
+     */
+    private ByteBuffer buffer;
+    /**
+     * Control header byte of the packet.
+     */
+    private byte controlHeader;
+    /**
+     * Type of the packet.
+     */
+    private PacketType type;
+    /**
+     * Position of the variable header in the buffer.
+     */
+    private int offset;
+    /**
+     * Length of variable header and payload (remaining length).
+     */
+    private int length;
+    /**
+     * Packet identifier of <b>PUBLISH</b> packet (0 for QoS 0).
+     */
+    private int packetIdentifier;
+    /**
+     * Position of the topic of <b>PUBLISH</b> packet in the buffer.
+     */
+    private int topicOffset;
+    /**
+     * Length of the topic of <b>PUBLISH</b> packet in bytes.
+     */
+    private int topicLength;
+    /**
+     * Position of the payload of <b>PUBLISH</b> packet in the buffer.
+     */
+    private int payloadOffset;
+    /**
+     * Length of the payload of <b>PUBLISH</b> packet in bytes.
+     */
+    private int payloadLength;
+    /**
+     * Topics resolved from <b>PUBLISH</b> packets of the connection, indexed
+     * by hash of their encoded form (colliding topic replaces the older one).
+     */
+    private final TopicHandle[] topicCache;
+
+    /**
+     * Builds empty PacketView.
+     */
+    public PacketView() {
+        this.topicCache = new TopicHandle[TOPIC_CACHE_SIZE];
+    }
+
+    /**
+     * Points the view to the packet in given buffer. <b>PUBLISH</b> packet
+     * is validated and its fields are located, other packets are validated
+     * only when they are materialized.
+     *
+     * @param buffer buffer containing the packet
+     * @param controlHeader control header byte of the packet
+     * @param offset position of the variable header in the buffer
+     * @param length remaining length of the packet
+     * @throws MQTTException thrown if packet type or <b>PUBLISH</b> packet
+     * is malformed
+     */
+    void wrap(ByteBuffer buffer, byte controlHeader, int offset, int length) throws MQTTException {
+        this.buffer = buffer;
+        this.controlHeader = controlHeader;
+        this.type = PacketParser.getPacketType(controlHeader);
+        this.offset = offset;
+        this.length = length;
+
+        if (type == PacketType.PUBLISH) {
+            locatePublishFields();
+        }
+    }
+
+    /**
+     * Validates flags of <b>PUBLISH</b> packet and locates its topic, packet
+     * identifier and payload.
+     *
+     * @throws MQTTException thrown if flags are malformed or the fields
+     * do not fit into the packet
+     */
+    private void locatePublishFields() throws MQTTException {
+        /**
+         * QoS from the flags.
+         */
+        int qualityOfService = getQualityOfService();
+
+        if (qualityOfService > 2 || (isDuplicate() && qualityOfService == 0)) {
+            throw new MQTTException(MQTTExceptionLevel.ERROR, "Malformed flags field");
+        }
+
+        /**
+         * Length of the topic and packet identifier fields.
+         */
+        int headerLength = 2 + (qualityOfService > 0 ? 2 : 0);
+
+        if (length < 2) {
+            throw new MQTTException(MQTTExceptionLevel.ERROR, "Packet length does not match \"Remaining length\" value!");
+        }
+
+        topicOffset = offset + 2;
+        topicLength = ((buffer.get(offset) & 255) << 8) | (buffer.get(offset + 1) & 255);
+
+        if (length < headerLength + topicLength) {
+            throw new MQTTException(MQTTExceptionLevel.ERROR, "Packet length does not match \"Remaining length\" value!");
+        }
+
+        if (qualityOfService > 0) {
+            packetIdentifier = ((buffer.get(topicOffset + topicLength) & 255) << 8) | (buffer.get(topicOffset + topicLength + 1) & 255);
+        } else {
+            packetIdentifier = 0;
+        }
+
+        payloadOffset = offset + headerLength + topicLength;
+        payloadLength = length - headerLength - topicLength;
+    }
+
+    /**
+     * Returns type of the packet.
+     *
+     * @return type of the packet
+     */
+    public PacketType getType() {
+        return type;
+    }
+
+    /**
+     * Returns flags of the packet (lower 4 bits of the control header).
+     *
+     * @return the flags as bitfield
+     */
+    public int getFlags() {
+        return controlHeader & 0b00001111;
+    }
+
+    /**
+     * Returns QoS of <b>PUBLISH</b> packet.
+     *
+     * @return QoS from the flags (0 - 2)
+     */
+    public byte getQualityOfService() {
+        return (byte) ((controlHeader & 0b00000110) >> 1);
+    }
+
+    /**
+     * Indicates that the DUP flag of the packet is set.
+     *
+     * @return value of the DUP flag
+     */
+    public boolean isDuplicate() {
+        return (controlHeader & 0b00001000) != 0;
+    }
+
+    /**
+     * Indicates that the retain flag of the packet is set.
+     *
+     * @return value of the retain flag
+     */
+    public boolean getRetain() {
+        return (controlHeader & 0b00000001) != 0;
+    }
+
+    /**
+     * Returns packet identifier of <b>PUBLISH</b> packet.
+     *
+     * @return packet identifier, 0 for QoS 0
+     */
+    public int getPacketIdentifier() {
+        return packetIdentifier;
+    }
+
+    /**
+     * Returns buffer containing the packet. It is valid only until the next
+     * read from the connection.
+     *
+     * @return the read buffer
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Returns position of the topic of <b>PUBLISH</b> packet in the buffer.
+     *
+     * @return position of the first byte of the topic
+     */
+    public int getTopicOffset() {
+        return topicOffset;
+    }
+
+    /**
+     * Returns length of the topic of <b>PUBLISH</b> packet.
+     *
+     * @return length of the topic in bytes
+     */
+    public int getTopicLength() {
+        return topicLength;
+    }
+
+    /**
+     * Returns position of the payload of <b>PUBLISH</b> packet in the buffer.
+     *
+     * @return position of the first byte of the payload
+     */
+    public int getPayloadOffset() {
+        return payloadOffset;
+    }
+
+    /**
+     * Returns length of the payload of <b>PUBLISH</b> packet.
+     *
+     * @return length of the payload in bytes
+     */
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
+    /**
+     * Copies payload of <b>PUBLISH</b> packet out of the buffer.
+     *
+     * @return copy of the payload
+     */
+    public byte[] copyPayload() {
+        byte[] payload = new byte[payloadLength];
+
+        buffer.get(payloadOffset, payload);
+
+        return payload;
+    }
+
+    /**
+     * Returns resolved topic of <b>PUBLISH</b> packet. Topic found in the cache
+     * is compared byte by byte with the packet and reused, other topic is
+     * decoded and resolved and it replaces the cached topic of its slot.
+     *
+     * @param subscribtions subscribtions of the broker
+     * @return resolved topic of the packet
+     * @throws MQTTException thrown if the topic is empty or contains wildcards
+     */
+    TopicHandle resolveTopic(SubscribtionTree subscribtions) throws MQTTException {
+        /**
+         * Hash of the encoded topic.
+         */
+        int hash = 1;
+
+        for (int i = topicOffset; i < topicOffset + topicLength; i++) {
+            hash = 31 * hash + buffer.get(i);
+        }
+
+        /**
+         * Slot of the topic in the cache.
+         */
+        int slot = (hash ^ (hash >>> 16)) & (TOPIC_CACHE_SIZE - 1);
+        TopicHandle cachedTopic = topicCache[slot];
+
+        if (cachedTopic != null && cachedTopic.isResolvedBy(subscribtions) && topicEquals(cachedTopic.getBinaryTopic())) {
+            return cachedTopic;
+        }
+
+        byte[] binaryTopic = new byte[topicLength];
+
+        buffer.get(topicOffset, binaryTopic);
+        cachedTopic = new TopicHandle(new String(binaryTopic, CHARSET), subscribtions);
+        topicCache[slot] = cachedTopic;
+
+        return cachedTopic;
+    }
+
+    /**
+     * Compares topic of <b>PUBLISH</b> packet with given encoded topic.
+     *
+     * @param binaryTopic topic encoded as UTF-8
+     * @return <i>true</i> if the topics are the same
+     */
+    private boolean topicEquals(byte[] binaryTopic) {
+        if (binaryTopic.length != topicLength) {
+            return false;
+        }
+
+        for (int i = 0; i < topicLength; i++) {
+            if (binaryTopic[i] != buffer.get(topicOffset + i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Builds object representation of the packet. Variable headers
+     * and payload are handed over to PacketParser as a slice of the buffer.
+     *
+     * @return object representation of the packet
+     * @throws MQTTException thrown if the packet is malformed
+     */
+    public Packet toPacket() throws MQTTException {
+        return PacketParser.parse(controlHeader, buffer.slice(offset, length));
+    }
+
+}
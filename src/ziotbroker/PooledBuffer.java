@@ -0,0 +1,147 @@
+package ziotbroker;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Direct buffer borrowed from BufferPool. It is reference-counted - it is
+ * acquired with one reference, every further owner (e.g. every subscriber
+ * to which shared PUBLISH packet is queued) retains it and every owner
+ * releases it when it does not need it any more. The buffer returns to its
+ * pool when the last reference is released, so it must not be used after
+ * its own release.
+ *
+ * @author Jakub Svarc
+ */
+public class PooledBuffer {
+
+    /**
+     * The buffer (its capacity is the size of its class).
+     */
+    private final ByteBuffer buffer;
+    /**
+     * Pool to which the buffer belongs.
+     */
+    private final BufferPool pool;
+    /**
+     * Index of the size class of the buffer, -1 if it is larger than all
+     * classes (it is not pooled).
+     */
+    private final int sizeClass;
+    /**
+     * Number of owners of the buffer.
+     */
+    private final AtomicInteger references;
+    /**
+     * Record of the acquiring site checked when the buffer is collected
+     * (only with leak detection).
+     */
+    private final BufferPool.LeakRecord leakRecord;
+    /**
+     * Registration of the leak record in the cleaner (only with leak
+     * detection).
+     */
+    private final Cleaner.Cleanable cleanable;
+
+    /**
+     * Builds PooledBuffer with one reference.
+     *
+     * @param buffer the buffer
+     * @param pool pool to which the buffer belongs
+     * @param sizeClass index of the size class of the buffer (-1 for buffer
+     * which is not pooled)
+     * @param leakRecord record of the acquiring site, <i>null</i> without
+     * leak detection
+     * @param cleaner cleaner checking the record, <i>null</i> without leak
+     * detection
+     */
+    PooledBuffer(ByteBuffer buffer, BufferPool pool, int sizeClass, BufferPool.LeakRecord leakRecord, Cleaner cleaner) {
+        this.buffer = buffer;
+        this.pool = pool;
+        this.sizeClass = sizeClass;
+        this.references = new AtomicInteger(1);
+        this.leakRecord = leakRecord;
+        this.cleanable = leakRecord != null ? cleaner.register(this, leakRecord) : null;
+    }
+
+    /**
+     * Returns the buffer. Its position and limit belong to the owner which
+     * acquired it, other owners must use their own views of it.
+     *
+     * @return the buffer
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Returns index of the size class of the buffer.
+     *
+     * @return index of the size class, -1 if the buffer is not pooled
+     */
+    int getSizeClass() {
+        return sizeClass;
+    }
+
+    /**
+     * Returns number of owners of the buffer.
+     *
+     * @return current number of references
+     */
+    public int getReferenceCount() {
+        return references.get();
+    }
+
+    /**
+     * Adds one owner of the buffer.
+     *
+     * @return the buffer
+     * @throws IllegalStateException thrown if the buffer was already released
+     */
+    public PooledBuffer retain() {
+        int count;
+
+        do {
+            count = references.get();
+
+            if (count <= 0) {
+                throw new IllegalStateException("Buffer was already released");
+            }
+        } while (!references.compareAndSet(count, count + 1));
+
+        return this;
+    }
+
+    /**
+     * Removes one owner of the buffer. The buffer returns to its pool when
+     * the last owner releases it.
+     *
+     * @return <i>true</i> if it was the last reference
+     * @throws IllegalStateException thrown if the buffer was already released
+     */
+    public boolean release() {
+        /**
+         * Number of remaining owners.
+         */
+        int count = references.decrementAndGet();
+
+        if (count > 0) {
+            return false;
+        }
+
+        if (count < 0) {
+            throw new IllegalStateException("Buffer was already released");
+        }
+
+        if (leakRecord != null) {
+            leakRecord.released = true;
+            cleanable.clean();
+        }
+
+        pool.recycle(this);
+
+        return true;
+    }
+
+}
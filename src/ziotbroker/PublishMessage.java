@@ -1,5 +1,7 @@
 package ziotbroker;
 
+import java.nio.charset.Charset;
+
 /**
  * Message gathered from publish packet. Contains payload and topic to which 
  * the packet was published.
@@ -8,6 +10,11 @@ package ziotbroker;
  */
 public class PublishMessage {
     
+    /**
+     * Charset used for decoding text payloads (for MQTT 3.1.1 it is UTF-8).
+     */
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    
     /**
      * Topic to which the packet was published.
      */
@@ -15,7 +22,11 @@ public class PublishMessage {
     /**
      * The message itself.
      */
-    private final String payload;
+    private final byte[] payload;
+    /**
+     * The message decoded as text (decoded lazily on first request).
+     */
+    private String textPayload;
 
     /**
      * Builds MQTTMesage.
@@ -23,7 +34,7 @@ public class PublishMessage {
      * @param topic topic to which the packet was published
      * @param payload the message itself
      */
-    public PublishMessage(String topic, String payload) {
+    public PublishMessage(String topic, byte[] payload) {
         this.topic = topic;
         this.payload = payload;
     }
@@ -38,12 +49,27 @@ public class PublishMessage {
     }
 
     /**
-     * Returns message content.
+     * Returns message content as raw bytes. The array is not copied, so it 
+     * must not be modified.
      * 
      * @return message content
      */
-    public String getPayload() {
+    public byte[] getPayload() {
         return payload;
     }
+
+    /**
+     * Returns message content decoded as UTF-8 text. It is decoded on the first
+     * call, messages which are never read as text are never decoded.
+     * 
+     * @return message content as text
+     */
+    public String getPayloadAsString() {
+        if (textPayload == null) {
+            textPayload = new String(payload, CHARSET);
+        }
+        
+        return textPayload;
+    }
     
 }
@@ -0,0 +1,681 @@
+package ziotbroker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Store of retained messages organized by topic levels, the last retained
+ * message of every topic is kept. Messages matching topic filter of new
+ * subscribtion are found by walking only the levels the filter can match
+ * - single-level wildcard visits children of one level, multi-level wildcard
+ * visits the subtree below it - so no retained topic outside the filter
+ * is ever visited.
+ *
+ * The store is safe for concurrent use. Lookups never lock - messages are
+ * immutable and writers replace them holding the lock of their level only.
+ * Level left without message and following levels is pruned by the removal
+ * which emptied it, like in the index of subscribtions.
+ *
+ * If the store has a snapshot file, all retained messages are loaded from it
+ * at start by one sequential scan of the mapped file and the snapshot
+ * is rewritten periodically and when the store is closed (messages retained
+ * after the last snapshot are lost if the broker crashes).
+ *
+ * @author Jakub Svarc
+ */
+public final class RetainedMessageStore {
+
+    /**
+     * Default interval of writing of the snapshot.
+     */
+    public static final long DEFAULT_SNAPSHOT_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(5);
+    /**
+     * Charset of topics in the snapshot.
+     */
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    /**
+     * Separator of topic levels.
+     */
+    private static final String LEVEL_SEPARATOR = "/";
+    /**
+     * Wildcard matching exactly one topic level.
+     */
+    private static final String SINGLE_LEVEL_WILDCARD = "+";
+    /**
+     * Wildcard matching any number of topic levels (must be last in filter).
+     */
+    private static final String MULTI_LEVEL_WILDCARD = "#";
+    /**
+     * First bytes of snapshot file ("ZRMS").
+     */
+    private static final int SNAPSHOT_MAGIC = 0x5A524D53;
+    /**
+     * Size of snapshot header (magic and number of messages).
+     */
+    private static final int SNAPSHOT_HEADER_SIZE = 12;
+    /**
+     * Size of buffer used for writing of the snapshot.
+     */
+    private static final int SNAPSHOT_BUFFER_SIZE = 64 * 1024;
+    /**
+     * Suffix of snapshot which is being written.
+     */
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    /**
+     * Message retained for one topic. Encoded PUBLISH packets (with RETAIN
+     * flag set) are built lazily for every outgoing QoS and shared by all
+     * subscribers receiving it.
+     */
+    public static class RetainedMessage {
+
+        /**
+         * Topic of the message.
+         */
+        private final String topic;
+        /**
+         * The content of the message.
+         */
+        private final byte[] payload;
+        /**
+         * QoS with which the message was published.
+         */
+        private final byte qualityOfService;
+        /**
+         * Encoded PUBLISH packets indexed by outgoing QoS (built lazily,
+         * concurrent building of the same packet only wastes the copy).
+         */
+        private final EncodedPacket[] encodedPackets;
+
+        /**
+         * Builds RetainedMessage.
+         *
+         * @param topic topic of the message
+         * @param payload the content of the message
+         * @param qualityOfService QoS with which the message was published
+         */
+        private RetainedMessage(String topic, byte[] payload, byte qualityOfService) {
+            this.topic = topic;
+            this.payload = payload;
+            this.qualityOfService = qualityOfService;
+            this.encodedPackets = new EncodedPacket[3];
+        }
+
+        /**
+         * Returns topic of the message.
+         *
+         * @return topic of the message
+         */
+        public String getTopic() {
+            return topic;
+        }
+
+        /**
+         * Returns the content of the message.
+         *
+         * @return the content of the message
+         */
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        /**
+         * Returns QoS with which the message was published.
+         *
+         * @return QoS of the message (0 - 2)
+         */
+        public byte getQualityOfService() {
+            return qualityOfService;
+        }
+
+        /**
+         * Returns encoded PUBLISH packet of the message with RETAIN flag set.
+         *
+         * @param outgoingQoS QoS of the packet (packet with QoS 1 or 2 has
+         * packet identifier 0, which is replaced when it is sent)
+         * @return encoded PUBLISH packet
+         */
+        public EncodedPacket getEncodedPacket(byte outgoingQoS) {
+            EncodedPacket encodedPacket = encodedPackets[outgoingQoS];
+
+            if (encodedPacket == null) {
+                boolean[] flags = {false, outgoingQoS == 2, outgoingQoS == 1, true};
+
+                if (outgoingQoS == 0) {
+                    encodedPacket = new EncodedPacket(PacketBuilder.buildPublishPacket(flags, topic, payload));
+                } else {
+                    encodedPacket = new EncodedPacket(PacketBuilder.buildPublishPacket(flags, topic, (short) 0, payload));
+                }
+
+                encodedPackets[outgoingQoS] = encodedPacket;
+            }
+
+            return encodedPacket;
+        }
+
+    }
+
+    /**
+     * One level of retained topics. Readers never lock, references they
+     * follow are replaced by writers holding the lock of the level.
+     */
+    private static class Node {
+
+        /**
+         * Following levels given by name (built lazily, <i>null</i> when
+         * there is none).
+         */
+        private volatile ConcurrentHashMap<String, Node> children;
+        /**
+         * Message retained for the topic ending by this level, <i>null</i>
+         * if there is none.
+         */
+        private volatile RetainedMessage message;
+        /**
+         * Indicates that the level was pruned from the store (guarded by 
+         * the lock of the level). Nothing is added to pruned level.
+         */
+        private boolean pruned;
+
+        /**
+         * Returns following level with given name, it is built if it does
+         * not exist.
+         *
+         * @param level name of the level
+         * @return following level, <i>null</i> if this level was pruned
+         */
+        private Node getOrCreateChild(String level) {
+            Node child = getChild(level);
+
+            // Pruned level has no children, so existing child is never reached through it
+            if (child != null) {
+                return child;
+            }
+
+            synchronized (this) {
+                if (pruned) {
+                    return null;
+                }
+
+                if (children == null) {
+                    children = new ConcurrentHashMap<>();
+                }
+
+                return children.computeIfAbsent(level, name -> new Node());
+            }
+        }
+
+        /**
+         * Returns following level with given name.
+         *
+         * @param level name of the level
+         * @return following level or <i>null</i> if it does not exist
+         */
+        private Node getChild(String level) {
+            ConcurrentHashMap<String, Node> currentChildren = children;
+
+            return currentChildren == null ? null : currentChildren.get(level);
+        }
+
+        /**
+         * Removes following level with given name. The level must be locked.
+         *
+         * @param level name of the level
+         */
+        private void removeChild(String level) {
+            children.remove(level);
+
+            if (children.isEmpty()) {
+                children = null;
+            }
+        }
+
+    }
+
+    /**
+     * Level preceding first level of all topics.
+     */
+    private final Node root;
+    /**
+     * Number of retained messages.
+     */
+    private final AtomicInteger size;
+    /**
+     * Snapshot file, <i>null</i> if messages are kept only in memory.
+     */
+    private final Path snapshotFile;
+    /**
+     * Executor writing the snapshot periodically.
+     */
+    private final ScheduledExecutorService executor;
+
+    /**
+     * Builds empty RetainedMessageStore keeping messages only in memory.
+     */
+    public RetainedMessageStore() {
+        this.root = new Node();
+        this.size = new AtomicInteger(0);
+        this.snapshotFile = null;
+        this.executor = null;
+    }
+
+    /**
+     * Builds RetainedMessageStore with snapshot written to given file with
+     * default interval. Messages of existing snapshot are loaded.
+     *
+     * @param snapshotFile snapshot file
+     * @throws IOException thrown if existing snapshot can not be read
+     */
+    public RetainedMessageStore(Path snapshotFile) throws IOException {
+        this(snapshotFile, DEFAULT_SNAPSHOT_INTERVAL_NANOS);
+    }
+
+    /**
+     * Builds RetainedMessageStore with snapshot written to given file.
+     * Messages of existing snapshot are loaded.
+     *
+     * @param snapshotFile snapshot file
+     * @param snapshotIntervalNanos interval of writing of the snapshot
+     * @throws IOException thrown if existing snapshot can not be read
+     */
+    public RetainedMessageStore(Path snapshotFile, long snapshotIntervalNanos) throws IOException {
+        if (snapshotIntervalNanos <= 0) {
+            throw new IllegalArgumentException("Snapshot interval must be positive");
+        }
+
+        this.root = new Node();
+        this.size = new AtomicInteger(0);
+        this.snapshotFile = snapshotFile;
+
+        if (Files.exists(snapshotFile)) {
+            loadSnapshot();
+        }
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "RetainedMessageStore");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.scheduleWithFixedDelay(this::writeSnapshotSafely, snapshotIntervalNanos, snapshotIntervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Retains message for its topic, it replaces previously retained message
+     * of the topic. Message with empty payload removes retained message
+     * of the topic and it is not retained itself.
+     *
+     * @param topic topic of the message (without wildcards)
+     * @param payload the content of the message
+     * @param qualityOfService QoS with which the message was published
+     */
+    public void retain(String topic, byte[] payload, byte qualityOfService) {
+        if (payload.length == 0) {
+            remove(topic);
+            return;
+        }
+
+        String[] levels = topic.split(LEVEL_SEPARATOR, -1);
+        RetainedMessage message = new RetainedMessage(topic, payload, qualityOfService);
+        RetainedMessage previousMessage;
+
+        while (true) {
+            Node node = root;
+
+            for (int i = 0; node != null && i < levels.length; i++) {
+                node = node.getOrCreateChild(levels[i]);
+            }
+
+            // Level was pruned after it was reached, the topic is built again
+            if (node == null) {
+                continue;
+            }
+
+            synchronized (node) {
+                if (node.pruned) {
+                    continue;
+                }
+
+                previousMessage = node.message;
+                node.message = message;
+            }
+
+            break;
+        }
+
+        if (previousMessage == null) {
+            size.incrementAndGet();
+        }
+    }
+
+    /**
+     * Removes retained message of given topic. Levels left empty are pruned.
+     *
+     * @param topic topic of the message
+     * @return <i>true</i> if the topic had retained message
+     */
+    public boolean remove(String topic) {
+        String[] levels = topic.split(LEVEL_SEPARATOR, -1);
+        /**
+         * Levels of the topic starting by the root.
+         */
+        Node[] path = new Node[levels.length + 1];
+
+        path[0] = root;
+
+        for (int i = 0; i < levels.length; i++) {
+            path[i + 1] = path[i].getChild(levels[i]);
+
+            if (path[i + 1] == null) {
+                return false;
+            }
+        }
+
+        Node node = path[levels.length];
+        RetainedMessage previousMessage;
+
+        synchronized (node) {
+            previousMessage = node.message;
+            node.message = null;
+        }
+
+        if (previousMessage == null) {
+            return false;
+        }
+
+        size.decrementAndGet();
+
+        // Parent is locked before its child, writers adding to the store lock only one level at a time
+        for (int i = levels.length; i > 0; i--) {
+            Node parent = path[i - 1];
+
+            node = path[i];
+
+            synchronized (parent) {
+                synchronized (node) {
+                    if (node.pruned || node.message != null || node.children != null) {
+                        break;
+                    }
+
+                    node.pruned = true;
+                    parent.removeChild(levels[i - 1]);
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns retained message of given topic.
+     *
+     * @param topic topic of the message
+     * @return retained message, <i>null</i> if the topic has none
+     */
+    public RetainedMessage get(String topic) {
+        Node node = root;
+
+        for (String level : topic.split(LEVEL_SEPARATOR, -1)) {
+            node = node.getChild(level);
+
+            if (node == null) {
+                return null;
+            }
+        }
+
+        return node.message;
+    }
+
+    /**
+     * Finds all retained messages whose topics match given topic filter.
+     * Topics starting with <b>$</b> are not matched by filters starting with
+     * a wildcard.
+     *
+     * @param topicFilter valid topic filter
+     * @return matching retained messages
+     */
+    public ArrayList<RetainedMessage> match(String topicFilter) {
+        ArrayList<RetainedMessage> matchingMessages = new ArrayList<>();
+
+        match(root, topicFilter.split(LEVEL_SEPARATOR, -1), 0, matchingMessages);
+
+        return matchingMessages;
+    }
+
+    /**
+     * Collects retained messages of following levels matching rest of the
+     * topic filter.
+     *
+     * @param node currently matched level
+     * @param levels levels of the topic filter
+     * @param index index of the filter level following the node
+     * @param matchingMessages collection of found messages
+     */
+    private void match(Node node, String[] levels, int index, ArrayList<RetainedMessage> matchingMessages) {
+        if (index == levels.length) {
+            RetainedMessage message = node.message;
+
+            if (message != null) {
+                matchingMessages.add(message);
+            }
+
+            return;
+        }
+
+        String level = levels[index];
+
+        if (level.equals(MULTI_LEVEL_WILDCARD)) {
+            // Multi-level wildcard matches also the parent level ("a/#" matches "a")
+            if (index > 0 && node.message != null) {
+                matchingMessages.add(node.message);
+            }
+
+            collect(node, index == 0, matchingMessages);
+            return;
+        }
+
+        if (level.equals(SINGLE_LEVEL_WILDCARD)) {
+            ConcurrentHashMap<String, Node> children = node.children;
+
+            if (children != null) {
+                for (ConcurrentHashMap.Entry<String, Node> child : children.entrySet()) {
+                    if (index > 0 || !child.getKey().startsWith("$")) {
+                        match(child.getValue(), levels, index + 1, matchingMessages);
+                    }
+                }
+            }
+
+            return;
+        }
+
+        Node child = node.getChild(level);
+
+        if (child != null) {
+            match(child, levels, index + 1, matchingMessages);
+        }
+    }
+
+    /**
+     * Collects retained messages of all levels below given level.
+     *
+     * @param node level whose subtree is collected
+     * @param skipSystemTopics indicates that levels starting with <b>$</b>
+     * are skipped (they are children of the root)
+     * @param matchingMessages collection of found messages
+     */
+    private void collect(Node node, boolean skipSystemTopics, ArrayList<RetainedMessage> matchingMessages) {
+        ConcurrentHashMap<String, Node> children = node.children;
+
+        if (children == null) {
+            return;
+        }
+
+        for (ConcurrentHashMap.Entry<String, Node> child : children.entrySet()) {
+            if (skipSystemTopics && child.getKey().startsWith("$")) {
+                continue;
+            }
+
+            RetainedMessage message = child.getValue().message;
+
+            if (message != null) {
+                matchingMessages.add(message);
+            }
+
+            collect(child.getValue(), false, matchingMessages);
+        }
+    }
+
+    /**
+     * Returns number of retained messages.
+     *
+     * @return number of retained messages
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Writes all retained messages to the snapshot file. The snapshot
+     * is written to temporary file first, which replaces the previous
+     * snapshot only when it is complete and forced to the disk.
+     *
+     * Snapshot is [magic (4 B)][number of messages (8 B)] followed by messages
+     * [topic length (2 B)][topic][QoS (1 B)][payload length (4 B)][payload].
+     *
+     * @throws IOException thrown if the snapshot can not be written
+     */
+    public synchronized void writeSnapshot() throws IOException {
+        if (snapshotFile == null) {
+            return;
+        }
+
+        Path temporaryFile = snapshotFile.resolveSibling(snapshotFile.getFileName() + TEMPORARY_SUFFIX);
+        /**
+         * All messages (collected first, so the snapshot is one pass over
+         * them).
+         */
+        ArrayList<RetainedMessage> messages = new ArrayList<>(size.get());
+
+        collect(root, false, messages);
+
+        try (
+            FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        ) {
+            ByteBuffer buffer = ByteBuffer.allocate(SNAPSHOT_BUFFER_SIZE);
+
+            buffer.putInt(SNAPSHOT_MAGIC);
+            buffer.putLong(messages.size());
+
+            for (RetainedMessage message : messages) {
+                byte[] binaryTopic = message.topic.getBytes(CHARSET);
+                int recordSize = 2 + binaryTopic.length + 1 + 4 + message.payload.length;
+
+                if (buffer.remaining() < recordSize) {
+                    writeFully(channel, buffer);
+                    buffer = ByteBuffer.allocate(Math.max(SNAPSHOT_BUFFER_SIZE, recordSize));
+                }
+
+                buffer.putShort((short) binaryTopic.length);
+                buffer.put(binaryTopic);
+                buffer.put(message.qualityOfService);
+                buffer.putInt(message.payload.length);
+                buffer.put(message.payload);
+            }
+
+            writeFully(channel, buffer);
+            channel.force(true);
+        }
+
+        Files.move(temporaryFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        BrokerLogger.log(LogLevel.INFO, this.getClass(), "Snapshot of %d retained messages written", messages.size());
+    }
+
+    /**
+     * Writes the snapshot, failure is only reported. It is run periodically.
+     */
+    private void writeSnapshotSafely() {
+        try {
+            writeSnapshot();
+        } catch (IOException | RuntimeException ex) {
+            BrokerLogger.log(LogLevel.ERROR, this.getClass(), "Snapshot not written - %s", ex.getMessage());
+        }
+    }
+
+    /**
+     * Writes content of given buffer to given channel.
+     *
+     * @param channel channel of the snapshot
+     * @param buffer buffer filled with records
+     * @throws IOException thrown if writing fails
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Loads all messages of the snapshot file. The file is mapped and scanned
+     * sequentially.
+     *
+     * @throws IOException thrown if the snapshot can not be read or it is
+     * malformed
+     */
+    private void loadSnapshot() throws IOException {
+        try (
+            FileChannel channel = FileChannel.open(snapshotFile, StandardOpenOption.READ);
+        ) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.remaining() < SNAPSHOT_HEADER_SIZE || buffer.getInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Malformed snapshot of retained messages");
+            }
+
+            long messageCount = buffer.getLong();
+
+            for (long i = 0; i < messageCount; i++) {
+                byte[] binaryTopic = new byte[buffer.getShort() & 65535];
+
+                buffer.get(binaryTopic);
+
+                byte qualityOfService = buffer.get();
+                byte[] payload = new byte[buffer.getInt()];
+
+                buffer.get(payload);
+                retain(new String(binaryTopic, CHARSET), payload, qualityOfService);
+            }
+        } catch (RuntimeException ex) {
+            throw new IOException("Malformed snapshot of retained messages", ex);
+        }
+
+        BrokerLogger.log(LogLevel.INFO, this.getClass(), "%d retained messages loaded", size.get());
+    }
+
+    /**
+     * Stops periodic snapshots and writes the last one.
+     *
+     * @throws IOException thrown if the snapshot can not be written
+     */
+    public void close() throws IOException {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+
+        writeSnapshot();
+    }
+
+}
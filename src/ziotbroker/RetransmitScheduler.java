@@ -0,0 +1,129 @@
+package ziotbroker;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scheduler resending unacknowledged messages of all clients. It is one
+ * periodic task shared by the whole broker - messages have no timers of their
+ * own, every run resends all messages which were not acknowledged within the
+ * retry interval. Only connected sessions with messages in flight are
+ * visited.
+ *
+ * @author Jakub Svarc
+ */
+public class RetransmitScheduler {
+
+    /**
+     * Default time after which unacknowledged message is resent.
+     */
+    public static final long DEFAULT_RETRY_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    /**
+     * Time after which unacknowledged message is resent.
+     */
+    private final long retryIntervalNanos;
+    /**
+     * Sessions which have messages in flight.
+     */
+    private final Set<Session> sessions;
+    /**
+     * Executor running the periodic task.
+     */
+    private final ScheduledExecutorService executor;
+
+    /**
+     * Builds RetransmitScheduler and starts its periodic task. The task runs
+     * twice per retry interval, so message is resent at most one and a half
+     * of the interval after its last sending.
+     *
+     * @param retryIntervalNanos time after which unacknowledged message
+     * is resent
+     */
+    public RetransmitScheduler(long retryIntervalNanos) {
+        if (retryIntervalNanos < 2) {
+            throw new IllegalArgumentException("Retry interval must be positive");
+        }
+
+        this.retryIntervalNanos = retryIntervalNanos;
+        this.sessions = ConcurrentHashMap.newKeySet();
+        this.executor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "RetransmitScheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.scheduleAtFixedRate(this::resendExpired, retryIntervalNanos / 2, retryIntervalNanos / 2, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Starts watching messages in flight of given session. It must be called
+     * when the first message of the session gets in flight and when its client
+     * connects, the session stops being watched when all its messages are
+     * acknowledged or when its client disconnects.
+     *
+     * @param session session of the client
+     */
+    public void track(Session session) {
+        sessions.add(session);
+    }
+
+    /**
+     * Resends expired messages of all watched sessions and stops watching
+     * sessions which have no messages in flight or whose clients were
+     * disconnected.
+     */
+    private void resendExpired() {
+        try {
+            /**
+             * Time of the run.
+             */
+            long now = System.nanoTime();
+
+            for (Session session : sessions) {
+                if (!session.isConnected()) {
+                    sessions.remove(session);
+
+                    // Client could connect after the check, the session must not be lost
+                    if (session.isConnected()) {
+                        sessions.add(session);
+                    }
+
+                    continue;
+                }
+
+                session.resendExpired(now - retryIntervalNanos, now);
+
+                if (!session.hasInflightPackets()) {
+                    sessions.remove(session);
+
+                    // Message could get in flight after the check, the session must not be lost
+                    if (session.hasInflightPackets()) {
+                        sessions.add(session);
+                    }
+                }
+            }
+        } catch (RuntimeException ex) {
+            BrokerLogger.log(LogLevel.ERROR, this.getClass(), ex.getMessage());
+        }
+    }
+
+    /**
+     * Returns time after which unacknowledged message is resent.
+     *
+     * @return retry interval in nanoseconds
+     */
+    public long getRetryIntervalNanos() {
+        return retryIntervalNanos;
+    }
+
+    /**
+     * Stops the periodic task, nothing is resent afterwards.
+     */
+    public void close() {
+        executor.shutdownNow();
+    }
+
+}
@@ -0,0 +1,473 @@
+package ziotbroker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * State of one client which outlives single packet - its subscribtions,
+ * messages with QoS 1 and 2 sent to it which were not acknowledged yet and
+ * identifiers of QoS 2 messages received from it. Every connection starts
+ * with its own transient session, which ends with the connection. Client
+ * connecting with clean session flag unset gets persistent session instead,
+ * which is kept by the session store - messages for it are kept while it is
+ * not connected and all of them are sent when it connects again.
+ *
+ * All messages for the client pass through its session, so the client
+ * connecting again to persistent session only replaces the connection
+ * of the session.
+ *
+ * @author Jakub Svarc
+ */
+public class Session {
+
+    /**
+     * Identifier of the client, <i>null</i> for transient session.
+     */
+    private final String clientID;
+    /**
+     * Store logging changes of persistent session, <i>null</i> if changes
+     * are not logged.
+     */
+    private final SessionStore sessionStore;
+    /**
+     * Messages with QoS 1 and 2 sent to the client (or waiting for it) which
+     * were not acknowledged yet (access is synchronized on the table).
+     */
+    private final InflightTable inflightTable;
+    /**
+     * Identifiers of QoS 2 messages received from the client for which
+     * PUBREL was not received yet (allocated with the first such message,
+     * access is synchronized on the in-flight table).
+     */
+    private PacketIdentifierSet receivedPacketIdentifiers;
+    /**
+     * QoS granted to subscribtions of the client indexed by topic filter.
+     */
+    private final ConcurrentHashMap<String, Byte> subscribtions;
+    /**
+     * Output service of the current (or the last) connection of the client.
+     */
+    private volatile OutputClientService client;
+
+    /**
+     * Builds transient session of given connection.
+     *
+     * @param client output service of the connection
+     */
+    public Session(OutputClientService client) {
+        this(null, null);
+        this.client = client;
+    }
+
+    /**
+     * Builds persistent session without connection.
+     *
+     * @param clientID identifier of the client
+     * @param sessionStore store logging changes of the session, <i>null</i>
+     * if changes are not logged
+     */
+    Session(String clientID, SessionStore sessionStore) {
+        this.clientID = clientID;
+        this.sessionStore = sessionStore;
+        this.inflightTable = new InflightTable();
+        this.subscribtions = new ConcurrentHashMap<>();
+        this.client = null;
+    }
+
+    /**
+     * Replaces connection of the session. All messages in flight are resent
+     * to the new connection.
+     *
+     * @param newClient output service of the new connection
+     * @return output service of the previous connection (<i>null</i> if
+     * the session had no connection)
+     */
+    public OutputClientService attach(OutputClientService newClient) {
+        /**
+         * Packets to be resent (they are queued outside of the lock).
+         */
+        ArrayList<EncodedPacket> resentPackets = new ArrayList<>();
+        OutputClientService previousClient;
+
+        synchronized (inflightTable) {
+            previousClient = client;
+            client = newClient;
+            inflightTable.resendAll(System.nanoTime(), resentPackets);
+        }
+
+        for (EncodedPacket resentPacket : resentPackets) {
+            newClient.send(resentPacket);
+        }
+
+        return previousClient;
+    }
+
+    /**
+     * Sets connection of the session without resending anything. It is used
+     * for placeholder connection of session recovered from the store.
+     *
+     * @param client output service of the connection
+     */
+    void bind(OutputClientService client) {
+        this.client = client;
+    }
+
+    /**
+     * Sends QoS 0 message to the client. It is dropped if the client is not
+     * connected.
+     *
+     * @param packet encoded PUBLISH packet with QoS 0
+     */
+    public void send(EncodedPacket packet) {
+        /**
+         * Current connection (read once, it can be replaced concurrently).
+         */
+        OutputClientService currentClient = client;
+
+        if (currentClient != null) {
+            currentClient.send(packet);
+        }
+    }
+
+    /**
+     * Sends PUBLISH packet which must be acknowledged by the client. Packet
+     * identifier is allocated for the client, the packet is copied with it
+     * and kept in flight until the client acknowledges it. If the client
+     * of persistent session is not connected, the packet waits until
+     * it connects (message for transient session is dropped).
+     *
+     * @param publishPacket encoded PUBLISH packet with QoS 1 or 2 (its packet
+     * identifier is replaced)
+     * @return <i>true</i> if it is the only message in flight of the client
+     * (so the session must be tracked by the retransmit scheduler)
+     */
+    public boolean sendInflight(EncodedPacket publishPacket) {
+        /**
+         * Packet with identifier allocated for the client.
+         */
+        EncodedPacket identifiedPacket;
+        /**
+         * Indicates that no other message was in flight.
+         */
+        boolean firstInflight;
+        /**
+         * Connection to which the packet is sent, <i>null</i> if the client
+         * is not connected.
+         */
+        OutputClientService currentClient;
+
+        synchronized (inflightTable) {
+            currentClient = client;
+
+            if (currentClient != null && currentClient.isDisconnected()) {
+                currentClient = null;
+            }
+
+            if (currentClient == null && !isPersistent()) {
+                return false;
+            }
+
+            int packetIdentifier = inflightTable.allocatePacketIdentifier();
+
+            if (packetIdentifier == 0) {
+                BrokerLogger.logClient(LogLevel.WARNING, this.getClass(), clientID, publishPacket.getType(), "No free packet identifier, packet dropped");
+                return false;
+            }
+
+            identifiedPacket = publishPacket.withPacketIdentifier(packetIdentifier);
+            firstInflight = inflightTable.isEmpty();
+            inflightTable.put(packetIdentifier, identifiedPacket, currentClient != null ? System.nanoTime() : InflightTable.NOT_SENT, identifiedPacket.getQualityOfService() == 2 ? InflightTable.AWAITING_PUBREC : InflightTable.AWAITING_PUBACK);
+
+            if (sessionStore != null) {
+                sessionStore.appendPacket(clientID, packetIdentifier, identifiedPacket);
+            }
+        }
+
+        if (currentClient != null) {
+            currentClient.send(identifiedPacket);
+        }
+
+        return firstInflight;
+    }
+
+    /**
+     * Releases QoS 1 message in flight acknowledged by PUBACK.
+     *
+     * @param packetIdentifier packet identifier of acknowledged message
+     * @return <i>false</i> if no QoS 1 message with given identifier was
+     * in flight
+     */
+    public boolean acknowledge(int packetIdentifier) {
+        return release(packetIdentifier, InflightTable.AWAITING_PUBACK);
+    }
+
+    /**
+     * Moves QoS 2 message in flight received by the client (PUBREC came)
+     * to its second phase - the PUBLISH packet is replaced by given PUBREL
+     * packet, which is resent until PUBCOMP comes.
+     *
+     * @param packetIdentifier packet identifier of received message
+     * @param pubrelPacket encoded PUBREL packet with the same identifier
+     * @return <i>true</i> if PUBREL should be sent (also for repeated PUBREC),
+     * <i>false</i> if no QoS 2 message with given identifier was in flight
+     */
+    public boolean markReceived(int packetIdentifier, EncodedPacket pubrelPacket) {
+        synchronized (inflightTable) {
+            switch (inflightTable.getPhase(packetIdentifier)) {
+                case InflightTable.AWAITING_PUBREC: {
+                    inflightTable.put(packetIdentifier, pubrelPacket, System.nanoTime(), InflightTable.AWAITING_PUBCOMP);
+
+                    if (sessionStore != null) {
+                        sessionStore.appendPubrel(clientID, packetIdentifier);
+                    }
+
+                    return true;
+                } case InflightTable.AWAITING_PUBCOMP: {
+                    return true;
+                } default: {
+                    return false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Releases QoS 2 message in flight completed by PUBCOMP.
+     *
+     * @param packetIdentifier packet identifier of completed message
+     * @return <i>false</i> if no QoS 2 message with given identifier waited
+     * for PUBCOMP
+     */
+    public boolean complete(int packetIdentifier) {
+        return release(packetIdentifier, InflightTable.AWAITING_PUBCOMP);
+    }
+
+    /**
+     * Releases message in flight if it is in given phase.
+     *
+     * @param packetIdentifier packet identifier of the message
+     * @param phase expected phase of the message
+     * @return <i>false</i> if no message with given identifier was in given
+     * phase
+     */
+    private boolean release(int packetIdentifier, byte phase) {
+        synchronized (inflightTable) {
+            if (inflightTable.getPhase(packetIdentifier) != phase) {
+                return false;
+            }
+
+            inflightTable.remove(packetIdentifier);
+
+            if (sessionStore != null) {
+                sessionStore.appendRelease(clientID, packetIdentifier);
+            }
+
+            return true;
+        }
+    }
+
+    /**
+     * Records QoS 2 message received from the client. The message is
+     * delivered at its first arrival and its identifier is kept until PUBREL
+     * comes, so redelivered PUBLISH is not delivered again.
+     *
+     * @param packetIdentifier packet identifier of received message
+     * @return <i>true</i> if the message arrived for the first time and must
+     * be delivered
+     */
+    public boolean receiveExactlyOnce(int packetIdentifier) {
+        synchronized (inflightTable) {
+            if (receivedPacketIdentifiers == null) {
+                receivedPacketIdentifiers = new PacketIdentifierSet();
+            }
+
+            return receivedPacketIdentifiers.add(packetIdentifier);
+        }
+    }
+
+    /**
+     * Forgets identifier of QoS 2 message received from the client (PUBREL
+     * came), so the identifier can be used for new message.
+     *
+     * @param packetIdentifier packet identifier of released message
+     * @return <i>false</i> if no message with given identifier was received
+     */
+    public boolean releaseExactlyOnce(int packetIdentifier) {
+        synchronized (inflightTable) {
+            return receivedPacketIdentifiers != null && receivedPacketIdentifiers.remove(packetIdentifier);
+        }
+    }
+
+    /**
+     * Resends messages in flight which were sent before given time. Resent
+     * PUBLISH packets have DUP flag set. Nothing is resent while the client
+     * is not connected.
+     *
+     * @param sentBefore messages sent before this time are resent
+     * @param now time (System.nanoTime) of the resending
+     */
+    public void resendExpired(long sentBefore, long now) {
+        /**
+         * Packets to be resent (they are queued outside of the lock).
+         */
+        ArrayList<EncodedPacket> resentPackets = new ArrayList<>();
+        OutputClientService currentClient;
+
+        synchronized (inflightTable) {
+            currentClient = client;
+
+            if (currentClient == null || currentClient.isDisconnected()) {
+                return;
+            }
+
+            inflightTable.resendExpired(sentBefore, now, resentPackets);
+        }
+
+        for (EncodedPacket resentPacket : resentPackets) {
+            currentClient.send(resentPacket);
+        }
+    }
+
+    /**
+     * Stores subscribtion of the client (replaces QoS of existing
+     * subscribtion to the same filter).
+     *
+     * @param topicFilter topic filter of the subscribtion
+     * @param qualityOfService QoS granted to the subscribtion
+     */
+    public void addSubscribtion(String topicFilter, byte qualityOfService) {
+        synchronized (inflightTable) {
+            subscribtions.put(topicFilter, qualityOfService);
+
+            if (sessionStore != null) {
+                sessionStore.appendSubscribtion(clientID, topicFilter, qualityOfService);
+            }
+        }
+    }
+
+    /**
+     * Returns subscribtions of the client.
+     *
+     * @return unmodifiable view of QoS granted to subscribtions indexed
+     * by topic filter
+     */
+    public Map<String, Byte> getSubscribtions() {
+        return Collections.unmodifiableMap(subscribtions);
+    }
+
+    /**
+     * Restores message in flight recovered from the store. The message was
+     * not sent to the current connection yet.
+     *
+     * @param packetIdentifier packet identifier of the message
+     * @param packet encoded PUBLISH or PUBREL packet of the message
+     * @param phase phase of the message
+     */
+    void restorePacket(int packetIdentifier, EncodedPacket packet, byte phase) {
+        synchronized (inflightTable) {
+            inflightTable.put(packetIdentifier, packet, InflightTable.NOT_SENT, phase);
+        }
+    }
+
+    /**
+     * Removes message in flight released according to the store.
+     *
+     * @param packetIdentifier packet identifier of the message
+     */
+    void restoreRelease(int packetIdentifier) {
+        synchronized (inflightTable) {
+            inflightTable.remove(packetIdentifier);
+        }
+    }
+
+    /**
+     * Restores subscribtion recovered from the store.
+     *
+     * @param topicFilter topic filter of the subscribtion
+     * @param qualityOfService QoS granted to the subscribtion
+     */
+    void restoreSubscribtion(String topicFilter, byte qualityOfService) {
+        subscribtions.put(topicFilter, qualityOfService);
+    }
+
+    /**
+     * Passes all messages in flight to given consumer.
+     *
+     * @param consumer consumer of the messages
+     */
+    void forEachPacket(InflightTable.EntryConsumer consumer) {
+        synchronized (inflightTable) {
+            inflightTable.forEach(consumer);
+        }
+    }
+
+    /**
+     * Indicates that some messages sent to the client were not acknowledged
+     * yet.
+     *
+     * @return <i>true</i> if some message is in flight
+     */
+    public boolean hasInflightPackets() {
+        synchronized (inflightTable) {
+            return !inflightTable.isEmpty();
+        }
+    }
+
+    /**
+     * Returns number of messages sent to the client (or waiting for it) which
+     * were not acknowledged yet.
+     *
+     * @return number of messages in flight
+     */
+    public int getInflightCount() {
+        synchronized (inflightTable) {
+            return inflightTable.size();
+        }
+    }
+
+    /**
+     * Indicates that the client of the session is connected.
+     *
+     * @return <i>true</i> if the client is connected
+     */
+    public boolean isConnected() {
+        /**
+         * Current connection (read once, it can be replaced concurrently).
+         */
+        OutputClientService currentClient = client;
+
+        return currentClient != null && !currentClient.isDisconnected();
+    }
+
+    /**
+     * Indicates that the session outlives connection of the client.
+     *
+     * @return <i>true</i> for persistent session
+     */
+    public boolean isPersistent() {
+        return clientID != null;
+    }
+
+    /**
+     * Returns identifier of the client.
+     *
+     * @return identifier of the client, <i>null</i> for transient session
+     */
+    public String getClientID() {
+        return clientID;
+    }
+
+    /**
+     * Returns output service of the current (or the last) connection
+     * of the client.
+     *
+     * @return output service of the connection (<i>null</i> if the session
+     * never had any)
+     */
+    public OutputClientService getClient() {
+        return client;
+    }
+
+}
@@ -0,0 +1,995 @@
+package ziotbroker;
+
+import ziotbroker.packet.PacketType;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * Store of persistent sessions (sessions of clients connected with clean
+ * session flag unset). Sessions are kept in memory and, if the store has
+ * a directory, every change of them is appended as a record to memory-mapped
+ * segment log in that directory:
+ *
+ * <ul>
+ * <li>appending writes only to the mapped segment, it neither calls system
+ * nor waits for the disk - mapped pages are forced to the disk periodically
+ * (so at most one flush interval of changes is lost on power failure, crash
+ * of the broker itself loses nothing)</li>
+ * <li>full segment is sealed and the next one, mapped in advance by the
+ * background thread, takes its place - the sealed segment is forced
+ * and closed in the background too, files are never rewritten</li>
+ * <li>sealed segments are periodically compacted into one segment holding
+ * only live state of the sessions</li>
+ * <li>the broker recovers all sessions at start by one sequential scan
+ * of the segments</li>
+ * </ul>
+ *
+ * Record is [body length (4 B)][CRC32C of body (4 B)][body], its body is
+ * [type (1 B)][client ID length (2 B)][client ID][argument (2 B)][data].
+ * Argument is packet identifier or QoS, data is encoded packet or topic
+ * filter.
+ *
+ * @author Jakub Svarc
+ */
+public final class SessionStore {
+
+    /**
+     * Default size of one segment in bytes.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    /**
+     * Default interval of forcing of the active segment to the disk.
+     */
+    public static final long DEFAULT_FLUSH_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    /**
+     * Default interval of compaction of sealed segments.
+     */
+    public static final long DEFAULT_COMPACTION_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+    /**
+     * Charset of client identifiers and topic filters in records.
+     */
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    /**
+     * Prefix of segment file names (followed by sequence number).
+     */
+    private static final String SEGMENT_PREFIX = "segment-";
+    /**
+     * Suffix of segment file names.
+     */
+    private static final String SEGMENT_SUFFIX = ".log";
+    /**
+     * Suffix of segment which is being compacted (such file is unfinished
+     * and it is deleted at start).
+     */
+    private static final String COMPACTION_SUFFIX = ".compacting";
+    /**
+     * Size of record header (body length and checksum).
+     */
+    private static final int RECORD_HEADER_SIZE = 8;
+    /**
+     * Size of record body without client ID and data.
+     */
+    private static final int RECORD_BODY_OVERHEAD = 5;
+    /**
+     * Time for which closing waits for background tasks.
+     */
+    private static final long CLOSE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+    /**
+     * Size of buffer used for writing of compacted segment.
+     */
+    private static final int COMPACTION_BUFFER_SIZE = 64 * 1024;
+    /**
+     * Record discarding all state recovered so far. Compacted segment starts
+     * with it, so segments which were compacted but not deleted yet before
+     * crash have no effect.
+     */
+    private static final byte RESET_RECORD = 1;
+    /**
+     * Record of new session.
+     */
+    private static final byte SESSION_RECORD = 2;
+    /**
+     * Record of discarded session.
+     */
+    private static final byte CLEAR_RECORD = 3;
+    /**
+     * Record of subscribtion (argument is QoS, data is topic filter).
+     */
+    private static final byte SUBSCRIBTION_RECORD = 4;
+    /**
+     * Record of PUBLISH packet in flight (argument is packet identifier, data
+     * is encoded packet).
+     */
+    private static final byte PUBLISH_RECORD = 5;
+    /**
+     * Record of QoS 2 message which moved to PUBREL phase (argument is packet
+     * identifier).
+     */
+    private static final byte PUBREL_RECORD = 6;
+    /**
+     * Record of released message (argument is packet identifier).
+     */
+    private static final byte RELEASE_RECORD = 7;
+
+    /**
+     * Persistent sessions indexed by client ID.
+     */
+    private final ConcurrentHashMap<String, Session> sessions;
+    /**
+     * Directory of the segment log, <i>null</i> if sessions are kept only
+     * in memory.
+     */
+    private final Path directory;
+    /**
+     * Size of new segments in bytes.
+     */
+    private final int segmentSize;
+    /**
+     * Sealed segments ordered by sequence number (guarded by the store), 
+     * segment is added when it is forced to the disk.
+     */
+    private final ArrayList<Path> sealedSegments;
+    /**
+     * Checksum of appended records (guarded by the store).
+     */
+    private final CRC32C checksum;
+    /**
+     * Executor running flushing, sealing, preparation of segments 
+     * and compaction.
+     */
+    private final ScheduledExecutorService executor;
+    /**
+     * Sequence number of the active segment.
+     */
+    private long activeSequenceNumber;
+    /**
+     * Highest sequence number given to a segment (segments of the log are 
+     * ordered by it).
+     */
+    private long reservedSequenceNumber;
+    /**
+     * Channel of the active segment.
+     */
+    private FileChannel activeChannel;
+    /**
+     * Mapped active segment, records are appended at its position.
+     */
+    private MappedByteBuffer activeSegment;
+    /**
+     * Indicates that the active segment was changed since it was forced
+     * to the disk.
+     */
+    private boolean dirty;
+    /**
+     * Sequence number of the spare segment.
+     */
+    private long spareSequenceNumber;
+    /**
+     * Channel of the spare segment.
+     */
+    private FileChannel spareChannel;
+    /**
+     * Segment mapped in advance, it becomes active when the active one
+     * is sealed. It is <i>null</i> until it is prepared.
+     */
+    private MappedByteBuffer spareSegment;
+    /**
+     * Indicates that preparation of the spare segment is scheduled.
+     */
+    private boolean spareRequested;
+
+    /**
+     * Builds SessionStore keeping sessions only in memory (they are lost
+     * when the broker stops).
+     */
+    public SessionStore() {
+        this.sessions = new ConcurrentHashMap<>();
+        this.directory = null;
+        this.segmentSize = 0;
+        this.sealedSegments = null;
+        this.checksum = null;
+        this.executor = null;
+    }
+
+    /**
+     * Builds SessionStore logging sessions to given directory with default
+     * segment size, flush interval and compaction interval. Sessions stored
+     * in the directory are recovered.
+     *
+     * @param directory directory of the segment log
+     * @throws IOException thrown if the log can not be read or created
+     */
+    public SessionStore(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_FLUSH_INTERVAL_NANOS, DEFAULT_COMPACTION_INTERVAL_NANOS);
+    }
+
+    /**
+     * Builds SessionStore logging sessions to given directory. Sessions stored
+     * in the directory are recovered and new active segment is started.
+     *
+     * @param directory directory of the segment log
+     * @param segmentSize size of one segment in bytes
+     * @param flushIntervalNanos interval of forcing of the active segment
+     * to the disk
+     * @param compactionIntervalNanos interval of compaction of sealed segments
+     * @throws IOException thrown if the log can not be read or created
+     */
+    public SessionStore(Path directory, int segmentSize, long flushIntervalNanos, long compactionIntervalNanos) throws IOException {
+        if (segmentSize < 1024) {
+            throw new IllegalArgumentException("Segment size must be at least 1 KiB");
+        }
+
+        if (flushIntervalNanos <= 0 || compactionIntervalNanos <= 0) {
+            throw new IllegalArgumentException("Intervals must be positive");
+        }
+
+        this.sessions = new ConcurrentHashMap<>();
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.sealedSegments = new ArrayList<>();
+        this.checksum = new CRC32C();
+
+        Files.createDirectories(directory);
+        recover();
+        reservedSequenceNumber = activeSequenceNumber;
+        startSegment(++reservedSequenceNumber, segmentSize);
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "SessionStore");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.scheduleWithFixedDelay(this::flush, flushIntervalNanos, flushIntervalNanos, TimeUnit.NANOSECONDS);
+        this.executor.scheduleWithFixedDelay(this::compact, compactionIntervalNanos, compactionIntervalNanos, TimeUnit.NANOSECONDS);
+
+        synchronized (this) {
+            requestSpare();
+        }
+    }
+
+    /**
+     * Returns persistent session of given client.
+     *
+     * @param clientID identifier of the client
+     * @return session of the client, <i>null</i> if it has none
+     */
+    public Session get(String clientID) {
+        return sessions.get(clientID);
+    }
+
+    /**
+     * Returns persistent session of given client, new session is created
+     * if it has none.
+     *
+     * @param clientID identifier of the client
+     * @return session of the client
+     */
+    public Session create(String clientID) {
+        return sessions.computeIfAbsent(clientID, id -> {
+            append(SESSION_RECORD, id, 0, null, null);
+            return new Session(id, directory != null ? this : null);
+        });
+    }
+
+    /**
+     * Discards persistent session of given client.
+     *
+     * @param clientID identifier of the client
+     * @return discarded session, <i>null</i> if the client had none
+     */
+    public Session remove(String clientID) {
+        /**
+         * Discarded session.
+         */
+        Session session = sessions.remove(clientID);
+
+        if (session != null) {
+            append(CLEAR_RECORD, clientID, 0, null, null);
+        }
+
+        return session;
+    }
+
+    /**
+     * Returns all persistent sessions.
+     *
+     * @return unmodifiable view of the sessions
+     */
+    public Collection<Session> getSessions() {
+        return Collections.unmodifiableCollection(sessions.values());
+    }
+
+    /**
+     * Returns number of persistent sessions.
+     *
+     * @return number of sessions
+     */
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Subscribes recovered sessions which have no connection to given index
+     * of subscribtions. Every such session gets placeholder connection, which
+     * represents its client in the index until the client connects.
+     *
+     * @param subscribtions index storing subscribtions of the clients
+     */
+    void restoreSubscribtions(SubscribtionTree subscribtions) {
+        for (Session session : sessions.values()) {
+            if (session.getClient() != null) {
+                continue;
+            }
+
+            /**
+             * Placeholder connection of the session.
+             */
+            DetachedClientService placeholder = new DetachedClientService(session);
+
+            session.bind(placeholder);
+
+            for (Map.Entry<String, Byte> subscribtion : session.getSubscribtions().entrySet()) {
+                try {
+                    subscribtions.subscribe(new Subscribtion(subscribtion.getKey(), subscribtion.getValue()), placeholder);
+                } catch (MQTTException ex) {
+                    BrokerLogger.log(LogLevel.ERROR, this.getClass(), ex.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends record of subscribtion.
+     *
+     * @param clientID identifier of the client
+     * @param topicFilter topic filter of the subscribtion
+     * @param qualityOfService QoS granted to the subscribtion
+     */
+    void appendSubscribtion(String clientID, String topicFilter, byte qualityOfService) {
+        append(SUBSCRIBTION_RECORD, clientID, qualityOfService, topicFilter.getBytes(CHARSET), null);
+    }
+
+    /**
+     * Appends record of PUBLISH packet in flight.
+     *
+     * @param clientID identifier of the client
+     * @param packetIdentifier packet identifier of the message
+     * @param packet encoded PUBLISH packet
+     */
+    void appendPacket(String clientID, int packetIdentifier, EncodedPacket packet) {
+        append(PUBLISH_RECORD, clientID, packetIdentifier, null, packet);
+    }
+
+    /**
+     * Appends record of QoS 2 message which moved to PUBREL phase.
+     *
+     * @param clientID identifier of the client
+     * @param packetIdentifier packet identifier of the message
+     */
+    void appendPubrel(String clientID, int packetIdentifier) {
+        append(PUBREL_RECORD, clientID, packetIdentifier, null, null);
+    }
+
+    /**
+     * Appends record of released message.
+     *
+     * @param clientID identifier of the client
+     * @param packetIdentifier packet identifier of the message
+     */
+    void appendRelease(String clientID, int packetIdentifier) {
+        append(RELEASE_RECORD, clientID, packetIdentifier, null, null);
+    }
+
+    /**
+     * Appends record to the active segment. Full segment is sealed and new one
+     * is started. Nothing is appended if the store has no directory.
+     *
+     * @param type type of the record
+     * @param clientID identifier of the client
+     * @param argument packet identifier or QoS
+     * @param data topic filter, <i>null</i> if the record has no such data
+     * @param packet encoded packet, <i>null</i> if the record has no packet
+     */
+    private void append(byte type, String clientID, int argument, byte[] data, EncodedPacket packet) {
+        if (directory == null) {
+            return;
+        }
+
+        /**
+         * Encoded client ID.
+         */
+        byte[] binaryClientID = clientID.getBytes(CHARSET);
+        int recordSize = RECORD_HEADER_SIZE + RECORD_BODY_OVERHEAD + binaryClientID.length + (data != null ? data.length : 0) + (packet != null ? packet.getLength() : 0);
+
+        synchronized (this) {
+            if (activeSegment == null) {
+                return;
+            }
+
+            try {
+                if (activeSegment.remaining() < recordSize) {
+                    sealSegment(recordSize);
+                }
+
+                writeRecord(activeSegment, checksum, type, binaryClientID, argument, data, packet);
+                dirty = true;
+            } catch (IOException ex) {
+                BrokerLogger.log(LogLevel.ERROR, this.getClass(), "Record not stored - %s", ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Writes one record to given buffer. The buffer must have enough space
+     * for it.
+     *
+     * @param buffer buffer to which the record is written (from its position)
+     * @param checksum checksum used for the record
+     * @param type type of the record
+     * @param binaryClientID encoded identifier of the client
+     * @param argument packet identifier or QoS
+     * @param data topic filter, <i>null</i> if the record has no such data
+     * @param packet encoded packet, <i>null</i> if the record has no packet
+     */
+    private static void writeRecord(ByteBuffer buffer, CRC32C checksum, byte type, byte[] binaryClientID, int argument, byte[] data, EncodedPacket packet) {
+        /**
+         * Position of the record header.
+         */
+        int start = buffer.position();
+
+        buffer.position(start + RECORD_HEADER_SIZE);
+        buffer.put(type);
+        buffer.putShort((short) binaryClientID.length);
+        buffer.put(binaryClientID);
+        buffer.putShort((short) argument);
+
+        if (data != null) {
+            buffer.put(data);
+        }
+
+        if (packet != null) {
+            packet.writeTo(buffer);
+        }
+
+        /**
+         * Position after the record.
+         */
+        int end = buffer.position();
+
+        checksum.reset();
+        checksum.update(buffer.slice(start + RECORD_HEADER_SIZE, end - start - RECORD_HEADER_SIZE));
+        buffer.putInt(start, end - start - RECORD_HEADER_SIZE);
+        buffer.putInt(start + 4, (int) checksum.getValue());
+    }
+
+    /**
+     * Seals the active segment and activates the next one. The spare segment
+     * is used if it is ready, else the next segment is created and mapped 
+     * right away. The sealed segment is forced to the disk and closed 
+     * by the executor. It must be called with the store locked.
+     *
+     * @param recordSize size of the record which must fit into the next
+     * segment (larger record gets larger segment)
+     * @throws IOException thrown if the next segment can not be created
+     */
+    private void sealSegment(int recordSize) throws IOException {
+        Path sealedPath = segmentPath(activeSequenceNumber);
+        FileChannel sealedChannel = activeChannel;
+        MappedByteBuffer sealedSegment = activeSegment;
+
+        if (spareSegment != null && spareSegment.capacity() >= recordSize) {
+            activeSequenceNumber = spareSequenceNumber;
+            activeChannel = spareChannel;
+            activeSegment = spareSegment;
+            spareChannel = null;
+            spareSegment = null;
+            dirty = false;
+        } else {
+            discardSpare();
+            startSegment(++reservedSequenceNumber, Math.max(segmentSize, recordSize));
+        }
+
+        executor.execute(() -> closeSegment(sealedPath, sealedChannel, sealedSegment));
+        requestSpare();
+    }
+
+    /**
+     * Forces sealed segment to the disk, closes it and makes it available
+     * for compaction. It is run by the executor.
+     *
+     * @param path path of the segment
+     * @param channel channel of the segment
+     * @param segment mapped segment
+     */
+    private void closeSegment(Path path, FileChannel channel, MappedByteBuffer segment) {
+        try {
+            segment.force();
+            channel.close();
+        } catch (IOException | RuntimeException ex) {
+            BrokerLogger.log(LogLevel.ERROR, this.getClass(), "Sealed segment not forced - %s", ex.getMessage());
+        }
+
+        synchronized (this) {
+            sealedSegments.add(path);
+        }
+    }
+
+    /**
+     * Schedules preparation of the spare segment unless it is ready or already
+     * scheduled. It must be called with the store locked.
+     */
+    private void requestSpare() {
+        if (spareSegment != null || spareRequested || activeSegment == null) {
+            return;
+        }
+
+        spareRequested = true;
+        executor.execute(this::prepareSpare);
+    }
+
+    /**
+     * Creates and maps the spare segment. Segment which is older than 
+     * the active one when it is ready (the active one was created meanwhile) 
+     * is deleted and new preparation is scheduled. It is run by the executor.
+     */
+    private void prepareSpare() {
+        long sequenceNumber;
+
+        synchronized (this) {
+            if (activeSegment == null) {
+                spareRequested = false;
+                return;
+            }
+
+            sequenceNumber = ++reservedSequenceNumber;
+        }
+
+        Path path = segmentPath(sequenceNumber);
+
+        try {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+
+            synchronized (this) {
+                spareRequested = false;
+
+                if (activeSegment != null && sequenceNumber > activeSequenceNumber) {
+                    spareSequenceNumber = sequenceNumber;
+                    spareChannel = channel;
+                    spareSegment = segment;
+                    return;
+                }
+            }
+
+            channel.close();
+            Files.delete(path);
+
+            synchronized (this) {
+                requestSpare();
+            }
+        } catch (IOException ex) {
+            BrokerLogger.log(LogLevel.ERROR, this.getClass(), "Spare segment not prepared - %s", ex.getMessage());
+
+            synchronized (this) {
+                spareRequested = false;
+            }
+        }
+    }
+
+    /**
+     * Closes and deletes the spare segment (it holds no records). It must
+     * be called with the store locked.
+     */
+    private void discardSpare() {
+        if (spareSegment == null) {
+            return;
+        }
+
+        try {
+            spareChannel.close();
+            Files.delete(segmentPath(spareSequenceNumber));
+        } catch (IOException ex) {
+            BrokerLogger.log(LogLevel.ERROR, this.getClass(), ex.getMessage());
+        }
+
+        spareChannel = null;
+        spareSegment = null;
+    }
+
+    /**
+     * Creates, preallocates and maps new active segment.
+     *
+     * @param sequenceNumber sequence number of the segment
+     * @param size size of the segment in bytes
+     * @throws IOException thrown if the segment can not be created
+     */
+    private void startSegment(long sequenceNumber, int size) throws IOException {
+        activeSequenceNumber = sequenceNumber;
+        activeChannel = FileChannel.open(segmentPath(sequenceNumber), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        activeSegment = activeChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        dirty = false;
+    }
+
+    /**
+     * Forces changes of the active segment to the disk. The store is locked
+     * only while the segment is taken, so appending is not blocked by the disk.
+     */
+    private void flush() {
+        MappedByteBuffer segment;
+
+        synchronized (this) {
+            if (!dirty || activeSegment == null) {
+                return;
+            }
+
+            segment = activeSegment;
+            dirty = false;
+        }
+
+        try {
+            segment.force();
+        } catch (RuntimeException ex) {
+            BrokerLogger.log(LogLevel.ERROR, this.getClass(), ex.getMessage());
+        }
+    }
+
+    /**
+     * Compacts all sealed segments into one. Sealed segments are replayed, live
+     * state of the sessions is written to temporary file, which replaces
+     * the newest of the segments, and the older segments are deleted. Active
+     * segment is not touched, so appending continues during the compaction.
+     */
+    private void compact() {
+        ArrayList<Path> segments;
+
+        synchronized (this) {
+            if (sealedSegments.size() < 2) {
+                return;
+            }
+
+            segments = new ArrayList<>(sealedSegments);
+        }
+
+        try {
+            /**
+             * Live sessions of the compacted segments (not tied to the store).
+             */
+            HashMap<String, Session> liveSessions = new HashMap<>();
+
+            for (Path segment : segments) {
+                replay(segment, liveSessions, null);
+            }
+
+            Path compactedSegment = segments.get(segments.size() - 1);
+            Path temporarySegment = compactedSegment.resolveSibling(compactedSegment.getFileName() + COMPACTION_SUFFIX);
+
+            writeSnapshot(temporarySegment, liveSessions);
+            Files.move(temporarySegment, compactedSegment, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            for (int i = 0; i < segments.size() - 1; i++) {
+                Files.delete(segments.get(i));
+            }
+
+            synchronized (this) {
+                sealedSegments.removeAll(segments);
+                sealedSegments.add(0, compactedSegment);
+            }
+
+            BrokerLogger.log(LogLevel.INFO, this.getClass(), "%d segments compacted (%d sessions)", segments.size(), liveSessions.size());
+        } catch (IOException | RuntimeException ex) {
+            BrokerLogger.log(LogLevel.ERROR, this.getClass(), "Compaction failed - %s", ex.getMessage());
+        }
+    }
+
+    /**
+     * Writes live state of given sessions to new segment file, which is forced
+     * to the disk before it is closed. The segment starts with reset record.
+     *
+     * @param path path of the new segment
+     * @param liveSessions sessions to be written
+     * @throws IOException thrown if writing fails
+     */
+    private static void writeSnapshot(Path path, Map<String, Session> liveSessions) throws IOException {
+        try (
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        ) {
+            CRC32C snapshotChecksum = new CRC32C();
+            /**
+             * Buffer of records written to the channel whenever it is full
+             * (it is enlarged for records larger than it).
+             */
+            ByteBuffer[] buffer = {ByteBuffer.allocate(COMPACTION_BUFFER_SIZE)};
+            /**
+             * Handles I/O error of the consumer of messages in flight.
+             */
+            IOException[] failure = {null};
+
+            writeSnapshotRecord(channel, buffer, snapshotChecksum, RESET_RECORD, new byte[0], 0, null, null);
+
+            for (Session session : liveSessions.values()) {
+                byte[] binaryClientID = session.getClientID().getBytes(CHARSET);
+
+                writeSnapshotRecord(channel, buffer, snapshotChecksum, SESSION_RECORD, binaryClientID, 0, null, null);
+
+                for (Map.Entry<String, Byte> subscribtion : session.getSubscribtions().entrySet()) {
+                    writeSnapshotRecord(channel, buffer, snapshotChecksum, SUBSCRIBTION_RECORD, binaryClientID, subscribtion.getValue(), subscribtion.getKey().getBytes(CHARSET), null);
+                }
+
+                session.forEachPacket((packetIdentifier, packet, phase) -> {
+                    try {
+                        if (phase == InflightTable.AWAITING_PUBCOMP) {
+                            writeSnapshotRecord(channel, buffer, snapshotChecksum, PUBREL_RECORD, binaryClientID, packetIdentifier, null, null);
+                        } else {
+                            writeSnapshotRecord(channel, buffer, snapshotChecksum, PUBLISH_RECORD, binaryClientID, packetIdentifier, null, packet);
+                        }
+                    } catch (IOException ex) {
+                        failure[0] = ex;
+                    }
+                });
+
+                if (failure[0] != null) {
+                    throw failure[0];
+                }
+            }
+
+            buffer[0].flip();
+
+            while (buffer[0].hasRemaining()) {
+                channel.write(buffer[0]);
+            }
+
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Writes one record of compacted segment to given buffer. Buffer which
+     * has not enough space is written to the channel first.
+     *
+     * @param channel channel of the compacted segment
+     * @param buffer holder of the buffer of records
+     * @param checksum checksum used for the record
+     * @param type type of the record
+     * @param binaryClientID encoded identifier of the client
+     * @param argument packet identifier or QoS
+     * @param data topic filter, <i>null</i> if the record has no such data
+     * @param packet encoded packet, <i>null</i> if the record has no packet
+     * @throws IOException thrown if writing fails
+     */
+    private static void writeSnapshotRecord(FileChannel channel, ByteBuffer[] buffer, CRC32C checksum, byte type, byte[] binaryClientID, int argument, byte[] data, EncodedPacket packet) throws IOException {
+        int recordSize = RECORD_HEADER_SIZE + RECORD_BODY_OVERHEAD + binaryClientID.length + (data != null ? data.length : 0) + (packet != null ? packet.getLength() : 0);
+
+        if (buffer[0].remaining() < recordSize) {
+            buffer[0].flip();
+
+            while (buffer[0].hasRemaining()) {
+                channel.write(buffer[0]);
+            }
+
+            buffer[0] = ByteBuffer.allocate(Math.max(COMPACTION_BUFFER_SIZE, recordSize));
+        }
+
+        writeRecord(buffer[0], checksum, type, binaryClientID, argument, data, packet);
+    }
+
+    /**
+     * Recovers sessions from all segments in the directory. Segments are
+     * scanned sequentially in order of their sequence numbers, unfinished
+     * compactions are deleted.
+     *
+     * @throws IOException thrown if the segments can not be read
+     */
+    private void recover() throws IOException {
+        /**
+         * Sequence numbers of found segments.
+         */
+        ArrayList<Long> sequenceNumbers = new ArrayList<>();
+
+        try (
+            DirectoryStream<Path> files = Files.newDirectoryStream(directory);
+        ) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+
+                if (name.endsWith(COMPACTION_SUFFIX)) {
+                    Files.delete(file);
+                } else if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    sequenceNumbers.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                }
+            }
+        }
+
+        sequenceNumbers.sort(null);
+        activeSequenceNumber = 0;
+
+        for (long sequenceNumber : sequenceNumbers) {
+            replay(segmentPath(sequenceNumber), sessions, this);
+            sealedSegments.add(segmentPath(sequenceNumber));
+            activeSequenceNumber = sequenceNumber;
+        }
+
+        BrokerLogger.log(LogLevel.INFO, this.getClass(), "%d sessions recovered from %d segments", sessions.size(), sequenceNumbers.size());
+    }
+
+    /**
+     * Applies all records of given segment to given sessions. Scanning stops
+     * at the end of written records or at the first damaged record (the rest
+     * of the segment was not written completely).
+     *
+     * @param segment path of the segment
+     * @param replayedSessions sessions to which the records are applied
+     * @param owner store logging changes of replayed sessions, <i>null</i>
+     * if they are not logged
+     * @throws IOException thrown if the segment can not be read
+     */
+    private static void replay(Path segment, Map<String, Session> replayedSessions, SessionStore owner) throws IOException {
+        try (
+            FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ);
+        ) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CRC32C replayChecksum = new CRC32C();
+
+            while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+                int bodyLength = buffer.getInt();
+                int recordChecksum = buffer.getInt();
+
+                if (bodyLength < RECORD_BODY_OVERHEAD || bodyLength > buffer.remaining()) {
+                    break;
+                }
+
+                ByteBuffer body = buffer.slice(buffer.position(), bodyLength);
+
+                replayChecksum.reset();
+                replayChecksum.update(body.duplicate());
+
+                if ((int) replayChecksum.getValue() != recordChecksum) {
+                    BrokerLogger.log(LogLevel.WARNING, SessionStore.class, "Damaged record in %s, rest of the segment skipped", segment.getFileName());
+                    break;
+                }
+
+                apply(body, replayedSessions, owner);
+                buffer.position(buffer.position() + bodyLength);
+            }
+        }
+    }
+
+    /**
+     * Applies one record to given sessions.
+     *
+     * @param body body of the record
+     * @param replayedSessions sessions to which the record is applied
+     * @param owner store logging changes of replayed sessions, <i>null</i>
+     * if they are not logged
+     */
+    private static void apply(ByteBuffer body, Map<String, Session> replayedSessions, SessionStore owner) {
+        byte type = body.get();
+        byte[] binaryClientID = new byte[body.getShort() & 65535];
+
+        body.get(binaryClientID);
+
+        String clientID = new String(binaryClientID, CHARSET);
+        int argument = body.getShort() & 65535;
+        Session session = replayedSessions.get(clientID);
+
+        switch (type) {
+            case RESET_RECORD: {
+                replayedSessions.clear();
+                break;
+            } case SESSION_RECORD: {
+                if (session == null) {
+                    replayedSessions.put(clientID, new Session(clientID, owner));
+                }
+
+                break;
+            } case CLEAR_RECORD: {
+                replayedSessions.remove(clientID);
+                break;
+            } case SUBSCRIBTION_RECORD: {
+                if (session != null) {
+                    byte[] binaryTopicFilter = new byte[body.remaining()];
+
+                    body.get(binaryTopicFilter);
+                    session.restoreSubscribtion(new String(binaryTopicFilter, CHARSET), (byte) argument);
+                }
+
+                break;
+            } case PUBLISH_RECORD: {
+                if (session != null) {
+                    byte[] binaryPacket = new byte[body.remaining()];
+
+                    body.get(binaryPacket);
+
+                    EncodedPacket packet = new EncodedPacket(PacketType.PUBLISH, binaryPacket);
+
+                    session.restorePacket(argument, packet, packet.getQualityOfService() == 2 ? InflightTable.AWAITING_PUBREC : InflightTable.AWAITING_PUBACK);
+                }
+
+                break;
+            } case PUBREL_RECORD: {
+                if (session != null) {
+                    session.restorePacket(argument, new EncodedPacket(PacketBuilder.buildPubrelPacket(argument)), InflightTable.AWAITING_PUBCOMP);
+                }
+
+                break;
+            } case RELEASE_RECORD: {
+                if (session != null) {
+                    session.restoreRelease(argument);
+                }
+
+                break;
+            } default: {
+                BrokerLogger.log(LogLevel.WARNING, SessionStore.class, "Unknown record type %d skipped", type);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns path of the segment with given sequence number.
+     *
+     * @param sequenceNumber sequence number of the segment
+     * @return path of the segment
+     */
+    private Path segmentPath(long sequenceNumber) {
+        return directory.resolve(String.format("%s%019d%s", SEGMENT_PREFIX, sequenceNumber, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Forces the active segment to the disk and closes it, then stops flushing 
+     * and compaction and waits until sealed segments are forced. Nothing 
+     * is appended afterwards. Closing of closed store does nothing.
+     */
+    public void close() {
+        if (directory == null) {
+            return;
+        }
+
+        synchronized (this) {
+            if (activeSegment == null) {
+                return;
+            }
+
+            try {
+                activeSegment.force();
+                activeChannel.close();
+            } catch (IOException ex) {
+                BrokerLogger.log(LogLevel.ERROR, this.getClass(), ex.getMessage());
+            }
+
+            discardSpare();
+            activeSegment = null;
+        }
+
+        // Sealing tasks already queued still run, periodic tasks are cancelled
+        executor.shutdown();
+
+        try {
+            if (!executor.awaitTermination(CLOSE_TIMEOUT_NANOS, TimeUnit.NANOSECONDS)) {
+                BrokerLogger.log(LogLevel.WARNING, this.getClass(), "Background tasks did not finish, closing anyway");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException ex) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,25 @@
+package ziotbroker;
+
+/**
+ * Way in which message matching shared subscribtion
+ * (<i>$share/&lt;group&gt;/&lt;filter&gt;</i>) selects the only member
+ * of the group which receives it.
+ *
+ * @author Jakub Svarc
+ */
+public enum SharedSubscribtionStrategy {
+    /**
+     * Members receive messages in turns.
+     */
+    ROUND_ROBIN,
+    /**
+     * The member with the fewest packets waiting in its packet queue receives
+     * the message.
+     */
+    LEAST_QUEUE_DEPTH,
+    /**
+     * All messages of one topic are received by the same member (selected
+     * by hash of the topic) while the members do not change.
+     */
+    STICKY
+}
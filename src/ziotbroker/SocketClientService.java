@@ -0,0 +1,183 @@
+package ziotbroker;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Service which sends packets from broker to the client connected through
+ * blocking socket by its own thread. All packets waiting in the queue are
+ * coalesced and sent by one write (within the byte budget of write
+ * coalescing settings).
+ *
+ * @author Jakub Svarc
+ */
+public class SocketClientService extends OutputClientService implements Runnable {
+
+    /**
+     * Size of the array through which pooled packets are copied
+     * to the stream.
+     */
+    private static final int TRANSFER_BUFFER_SIZE = 8192;
+
+    /**
+     * Connection to the client.
+     */
+    private final Socket clientSocket;
+    /**
+     * Thread sending the packets, <i>null</i> while the service does not run.
+     * Disconnection interrupts it, so it does not wait for packets which
+     * never come.
+     */
+    private Thread writerThread;
+    /**
+     * Lock guarding the writer thread, so the thread is never interrupted
+     * after it leaves the service (pooled thread can serve another client).
+     */
+    private final Object writerLock;
+
+    /**
+     * Builds SocketClientService with default write coalescing settings
+     * and overflow policy.
+     *
+     * @param clientSocket connection to the client
+     */
+    public SocketClientService(Socket clientSocket) {
+        this(clientSocket, WriteCoalescing.DEFAULT, OverflowPolicy.DEFAULT);
+    }
+
+    /**
+     * Builds SocketClientService.
+     *
+     * @param clientSocket connection to the client
+     * @param writeCoalescing settings of coalescing of queued packets
+     * into writes
+     * @param overflowPolicy capacity of the packet queue and action taken
+     * when it is full
+     */
+    public SocketClientService(Socket clientSocket, WriteCoalescing writeCoalescing, OverflowPolicy overflowPolicy) {
+        this(clientSocket, writeCoalescing, overflowPolicy, new BrokerStatistics());
+    }
+
+    /**
+     * Builds SocketClientService which records sent and dropped packets
+     * to given statistics.
+     *
+     * @param clientSocket connection to the client
+     * @param writeCoalescing settings of coalescing of queued packets
+     * into writes
+     * @param overflowPolicy capacity of the packet queue and action taken
+     * when it is full
+     * @param statistics counters of the broker load
+     */
+    public SocketClientService(Socket clientSocket, WriteCoalescing writeCoalescing, OverflowPolicy overflowPolicy, BrokerStatistics statistics) {
+        super(writeCoalescing, overflowPolicy, statistics);
+        this.clientSocket = clientSocket;
+        this.writerLock = new Object();
+    }
+
+    /**
+     * Continuously pulls encoded packets from PacketQueue and sends them
+     * to the client. Packets are written to the buffer first, which is
+     * flushed when the queue is empty or the byte budget is exhausted.
+     * The service finishes when the client is disconnected.
+     */
+    @Override
+    public void run() {
+        EncodedPacket packet = null;
+        /**
+         * Array through which pooled packets are copied to the stream.
+         */
+        byte[] transferBuffer = new byte[TRANSFER_BUFFER_SIZE];
+
+        synchronized (writerLock) {
+            writerThread = Thread.currentThread();
+        }
+
+        try (
+            OutputStream out = new BufferedOutputStream(clientSocket.getOutputStream(), writeCoalescing.getMaxBytesPerWrite());
+        ) {
+            while (!disconnected && (packet = packetQueue.take()) != null) {
+                /**
+                 * Time until which the write can wait for other packets.
+                 */
+                long deadline = System.nanoTime() + writeCoalescing.getMaxDelayNanos();
+                /**
+                 * Number of bytes and packets in the current write.
+                 */
+                int batchBytes = 0, batchPackets = 0;
+
+                do {
+                    packet.writeTo(out, transferBuffer);
+                    batchBytes += packet.getLength();
+                    batchPackets++;
+                    statistics.packetSent(packet.getType());
+
+                    if (BrokerLogger.isEnabled(LogLevel.DEBUG)) {
+                        BrokerLogger.logClient(LogLevel.DEBUG, this.getClass(), getClientID(), packet.getType(), "Sent packet");
+                    }
+
+                    packet.release();
+                    packet = null;
+
+                    if (batchBytes >= writeCoalescing.getMaxBytesPerWrite()) {
+                        break;
+                    }
+
+                    packet = packetQueue.poll();
+
+                    if (packet == null && writeCoalescing.getMaxDelayNanos() > 0) {
+                        packet = packetQueue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    }
+                } while (packet != null);
+
+                out.flush();
+                recordWrite(batchPackets);
+                statistics.bytesSent(batchBytes);
+            }
+        } catch (IOException | InterruptedException ex) {
+            // Failure of disconnected client is expected
+            BrokerLogger.log(disconnected ? LogLevel.DEBUG : LogLevel.ERROR, this.getClass(), ex.getMessage());
+            disconnected = true;
+        } finally {
+            if (packet != null) {
+                packet.release();
+            }
+
+            releaseQueuedPackets();
+
+            // Interrupt of disconnection must not outlive the service
+            synchronized (writerLock) {
+                writerThread = null;
+                Thread.interrupted();
+            }
+        }
+    }
+
+    /**
+     * Disconnects the client. Closing of the connection makes both services
+     * of the client fail on their next operation and finish, the writer
+     * thread waiting for packets is interrupted.
+     */
+    @Override
+    protected void disconnect() {
+        disconnected = true;
+
+        try {
+            clientSocket.close();
+        } catch (IOException ex) {
+            BrokerLogger.log(LogLevel.ERROR, this.getClass(), ex.getMessage());
+        }
+
+        releaseQueuedPackets();
+
+        synchronized (writerLock) {
+            if (writerThread != null) {
+                writerThread.interrupt();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,49 @@
+package ziotbroker;
+
+/**
+ * Client subscribed to some topic filter together with QoS granted for that
+ * subscribtion.
+ *
+ * @author Jakub Svarc
+ */
+public class Subscriber {
+
+    /**
+     * Output service of the subscribed client.
+     */
+    private final OutputClientService client;
+    /**
+     * QoS granted for the subscribtion.
+     */
+    private final byte qualityOfService;
+
+    /**
+     * Builds Subscriber.
+     *
+     * @param client output service of the subscribed client
+     * @param qualityOfService QoS granted for the subscribtion
+     */
+    public Subscriber(OutputClientService client, byte qualityOfService) {
+        this.client = client;
+        this.qualityOfService = qualityOfService;
+    }
+
+    /**
+     * Returns output service of the subscribed client.
+     *
+     * @return output service of the subscribed client
+     */
+    public OutputClientService getClient() {
+        return client;
+    }
+
+    /**
+     * Returns QoS granted for the subscribtion.
+     *
+     * @return QoS granted for the subscribtion
+     */
+    public byte getQualityOfService() {
+        return qualityOfService;
+    }
+
+}
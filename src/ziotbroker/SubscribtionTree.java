@@ -0,0 +1,1114 @@
+package ziotbroker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Index of subscribtions organized by topic levels. Every node represents one
+ * level of topic filter, so matching a topic costs time proportional to its
+ * depth instead of to the number of subscribtions. Filters can contain
+ * single-level (<b>+</b>) and multi-level (<b>#</b>) wildcards.
+ * 
+ * The tree is safe for concurrent use. Matching never locks - it reads
+ * immutable subscriber arrays which writers replace by modified copies. 
+ * Writers do not share any global lock either, they lock only the level they
+ * change, so they only contend when changing the same level. Level left 
+ * without subscribers and following levels (and group left without members)
+ * is pruned by the unsubscribe which emptied it. Pruned level is marked,
+ * so writer which reached it before it was pruned builds its filter again
+ * from the root, reader which reached it just finds nothing.
+ *
+ * Filters of the form <i>$share/&lt;group&gt;/&lt;filter&gt;</i> are shared
+ * subscribtions - members of one group are stored together at the level
+ * of the filter and every matching message is delivered to only one of them,
+ * selected by strategy of the group when the message is sent.
+ *
+ * @author Jakub Svarc
+ */
+public class SubscribtionTree {
+
+    /**
+     * Separator of topic levels.
+     */
+    private static final String LEVEL_SEPARATOR = "/";
+    /**
+     * Wildcard matching exactly one topic level.
+     */
+    private static final String SINGLE_LEVEL_WILDCARD = "+";
+    /**
+     * Wildcard matching any number of topic levels (must be last in filter).
+     */
+    private static final String MULTI_LEVEL_WILDCARD = "#";
+    /**
+     * Shared subscribers array of levels without subscribers.
+     */
+    private static final Subscriber[] NO_SUBSCRIBERS = new Subscriber[0];
+    /**
+     * Shared groups array of levels without shared subscribtions.
+     */
+    private static final SharedSubscribtion[] NO_SHARED_SUBSCRIBTIONS = new SharedSubscribtion[0];
+    /**
+     * Prefix of filters of shared subscribtions.
+     */
+    public static final String SHARED_PREFIX = "$share/";
+
+    /**
+     * Group of clients sharing one subscribtion. Members are stored as in
+     * a level of the tree (immutable array replaced under the lock 
+     * of the level), the only member receiving a message is selected 
+     * by {@link #select}.
+     */
+    public static class SharedSubscribtion {
+
+        /**
+         * Name of the group.
+         */
+        private final String group;
+        /**
+         * Members of the group. The array is never modified, every change
+         * replaces it by a modified copy.
+         */
+        private volatile Subscriber[] members = NO_SUBSCRIBERS;
+        /**
+         * Counter of selections, it rotates members of round-robin and breaks
+         * ties of other strategies.
+         */
+        private final AtomicInteger selectionCount;
+
+        /**
+         * Builds SharedSubscribtion without members.
+         *
+         * @param group name of the group
+         */
+        private SharedSubscribtion(String group) {
+            this.group = group;
+            this.selectionCount = new AtomicInteger();
+        }
+
+        /**
+         * Returns name of the group.
+         *
+         * @return name of the group
+         */
+        public String getGroup() {
+            return group;
+        }
+
+        /**
+         * Returns number of members of the group.
+         *
+         * @return number of members
+         */
+        public int getMemberCount() {
+            return members.length;
+        }
+
+        /**
+         * Adds member to the group or replaces member with the same client.
+         * The level of the group must be locked.
+         *
+         * @param member subscriber to be stored
+         * @return <i>true</i> if the member was added, <i>false</i> if it
+         * replaced existing one
+         */
+        private boolean addMember(Subscriber member) {
+            Subscriber[] currentMembers = members;
+            int index = Node.indexOf(currentMembers, member.getClient());
+
+            members = Node.withSubscriber(currentMembers, index, member);
+
+            return index < 0;
+        }
+
+        /**
+         * Removes member with given client from the group. The level 
+         * of the group must be locked.
+         *
+         * @param client output service of the member
+         * @return <i>true</i> if the member was removed, <i>false</i> if the
+         * client is not a member
+         */
+        private boolean removeMember(OutputClientService client) {
+            Subscriber[] currentMembers = members;
+            int index = Node.indexOf(currentMembers, client);
+
+            if (index < 0) {
+                return false;
+            }
+
+            members = Node.withoutSubscriber(currentMembers, index);
+
+            return true;
+        }
+
+        /**
+         * Selects the member which receives a message. Connected members are
+         * preferred, disconnected one (whose persistent session keeps
+         * messages with QoS 1 and 2) is selected only if no member
+         * is connected.
+         *
+         * @param strategy way of selection
+         * @param topicHash hash of the topic of the message
+         * @return selected member, <i>null</i> if the group has no members
+         */
+        public Subscriber select(SharedSubscribtionStrategy strategy, int topicHash) {
+            /**
+             * Current members (read once).
+             */
+            Subscriber[] currentMembers = members;
+
+            if (currentMembers.length <= 1) {
+                return currentMembers.length == 0 ? null : currentMembers[0];
+            }
+
+            /**
+             * Index from which members are searched.
+             */
+            int start = Math.floorMod(selectionCount.getAndIncrement(), currentMembers.length);
+            Subscriber selectedMember = null;
+            /**
+             * Queue depth or hash score of the selected member.
+             */
+            int selectedScore = Integer.MIN_VALUE;
+
+            for (int i = 0; i < currentMembers.length; i++) {
+                Subscriber member = currentMembers[(start + i) % currentMembers.length];
+
+                if (member.getClient().isDisconnected()) {
+                    continue;
+                }
+
+                if (strategy == SharedSubscribtionStrategy.ROUND_ROBIN) {
+                    return member;
+                }
+
+                // Both scores are maximized, the fewest queued packets is the best
+                int score = strategy == SharedSubscribtionStrategy.STICKY ? mix(topicHash, System.identityHashCode(member.getClient().getSession())) : -member.getClient().getQueueDepth();
+
+                if (selectedMember == null || score > selectedScore) {
+                    selectedMember = member;
+                    selectedScore = score;
+                }
+            }
+
+            return selectedMember != null ? selectedMember : currentMembers[start];
+        }
+
+        /**
+         * Mixes hash of the topic with hash of the member (highest random
+         * weight hashing - the topic stays with its member until the member
+         * leaves).
+         *
+         * @param topicHash hash of the topic
+         * @param memberHash hash of the member
+         * @return score of the member for the topic
+         */
+        private static int mix(int topicHash, int memberHash) {
+            int hash = topicHash * 0x9E3779B9 ^ memberHash;
+
+            hash ^= hash >>> 16;
+            hash *= 0x85EBCA6B;
+            hash ^= hash >>> 13;
+            hash *= 0xC2B2AE35;
+
+            return hash ^ (hash >>> 16);
+        }
+
+    }
+
+    /**
+     * One level of topic filters. Readers never lock, every reference they
+     * follow is replaced by writers holding the lock of the level (arrays 
+     * are never modified, they are replaced by modified copies).
+     */
+    private static class Node {
+
+        /**
+         * Following levels given by exact name (built lazily, <i>null</i>
+         * when there is none).
+         */
+        private volatile ConcurrentHashMap<String, Node> children;
+        /**
+         * Following level given by single-level wildcard.
+         */
+        private volatile Node singleLevelChild;
+        /**
+         * Following level given by multi-level wildcard.
+         */
+        private volatile Node multiLevelChild;
+        /**
+         * Clients subscribed to the filter ending by this level. The array
+         * is never modified, every change replaces it by a modified copy.
+         */
+        private volatile Subscriber[] subscribers = NO_SUBSCRIBERS;
+        /**
+         * Groups sharing the filter ending by this level (group is removed
+         * when its last member leaves).
+         */
+        private volatile SharedSubscribtion[] sharedSubscribtions = NO_SHARED_SUBSCRIBTIONS;
+        /**
+         * Indicates that the level was pruned from the tree (guarded by 
+         * the lock of the level). Nothing is added to pruned level.
+         */
+        private boolean pruned;
+
+        /**
+         * Returns following level with given name, it is built if it does
+         * not exist.
+         *
+         * @param level name of the level
+         * @param nodeCount counter of levels of the tree
+         * @return following level, <i>null</i> if this level was pruned
+         */
+        private Node getOrCreateChild(String level, AtomicInteger nodeCount) {
+            Node child = getChild(level);
+
+            // Pruned level has no children, so existing child is never reached through it
+            if (child != null) {
+                return child;
+            }
+
+            synchronized (this) {
+                if (pruned) {
+                    return null;
+                }
+
+                child = getChild(level);
+
+                if (child == null) {
+                    child = new Node();
+
+                    if (level.equals(SINGLE_LEVEL_WILDCARD)) {
+                        singleLevelChild = child;
+                    } else if (level.equals(MULTI_LEVEL_WILDCARD)) {
+                        multiLevelChild = child;
+                    } else {
+                        if (children == null) {
+                            children = new ConcurrentHashMap<>();
+                        }
+
+                        children.put(level, child);
+                    }
+
+                    nodeCount.incrementAndGet();
+                }
+
+                return child;
+            }
+        }
+
+        /**
+         * Returns following level with given name.
+         *
+         * @param level name of the level
+         * @return following level or <i>null</i> if it does not exist
+         */
+        private Node getChild(String level) {
+            if (level.equals(SINGLE_LEVEL_WILDCARD)) {
+                return singleLevelChild;
+            }
+
+            if (level.equals(MULTI_LEVEL_WILDCARD)) {
+                return multiLevelChild;
+            }
+
+            ConcurrentHashMap<String, Node> currentChildren = children;
+
+            return currentChildren == null ? null : currentChildren.get(level);
+        }
+
+        /**
+         * Removes following level with given name. The level must be locked.
+         *
+         * @param level name of the level
+         */
+        private void removeChild(String level) {
+            if (level.equals(SINGLE_LEVEL_WILDCARD)) {
+                singleLevelChild = null;
+            } else if (level.equals(MULTI_LEVEL_WILDCARD)) {
+                multiLevelChild = null;
+            } else {
+                children.remove(level);
+
+                if (children.isEmpty()) {
+                    children = null;
+                }
+            }
+        }
+
+        /**
+         * Indicates that the level has no subscribers, no groups and no 
+         * following levels, so it can be pruned. The level must be locked.
+         *
+         * @return <i>true</i> if the level is empty
+         */
+        private boolean isEmpty() {
+            return subscribers.length == 0 && sharedSubscribtions.length == 0 && children == null && singleLevelChild == null && multiLevelChild == null;
+        }
+
+        /**
+         * Returns group sharing the filter of this level, it is built if it
+         * does not exist. The level must be locked.
+         *
+         * @param group name of the group
+         * @return the group
+         */
+        private SharedSubscribtion getOrCreateSharedSubscribtion(String group) {
+            SharedSubscribtion[] currentGroups = sharedSubscribtions;
+            SharedSubscribtion existingGroup = findSharedSubscribtion(currentGroups, group);
+
+            if (existingGroup != null) {
+                return existingGroup;
+            }
+
+            SharedSubscribtion[] newGroups = Arrays.copyOf(currentGroups, currentGroups.length + 1);
+
+            newGroups[currentGroups.length] = new SharedSubscribtion(group);
+            sharedSubscribtions = newGroups;
+
+            return newGroups[currentGroups.length];
+        }
+
+        /**
+         * Removes given group from this level. The level must be locked.
+         *
+         * @param sharedSubscribtion group without members
+         */
+        private void removeSharedSubscribtion(SharedSubscribtion sharedSubscribtion) {
+            SharedSubscribtion[] currentGroups = sharedSubscribtions;
+
+            for (int i = 0; i < currentGroups.length; i++) {
+                if (currentGroups[i] == sharedSubscribtion) {
+                    SharedSubscribtion[] newGroups = new SharedSubscribtion[currentGroups.length - 1];
+
+                    System.arraycopy(currentGroups, 0, newGroups, 0, i);
+                    System.arraycopy(currentGroups, i + 1, newGroups, i, newGroups.length - i);
+                    sharedSubscribtions = newGroups.length == 0 ? NO_SHARED_SUBSCRIBTIONS : newGroups;
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Finds group with given name in given groups.
+         *
+         * @param groups searched groups
+         * @param group name of the group
+         * @return the group, <i>null</i> if it is not found
+         */
+        private static SharedSubscribtion findSharedSubscribtion(SharedSubscribtion[] groups, String group) {
+            for (SharedSubscribtion sharedSubscribtion : groups) {
+                if (sharedSubscribtion.getGroup().equals(group)) {
+                    return sharedSubscribtion;
+                }
+            }
+
+            return null;
+        }
+
+        /**
+         * Adds subscriber to the level or replaces subscriber with the same
+         * client. The level must be locked.
+         *
+         * @param subscriber subscriber to be stored
+         * @return <i>true</i> if the subscriber was added, <i>false</i> if it
+         * replaced existing one
+         */
+        private boolean addSubscriber(Subscriber subscriber) {
+            Subscriber[] currentSubscribers = subscribers;
+            int index = indexOf(currentSubscribers, subscriber.getClient());
+
+            subscribers = withSubscriber(currentSubscribers, index, subscriber);
+
+            return index < 0;
+        }
+
+        /**
+         * Removes subscriber with given client from the level. The level 
+         * must be locked.
+         *
+         * @param client output service of the subscribed client
+         * @return <i>true</i> if the subscriber was removed, <i>false</i> if it
+         * did not exist
+         */
+        private boolean removeSubscriber(OutputClientService client) {
+            Subscriber[] currentSubscribers = subscribers;
+            int index = indexOf(currentSubscribers, client);
+
+            if (index < 0) {
+                return false;
+            }
+
+            subscribers = withoutSubscriber(currentSubscribers, index);
+
+            return true;
+        }
+
+        /**
+         * Returns copy of given subscribers with given subscriber added
+         * or replacing subscriber at given index.
+         *
+         * @param subscribers current subscribers
+         * @param index index of subscriber with the same client, -1 if there
+         * is none
+         * @param subscriber subscriber to be stored
+         * @return new subscribers
+         */
+        private static Subscriber[] withSubscriber(Subscriber[] subscribers, int index, Subscriber subscriber) {
+            Subscriber[] newSubscribers;
+
+            if (index >= 0) {
+                newSubscribers = subscribers.clone();
+                newSubscribers[index] = subscriber;
+            } else {
+                newSubscribers = Arrays.copyOf(subscribers, subscribers.length + 1);
+                newSubscribers[subscribers.length] = subscriber;
+            }
+
+            return newSubscribers;
+        }
+
+        /**
+         * Returns copy of given subscribers without subscriber at given index.
+         *
+         * @param subscribers current subscribers
+         * @param index index of removed subscriber
+         * @return new subscribers
+         */
+        private static Subscriber[] withoutSubscriber(Subscriber[] subscribers, int index) {
+            if (subscribers.length == 1) {
+                return NO_SUBSCRIBERS;
+            }
+
+            Subscriber[] newSubscribers = new Subscriber[subscribers.length - 1];
+
+            System.arraycopy(subscribers, 0, newSubscribers, 0, index);
+            System.arraycopy(subscribers, index + 1, newSubscribers, index, newSubscribers.length - index);
+
+            return newSubscribers;
+        }
+
+        /**
+         * Finds subscriber with given client.
+         *
+         * @param subscribers subscribers to be searched
+         * @param client output service of the subscribed client
+         * @return index of the subscriber or -1 if it does not exist
+         */
+        private static int indexOf(Subscriber[] subscribers, OutputClientService client) {
+            for (int i = 0; i < subscribers.length; i++) {
+                if (subscribers[i].getClient() == client) {
+                    return i;
+                }
+            }
+
+            return -1;
+        }
+
+    }
+
+    /**
+     * Level preceding first level of all filters.
+     */
+    private final Node root;
+    /**
+     * Number of stored subscribtions.
+     */
+    private final AtomicInteger size;
+    /**
+     * Number of levels of the tree (without the root).
+     */
+    private final AtomicInteger nodeCount;
+    /**
+     * Number of changes of the subscribtions (matches cached for earlier
+     * versions are stale).
+     */
+    private final AtomicLong version;
+    /**
+     * Number of stored members of shared subscribtions.
+     */
+    private final AtomicInteger sharedSize;
+    /**
+     * Strategy of groups without their own strategy.
+     */
+    private volatile SharedSubscribtionStrategy sharedSubscribtionStrategy;
+    /**
+     * Strategies of groups set explicitly (the map is never modified, every
+     * change replaces it by a modified copy).
+     */
+    private volatile Map<String, SharedSubscribtionStrategy> groupStrategies;
+
+    /**
+     * Builds empty SubscribtionTree. Shared subscribtions are served
+     * round-robin.
+     */
+    public SubscribtionTree() {
+        this(SharedSubscribtionStrategy.ROUND_ROBIN);
+    }
+
+    /**
+     * Builds empty SubscribtionTree.
+     *
+     * @param sharedSubscribtionStrategy strategy of groups of shared
+     * subscribtions without their own strategy
+     */
+    public SubscribtionTree(SharedSubscribtionStrategy sharedSubscribtionStrategy) {
+        this.root = new Node();
+        this.size = new AtomicInteger(0);
+        this.nodeCount = new AtomicInteger(0);
+        this.version = new AtomicLong(0);
+        this.sharedSize = new AtomicInteger(0);
+        this.sharedSubscribtionStrategy = sharedSubscribtionStrategy;
+        this.groupStrategies = Collections.emptyMap();
+    }
+
+    /**
+     * Checks if topic filter is valid - it is not empty and wildcards occupy
+     * whole level (multi-level wildcard can be only the last level).
+     *
+     * @param topicFilter topic filter to be checked
+     * @return <i>true</i> if the filter is valid, else <i>false</i>
+     */
+    public static boolean isValidFilter(String topicFilter) {
+        if (topicFilter.isEmpty()) {
+            return false;
+        }
+
+        String[] levels = topicFilter.split(LEVEL_SEPARATOR, -1);
+
+        for (int i = 0; i < levels.length; i++) {
+            if (levels[i].equals(MULTI_LEVEL_WILDCARD)) {
+                if (i != levels.length - 1) {
+                    return false;
+                }
+            } else if (!levels[i].equals(SINGLE_LEVEL_WILDCARD) && (levels[i].contains(SINGLE_LEVEL_WILDCARD) || levels[i].contains(MULTI_LEVEL_WILDCARD))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Checks if topic of published message is valid - it is not empty 
+     * and contains no wildcards.
+     *
+     * @param topic topic to be checked
+     * @return <i>true</i> if the topic is valid, else <i>false</i>
+     */
+    public static boolean isValidTopic(String topic) {
+        return !topic.isEmpty() && !topic.contains(SINGLE_LEVEL_WILDCARD) && !topic.contains(MULTI_LEVEL_WILDCARD);
+    }
+
+    /**
+     * Checks if topic filter denotes shared subscribtion (it starts with
+     * <i>$share/</i>).
+     *
+     * @param topicFilter topic filter to be checked
+     * @return <i>true</i> if the filter is shared
+     */
+    public static boolean isSharedFilter(String topicFilter) {
+        return topicFilter.startsWith(SHARED_PREFIX);
+    }
+
+    /**
+     * Returns end of the group name of shared filter. The name must not
+     * be empty nor contain wildcards.
+     *
+     * @param topicFilter shared topic filter
+     * @return index of the separator following the group name, -1 if the name
+     * is malformed
+     */
+    private static int sharedGroupEnd(String topicFilter) {
+        int groupEnd = topicFilter.indexOf('/', SHARED_PREFIX.length());
+
+        if (groupEnd <= SHARED_PREFIX.length()) {
+            return -1;
+        }
+
+        for (int i = SHARED_PREFIX.length(); i < groupEnd; i++) {
+            if (topicFilter.charAt(i) == '+' || topicFilter.charAt(i) == '#') {
+                return -1;
+            }
+        }
+
+        return groupEnd;
+    }
+
+    /**
+     * Checks if topic matches given topic filter. Levels are compared in place,
+     * so nothing is allocated. Topics starting with <b>$</b> are not matched
+     * by filters starting with a wildcard.
+     *
+     * @param topicFilter valid topic filter
+     * @param topic topic of published message (without wildcards)
+     * @return <i>true</i> if the topic matches the filter, else <i>false</i>
+     */
+    public static boolean matches(String topicFilter, String topic) {
+        if (topic.startsWith("$") && (topicFilter.startsWith(SINGLE_LEVEL_WILDCARD) || topicFilter.startsWith(MULTI_LEVEL_WILDCARD))) {
+            return false;
+        }
+
+        /**
+         * Start of the current level of the filter and of the topic.
+         */
+        int filterStart = 0, topicStart = 0;
+
+        while (true) {
+            int filterEnd = levelEnd(topicFilter, filterStart);
+            int filterLength = filterEnd - filterStart;
+
+            // Multi-level wildcard matches the rest including the parent level
+            if (filterLength == 1 && topicFilter.charAt(filterStart) == '#') {
+                return true;
+            }
+
+            if (topicStart > topic.length()) {
+                return false;
+            }
+
+            int topicEnd = levelEnd(topic, topicStart);
+
+            if (!(filterLength == 1 && topicFilter.charAt(filterStart) == '+') && (filterLength != topicEnd - topicStart || !topicFilter.regionMatches(filterStart, topic, topicStart, filterLength))) {
+                return false;
+            }
+
+            filterStart = filterEnd + 1;
+            topicStart = topicEnd + 1;
+
+            if (filterStart > topicFilter.length()) {
+                return topicStart > topic.length();
+            }
+        }
+    }
+
+    /**
+     * Returns end of the topic level starting at given index.
+     *
+     * @param topic topic or topic filter
+     * @param start index of the first character of the level
+     * @return index of the following separator or length of the topic
+     */
+    private static int levelEnd(String topic, int start) {
+        int end = topic.indexOf('/', start);
+
+        return end < 0 ? topic.length() : end;
+    }
+
+    /**
+     * Stores subscribtion of given client. If the client is already subscribed
+     * to the same filter, its QoS is replaced.
+     *
+     * @param subscribtion topic filter and QoS of the subscribtion
+     * @param client output service of the subscribed client
+     * @throws MQTTException thrown if topic filter is malformed
+     */
+    public void subscribe(Subscribtion subscribtion, OutputClientService client) throws MQTTException {
+        String topicFilter = subscribtion.getTopic();
+        /**
+         * End of the group name of shared filter, -1 for filter which is not
+         * shared.
+         */
+        int groupEnd = -1;
+
+        if (isSharedFilter(topicFilter)) {
+            groupEnd = sharedGroupEnd(topicFilter);
+
+            if (groupEnd < 0) {
+                throw new MQTTException(MQTTExceptionLevel.WARNING, "Malformed topic filter");
+            }
+
+            topicFilter = topicFilter.substring(groupEnd + 1);
+        }
+
+        if (!isValidFilter(topicFilter)) {
+            throw new MQTTException(MQTTExceptionLevel.WARNING, "Malformed topic filter");
+        }
+
+        String[] levels = topicFilter.split(LEVEL_SEPARATOR, -1);
+        /**
+         * Name of the group of shared subscribtion, <i>null</i> if it is not
+         * shared.
+         */
+        String group = groupEnd >= 0 ? subscribtion.getTopic().substring(SHARED_PREFIX.length(), groupEnd) : null;
+        Subscriber subscriber = new Subscriber(client, subscribtion.getQualityOfService());
+        boolean added;
+
+        while (true) {
+            Node node = root;
+
+            for (int i = 0; node != null && i < levels.length; i++) {
+                node = node.getOrCreateChild(levels[i], nodeCount);
+            }
+
+            // Level was pruned after it was reached, the filter is built again
+            if (node == null) {
+                continue;
+            }
+
+            synchronized (node) {
+                if (node.pruned) {
+                    continue;
+                }
+
+                added = group != null ? node.getOrCreateSharedSubscribtion(group).addMember(subscriber) : node.addSubscriber(subscriber);
+            }
+
+            break;
+        }
+
+        if (added) {
+            size.incrementAndGet();
+
+            if (group != null) {
+                sharedSize.incrementAndGet();
+            }
+        }
+
+        version.incrementAndGet();
+    }
+    
+    /**
+     * Removes subscribtion of given client to given topic filter. Levels
+     * and group left empty are pruned.
+     *
+     * @param topicFilter topic filter of the subscribtion
+     * @param client output service of the subscribed client
+     * @return <i>true</i> if the subscribtion existed, else <i>false</i>
+     */
+    public boolean unsubscribe(String topicFilter, OutputClientService client) {
+        String group = null;
+
+        if (isSharedFilter(topicFilter)) {
+            int groupEnd = sharedGroupEnd(topicFilter);
+
+            if (groupEnd < 0) {
+                return false;
+            }
+
+            group = topicFilter.substring(SHARED_PREFIX.length(), groupEnd);
+            topicFilter = topicFilter.substring(groupEnd + 1);
+        }
+
+        String[] levels = topicFilter.split(LEVEL_SEPARATOR, -1);
+        /**
+         * Levels of the filter starting by the root.
+         */
+        Node[] path = new Node[levels.length + 1];
+
+        path[0] = root;
+
+        for (int i = 0; i < levels.length; i++) {
+            path[i + 1] = path[i].getChild(levels[i]);
+
+            if (path[i + 1] == null) {
+                return false;
+            }
+        }
+
+        Node node = path[levels.length];
+        boolean removed;
+
+        synchronized (node) {
+            if (group != null) {
+                SharedSubscribtion sharedSubscribtion = Node.findSharedSubscribtion(node.sharedSubscribtions, group);
+
+                removed = sharedSubscribtion != null && sharedSubscribtion.removeMember(client);
+
+                if (removed && sharedSubscribtion.getMemberCount() == 0) {
+                    node.removeSharedSubscribtion(sharedSubscribtion);
+                }
+            } else {
+                removed = node.removeSubscriber(client);
+            }
+        }
+
+        if (!removed) {
+            return false;
+        }
+
+        size.decrementAndGet();
+
+        if (group != null) {
+            sharedSize.decrementAndGet();
+        }
+
+        version.incrementAndGet();
+        prune(path, levels);
+
+        return true;
+    }
+
+    /**
+     * Prunes empty levels of given path, starting by its last level. Parent
+     * is locked before its child (as by any other pruning), writers adding
+     * to the tree lock only one level at a time.
+     *
+     * @param path levels of a filter starting by the root
+     * @param levels names of the levels of the filter
+     */
+    private void prune(Node[] path, String[] levels) {
+        for (int i = levels.length; i > 0; i--) {
+            Node parent = path[i - 1];
+            Node node = path[i];
+
+            synchronized (parent) {
+                synchronized (node) {
+                    if (node.pruned || !node.isEmpty()) {
+                        return;
+                    }
+
+                    node.pruned = true;
+                    parent.removeChild(levels[i - 1]);
+                    nodeCount.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds all subscribers whose filters match given topic. Client subscribed
+     * by more matching filters is returned once for every such filter, each
+     * time with QoS granted for that filter. Topics starting with <b>$</b>
+     * are not matched by filters starting with a wildcard. Members of shared
+     * subscribtions are not returned.
+     *
+     * @param topic topic of published message (without wildcards)
+     * @return matching subscribers
+     */
+    public ArrayList<Subscriber> match(String topic) {
+        return match(topic, null);
+    }
+
+    /**
+     * Finds all subscribers and all groups of shared subscribtions whose
+     * filters match given topic.
+     *
+     * @param topic topic of published message (without wildcards)
+     * @param matchingGroups collection of found groups, <i>null</i> if groups
+     * are not searched
+     * @return matching subscribers
+     */
+    public ArrayList<Subscriber> match(String topic, ArrayList<SharedSubscribtion> matchingGroups) {
+        ArrayList<Subscriber> matchingSubscribers = new ArrayList<>();
+        String[] levels = topic.split(LEVEL_SEPARATOR, -1);
+
+        match(root, levels, 0, !topic.startsWith("$"), matchingSubscribers, matchingGroups);
+
+        return matchingSubscribers;
+    }
+
+    /**
+     * Collects subscribers of given level and of all following levels matching
+     * rest of the topic.
+     *
+     * @param node currently matched level
+     * @param levels levels of the topic
+     * @param index index of the topic level following the node
+     * @param wildcardsAllowed indicates if wildcard children of the node can
+     * be matched
+     * @param matchingSubscribers collection of found subscribers
+     * @param matchingGroups collection of found groups, <i>null</i> if groups
+     * are not searched
+     */
+    private void match(Node node, String[] levels, int index, boolean wildcardsAllowed, ArrayList<Subscriber> matchingSubscribers, ArrayList<SharedSubscribtion> matchingGroups) {
+        Node multiLevelChild = node.multiLevelChild;
+
+        if (wildcardsAllowed && multiLevelChild != null) {
+            Collections.addAll(matchingSubscribers, multiLevelChild.subscribers);
+
+            if (matchingGroups != null) {
+                Collections.addAll(matchingGroups, multiLevelChild.sharedSubscribtions);
+            }
+        }
+
+        if (index == levels.length) {
+            Collections.addAll(matchingSubscribers, node.subscribers);
+
+            if (matchingGroups != null) {
+                Collections.addAll(matchingGroups, node.sharedSubscribtions);
+            }
+
+            return;
+        }
+
+        Node child = node.getChild(levels[index]);
+
+        if (child != null) {
+            match(child, levels, index + 1, true, matchingSubscribers, matchingGroups);
+        }
+
+        Node singleLevelChild = node.singleLevelChild;
+
+        if (wildcardsAllowed && singleLevelChild != null) {
+            match(singleLevelChild, levels, index + 1, true, matchingSubscribers, matchingGroups);
+        }
+    }
+
+    /**
+     * Returns all distinct topic filters which have at least one subscriber.
+     * Shared subscribtions are represented by their inner filters. It walks
+     * the whole tree, so it is meant for occasional summaries (e.g. for
+     * cluster peers), not for routing.
+     *
+     * @return the topic filters
+     */
+    public ArrayList<String> filters() {
+        ArrayList<String> filters = new ArrayList<>();
+
+        collectFilters(root, null, filters);
+
+        return filters;
+    }
+
+    /**
+     * Collects filters of given level and of all following levels.
+     *
+     * @param node currently visited level
+     * @param filter filter ending by the level, <i>null</i> for the root
+     * @param filters collection of found filters
+     */
+    private void collectFilters(Node node, String filter, ArrayList<String> filters) {
+        if (filter != null && (node.subscribers.length > 0 || hasMembers(node.sharedSubscribtions))) {
+            filters.add(filter);
+        }
+
+        /**
+         * Prefix of filters of the following levels.
+         */
+        String prefix = filter == null ? "" : filter + LEVEL_SEPARATOR;
+        ConcurrentHashMap<String, Node> currentChildren = node.children;
+
+        if (currentChildren != null) {
+            for (Map.Entry<String, Node> child : currentChildren.entrySet()) {
+                collectFilters(child.getValue(), prefix + child.getKey(), filters);
+            }
+        }
+
+        Node singleLevelChild = node.singleLevelChild;
+
+        if (singleLevelChild != null) {
+            collectFilters(singleLevelChild, prefix + SINGLE_LEVEL_WILDCARD, filters);
+        }
+
+        Node multiLevelChild = node.multiLevelChild;
+
+        if (multiLevelChild != null) {
+            collectFilters(multiLevelChild, prefix + MULTI_LEVEL_WILDCARD, filters);
+        }
+    }
+
+    /**
+     * Indicates that some of given groups has a member.
+     *
+     * @param sharedSubscribtions groups of one level
+     * @return <i>true</i> if a group has a member
+     */
+    private static boolean hasMembers(SharedSubscribtion[] sharedSubscribtions) {
+        for (SharedSubscribtion sharedSubscribtion : sharedSubscribtions) {
+            if (sharedSubscribtion.getMemberCount() > 0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Selects the member of shared subscribtion which receives a message,
+     * by strategy of its group.
+     *
+     * @param sharedSubscribtion matching group
+     * @param topicHash hash of the topic of the message
+     * @return selected member, <i>null</i> if the group has no members
+     */
+    public Subscriber select(SharedSubscribtion sharedSubscribtion, int topicHash) {
+        return sharedSubscribtion.select(getSharedSubscribtionStrategy(sharedSubscribtion.getGroup()), topicHash);
+    }
+
+    /**
+     * Indicates that some shared subscribtion is stored, so matching has
+     * to search groups too.
+     *
+     * @return <i>true</i> if there is a member of some group
+     */
+    public boolean hasSharedSubscribtions() {
+        return sharedSize.get() > 0;
+    }
+
+    /**
+     * Sets strategy of groups without their own strategy.
+     *
+     * @param strategy the strategy
+     */
+    public void setSharedSubscribtionStrategy(SharedSubscribtionStrategy strategy) {
+        this.sharedSubscribtionStrategy = strategy;
+    }
+
+    /**
+     * Sets strategy of given group.
+     *
+     * @param group name of the group
+     * @param strategy the strategy, <i>null</i> for the default one
+     */
+    public synchronized void setSharedSubscribtionStrategy(String group, SharedSubscribtionStrategy strategy) {
+        HashMap<String, SharedSubscribtionStrategy> newStrategies = new HashMap<>(groupStrategies);
+
+        if (strategy == null) {
+            newStrategies.remove(group);
+        } else {
+            newStrategies.put(group, strategy);
+        }
+
+        groupStrategies = Collections.unmodifiableMap(newStrategies);
+    }
+
+    /**
+     * Returns strategy of given group.
+     *
+     * @param group name of the group
+     * @return strategy set for the group or the default one
+     */
+    public SharedSubscribtionStrategy getSharedSubscribtionStrategy(String group) {
+        SharedSubscribtionStrategy strategy = groupStrategies.get(group);
+
+        return strategy != null ? strategy : sharedSubscribtionStrategy;
+    }
+
+    /**
+     * Returns number of stored subscribtions.
+     *
+     * @return number of stored subscribtions
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Returns number of levels of the tree (without the root). Empty levels
+     * are pruned, so it returns to the same number when the same 
+     * subscribtions are stored.
+     *
+     * @return number of levels
+     */
+    public int getNodeCount() {
+        return nodeCount.get();
+    }
+
+    /**
+     * Returns version of the subscribtions, it changes with every change
+     * of them.
+     *
+     * @return current version of the subscribtions
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+}
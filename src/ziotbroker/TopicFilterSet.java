@@ -0,0 +1,179 @@
+package ziotbroker;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Immutable set of topic filters organized by topic levels, it answers only
+ * if some of the filters matches given topic. It is used for summaries
+ * of subscribtions of cluster peers - a message is forwarded to the peer only
+ * if the summary of the peer matches its topic.
+ *
+ * @author Jakub Svarc
+ */
+public class TopicFilterSet {
+
+    /**
+     * Set without filters.
+     */
+    public static final TopicFilterSet EMPTY = new TopicFilterSet(Collections.emptyList());
+
+    /**
+     * One level of topic filters.
+     */
+    private static class Node {
+
+        /**
+         * Following levels given by exact name.
+         */
+        private final HashMap<String, Node> children = new HashMap<>();
+        /**
+         * Following level given by single-level wildcard.
+         */
+        private Node singleLevelChild;
+        /**
+         * Indicates that filter ending by multi-level wildcard follows this
+         * level.
+         */
+        private boolean multiLevelFilter;
+        /**
+         * Indicates that filter ends by this level.
+         */
+        private boolean filterEnd;
+
+    }
+
+    /**
+     * Level preceding first level of all filters.
+     */
+    private final Node root;
+    /**
+     * The filters (only valid ones, without duplicates).
+     */
+    private final List<String> filters;
+
+    /**
+     * Builds TopicFilterSet. Invalid filters are skipped.
+     *
+     * @param filters topic filters of the set
+     */
+    public TopicFilterSet(Collection<String> filters) {
+        ArrayList<String> storedFilters = new ArrayList<>(filters.size());
+
+        this.root = new Node();
+
+        for (String filter : filters) {
+            if (SubscribtionTree.isValidFilter(filter) && add(filter)) {
+                storedFilters.add(filter);
+            }
+        }
+
+        this.filters = Collections.unmodifiableList(storedFilters);
+    }
+
+    /**
+     * Adds filter to the levels.
+     *
+     * @param filter valid topic filter
+     * @return <i>true</i> if the filter was not in the set yet
+     */
+    private boolean add(String filter) {
+        Node node = root;
+
+        for (String level : filter.split("/", -1)) {
+            if (level.equals("#")) {
+                boolean added = !node.multiLevelFilter;
+
+                node.multiLevelFilter = true;
+
+                return added;
+            }
+
+            if (level.equals("+")) {
+                if (node.singleLevelChild == null) {
+                    node.singleLevelChild = new Node();
+                }
+
+                node = node.singleLevelChild;
+            } else {
+                node = node.children.computeIfAbsent(level, name -> new Node());
+            }
+        }
+
+        boolean added = !node.filterEnd;
+
+        node.filterEnd = true;
+
+        return added;
+    }
+
+    /**
+     * Checks if some filter of the set matches given topic. Topics starting
+     * with <b>$</b> are not matched by filters starting with a wildcard.
+     *
+     * @param topic topic of published message (without wildcards)
+     * @return <i>true</i> if the topic matches some filter
+     */
+    public boolean matches(String topic) {
+        return matches(root, topic, 0, !topic.startsWith("$"));
+    }
+
+    /**
+     * Checks if filters of given level and of the following levels match rest
+     * of the topic.
+     *
+     * @param node currently matched level
+     * @param topic topic of published message
+     * @param start index of the topic level following the node (behind
+     * the end of the topic if all levels are matched)
+     * @param wildcardsAllowed indicates if wildcard children of the node can
+     * be matched
+     * @return <i>true</i> if the rest of the topic matches some filter
+     */
+    private static boolean matches(Node node, String topic, int start, boolean wildcardsAllowed) {
+        // Multi-level wildcard matches the rest including the parent level
+        if (wildcardsAllowed && node.multiLevelFilter) {
+            return true;
+        }
+
+        if (start > topic.length()) {
+            return node.filterEnd;
+        }
+
+        int end = topic.indexOf('/', start);
+
+        if (end < 0) {
+            end = topic.length();
+        }
+
+        Node child = node.children.get(topic.substring(start, end));
+
+        if (child != null && matches(child, topic, end + 1, true)) {
+            return true;
+        }
+
+        return wildcardsAllowed && node.singleLevelChild != null && matches(node.singleLevelChild, topic, end + 1, true);
+    }
+
+    /**
+     * Returns the filters of the set.
+     *
+     * @return unmodifiable list of the filters
+     */
+    public List<String> getFilters() {
+        return filters;
+    }
+
+    /**
+     * Returns number of filters of the set.
+     *
+     * @return number of filters
+     */
+    public int size() {
+        return filters.size();
+    }
+
+}
@@ -0,0 +1,170 @@
+package ziotbroker;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Topic resolved once for repeated publishing by the embedding application.
+ * It keeps the topic encoded as in <b>PUBLISH</b> packet and the subscribers
+ * matching it - the match is reused until subscribtions of the broker change,
+ * so publishing to the handle neither encodes the topic nor searches
+ * the subscribtion tree.
+ *
+ * @author Jakub Svarc
+ */
+public class TopicHandle {
+
+    /**
+     * Charset used for encoding topics (for MQTT 3.1.1 it is UTF-8).
+     */
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    /**
+     * Subscribers and shared subscribtions matching the topic at one version
+     * of the subscribtions.
+     */
+    private static class Match {
+
+        /**
+         * Version of the subscribtions at which the match was made.
+         */
+        private final long version;
+        /**
+         * Matching subscribers.
+         */
+        private final List<Subscriber> subscribers;
+        /**
+         * Matching groups of shared subscribtions.
+         */
+        private final List<SubscribtionTree.SharedSubscribtion> sharedSubscribtions;
+
+        /**
+         * Builds Match.
+         *
+         * @param version version of the subscribtions
+         * @param subscribers matching subscribers
+         * @param sharedSubscribtions matching groups of shared subscribtions
+         */
+        private Match(long version, List<Subscriber> subscribers, List<SubscribtionTree.SharedSubscribtion> sharedSubscribtions) {
+            this.version = version;
+            this.subscribers = subscribers;
+            this.sharedSubscribtions = sharedSubscribtions;
+        }
+
+    }
+
+    /**
+     * The topic.
+     */
+    private final String topic;
+    /**
+     * The topic encoded as UTF-8.
+     */
+    private final byte[] binaryTopic;
+    /**
+     * Subscribtions of the broker which resolved the topic.
+     */
+    private final SubscribtionTree subscribtions;
+    /**
+     * The last match of the topic.
+     */
+    private volatile Match match;
+
+    /**
+     * Builds TopicHandle.
+     *
+     * @param topic topic of published messages (without wildcards)
+     * @param subscribtions subscribtions of the broker which resolves
+     * the topic
+     * @throws MQTTException thrown if the topic is empty, contains wildcards
+     * or is too long
+     */
+    TopicHandle(String topic, SubscribtionTree subscribtions) throws MQTTException {
+        if (!SubscribtionTree.isValidTopic(topic)) {
+            throw new MQTTException(MQTTExceptionLevel.WARNING, "Malformed topic");
+        }
+
+        this.topic = topic;
+        this.binaryTopic = topic.getBytes(CHARSET);
+        this.subscribtions = subscribtions;
+
+        if (binaryTopic.length > 65535) {
+            throw new MQTTException(MQTTExceptionLevel.WARNING, "Topic is too long");
+        }
+    }
+
+    /**
+     * Returns the topic.
+     *
+     * @return the topic
+     */
+    public String getTopic() {
+        return topic;
+    }
+
+    /**
+     * Returns the topic encoded as UTF-8. The array is not copied, so it must
+     * not be modified.
+     *
+     * @return the encoded topic
+     */
+    byte[] getBinaryTopic() {
+        return binaryTopic;
+    }
+
+    /**
+     * Indicates that the topic was resolved by broker with given subscribtions.
+     *
+     * @param subscribtions subscribtions of the broker
+     * @return <i>true</i> if the handle belongs to the broker
+     */
+    boolean isResolvedBy(SubscribtionTree subscribtions) {
+        return this.subscribtions == subscribtions;
+    }
+
+    /**
+     * Returns subscribers matching the topic.
+     *
+     * @return matching subscribers
+     */
+    List<Subscriber> getSubscribers() {
+        return getMatch().subscribers;
+    }
+
+    /**
+     * Returns groups of shared subscribtions matching the topic.
+     *
+     * @return matching groups
+     */
+    List<SubscribtionTree.SharedSubscribtion> getSharedSubscribtions() {
+        return getMatch().sharedSubscribtions;
+    }
+
+    /**
+     * Returns the current match of the topic. The tree is searched only if its
+     * subscribtions changed since the last search. Version is read before
+     * the search, so change made during it causes the next search.
+     *
+     * @return the current match
+     */
+    private Match getMatch() {
+        Match currentMatch = match;
+        long version = subscribtions.getVersion();
+
+        if (currentMatch == null || currentMatch.version != version) {
+            if (subscribtions.hasSharedSubscribtions()) {
+                ArrayList<SubscribtionTree.SharedSubscribtion> sharedSubscribtions = new ArrayList<>();
+
+                currentMatch = new Match(version, Collections.unmodifiableList(subscribtions.match(topic, sharedSubscribtions)), Collections.unmodifiableList(sharedSubscribtions));
+            } else {
+                currentMatch = new Match(version, Collections.unmodifiableList(subscribtions.match(topic)), Collections.emptyList());
+            }
+
+            match = currentMatch;
+        }
+
+        return currentMatch;
+    }
+
+}
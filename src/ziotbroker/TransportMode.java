@@ -0,0 +1,25 @@
+package ziotbroker;
+
+/**
+ * Way in which the broker handles connections of the clients.
+ *
+ * @author Jakub Svarc
+ */
+public enum TransportMode {
+    /**
+     * Every client is served by two threads (input and output) blocked
+     * on the socket streams.
+     */
+    BLOCKING,
+    /**
+     * Every client is served by two virtual threads (input and output)
+     * blocked on the socket streams. Blocked virtual threads do not hold
+     * platform threads, so idle clients are cheap.
+     */
+    VIRTUAL_THREADS,
+    /**
+     * Clients are served by a small fixed set of event loops, each driving
+     * many non-blocking channels through one selector.
+     */
+    SELECTOR
+}
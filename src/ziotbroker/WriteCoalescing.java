@@ -0,0 +1,72 @@
+package ziotbroker;
+
+/**
+ * Settings of write coalescing. Output services drain all packets queued for
+ * the client and send them by one write, as long as the write stays within
+ * the byte budget. Blocking services can also wait a short time for more
+ * packets before writing, the wait is bounded by the latency cap.
+ *
+ * @author Jakub Svarc
+ */
+public class WriteCoalescing {
+
+    /**
+     * Default maximal number of bytes sent by one write.
+     */
+    public static final int DEFAULT_MAX_BYTES_PER_WRITE = 64 * 1024;
+    /**
+     * Default settings - 64 KiB per write, packets are never delayed.
+     */
+    public static final WriteCoalescing DEFAULT = new WriteCoalescing(DEFAULT_MAX_BYTES_PER_WRITE, 0);
+
+    /**
+     * Maximal number of bytes sent by one write (one packet larger than
+     * the budget is still sent by one write).
+     */
+    private final int maxBytesPerWrite;
+    /**
+     * Maximal time in nanoseconds for which the first packet of the write
+     * can wait for other packets.
+     */
+    private final long maxDelayNanos;
+
+    /**
+     * Builds WriteCoalescing.
+     *
+     * @param maxBytesPerWrite maximal number of bytes sent by one write
+     * @param maxDelayNanos maximal time in nanoseconds for which the first
+     * packet of the write can wait for other packets (0 for no waiting)
+     */
+    public WriteCoalescing(int maxBytesPerWrite, long maxDelayNanos) {
+        if (maxBytesPerWrite < 1) {
+            throw new IllegalArgumentException("Byte budget of one write must be positive");
+        }
+
+        if (maxDelayNanos < 0) {
+            throw new IllegalArgumentException("Latency cap must not be negative");
+        }
+
+        this.maxBytesPerWrite = maxBytesPerWrite;
+        this.maxDelayNanos = maxDelayNanos;
+    }
+
+    /**
+     * Returns maximal number of bytes sent by one write.
+     *
+     * @return maximal number of bytes sent by one write
+     */
+    public int getMaxBytesPerWrite() {
+        return maxBytesPerWrite;
+    }
+
+    /**
+     * Returns maximal time for which the first packet of the write can wait
+     * for other packets.
+     *
+     * @return maximal delay in nanoseconds
+     */
+    public long getMaxDelayNanos() {
+        return maxDelayNanos;
+    }
+
+}
@@ -1,5 +1,6 @@
 package ziotbroker.packet;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import ziotbroker.MQTTException;
 import ziotbroker.MQTTExceptionLevel;
@@ -35,7 +36,7 @@ public class ConnackPacket extends Packet {
      * @param connectReturnCode code indicating if the connection was 
      * established succesfully
      */
-    private ConnackPacket(boolean sessionPresent, byte connectReturnCode) {       
+    public ConnackPacket(boolean sessionPresent, byte connectReturnCode) {       
         super(PacketType.CONNACK);
         this.sessionPresent = sessionPresent;
         this.connectReturnCode = connectReturnCode;
@@ -48,7 +49,7 @@ public class ConnackPacket extends Packet {
      * @param sessionPresent indicates if session with corresponding ID already
      * exists on the server and if should be stored
      */
-    private ConnackPacket(boolean sessionPresent) {
+    public ConnackPacket(boolean sessionPresent) {
         this(sessionPresent, (byte) 0);
     }
     
@@ -58,30 +59,43 @@ public class ConnackPacket extends Packet {
      * @param controlHeader first byte of the packet (contains packet type and
      * flags)
      * @param remainingHeaders binary representation of variable headers
+     * (from its position to its limit)
      * @throws MQTTException thrown if packet data are corrupted
      */
-    public ConnackPacket(byte controlHeader, byte[] remainingHeaders) throws MQTTException {       
-        super(PacketType.CONNECT);
+    public ConnackPacket(byte controlHeader, ByteBuffer remainingHeaders) throws MQTTException {       
+        super(PacketType.CONNACK);
         
         if (controlHeader != 0b00100000) {
             throw new MQTTException(MQTTExceptionLevel.ERROR, "Packet controll header mallformed!");
         }
         
-        if (remainingHeaders.length != 2) {
-            throw new MQTTException(MQTTExceptionLevel.ERROR, "Variable headers length is " + remainingHeaders.length + ", but must be 2");
+        if (remainingHeaders.remaining() != 2) {
+            throw new MQTTException(MQTTExceptionLevel.ERROR, "Variable headers length is " + remainingHeaders.remaining() + ", but must be 2");
         }
         
-        if (remainingHeaders[0] > 0b00000001) {
-            throw new MQTTException(MQTTExceptionLevel.ERROR, "Connect acknowledge flag is malformed, value must be 0 or 1, bur is " + remainingHeaders.length);
+        final byte connectAcknowledgeFlags = remainingHeaders.get();
+        
+        if (connectAcknowledgeFlags < 0 || connectAcknowledgeFlags > 0b00000001) {
+            throw new MQTTException(MQTTExceptionLevel.ERROR, "Connect acknowledge flag is malformed, value must be 0 or 1, bur is " + connectAcknowledgeFlags);
         }
         
-        sessionPresent = remainingHeaders[0] == 1;
-        connectReturnCode = remainingHeaders[1];
+        sessionPresent = connectAcknowledgeFlags == 1;
+        connectReturnCode = remainingHeaders.get();
     }
 
+    /**
+     * Builds binary representation of the packet.
+     *
+     * @return binary representation of the packet
+     */
     @Override
     public byte[] buildBinaryPacket() {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        byte[] binaryPacket = allocateBinaryPacket((byte) 0b00100000, 2);
+
+        binaryPacket[2] = (byte) (sessionPresent ? 1 : 0);
+        binaryPacket[3] = connectReturnCode;
+
+        return binaryPacket;
     }
 
     /**
@@ -1,7 +1,7 @@
 package ziotbroker.packet;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.util.Arrays;
 import ziotbroker.MQTTException;
 import ziotbroker.MQTTExceptionLevel;
 import ziotbroker.QoS;
@@ -16,6 +16,14 @@ public class ConnectPacket extends Packet {
      * Charset used for encoding strings in packet (for MQTT 3.1.1 it is UTF-8).
      */
     private static final Charset CHARSET = Charset.forName("UTF-8");
+    /**
+     * Encoded protocol name of MQTT.
+     */
+    private static final byte[] PROTOCOL_NAME = "MQTT".getBytes(CHARSET);
+    /**
+     * Protocol level of MQTT 3.1.1.
+     */
+    private static final byte PROTOCOL_LEVEL = 4;
     
     /**
      * ID representing established session.
@@ -171,7 +179,7 @@ public class ConnectPacket extends Packet {
      * @param password password of connected client
      */
     public ConnectPacket(String clientID, short keepAlive, boolean cleanSession, String userName, String password) {
-        this(clientID, keepAlive, cleanSession, true, userName, true, password, true, null, null, QoS.AT_MOST_ONCE, false);
+        this(clientID, keepAlive, cleanSession, true, userName, true, password, false, null, null, QoS.AT_MOST_ONCE, false);
     }
     
     /**
@@ -186,7 +194,7 @@ public class ConnectPacket extends Packet {
      * @param userName user name of connected client
      */
     public ConnectPacket(String clientID, short keepAlive, boolean cleanSession, String userName) {
-        this(clientID, keepAlive, cleanSession, true, userName, false, null, true, null, null, QoS.AT_MOST_ONCE, false);
+        this(clientID, keepAlive, cleanSession, true, userName, false, null, false, null, null, QoS.AT_MOST_ONCE, false);
     }
     
     /**
@@ -199,7 +207,7 @@ public class ConnectPacket extends Packet {
      * new CONNECT arrives
      */
     public ConnectPacket(String clientID, short keepAlive, boolean cleanSession) {
-        this(clientID, keepAlive, cleanSession, false, null, false, null, true, null, null, QoS.AT_MOST_ONCE, false);
+        this(clientID, keepAlive, cleanSession, false, null, false, null, false, null, null, QoS.AT_MOST_ONCE, false);
     }
     
     /**
@@ -208,31 +216,29 @@ public class ConnectPacket extends Packet {
      * @param controlHeader first byte of the packet (contains packet type and
      * flags)
      * @param remainingHeaders binary representation of variable headers and 
-     * payload
+     * payload (from its position to its limit)
      * @throws MQTTException thrown if packet data are corrupted
      */
-    public ConnectPacket(byte controlHeader, byte[] remainingHeaders) throws MQTTException {       
+    public ConnectPacket(byte controlHeader, ByteBuffer remainingHeaders) throws MQTTException {       
         super(PacketType.CONNECT);
         
         if (controlHeader != 0b00010000) {
             throw new MQTTException(MQTTExceptionLevel.ERROR, "Packet controll header mallformed!");
         }
         
-        int cursor = 0;
-        final int protocolNameLength = remainingHeaders[cursor++] * 256 + remainingHeaders[cursor++];
-        final String protocolName = new String(Arrays.copyOfRange(remainingHeaders, cursor, cursor += protocolNameLength), CHARSET);
+        final String protocolName = decodeString(remainingHeaders);
         
         if (!protocolName.equals("MQTT")) {
             throw new MQTTException(MQTTExceptionLevel.ERROR, "Protocol name header mallformed - " + protocolName);
         }
         
-        final int protocolLevel = remainingHeaders[cursor++];
+        final int protocolLevel = decodeByte(remainingHeaders);
         
         if (protocolLevel != 4) {
             throw new MQTTException(MQTTExceptionLevel.ERROR, "Unsuported protocol level - " + protocolLevel);
         }
         
-        final byte connectFlags = remainingHeaders[cursor++];
+        final byte connectFlags = decodeByte(remainingHeaders);
         
         if ((connectFlags & 0b00000001) != 0b00000000) {
             throw new MQTTException(MQTTExceptionLevel.ERROR, "Connect flags header mallformed!");
@@ -265,38 +271,26 @@ public class ConnectPacket extends Packet {
             }
         }
         
-        if (!willFlag && (willRetain || willQoS != QoS.AT_LEAST_ONCE)) {
+        if (!willFlag && (willRetain || willQoS != QoS.AT_MOST_ONCE)) {
             throw new MQTTException(MQTTExceptionLevel.ERROR, "Will flag is not present but other Will related flags are!");
         }
         
         cleanSession = (connectFlags & 0b00000010) == 0b00000010;
-        keepAlive = (short) (remainingHeaders[cursor++] * 256 + remainingHeaders[cursor++]);
-        
-        final short clientIDLength = (short) (remainingHeaders[cursor++] * 256 + remainingHeaders[cursor++]);
-        
-        clientID = new String(Arrays.copyOfRange(remainingHeaders, cursor, cursor += clientIDLength), CHARSET);
+        keepAlive = (short) decodeTwoByteInteger(remainingHeaders);
+        clientID = decodeString(remainingHeaders);
         
         if (willFlag) {
-            final short willTopicLength = (short) (remainingHeaders[cursor++] * 256 + remainingHeaders[cursor++]);
-
-            willTopic = new String(Arrays.copyOfRange(remainingHeaders, cursor, cursor += willTopicLength), CHARSET);
-
-            final short willMessageLength = (short) (remainingHeaders[cursor++] * 256 + remainingHeaders[cursor++]);
-
-            willMessage = new String(Arrays.copyOfRange(remainingHeaders, cursor, cursor += willMessageLength), CHARSET);
+            willTopic = decodeString(remainingHeaders);
+            willMessage = decodeString(remainingHeaders);
         } else {
             willTopic = null;
             willMessage = null;
         }
         
         if (userNameFlag) {
-            final short userNameLength = (short) (remainingHeaders[cursor++] * 256 + remainingHeaders[cursor++]);
-
-            userName = new String(Arrays.copyOfRange(remainingHeaders, cursor, cursor += userNameLength), CHARSET);
+            userName = decodeString(remainingHeaders);
             if (passwordFlag) {
-                final short passwordLength = (short) (remainingHeaders[cursor++] * 256 + remainingHeaders[cursor++]);
-
-                password = new String(Arrays.copyOfRange(remainingHeaders, cursor, cursor += passwordLength), CHARSET);
+                password = decodeString(remainingHeaders);
             } else {
                 password = null;
             }
@@ -305,14 +299,79 @@ public class ConnectPacket extends Packet {
             password = null;
         }
         
-        if (cursor != remainingHeaders.length) {
+        if (remainingHeaders.hasRemaining()) {
             throw new MQTTException(MQTTExceptionLevel.ERROR, "Packet length does not match \"Remaining length\" value!");
         }
     }
 
+    /**
+     * Builds binary representation of the packet (MQTT 3.1.1).
+     *
+     * @return binary representation of the packet
+     */
     @Override
     public byte[] buildBinaryPacket() {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        byte[] binaryClientID = clientID.getBytes(CHARSET);
+        byte[] binaryWillTopic = willFlag ? willTopic.getBytes(CHARSET) : null;
+        byte[] binaryWillMessage = willFlag ? willMessage.getBytes(CHARSET) : null;
+        byte[] binaryUserName = userNameFlag ? userName.getBytes(CHARSET) : null;
+        byte[] binaryPassword = passwordFlag ? password.getBytes(CHARSET) : null;
+        /**
+         * Length of protocol name, level, flags and keep alive + client ID.
+         */
+        int remainingLength = 10 + 2 + binaryClientID.length;
+
+        if (willFlag) {
+            remainingLength += 2 + binaryWillTopic.length + 2 + binaryWillMessage.length;
+        }
+
+        if (userNameFlag) {
+            remainingLength += 2 + binaryUserName.length;
+        }
+
+        if (passwordFlag) {
+            remainingLength += 2 + binaryPassword.length;
+        }
+
+        byte[] binaryPacket = allocateBinaryPacket((byte) 0b00010000, remainingLength);
+        int cursor = binaryPacket.length - remainingLength;
+
+        cursor = encodeBinaryString(PROTOCOL_NAME, binaryPacket, cursor);
+        binaryPacket[cursor++] = PROTOCOL_LEVEL;
+        binaryPacket[cursor++] = (byte) ((userNameFlag ? 0b10000000 : 0) | (passwordFlag ? 0b01000000 : 0) | (willRetain ? 0b00100000 : 0) | (willQoS.ordinal() << 3) | (willFlag ? 0b00000100 : 0) | (cleanSession ? 0b00000010 : 0));
+        encodeTwoByteInteger(keepAlive, binaryPacket, cursor);
+        cursor += 2;
+        cursor = encodeBinaryString(binaryClientID, binaryPacket, cursor);
+
+        if (willFlag) {
+            cursor = encodeBinaryString(binaryWillTopic, binaryPacket, cursor);
+            cursor = encodeBinaryString(binaryWillMessage, binaryPacket, cursor);
+        }
+
+        if (userNameFlag) {
+            cursor = encodeBinaryString(binaryUserName, binaryPacket, cursor);
+        }
+
+        if (passwordFlag) {
+            encodeBinaryString(binaryPassword, binaryPacket, cursor);
+        }
+
+        return binaryPacket;
+    }
+
+    /**
+     * Writes encoded string prefixed by its length.
+     *
+     * @param binaryString string encoded as UTF-8
+     * @param binaryPacket binary data to which the string is written
+     * @param position position of the length prefix
+     * @return position behind the string
+     */
+    private static int encodeBinaryString(byte[] binaryString, byte[] binaryPacket, int position) {
+        encodeTwoByteInteger(binaryString.length, binaryPacket, position);
+        System.arraycopy(binaryString, 0, binaryPacket, position + 2, binaryString.length);
+
+        return position + 2 + binaryString.length;
     }
 
     /**
@@ -0,0 +1,73 @@
+package ziotbroker.packet;
+
+import java.nio.ByteBuffer;
+import ziotbroker.MQTTException;
+import ziotbroker.MQTTExceptionLevel;
+
+/**
+ * Object representation of packets which consist only of fixed header 
+ * (PINGREQ, PINGRESP and DISCONNECT).
+ *
+ * @author Jakub Svarc
+ */
+public class EmptyPacket extends Packet {
+
+    /**
+     * Builds packet object of given type.
+     *
+     * @param type type of the packet (PINGREQ, PINGRESP or DISCONNECT)
+     */
+    public EmptyPacket(PacketType type) {
+        super(type);
+        getControlHeader(type);
+    }
+
+    /**
+     * Builds packet object of given type from binary representation 
+     * of the packet.
+     *
+     * @param type type of the packet (PINGREQ, PINGRESP or DISCONNECT)
+     * @param controlHeader first byte of the packet (contains packet type and
+     * flags)
+     * @param remainingHeaders binary representation of variable headers
+     * (from its position to its limit)
+     * @throws MQTTException thrown if packet data are corrupted
+     */
+    public EmptyPacket(PacketType type, byte controlHeader, ByteBuffer remainingHeaders) throws MQTTException {
+        super(type);
+
+        if (controlHeader != getControlHeader(type)) {
+            throw new MQTTException(MQTTExceptionLevel.ERROR, "Malformed flags field");
+        }
+
+        if (remainingHeaders.hasRemaining()) {
+            throw new MQTTException(MQTTExceptionLevel.ERROR, "Variable headers length is " + remainingHeaders.remaining() + ", but must be 0");
+        }
+    }
+
+    /**
+     * Returns control header byte of given packet type.
+     *
+     * @param type type of the packet
+     * @return control header byte
+     */
+    private static byte getControlHeader(PacketType type) {
+        switch (type) {
+            case PINGREQ: return (byte) 0b11000000;
+            case PINGRESP: return (byte) 0b11010000;
+            case DISCONNECT: return (byte) 0b11100000;
+            default: throw new IllegalArgumentException("Packet type " + type + " does not consist of fixed header only");
+        }
+    }
+
+    /**
+     * Builds binary representation of the packet.
+     *
+     * @return binary representation of the packet
+     */
+    @Override
+    public byte[] buildBinaryPacket() {
+        return allocateBinaryPacket(getControlHeader(getType()), 0);
+    }
+
+}
@@ -0,0 +1,99 @@
+package ziotbroker.packet;
+
+import java.nio.ByteBuffer;
+import ziotbroker.MQTTException;
+import ziotbroker.MQTTExceptionLevel;
+
+/**
+ * Object representation of packets which consist only of packet identifier
+ * (PUBACK, PUBREC, PUBREL, PUBCOMP and UNSUBACK).
+ *
+ * @author Jakub Svarc
+ */
+public class IdentifierPacket extends Packet {
+
+    /**
+     * Identifier of the packet.
+     */
+    private final int packetIdentifier;
+
+    /**
+     * Builds packet object of given type with given identifier.
+     *
+     * @param type type of the packet (PUBACK, PUBREC, PUBREL, PUBCOMP
+     * or UNSUBACK)
+     * @param packetIdentifier identifier of the packet
+     */
+    public IdentifierPacket(PacketType type, int packetIdentifier) {
+        super(type);
+        getControlHeader(type);
+        this.packetIdentifier = packetIdentifier;
+    }
+
+    /**
+     * Builds packet object of given type from binary representation 
+     * of the packet.
+     *
+     * @param type type of the packet (PUBACK, PUBREC, PUBREL, PUBCOMP
+     * or UNSUBACK)
+     * @param controlHeader first byte of the packet (contains packet type and
+     * flags)
+     * @param remainingHeaders binary representation of variable headers
+     * (from its position to its limit)
+     * @throws MQTTException thrown if packet data are corrupted
+     */
+    public IdentifierPacket(PacketType type, byte controlHeader, ByteBuffer remainingHeaders) throws MQTTException {
+        super(type);
+
+        if (controlHeader != getControlHeader(type)) {
+            throw new MQTTException(MQTTExceptionLevel.ERROR, "Malformed flags field");
+        }
+
+        if (remainingHeaders.remaining() != 2) {
+            throw new MQTTException(MQTTExceptionLevel.ERROR, "Variable headers length is " + remainingHeaders.remaining() + ", but must be 2");
+        }
+
+        packetIdentifier = decodeTwoByteInteger(remainingHeaders);
+    }
+
+    /**
+     * Returns control header byte of given packet type.
+     *
+     * @param type type of the packet
+     * @return control header byte (including fixed flags)
+     */
+    private static byte getControlHeader(PacketType type) {
+        switch (type) {
+            case PUBACK: return (byte) 0b01000000;
+            case PUBREC: return (byte) 0b01010000;
+            case PUBREL: return (byte) 0b01100010;
+            case PUBCOMP: return (byte) 0b01110000;
+            case UNSUBACK: return (byte) 0b10110000;
+            default: throw new IllegalArgumentException("Packet type " + type + " does not consist of packet identifier only");
+        }
+    }
+
+    /**
+     * Builds binary representation of the packet.
+     *
+     * @return binary representation of the packet
+     */
+    @Override
+    public byte[] buildBinaryPacket() {
+        byte[] binaryPacket = allocateBinaryPacket(getControlHeader(getType()), 2);
+
+        encodeTwoByteInteger(packetIdentifier, binaryPacket, 2);
+
+        return binaryPacket;
+    }
+
+    /**
+     * Returns identifier of the packet.
+     *
+     * @return identifier of the packet
+     */
+    public int getPacketIdentifier() {
+        return packetIdentifier;
+    }
+
+}
@@ -1,5 +1,10 @@
 package ziotbroker.packet;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import ziotbroker.MQTTException;
+import ziotbroker.MQTTExceptionLevel;
+
 /**
  * Object representation of MQTT packet.
  *
@@ -8,25 +13,14 @@ package ziotbroker.packet;
 public abstract class Packet {
 
     /**
-     * Type of the packet.
-     */
-    private final PacketType type;
-    /**
-     * Flags of the packet represented by boolean array.
+     * Charset used for encoding strings in packet (for MQTT 3.1.1 it is UTF-8).
      */
-    //private final boolean[] flags;
-    /**
-     * Length of variable headers and payload of the packet.
-     */
-    //private final int remainingLength;
-    /**
-     * Packet type specific headers.
-     */
-    //private final byte[] variableHeaders;
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    
     /**
-     * Content of the packet.
+     * Type of the packet.
      */
-    //private final String payload;
+    private final PacketType type;
     
     /**
      * Builds MQTT packet.
@@ -53,4 +47,125 @@ public abstract class Packet {
         return type;
     }
     
+    /**
+     * Allocates binary representation of the packet and writes its fixed 
+     * header (control header byte and encoded remaining length) into it.
+     * 
+     * @param controlHeader first byte of the packet (contains packet type and
+     * flags)
+     * @param remainingLength length of variable headers and payload
+     * @return binary representation of the packet, variable headers 
+     * and payload are to be written into its last <i>remainingLength</i> bytes
+     */
+    protected static byte[] allocateBinaryPacket(byte controlHeader, int remainingLength) {
+        /**
+         * Binary encoded length of variable headers and payload.
+         */
+        byte[] binaryRemainingLength = new byte[4];
+        /**
+         * Nubmber of bytes used by remaining length field.
+         */
+        int binaryRemainingLengthSize = 0;
+        /**
+         * Supporting variables for encoding of remaining length.
+         */
+        int encodedByte, lengthToEncode = remainingLength;
+        
+        do {
+            encodedByte = lengthToEncode % 128;
+            lengthToEncode = lengthToEncode / 128;
+
+            if (lengthToEncode > 0) {
+                encodedByte = encodedByte | 128;
+            }
+            
+            binaryRemainingLength[binaryRemainingLengthSize++] = (byte) encodedByte;
+        } while (lengthToEncode > 0);
+        
+        byte[] binaryPacket = new byte[1 + binaryRemainingLengthSize + remainingLength];
+        
+        binaryPacket[0] = controlHeader;
+        System.arraycopy(binaryRemainingLength, 0, binaryPacket, 1, binaryRemainingLengthSize);
+        
+        return binaryPacket;
+    }
+    
+    /**
+     * Decodes one byte at the position of given buffer and moves 
+     * the position behind it.
+     * 
+     * @param bytes binary data containing the byte
+     * @return decoded byte
+     * @throws MQTTException thrown if the buffer does not contain the byte
+     */
+    protected static byte decodeByte(ByteBuffer bytes) throws MQTTException {
+        if (!bytes.hasRemaining()) {
+            throw new MQTTException(MQTTExceptionLevel.ERROR, "Packet length does not match \"Remaining length\" value!");
+        }
+        
+        return bytes.get();
+    }
+    
+    /**
+     * Decodes two byte integer (length of string or packet identifier) at 
+     * the position of given buffer and moves the position behind it.
+     * 
+     * @param bytes binary data containing the integer
+     * @return decoded value
+     * @throws MQTTException thrown if the buffer does not contain whole 
+     * integer
+     */
+    protected static int decodeTwoByteInteger(ByteBuffer bytes) throws MQTTException {
+        if (bytes.remaining() < 2) {
+            throw new MQTTException(MQTTExceptionLevel.ERROR, "Packet length does not match \"Remaining length\" value!");
+        }
+        
+        return bytes.getShort() & 65535;
+    }
+    
+    /**
+     * Decodes length prefixed UTF-8 string at the position of given buffer 
+     * and moves the position behind it. Characters are decoded directly from 
+     * the buffer, no intermediate array is built.
+     * 
+     * @param bytes binary data containing the string
+     * @return decoded string
+     * @throws MQTTException thrown if the buffer does not contain whole string
+     */
+    protected static String decodeString(ByteBuffer bytes) throws MQTTException {
+        /**
+         * Length of the string in bytes.
+         */
+        int length = decodeTwoByteInteger(bytes);
+        
+        if (bytes.remaining() < length) {
+            throw new MQTTException(MQTTExceptionLevel.ERROR, "Packet length does not match \"Remaining length\" value!");
+        }
+        
+        if (!bytes.hasArray()) {
+            byte[] binaryString = new byte[length];
+            
+            bytes.get(binaryString);
+            
+            return new String(binaryString, CHARSET);
+        }
+        
+        String decodedString = new String(bytes.array(), bytes.arrayOffset() + bytes.position(), length, CHARSET);
+        bytes.position(bytes.position() + length);
+        
+        return decodedString;
+    }
+    
+    /**
+     * Encodes two byte integer (length of string or packet identifier).
+     * 
+     * @param value value to be encoded
+     * @param bytes binary data to which the integer is written
+     * @param position position of the most significant byte
+     */
+    protected static void encodeTwoByteInteger(int value, byte[] bytes, int position) {
+        bytes[position] = (byte) ((value >> 8) & 255);
+        bytes[position + 1] = (byte) (value & 255);
+    }
+    
 }
@@ -0,0 +1,217 @@
+package ziotbroker.packet;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import ziotbroker.MQTTException;
+import ziotbroker.MQTTExceptionLevel;
+import ziotbroker.QoS;
+
+/**
+ * Object representation of PUBLISH packet. Payload is kept as raw bytes, so
+ * any binary content passes the broker unchanged.
+ *
+ * @author Jakub Svarc
+ */
+public class PublishPacket extends Packet {
+
+    /**
+     * Charset used for encoding strings in packet (for MQTT 3.1.1 it is UTF-8).
+     */
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    /**
+     * Indicates that the packet is redelivery of earlier attempt.
+     */
+    private final boolean duplicate;
+    /**
+     * Quality of service of the message.
+     */
+    private final QoS qualityOfService;
+    /**
+     * Indicates if the message should be retained.
+     */
+    private final boolean retain;
+    /**
+     * Topic to which the message is published.
+     */
+    private final String topic;
+    /**
+     * Identifier of the packet (present only for QoS 1 and 2).
+     */
+    private final int packetIdentifier;
+    /**
+     * The message itself.
+     */
+    private final byte[] payload;
+
+    /**
+     * Builds PUBLISH packet object from given properties.
+     *
+     * @param duplicate indicates that the packet is redelivery of earlier
+     * attempt
+     * @param qualityOfService quality of service of the message
+     * @param retain indicates if the message should be retained
+     * @param topic topic to which the message is published
+     * @param packetIdentifier identifier of the packet (ignored for QoS 0)
+     * @param payload the message itself
+     */
+    public PublishPacket(boolean duplicate, QoS qualityOfService, boolean retain, String topic, int packetIdentifier, byte[] payload) {
+        super(PacketType.PUBLISH);
+        this.duplicate = duplicate;
+        this.qualityOfService = qualityOfService;
+        this.retain = retain;
+        this.topic = topic;
+        this.packetIdentifier = qualityOfService == QoS.AT_MOST_ONCE ? 0 : packetIdentifier;
+        this.payload = payload;
+    }
+
+    /**
+     * Builds PUBLISH packet object with QoS 0 from given properties.
+     *
+     * @param retain indicates if the message should be retained
+     * @param topic topic to which the message is published
+     * @param payload the message itself
+     */
+    public PublishPacket(boolean retain, String topic, byte[] payload) {
+        this(false, QoS.AT_MOST_ONCE, retain, topic, 0, payload);
+    }
+
+    /**
+     * Builds PUBLISH packet object from binary representation of the packet.
+     *
+     * @param controlHeader first byte of the packet (contains packet type and
+     * flags)
+     * @param remainingHeaders binary representation of variable headers and
+     * payload (from its position to its limit), the payload is copied out
+     * of it
+     * @throws MQTTException thrown if packet data are corrupted
+     */
+    public PublishPacket(byte controlHeader, ByteBuffer remainingHeaders) throws MQTTException {
+        super(PacketType.PUBLISH);
+
+        if ((controlHeader & 0b11110000) != 0b00110000) {
+            throw new MQTTException(MQTTExceptionLevel.ERROR, "Packet controll header mallformed!");
+        }
+
+        duplicate = (controlHeader & 0b00001000) == 0b00001000;
+        retain = (controlHeader & 0b00000001) == 0b00000001;
+
+        final byte binaryQoS = (byte) ((controlHeader & 0b00000110) >> 1);
+
+        switch (binaryQoS) {
+            case 0: {
+                qualityOfService = QoS.AT_MOST_ONCE;
+                break;
+            } case 1: {
+                qualityOfService = QoS.AT_LEAST_ONCE;
+                break;
+            } case 2: {
+                qualityOfService = QoS.EXACTLY_ONCE;
+                break;
+            } default: {
+                throw new MQTTException(MQTTExceptionLevel.ERROR, "Malformed flags field");
+            }
+        }
+
+        if (duplicate && qualityOfService == QoS.AT_MOST_ONCE) {
+            throw new MQTTException(MQTTExceptionLevel.ERROR, "Malformed flags field");
+        }
+
+        topic = decodeString(remainingHeaders);
+
+        if (qualityOfService == QoS.AT_MOST_ONCE) {
+            packetIdentifier = 0;
+        } else {
+            packetIdentifier = decodeTwoByteInteger(remainingHeaders);
+        }
+
+        payload = new byte[remainingHeaders.remaining()];
+        remainingHeaders.get(payload);
+    }
+
+    /**
+     * Builds binary representation of the packet.
+     *
+     * @return binary representation of the packet
+     */
+    @Override
+    public byte[] buildBinaryPacket() {
+        byte[] binaryTopic = topic.getBytes(CHARSET);
+        int packetIdentifierLength = qualityOfService == QoS.AT_MOST_ONCE ? 0 : 2;
+        int remainingLength = 2 + binaryTopic.length + packetIdentifierLength + payload.length;
+        byte controlHeader = (byte) (0b00110000 | (duplicate ? 0b00001000 : 0) | (qualityOfService.ordinal() << 1) | (retain ? 0b00000001 : 0));
+
+        byte[] binaryPacket = allocateBinaryPacket(controlHeader, remainingLength);
+        int cursor = binaryPacket.length - remainingLength;
+
+        encodeTwoByteInteger(binaryTopic.length, binaryPacket, cursor);
+        cursor += 2;
+        System.arraycopy(binaryTopic, 0, binaryPacket, cursor, binaryTopic.length);
+        cursor += binaryTopic.length;
+
+        if (packetIdentifierLength > 0) {
+            encodeTwoByteInteger(packetIdentifier, binaryPacket, cursor);
+            cursor += 2;
+        }
+
+        System.arraycopy(payload, 0, binaryPacket, cursor, payload.length);
+
+        return binaryPacket;
+    }
+
+    /**
+     * Returns value of the duplicate flag.
+     *
+     * @return value of the duplicate flag
+     */
+    public boolean getDuplicate() {
+        return duplicate;
+    }
+
+    /**
+     * Returns quality of service of the message.
+     *
+     * @return quality of service of the message
+     */
+    public QoS getQualityOfService() {
+        return qualityOfService;
+    }
+
+    /**
+     * Returns value of the retain flag.
+     *
+     * @return value of the retain flag
+     */
+    public boolean getRetain() {
+        return retain;
+    }
+
+    /**
+     * Returns topic to which the message is published.
+     *
+     * @return topic to which the message is published
+     */
+    public String getTopic() {
+        return topic;
+    }
+
+    /**
+     * Returns identifier of the packet.
+     *
+     * @return identifier of the packet (0 for QoS 0)
+     */
+    public int getPacketIdentifier() {
+        return packetIdentifier;
+    }
+
+    /**
+     * Returns the message. The array is not copied, so it must not be
+     * modified.
+     *
+     * @return the message
+     */
+    public byte[] getPayload() {
+        return payload;
+    }
+
+}
@@ -0,0 +1,97 @@
+package ziotbroker.packet;
+
+import java.nio.ByteBuffer;
+import ziotbroker.MQTTException;
+import ziotbroker.MQTTExceptionLevel;
+
+/**
+ * Object representation of SUBACK packet.
+ *
+ * @author Jakub Svarc
+ */
+public class SubackPacket extends Packet {
+
+    /**
+     * Identifier of corresponding SUBSCRIBE packet.
+     */
+    private final int packetIdentifier;
+    /**
+     * Granted QoS of requested subscribtions (128 for failed subscribtion).
+     */
+    private final byte[] returnCodes;
+
+    /**
+     * Builds SUBACK packet object from given properties.
+     *
+     * @param packetIdentifier identifier of corresponding SUBSCRIBE packet
+     * @param returnCodes granted QoS of requested subscribtions (128 for
+     * failed subscribtion)
+     */
+    public SubackPacket(int packetIdentifier, byte[] returnCodes) {
+        super(PacketType.SUBACK);
+        this.packetIdentifier = packetIdentifier;
+        this.returnCodes = returnCodes;
+    }
+
+    /**
+     * Builds SUBACK packet object from binary representation of the packet.
+     *
+     * @param controlHeader first byte of the packet (contains packet type and
+     * flags)
+     * @param remainingHeaders binary representation of variable headers and
+     * payload (from its position to its limit)
+     * @throws MQTTException thrown if packet data are corrupted
+     */
+    public SubackPacket(byte controlHeader, ByteBuffer remainingHeaders) throws MQTTException {
+        super(PacketType.SUBACK);
+
+        if (controlHeader != (byte) 0b10010000) {
+            throw new MQTTException(MQTTExceptionLevel.ERROR, "Malformed flags field");
+        }
+
+        if (remainingHeaders.remaining() < 3) {
+            throw new MQTTException(MQTTExceptionLevel.ERROR, "Packet length does not match \"Remaining length\" value!");
+        }
+
+        packetIdentifier = decodeTwoByteInteger(remainingHeaders);
+        returnCodes = new byte[remainingHeaders.remaining()];
+        remainingHeaders.get(returnCodes);
+    }
+
+    /**
+     * Builds binary representation of the packet.
+     *
+     * @return binary representation of the packet
+     */
+    @Override
+    public byte[] buildBinaryPacket() {
+        int remainingLength = 2 + returnCodes.length;
+        byte[] binaryPacket = allocateBinaryPacket((byte) 0b10010000, remainingLength);
+        int cursor = binaryPacket.length - remainingLength;
+
+        encodeTwoByteInteger(packetIdentifier, binaryPacket, cursor);
+        System.arraycopy(returnCodes, 0, binaryPacket, cursor + 2, returnCodes.length);
+
+        return binaryPacket;
+    }
+
+    /**
+     * Returns identifier of corresponding SUBSCRIBE packet.
+     *
+     * @return identifier of corresponding SUBSCRIBE packet
+     */
+    public int getPacketIdentifier() {
+        return packetIdentifier;
+    }
+
+    /**
+     * Returns granted QoS of requested subscribtions.
+     *
+     * @return granted QoS of requested subscribtions (128 for failed
+     * subscribtion)
+     */
+    public byte[] getReturnCodes() {
+        return returnCodes;
+    }
+
+}
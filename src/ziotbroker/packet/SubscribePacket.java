@@ -0,0 +1,124 @@
+package ziotbroker.packet;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import ziotbroker.MQTTException;
+import ziotbroker.MQTTExceptionLevel;
+import ziotbroker.Subscribtion;
+
+/**
+ * Object representation of SUBSCRIBE packet.
+ *
+ * @author Jakub Svarc
+ */
+public class SubscribePacket extends Packet {
+
+    /**
+     * Charset used for encoding strings in packet (for MQTT 3.1.1 it is UTF-8).
+     */
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    /**
+     * Identifier of the packet.
+     */
+    private final int packetIdentifier;
+    /**
+     * Requested subscribtions (topic filter + QoS pairs).
+     */
+    private final ArrayList<Subscribtion> subscribtions;
+
+    /**
+     * Builds SUBSCRIBE packet object from given properties.
+     *
+     * @param packetIdentifier identifier of the packet
+     * @param subscribtions requested subscribtions
+     */
+    public SubscribePacket(int packetIdentifier, ArrayList<Subscribtion> subscribtions) {
+        super(PacketType.SUBSCRIBE);
+        this.packetIdentifier = packetIdentifier;
+        this.subscribtions = subscribtions;
+    }
+
+    /**
+     * Builds SUBSCRIBE packet object from binary representation of the packet.
+     *
+     * @param controlHeader first byte of the packet (contains packet type and
+     * flags)
+     * @param remainingHeaders binary representation of variable headers and
+     * payload (from its position to its limit)
+     * @throws MQTTException thrown if packet data are corrupted
+     */
+    public SubscribePacket(byte controlHeader, ByteBuffer remainingHeaders) throws MQTTException {
+        super(PacketType.SUBSCRIBE);
+
+        if (controlHeader != (byte) 0b10000010) {
+            throw new MQTTException(MQTTExceptionLevel.ERROR, "Malformed flags field");
+        }
+
+        packetIdentifier = decodeTwoByteInteger(remainingHeaders);
+        subscribtions = new ArrayList<>();
+
+        do {
+            final String topic = decodeString(remainingHeaders);
+            final byte qualityOfService = decodeByte(remainingHeaders);
+
+            if (qualityOfService < 0 || qualityOfService > 2) {
+                throw new MQTTException(MQTTExceptionLevel.ERROR, "Malformed QoS field");
+            }
+
+            subscribtions.add(new Subscribtion(topic, qualityOfService));
+        } while (remainingHeaders.hasRemaining());
+    }
+
+    /**
+     * Builds binary representation of the packet.
+     *
+     * @return binary representation of the packet
+     */
+    @Override
+    public byte[] buildBinaryPacket() {
+        byte[][] binaryTopics = new byte[subscribtions.size()][];
+        int remainingLength = 2;
+
+        for (int i = 0; i < binaryTopics.length; i++) {
+            binaryTopics[i] = subscribtions.get(i).getTopic().getBytes(CHARSET);
+            remainingLength += 2 + binaryTopics[i].length + 1;
+        }
+
+        byte[] binaryPacket = allocateBinaryPacket((byte) 0b10000010, remainingLength);
+        int cursor = binaryPacket.length - remainingLength;
+
+        encodeTwoByteInteger(packetIdentifier, binaryPacket, cursor);
+        cursor += 2;
+
+        for (int i = 0; i < binaryTopics.length; i++) {
+            encodeTwoByteInteger(binaryTopics[i].length, binaryPacket, cursor);
+            cursor += 2;
+            System.arraycopy(binaryTopics[i], 0, binaryPacket, cursor, binaryTopics[i].length);
+            cursor += binaryTopics[i].length;
+            binaryPacket[cursor++] = subscribtions.get(i).getQualityOfService();
+        }
+
+        return binaryPacket;
+    }
+
+    /**
+     * Returns identifier of the packet.
+     *
+     * @return identifier of the packet
+     */
+    public int getPacketIdentifier() {
+        return packetIdentifier;
+    }
+
+    /**
+     * Returns requested subscribtions.
+     *
+     * @return requested subscribtions (topic filter + QoS pairs)
+     */
+    public ArrayList<Subscribtion> getSubscribtions() {
+        return subscribtions;
+    }
+
+}
@@ -0,0 +1,116 @@
+package ziotbroker.packet;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import ziotbroker.MQTTException;
+import ziotbroker.MQTTExceptionLevel;
+
+/**
+ * Object representation of UNSUBSCRIBE packet.
+ *
+ * @author Jakub Svarc
+ */
+public class UnsubscribePacket extends Packet {
+
+    /**
+     * Charset used for encoding strings in packet (for MQTT 3.1.1 it is UTF-8).
+     */
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    /**
+     * Identifier of the packet.
+     */
+    private final int packetIdentifier;
+    /**
+     * Topic filters to be unsubscribed.
+     */
+    private final ArrayList<String> topicFilters;
+
+    /**
+     * Builds UNSUBSCRIBE packet object from given properties.
+     *
+     * @param packetIdentifier identifier of the packet
+     * @param topicFilters topic filters to be unsubscribed
+     */
+    public UnsubscribePacket(int packetIdentifier, ArrayList<String> topicFilters) {
+        super(PacketType.UNSUBSCRIBE);
+        this.packetIdentifier = packetIdentifier;
+        this.topicFilters = topicFilters;
+    }
+
+    /**
+     * Builds UNSUBSCRIBE packet object from binary representation 
+     * of the packet.
+     *
+     * @param controlHeader first byte of the packet (contains packet type and
+     * flags)
+     * @param remainingHeaders binary representation of variable headers and
+     * payload (from its position to its limit)
+     * @throws MQTTException thrown if packet data are corrupted
+     */
+    public UnsubscribePacket(byte controlHeader, ByteBuffer remainingHeaders) throws MQTTException {
+        super(PacketType.UNSUBSCRIBE);
+
+        if (controlHeader != (byte) 0b10100010) {
+            throw new MQTTException(MQTTExceptionLevel.ERROR, "Malformed flags field");
+        }
+
+        packetIdentifier = decodeTwoByteInteger(remainingHeaders);
+        topicFilters = new ArrayList<>();
+
+        do {
+            topicFilters.add(decodeString(remainingHeaders));
+        } while (remainingHeaders.hasRemaining());
+    }
+
+    /**
+     * Builds binary representation of the packet.
+     *
+     * @return binary representation of the packet
+     */
+    @Override
+    public byte[] buildBinaryPacket() {
+        byte[][] binaryTopics = new byte[topicFilters.size()][];
+        int remainingLength = 2;
+
+        for (int i = 0; i < binaryTopics.length; i++) {
+            binaryTopics[i] = topicFilters.get(i).getBytes(CHARSET);
+            remainingLength += 2 + binaryTopics[i].length;
+        }
+
+        byte[] binaryPacket = allocateBinaryPacket((byte) 0b10100010, remainingLength);
+        int cursor = binaryPacket.length - remainingLength;
+
+        encodeTwoByteInteger(packetIdentifier, binaryPacket, cursor);
+        cursor += 2;
+
+        for (byte[] binaryTopic : binaryTopics) {
+            encodeTwoByteInteger(binaryTopic.length, binaryPacket, cursor);
+            cursor += 2;
+            System.arraycopy(binaryTopic, 0, binaryPacket, cursor, binaryTopic.length);
+            cursor += binaryTopic.length;
+        }
+
+        return binaryPacket;
+    }
+
+    /**
+     * Returns identifier of the packet.
+     *
+     * @return identifier of the packet
+     */
+    public int getPacketIdentifier() {
+        return packetIdentifier;
+    }
+
+    /**
+     * Returns topic filters to be unsubscribed.
+     *
+     * @return topic filters to be unsubscribed
+     */
+    public ArrayList<String> getTopicFilters() {
+        return topicFilters;
+    }
+
+}